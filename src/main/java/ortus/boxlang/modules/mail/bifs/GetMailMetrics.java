@@ -0,0 +1,64 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.bifs;
+
+import ortus.boxlang.modules.mail.util.MailKeys;
+import ortus.boxlang.modules.mail.util.MailMetrics;
+import ortus.boxlang.runtime.bifs.BIF;
+import ortus.boxlang.runtime.bifs.BoxBIF;
+import ortus.boxlang.runtime.context.IBoxContext;
+import ortus.boxlang.runtime.dynamic.casters.BooleanCaster;
+import ortus.boxlang.runtime.scopes.ArgumentsScope;
+import ortus.boxlang.runtime.types.Argument;
+import ortus.boxlang.runtime.types.IStruct;
+
+@BoxBIF
+public class GetMailMetrics extends BIF {
+
+	/**
+	 * Constructor
+	 */
+	public GetMailMetrics() {
+		super();
+		declaredArguments = new Argument[] {
+		    new Argument( false, Argument.BOOLEAN, MailKeys.reset, false )
+		};
+	}
+
+	/**
+	 * Returns the delivery metrics of the mail module: message, failover and bounce counts, estimated bytes sent, spool depth, size and
+	 * age, enqueue and dequeue rates, and latency histograms for sending, signing and encrypting, with the connect and data
+	 * latencies of each mail server. Latencies are in milliseconds and rates are per second.
+	 *
+	 * @param context   The context in which the BIF is being invoked.
+	 * @param arguments Argument scope for the BIF.
+	 *
+	 * @argument.reset Whether to reset the metrics after they are read.
+	 *
+	 * @return A struct of the mail metrics
+	 */
+	public Object _invoke( IBoxContext context, ArgumentsScope arguments ) {
+		MailMetrics	metrics		= MailMetrics.getInstance();
+		IStruct		snapshot	= metrics.snapshot();
+		if ( BooleanCaster.cast( arguments.get( MailKeys.reset ) ) ) {
+			metrics.reset();
+		}
+		return snapshot;
+	}
+
+}
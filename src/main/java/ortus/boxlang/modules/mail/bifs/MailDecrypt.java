@@ -0,0 +1,101 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.bifs;
+
+import ortus.boxlang.modules.mail.util.MailKeys;
+import ortus.boxlang.modules.mail.util.SmimeReader;
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.bifs.BIF;
+import ortus.boxlang.runtime.bifs.BoxBIF;
+import ortus.boxlang.runtime.context.IBoxContext;
+import ortus.boxlang.runtime.scopes.ArgumentsScope;
+import ortus.boxlang.runtime.types.Argument;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
+
+@BoxBIF
+public class MailDecrypt extends BIF {
+
+	/**
+	 * Constructor
+	 */
+	public MailDecrypt() {
+		super();
+		declaredArguments = new Argument[] {
+		    new Argument( true, Argument.ANY, MailKeys.source ),
+		    new Argument( false, Argument.STRING, MailKeys.keystore ),
+		    new Argument( false, Argument.STRING, MailKeys.keystorePassword ),
+		    new Argument( false, Argument.STRING, MailKeys.keyAlias ),
+		    new Argument( false, Argument.STRING, MailKeys.keyPassword ),
+		    new Argument( false, Argument.STRING, MailKeys.destination )
+		};
+	}
+
+	/**
+	 * Decrypts an S/MIME encrypted message, read from a file or a stream. The message is parsed from disk and decrypted as a
+	 * stream, so it is never held in memory as a whole, and the keystore is loaded once and cached. The key defaults to the
+	 * <code>signKeystore</code>, <code>signKeystorePassword</code>, <code>signKeyAlias</code> and <code>signKeyPassword</code>
+	 * settings. The first encrypted entity in the MIME tree is decrypted, so messages whose encrypted part is nested in a
+	 * multipart, as the messages sent by this module are, are supported.
+	 *
+	 * @param context   The context in which the BIF is being invoked.
+	 * @param arguments Argument scope for the BIF.
+	 *
+	 * @argument.source The message: a file path, a file or an input stream.
+	 *
+	 * @argument.keystore The path of the PKCS12 keystore holding the private key and certificate of the recipient.
+	 *
+	 * @argument.keystorePassword The password of the keystore.
+	 *
+	 * @argument.keyAlias The alias of the private key in the keystore.
+	 *
+	 * @argument.keyPassword The password of the private key, which defaults to the keystore password.
+	 *
+	 * @argument.destination The file the decrypted MIME entity is written to. When omitted the entity is returned in memory.
+	 *
+	 * @return A struct with the <code>contentType</code> of the decrypted entity, and either the <code>file</code> it was written
+	 *         to, or its <code>content</code> and MIME <code>part</code>
+	 */
+	public Object _invoke( IBoxContext context, ArgumentsScope arguments ) {
+		IStruct moduleSettings = BoxRuntime.getInstance().getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
+		if ( moduleSettings == null ) {
+			moduleSettings = new Struct();
+		}
+		String	keystore			= arguments.getAsString( MailKeys.keystore ) != null ? arguments.getAsString( MailKeys.keystore )
+		    : moduleSettings.getAsString( MailKeys.signKeystore );
+		String	keystorePassword	= arguments.getAsString( MailKeys.keystorePassword ) != null ? arguments.getAsString( MailKeys.keystorePassword )
+		    : moduleSettings.getAsString( MailKeys.signKeystorePassword );
+		String	keyAlias			= arguments.getAsString( MailKeys.keyAlias ) != null ? arguments.getAsString( MailKeys.keyAlias )
+		    : moduleSettings.getAsString( MailKeys.signKeyAlias );
+		String	keyPassword			= arguments.getAsString( MailKeys.keyPassword ) != null ? arguments.getAsString( MailKeys.keyPassword )
+		    : moduleSettings.getAsString( MailKeys.signKeyPassword );
+		if ( keystore == null || keyAlias == null ) {
+			throw new BoxRuntimeException( "A keystore and key alias are required to decrypt a message" );
+		}
+		return SmimeReader.decrypt(
+		    arguments.get( MailKeys.source ),
+		    keystore,
+		    keystorePassword,
+		    keyAlias,
+		    keyPassword != null ? keyPassword : keystorePassword,
+		    arguments.getAsString( MailKeys.destination )
+		);
+	}
+
+}
@@ -0,0 +1,74 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.bifs;
+
+import ortus.boxlang.modules.mail.util.BounceStore;
+import ortus.boxlang.modules.mail.util.MailKeys;
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.bifs.BIF;
+import ortus.boxlang.runtime.bifs.BoxBIF;
+import ortus.boxlang.runtime.context.IBoxContext;
+import ortus.boxlang.runtime.scopes.ArgumentsScope;
+import ortus.boxlang.runtime.types.Argument;
+import ortus.boxlang.runtime.types.Struct;
+
+@BoxBIF
+public class MailRequeueBounces extends BIF {
+
+	/**
+	 * Constructor
+	 */
+	public MailRequeueBounces() {
+		super();
+		declaredArguments = new Argument[] {
+		    new Argument( false, Argument.STRUCT, MailKeys.filter, new Struct() ),
+		    new Argument( false, Argument.INTEGER, MailKeys.batchSize, 500 )
+		};
+	}
+
+	/**
+	 * Moves bounced messages back in to the mail spool, so that they are sent again. The bounces are selected with a filter
+	 * struct, whose keys are all optional:
+	 * <ul>
+	 * <li><code>errorClass</code> - the class name of the root cause of the failure, e.g. <code>SMTPAddressFailedException</code></li>
+	 * <li><code>smtpCode</code> - the SMTP reply code, e.g. <code>451</code></li>
+	 * <li><code>server</code> - the mail server of the message</li>
+	 * <li><code>domain</code> - a recipient domain</li>
+	 * <li><code>retryable</code> - whether the failure was transient, e.g. a 4xx reply or a network failure</li>
+	 * <li><code>since</code> and <code>until</code> - the bounce time range</li>
+	 * </ul>
+	 * Requeued messages are given a new spool time, so they do not trip the <code>spoolMaxAge</code> mark. The time a message was
+	 * first spooled is kept in <code>firstSpooledAt</code>.
+	 *
+	 * @param context   The context in which the BIF is being invoked.
+	 * @param arguments Argument scope for the BIF.
+	 *
+	 * @argument.filter The filter used to select the bounces to requeue. All bounces are requeued if the filter is empty.
+	 *
+	 * @argument.batchSize The number of bounces moved in each batch. Each batch is admitted to the spool as a unit.
+	 *
+	 * @return The number of bounced messages which were requeued
+	 */
+	public Object _invoke( IBoxContext context, ArgumentsScope arguments ) {
+		if ( !BoxRuntime.getInstance().getCacheService().hasCache( MailKeys.mailBounced ) ) {
+			return 0;
+		}
+		return BounceStore.getInstance().requeue( arguments.getAsStruct( MailKeys.filter ), arguments.getAsInteger( MailKeys.batchSize ) );
+	}
+
+}
@@ -0,0 +1,77 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.bifs;
+
+import ortus.boxlang.modules.mail.util.MailKeys;
+import ortus.boxlang.modules.mail.util.SmimeReader;
+import ortus.boxlang.runtime.bifs.BIF;
+import ortus.boxlang.runtime.bifs.BoxBIF;
+import ortus.boxlang.runtime.context.IBoxContext;
+import ortus.boxlang.runtime.scopes.ArgumentsScope;
+import ortus.boxlang.runtime.types.Argument;
+
+@BoxBIF
+public class MailVerify extends BIF {
+
+	/**
+	 * Constructor
+	 */
+	public MailVerify() {
+		super();
+		declaredArguments = new Argument[] {
+		    new Argument( true, Argument.ANY, MailKeys.source ),
+		    new Argument( false, Argument.STRING, MailKeys.destination ),
+		    new Argument( false, Argument.STRING, MailKeys.trustStore ),
+		    new Argument( false, Argument.STRING, MailKeys.trustStorePassword )
+		};
+	}
+
+	/**
+	 * Verifies the signatures of an S/MIME signed message, read from a file or a stream. Both <code>multipart/signed</code> and
+	 * opaque signed messages are supported, and the first signed entity in the MIME tree is verified. The signed content is
+	 * digested as it is read, so the message is never held in memory as a whole. Each signature is checked against the
+	 * certificate carried in the message. The certificate must be valid now, and must chain to a certificate in the trust store.
+	 * Revocation is not checked.
+	 *
+	 * @param context   The context in which the BIF is being invoked.
+	 * @param arguments Argument scope for the BIF.
+	 *
+	 * @argument.source The message: a file path, a file or an input stream.
+	 *
+	 * @argument.destination The file the signed MIME entity is written to. When omitted the entity is returned in memory.
+	 *
+	 * @argument.trustStore The keystore whose certificates are trusted. When omitted the certificate authorities of the JVM are trusted.
+	 *
+	 * @argument.trustStorePassword The password of the trust store.
+	 *
+	 * @return A struct with whether every signature is <code>valid</code>, whether every <code>signatureValid</code> matches the
+	 *         content, the <code>signers</code> with their <code>subject</code>, <code>issuer</code>, <code>serialNumber</code>,
+	 *         <code>certificate</code>, <code>signedAt</code>, <code>signatureValid</code>, <code>trusted</code> and
+	 *         <code>valid</code> flags, the <code>contentType</code> of the signed entity, and either the <code>file</code> it was
+	 *         written to, or its <code>content</code> and MIME <code>part</code>
+	 */
+	public Object _invoke( IBoxContext context, ArgumentsScope arguments ) {
+		return SmimeReader.verify(
+		    arguments.get( MailKeys.source ),
+		    arguments.getAsString( MailKeys.destination ),
+		    arguments.getAsString( MailKeys.trustStore ),
+		    arguments.getAsString( MailKeys.trustStorePassword )
+		);
+	}
+
+}
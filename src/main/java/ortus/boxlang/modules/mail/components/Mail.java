@@ -19,7 +19,9 @@ package ortus.boxlang.modules.mail.components;
 
 import java.util.Set;
 
+import ortus.boxlang.modules.mail.util.BodyBufferPool;
 import ortus.boxlang.modules.mail.util.MailKeys;
+import ortus.boxlang.modules.mail.util.MailTemplate;
 import ortus.boxlang.modules.mail.util.MailUtil;
 import ortus.boxlang.runtime.components.Attribute;
 import ortus.boxlang.runtime.components.BoxComponent;
@@ -64,10 +66,15 @@ public class Mail extends Component {
 		    new Attribute( MailKeys.keystorePassword, "string" ), // "password of keystore"
 		    new Attribute( MailKeys.keyAlias, "string" ), // "alias of key"
 		    new Attribute( MailKeys.keyPassword, "string" ), // "password for private key"
+		    new Attribute( MailKeys.signatureAlgorithm, "string" ), // "auto, SHA256withRSA, SHA512withRSA, SHA256withRSAandMGF1, SHA256withECDSA, Ed25519"
 		    new Attribute( MailKeys.encrypt, "boolean", false ), // "true|false"
-		    new Attribute( MailKeys.recipientCert, "string" ), // <path to the public key cert>
-		    new Attribute( MailKeys.encryptionAlgorithm, "string", "AES256_CBC" ), // "DES_EDE3_CBC, RC2_CBC, AES128_CBC, AES192_CBC, AES256_CBC"
+		    new Attribute( MailKeys.recipientCert, "any" ), // <path to the public key cert, a comma separated list or an array of paths>
+		    new Attribute( MailKeys.recipientCertDirectory, "string" ), // <directory of recipient certs named by address>
+		    new Attribute( MailKeys.encryptionAlgorithm, "string", "AES256_CBC" ), // "AES128_GCM, AES256_GCM, CHACHA20_POLY1305, AES128_CBC, AES192_CBC, AES256_CBC, DES_EDE3_CBC, RC2_CBC"
 		    new Attribute( MailKeys.IDNAVersion, "integer" ), // DNA encoding"
+		    new Attribute( MailKeys.template, "string" ), // "body template with ${variable} holes"
+		    new Attribute( MailKeys.idempotencyKey, "string" ), // "unique key of the message, which is delivered at most once"
+		    new Attribute( MailKeys.async, "boolean", false ), // "true|false" - send an unspooled signed or encrypted message in the background
 		    // Query-specific attributes
 		    new Attribute( Key.query, "any", Set.of( Validator.NOT_IMPLEMENTED ) ), // "query name"
 		    new Attribute( Key.group, "string", Set.of( Validator.NOT_IMPLEMENTED ) ), // "query column"
@@ -127,15 +134,36 @@ public class Mail extends Component {
 	 *
 	 * @attributes.keyPassword The password for the private key within the keystore (Used when signing)
 	 *
+	 * @attribute.signatureAlgorithm The signature algorithm to use (Used when signing). One of SHA256withRSA, SHA384withRSA, SHA512withRSA,
+	 *                               SHA256withRSAandMGF1 ( RSA-PSS ), SHA256withECDSA, SHA384withECDSA, SHA512withECDSA, Ed25519 or Ed448.
+	 *                               Defaults to the signAlgorithm setting, or to an algorithm chosen from the type of the key
+	 *
 	 * @attribute.encrypt true|false Whether to encrypt the mail message - requires recipientCert, encryptionAlgorithm
 	 *
-	 * @attribute.recipientCert The path to the public key certificate of the recipient (Used when encrypting)
+	 * @attribute.recipientCert The path to the public key certificate of the recipient, or a comma separated list or array of paths when
+	 *                          there are several recipients (Used when encrypting). The content is encrypted once and can be decrypted by
+	 *                          each recipient
+	 *
+	 * @attribute.recipientCertDirectory A directory of recipient certificates, named by address ( e.g. jane@example.com.pem ). The
+	 *                                   certificate of every to, cc and bcc address is looked up when encrypting. Defaults to the
+	 *                                   recipientCertDirectory setting
 	 *
-	 * @attribute.encryptionAlgorithm The encryption algorithm to use (Used when encrypting). One of DES_EDE3_CBC, RC2_CBC, AES128_CBC, AES192_CBC,
-	 *                                AES256_CBC
+	 * @attribute.encryptionAlgorithm The encryption algorithm to use (Used when encrypting). One of AES128_GCM, AES192_GCM, AES256_GCM,
+	 *                                CHACHA20_POLY1305, AES128_CBC, AES192_CBC, AES256_CBC, DES_EDE3_CBC or RC2_CBC. The GCM and
+	 *                                ChaCha20-Poly1305 algorithms are authenticated, and produce authEnveloped-data messages
 	 *
 	 * @attribute.debug true|false Whether to enable debug logging output
 	 *
+	 * @attribute.template A body template containing ${variable} holes. The template is compiled once and cached, and replaces the rendered body
+	 *                     content on each send
+	 *
+	 * @attribute.idempotencyKey An optional unique key for the message. A message whose key has already been delivered is not sent again, so
+	 *                           application retries do not send duplicates
+	 *
+	 * @attribute.async true|false Whether a signed or encrypted message which is not spooled is sent in the background, so that the
+	 *                  request does not wait for the message to be signed, encrypted and sent. Key and certificate errors are still thrown,
+	 *                  and errors which occur while the message is built or sent are logged
+	 *
 	 * @return An empty body result is returned
 	 *
 	 */
@@ -144,16 +172,25 @@ public class Mail extends Component {
 		executionState.put( MailKeys.mailParams, new Array() );
 		executionState.put( MailKeys.mailParts, new Array() );
 
-		StringBuffer	buffer		= new StringBuffer();
+		StringBuffer buffer = BodyBufferPool.acquire();
+		try {
+			BodyResult bodyResult = processBody( context, body, buffer );
 
-		BodyResult		bodyResult	= processBody( context, body, buffer );
+			// IF there was a return statement inside our body, we early exit now
+			if ( bodyResult.isEarlyExit() ) {
+				return bodyResult;
+			}
 
-		// IF there was a return statement inside our body, we early exit now
-		if ( bodyResult.isEarlyExit() ) {
-			return bodyResult;
-		}
+			String template = attributes.getAsString( MailKeys.template );
+			if ( template != null ) {
+				buffer.setLength( 0 );
+				MailTemplate.of( template ).renderTo( context, buffer );
+			}
 
-		MailUtil.processMail( buffer, context, attributes, executionState );
+			MailUtil.processMail( buffer, context, attributes, executionState );
+		} finally {
+			BodyBufferPool.release( buffer );
+		}
 
 		return DEFAULT_RETURN;
 	}
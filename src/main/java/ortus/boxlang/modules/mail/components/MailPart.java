@@ -19,9 +19,10 @@ package ortus.boxlang.modules.mail.components;
 
 import java.util.Set;
 
-import org.apache.commons.text.WordUtils;
-
+import ortus.boxlang.modules.mail.util.BodyBufferPool;
 import ortus.boxlang.modules.mail.util.MailKeys;
+import ortus.boxlang.modules.mail.util.MailTemplate;
+import ortus.boxlang.modules.mail.util.TextWrapper;
 import ortus.boxlang.runtime.components.Attribute;
 import ortus.boxlang.runtime.components.BoxComponent;
 import ortus.boxlang.runtime.components.Component;
@@ -42,6 +43,7 @@ public class MailPart extends Component {
 		    ) ), // "mime type"
 		    new Attribute( Key.charset, "string", "utf-8" ), // "character encoding"
 		    new Attribute( MailKeys.wrapText, "integer" ), // "number"
+		    new Attribute( MailKeys.template, "string" ), // "body template with ${variable} holes"
 		};
 	}
 
@@ -59,6 +61,8 @@ public class MailPart extends Component {
 	 *
 	 * @attribute.wrapText The number of characters to wrap the mail part at
 	 *
+	 * @attribute.template A part template containing ${variable} holes, which is compiled once and replaces the rendered body content
+	 *
 	 */
 	public BodyResult _invoke( IBoxContext context, IStruct attributes, ComponentBody body, IStruct executionState ) {
 		IStruct parentState = context.findClosestComponent( MailKeys.Mail );
@@ -67,11 +71,21 @@ public class MailPart extends Component {
 		}
 		Integer			wrapText	= parentState.getAsInteger( MailKeys.wrapText );
 
-		StringBuffer	buffer		= new StringBuffer();
+		StringBuffer	buffer		= BodyBufferPool.acquire();
+		try {
+			processBody( context, body, buffer );
 
-		processBody( context, body, buffer );
+			String template = attributes.getAsString( MailKeys.template );
+			if ( template != null ) {
+				buffer.setLength( 0 );
+				MailTemplate.of( template ).renderTo( context, buffer );
+			}
 
-		attributes.put( Key.result, wrapText != null ? WordUtils.wrap( buffer.toString(), wrapText ) : buffer.toString() );
+			// Materialize the part content once - wrapping reads directly from the capture buffer
+			attributes.put( Key.result, wrapText != null ? TextWrapper.wrap( buffer, wrapText ) : buffer.toString() );
+		} finally {
+			BodyBufferPool.release( buffer );
+		}
 		// Set our data into the HTTP component for it to use
 		parentState.getAsArray( MailKeys.mailParts ).add( attributes );
 
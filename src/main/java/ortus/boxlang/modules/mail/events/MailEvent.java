@@ -0,0 +1,79 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * The base of the Java Flight Recorder events of the mail module. Each event times a phase of building, spooling or sending a
+ * message, and records the message size, the mail server, the delivery attempt and the outcome of the phase.
+ *
+ * Events are created and begun at the start of a phase, and completed with {@link #complete(String, String, int, long)} when it
+ * ends. When the event is not enabled in the recording, completing it does nothing, so the events may be left in place in
+ * production.
+ */
+@Category( { "BoxLang", "Mail" } )
+@StackTrace( false )
+public abstract class MailEvent extends Event {
+
+	public static final String	SUCCESS	= "success";
+	public static final String	FAILURE	= "failure";
+	public static final String	SKIPPED	= "skipped";
+
+	@Label( "Message Size" )
+	@Description( "The approximate size of the message, if known" )
+	@DataAmount
+	long						messageSize;
+
+	@Label( "Server" )
+	@Description( "The mail server" )
+	String						server;
+
+	@Label( "Attempt" )
+	@Description( "The delivery attempt number" )
+	int							attempt;
+
+	@Label( "Outcome" )
+	@Description( "The outcome of the phase: success, failure or skipped" )
+	String						outcome;
+
+	/**
+	 * Completes the event and commits it to the recording, if the event is enabled
+	 *
+	 * @param outcome     the outcome of the phase
+	 * @param server      the mail server, if any
+	 * @param attempt     the delivery attempt number, or 0 if the phase is not part of a delivery attempt
+	 * @param messageSize the approximate size of the message, or 0 if it is not known
+	 */
+	public void complete( String outcome, String server, int attempt, long messageSize ) {
+		end();
+		if ( shouldCommit() ) {
+			this.outcome		= outcome;
+			this.server			= server;
+			this.attempt		= attempt;
+			this.messageSize	= messageSize;
+			commit();
+		}
+	}
+
+}
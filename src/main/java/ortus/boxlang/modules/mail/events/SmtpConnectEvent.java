@@ -0,0 +1,40 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.events;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name( "ortus.boxlang.mail.SmtpConnect" )
+@Label( "SMTP Connect" )
+@Description( "Connecting and authenticating to a mail server" )
+public class SmtpConnectEvent extends MailEvent {
+
+	/**
+	 * Creates the event and begins timing it
+	 *
+	 * @return the event
+	 */
+	public static SmtpConnectEvent start() {
+		SmtpConnectEvent event = new SmtpConnectEvent();
+		event.begin();
+		return event;
+	}
+
+}
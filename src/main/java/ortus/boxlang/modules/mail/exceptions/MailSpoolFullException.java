@@ -0,0 +1,45 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.exceptions;
+
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
+
+/**
+ * Thrown when a message cannot be admitted to the mail spool because the spool is above its configured high-water marks
+ */
+public class MailSpoolFullException extends BoxRuntimeException {
+
+	private static final long	serialVersionUID	= 1L;
+
+	/**
+	 * The exception type, which may be used to catch this exception in BoxLang code
+	 */
+	public static final String	TYPE				= "MailSpoolFullException";
+
+	/**
+	 * Constructor
+	 *
+	 * @param message    the exception message
+	 * @param spoolState the state of the spool when the message was rejected
+	 */
+	public MailSpoolFullException( String message, IStruct spoolState ) {
+		super( message, "The mail spool is above its configured high-water marks", TYPE, spoolState, null );
+	}
+
+}
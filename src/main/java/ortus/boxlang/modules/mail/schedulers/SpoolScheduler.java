@@ -17,13 +17,30 @@
  */
 package ortus.boxlang.modules.mail.schedulers;
 
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.mail2.jakarta.Email;
 
+import ortus.boxlang.modules.mail.events.MailEvent;
+import ortus.boxlang.modules.mail.events.SpoolDequeueEvent;
+import ortus.boxlang.modules.mail.util.BounceStore;
+import ortus.boxlang.modules.mail.util.CryptoExecutor;
+import ortus.boxlang.modules.mail.util.KeyMaterialRegistry;
+import ortus.boxlang.modules.mail.util.MailFailure;
 import ortus.boxlang.modules.mail.util.MailKeys;
+import ortus.boxlang.modules.mail.util.MailMetrics;
 import ortus.boxlang.modules.mail.util.MailUtil;
+import ortus.boxlang.modules.mail.util.SendLog;
+import ortus.boxlang.modules.mail.util.SpoolCodec;
+import ortus.boxlang.modules.mail.util.SpoolIndex;
+import ortus.boxlang.modules.mail.util.SpoolLeaseManager;
+import ortus.boxlang.modules.mail.util.SpoolLeaseManager.Claim;
+import ortus.boxlang.modules.mail.util.SpoolShards;
 import ortus.boxlang.runtime.BoxRuntime;
 import ortus.boxlang.runtime.async.tasks.BaseScheduler;
 import ortus.boxlang.runtime.async.tasks.ScheduledTask;
@@ -42,16 +59,35 @@ import ortus.boxlang.runtime.util.FileSystemUtil;
 
 public class SpoolScheduler extends BaseScheduler {
 
-	static final Key					spoolCache				= MailKeys.mailUnsent;
-	static final Key					bounceCache				= MailKeys.mailBounced;
+	static final Key							bounceCache				= MailKeys.mailBounced;
 
-	static final double					minuteToMilisMulitplier	= 60000d;
+	static final double							minuteToMilisMulitplier	= 60000d;
 
-	private static final BoxRuntime		runtime					= BoxRuntime.getInstance();
-	private static final IStruct		moduleSettings			= runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
+	/**
+	 * The error class of messages bounced because their lease expired while they were being sent
+	 */
+	static final String							ORPHANED_ERROR_CLASS	= "SpoolLeaseExpired";
 
-	private static final Boolean		logEnabled				= BooleanCaster.cast( moduleSettings.get( MailKeys.logEnabled ) );
-	private static final BoxLangLogger	logger					= runtime.getLoggingService().getLogger( "MailSpool" );
+	private static final BoxRuntime				runtime					= BoxRuntime.getInstance();
+	private static final IStruct				moduleSettings			= runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
+
+	private static final Boolean				logEnabled				= BooleanCaster.cast( moduleSettings.get( MailKeys.logEnabled ) );
+	private static final BoxLangLogger			logger					= runtime.getLoggingService().getLogger( "MailSpool" );
+
+	/**
+	 * The lease manager used to claim spool entries when several nodes share the spool directory
+	 */
+	private static volatile SpoolLeaseManager	leaseManager;
+
+	/**
+	 * Whether the scheduler is draining for shutdown, in which case no further spool entries are started
+	 */
+	private static final AtomicBoolean			draining				= new AtomicBoolean( false );
+
+	/**
+	 * The keys of the spooled messages currently being sent
+	 */
+	private static final Set<String>			inFlight				= ConcurrentHashMap.newKeySet();
 
 	/**
 	 * Default constructor
@@ -65,19 +101,15 @@ public class SpoolScheduler extends BaseScheduler {
 	 */
 	@Override
 	public void configure() {
-		if ( !runtime.getCacheService().hasCache( spoolCache ) ) {
-			runtime.getCacheService().createCache(
-			    spoolCache,
-			    Key.boxCacheProvider,
-			    Struct.of(
-			        Key.objectStore, MailKeys.fileSystemStore.getName(),
-			        Key.directory, moduleSettings.getAsString( MailKeys.spoolDirectory ),
-			        Key.defaultTimeout, IntegerCaster.cast( moduleSettings.get( MailKeys.spoolTimeout ) ),
-			        Key.useLastAccessTimeouts, false,
-			        Key.evictCount, 0
-			    )
-			);
-		}
+		draining.set( false );
+
+		// create the spool shard caches and move any entries left in shards from a previous shard count
+		SpoolShards.rebalance();
+
+		// rebuild the in-memory spool index from the spooled entries
+		SpoolIndex index = SpoolIndex.getInstance();
+		SpoolShards.getShardCacheNames()
+		    .forEach( shardCache -> index.sync( shardCache, runtime.getCacheService().getCache( shardCache ) ) );
 
 		if ( !runtime.getCacheService().hasCache( bounceCache ) ) {
 			runtime.getCacheService().createCache(
@@ -93,86 +125,289 @@ public class SpoolScheduler extends BaseScheduler {
 			);
 		}
 
+		// rebuild the bounce index from the bounced entries
+		BounceStore.getInstance().sync( runtime.getCacheService().getCache( bounceCache ) );
+
 		long spoolIntervalMillis = LongCaster.cast( DoubleCaster.cast( moduleSettings.get( MailKeys.spoolInterval ) ) * minuteToMilisMulitplier );
 
-		task( "SpoolTask" )
-		    .call( SpoolScheduler::processSpool )
-		    .every( spoolIntervalMillis, TimeUnit.MILLISECONDS )
-		    .setNoOverlaps( true )
-		    .onFailure( SpoolScheduler::onSpoolFailure )
-		    .onSuccess( SpoolScheduler::onSpoolProcessed );
+		// each shard is drained by its own task, so shards are processed concurrently
+		List<Key> shardCaches = SpoolShards.getShardCacheNames();
+		for ( int i = 0; i < shardCaches.size(); i++ ) {
+			Key shardCache = shardCaches.get( i );
+			task( shardCaches.size() == 1 ? "SpoolTask" : "SpoolTask-" + i )
+			    .call( () -> processSpool( shardCache ) )
+			    .every( spoolIntervalMillis, TimeUnit.MILLISECONDS )
+			    .setNoOverlaps( true )
+			    .onFailure( SpoolScheduler::onSpoolFailure )
+			    .onSuccess( SpoolScheduler::onSpoolProcessed );
+		}
+
+		SpoolLeaseManager leases = getLeaseManager();
+		if ( leases != null ) {
+			// renew held leases well before they expire, so that long sends are not reclaimed by other nodes
+			long heartbeatMillis = Math.max( getLeaseTimeoutMillis() / 3, 1000L );
+			task( "SpoolLeaseHeartbeat" )
+			    .call( leases::renew )
+			    .every( heartbeatMillis, TimeUnit.MILLISECONDS )
+			    .setNoOverlaps( true );
+		}
+
+	}
 
+	/**
+	 * Retrieves the spool lease manager, creating it on first use. Leasing is only used when the <code>spoolLeaseEnable</code>
+	 * setting is true.
+	 *
+	 * @return the lease manager, or null if spool leasing is disabled
+	 */
+	public static SpoolLeaseManager getLeaseManager() {
+		if ( !BooleanCaster.cast( moduleSettings.getOrDefault( MailKeys.spoolLeaseEnable, false ) ) ) {
+			return null;
+		}
+		if ( leaseManager == null ) {
+			synchronized ( SpoolScheduler.class ) {
+				if ( leaseManager == null ) {
+					leaseManager = new SpoolLeaseManager(
+					    SpoolLeaseManager.leaseDirectoryFor( moduleSettings.getAsString( MailKeys.spoolDirectory ) ),
+					    moduleSettings.getAsString( MailKeys.spoolNodeId ),
+					    getLeaseTimeoutMillis()
+					);
+				}
+			}
+		}
+		return leaseManager;
+	}
+
+	/**
+	 * The spool lease timeout from the module settings, in milliseconds
+	 *
+	 * @return the lease timeout
+	 */
+	private static long getLeaseTimeoutMillis() {
+		return LongCaster.cast( moduleSettings.getOrDefault( MailKeys.spoolLeaseTimeout, 300 ) ) * 1000L;
 	}
 
 	/**
-	 * Processess the spool according to the settings
+	 * Processess all shards of the spool according to the settings
 	 *
 	 * @return
 	 */
 	public static IStruct processSpool() {
-		IStruct			result	= Struct.of(
+		IStruct result = Struct.of(
 		    MailKeys.messages, new Array(),
 		    MailKeys.processed, 0,
 		    MailKeys.failures, 0
 		);
+		SpoolShards.ensureCaches().forEach( shardCache -> processShard( shardCache, result ) );
+		return result;
+	}
 
-		ICacheProvider	cache	= runtime.getCacheService().getCache( spoolCache );
-		ICacheProvider	bounced	= runtime.getCacheService().getCache( bounceCache );
-
-		cache.getKeysStream()
-		    .forEach( key -> {
-			    var attempt = cache.get( key );
-			    if ( attempt.isPresent() ) {
-				    IStruct entryData = StructCaster.cast( attempt.get() );
-				    try {
-					    Email message;
-					    IStruct entryAttributes	= entryData.getAsStruct( Key.attributes );
-					    Array mailServers		= entryData.getAsArray( MailKeys.mailServers );
-					    Boolean deleteAttachments = BooleanCaster.cast( entryAttributes.getOrDefault( MailKeys.remove, false ) );
-					    String mimeAttach		= entryAttributes.getAsString( MailKeys.mimeAttach );
-
-					    // Deserialize the email from cached data
-					    IStruct messageData		= entryData.getAsStruct( Key.message );
-					    message = MailUtil.emailFromSerializableStruct( messageData );
-
-					    MailUtil.sendMessage( mailServers, entryAttributes, message );
-					    if ( deleteAttachments && mimeAttach != null && FileSystemUtil.exists( mimeAttach ) ) {
-						    FileSystemUtil.deleteFile( mimeAttach );
-					    }
-					    result.put( MailKeys.processed, result.getAsInteger( MailKeys.processed ) + 1 );
-					    if ( logEnabled ) {
-						    logger.atDebug().log( String.format(
-						        "Message [%s] successfully sent",
-						        key
-						    ) );
-					    }
-				    } catch ( Exception e ) {
-					    result.put( MailKeys.failures, result.getAsInteger( MailKeys.failures ) + 1 );
-					    String exceptionMessage = String.format(
-					        "An exception occurred while attempting to send an email with the identifier [%s]: %s, StackTrace: %s",
-					        key,
-					        e.getMessage(),
-					        e.getStackTrace().toString()
-					    );
-					    result.getAsArray( MailKeys.messages )
-					        .push(
-					            exceptionMessage
-					        );
-					    entryData.put( Key.exception, exceptionMessage );
-					    bounced.set( key, entryData );
-					    logger.atError().log( String.format(
-					        "Failed to send spooled message [%s]: %s",
-					        key,
-					        e.getMessage()
-					    ) );
-				    } finally {
-					    cache.clear( key );
+	/**
+	 * Processess a single shard of the spool according to the settings
+	 *
+	 * @param shardCache the name of the shard cache
+	 *
+	 * @return
+	 */
+	public static IStruct processSpool( Key shardCache ) {
+		IStruct result = Struct.of(
+		    MailKeys.messages, new Array(),
+		    MailKeys.processed, 0,
+		    MailKeys.failures, 0
+		);
+		processShard( shardCache, result );
+		return result;
+	}
+
+	/**
+	 * Sends the messages in a spool shard
+	 *
+	 * @param shardCache the name of the shard cache
+	 * @param result     the processing result to update
+	 */
+	private static void processShard( Key shardCache, IStruct result ) {
+		ICacheProvider		cache	= runtime.getCacheService().getCache( shardCache );
+		SpoolLeaseManager	leases	= getLeaseManager();
+		SpoolIndex			index	= SpoolIndex.getInstance();
+
+		if ( leases != null || cache.getSize() != index.size( shardCache ) ) {
+			// other nodes spool in to the shared directory, and entries may be written to the spool cache without going through the
+			// index, so pick up any entries this node has not indexed
+			index.sync( shardCache, cache );
+		}
+
+		index.due( shardCache, System.currentTimeMillis() )
+		    .forEach( indexed -> {
+			    String key = indexed.key();
+			    // the entry is counted as in flight before the draining flag is read, so once a drain has seen no messages in flight
+			    // no other message can start
+			    inFlight.add( key );
+			    try {
+				    if ( draining.get() ) {
+					    // the scheduler is shutting down - leave the remaining entries in the durable spool for the next start
+					    return;
 				    }
+				    processEntry( cache, indexed, result );
+			    } finally {
+				    inFlight.remove( key );
 			    }
 		    } );
 
-		return result;
+	}
+
+	/**
+	 * Claims and sends a spooled entry, moving it to the bounce cache if it cannot be sent. The entry is claimed in the spool index
+	 * before it is sent, so admission control cannot shed it while it is being delivered.
+	 *
+	 * @param cache   the spool shard cache
+	 * @param indexed the index entry of the spooled message
+	 * @param result  the processing result to update
+	 */
+	private static void processEntry( ICacheProvider cache, SpoolIndex.Entry indexed, IStruct result ) {
+		BounceStore			bounces	= BounceStore.getInstance();
+		SpoolLeaseManager	leases	= getLeaseManager();
+		SpoolIndex			index	= SpoolIndex.getInstance();
+		String				key		= indexed.key();
 
+		if ( !index.claim( key ) ) {
+			// the entry is being shed to make room in the spool, or was removed since the due entries were listed
+			return;
+		}
+		if ( leases != null ) {
+			Claim claim = leases.claim( key );
+			if ( claim == Claim.HELD ) {
+				// another node is processing this entry
+				index.unclaim( key );
+				return;
+			}
+			if ( claim == Claim.ORPHANED ) {
+				bounceOrphanedEntry( cache, key, result );
+				index.remove( key );
+				leases.release( key );
+				return;
+			}
+		}
+		// the entry may have been sent and cleared by another node while we were claiming it
+		var attempt = cache.get( key );
+		if ( !attempt.isPresent() ) {
+			index.remove( key );
+			if ( leases != null ) {
+				leases.release( key );
+			}
+		}
+		if ( attempt.isPresent() ) {
+			MailMetrics.getInstance().recordDequeued();
+			SpoolDequeueEvent	dequeueEvent	= SpoolDequeueEvent.start();
+			String				outcome			= MailEvent.FAILURE;
+			IStruct				entryData		= StructCaster.cast( attempt.get() );
+			Array				mailServers		= entryData.getAsArray( MailKeys.mailServers );
+			long				started			= System.currentTimeMillis();
+			String				claimedKey		= null;
+			try {
+				Email	message;
+				IStruct	entryAttributes		= entryData.getAsStruct( Key.attributes );
+				Boolean	deleteAttachments	= BooleanCaster.cast( entryAttributes.getOrDefault( MailKeys.remove, false ) );
+				String	mimeAttach			= entryAttributes.getAsString( MailKeys.mimeAttach );
+				String	idempotencyKey		= entryAttributes.getAsString( MailKeys.idempotencyKey );
+
+				if ( idempotencyKey != null && !SendLog.getInstance().claim( idempotencyKey ) ) {
+					// a message with the same key was delivered since this one was spooled, or before a restart, or is being sent
+					MailMetrics.getInstance().recordDuplicate();
+					outcome = MailEvent.SKIPPED;
+					logger.debug( String.format( "Spooled message [%s] has already been delivered and will not be sent again", key ) );
+					return;
+				}
+				claimedKey = idempotencyKey;
+
+				// Deserialize the email from cached data
+				IStruct messageData = SpoolCodec.decode( entryData.getAsStruct( Key.message ) );
+				message = MailUtil.emailFromSerializableStruct( messageData );
+
+				if ( leases != null ) {
+					leases.markSending( key );
+				}
+				String messageRef = MailUtil.sendMessage( mailServers, entryAttributes, message );
+				if ( idempotencyKey != null ) {
+					// record the delivery before the spool entry is cleared, so a restart in between does not resend it
+					SendLog.getInstance().record( idempotencyKey, messageRef );
+				}
+				if ( deleteAttachments && mimeAttach != null && FileSystemUtil.exists( mimeAttach ) ) {
+					FileSystemUtil.deleteFile( mimeAttach );
+				}
+				result.put( MailKeys.processed, result.getAsInteger( MailKeys.processed ) + 1 );
+				outcome = MailEvent.SUCCESS;
+				if ( logEnabled ) {
+					logger.atDebug().log( String.format(
+					    "Message [%s] successfully sent",
+					    key
+					) );
+				}
+			} catch ( Exception e ) {
+				if ( claimedKey != null ) {
+					// the message was not delivered, so a requeued or resent copy may claim the key again
+					SendLog.getInstance().release( claimedKey );
+				}
+				int		attemptNumber	= indexed.attempts() + 1;
+				IStruct	failure			= MailFailure.capture( e, mailServers, attemptNumber, System.currentTimeMillis() - started );
+				result.put( MailKeys.failures, result.getAsInteger( MailKeys.failures ) + 1 );
+				result.getAsArray( MailKeys.messages ).push( Struct.of( Key.key, key, MailKeys.failure, failure ) );
+				entryData.put( Key.exception, e.getMessage() );
+				entryData.put( MailKeys.errorClass, failure.get( MailKeys.errorClass ) );
+				entryData.put( MailKeys.attempts, attemptNumber );
+				entryData.put( MailKeys.failure, failure );
+				bounces.bounce( key, entryData );
+				logger.atError().log( String.format(
+				    "Failed to send spooled message [%s]: %s",
+				    key,
+				    e.getMessage()
+				) );
+			} finally {
+				cache.clear( key );
+				index.remove( key );
+				if ( leases != null ) {
+					leases.release( key );
+				}
+				dequeueEvent.complete(
+				    outcome,
+				    mailServers != null && !mailServers.isEmpty() ? StructCaster.cast( mailServers.get( 0 ) ).getAsString( Key.server ) : null,
+				    indexed.attempts() + 1,
+				    indexed.size()
+				);
+			}
+		}
+	}
+
+	/**
+	 * Moves an entry whose previous lease holder stopped while sending it to the bounce cache. The message may or may not have
+	 * been delivered, so it is not sent again.
+	 *
+	 * @param cache  the spool cache
+	 * @param key    the spool entry key
+	 * @param result the spool processing result
+	 */
+	private static void bounceOrphanedEntry( ICacheProvider cache, String key, IStruct result ) {
+		var attempt = cache.get( key );
+		if ( attempt.isPresent() ) {
+			IStruct	entryData			= StructCaster.cast( attempt.get() );
+			String	exceptionMessage	= String.format(
+			    "The spool lease for the message with the identifier [%s] expired while it was being sent. The delivery state is unknown so it will not be sent again.",
+			    key
+			);
+			// the attempt which was interrupted counts as an attempt, and is not retried since it may have been delivered
+			Array	mailServers			= entryData.getAsArray( MailKeys.mailServers );
+			int		attemptNumber		= IntegerCaster.cast( entryData.getOrDefault( MailKeys.attempts, 0 ) ) + 1;
+			IStruct	failure				= MailFailure.of( ORPHANED_ERROR_CLASS, exceptionMessage, mailServers, attemptNumber, false );
+			entryData.put( Key.exception, exceptionMessage );
+			entryData.put( MailKeys.errorClass, ORPHANED_ERROR_CLASS );
+			entryData.put( MailKeys.attempts, attemptNumber );
+			entryData.put( MailKeys.failure, failure );
+			BounceStore.getInstance().bounce( key, entryData );
+			cache.clear( key );
+			SpoolIndex.getInstance().remove( key );
+			result.put( MailKeys.failures, result.getAsInteger( MailKeys.failures ) + 1 );
+			result.getAsArray( MailKeys.messages ).push( Struct.of( Key.key, key, MailKeys.failure, failure ) );
+			logger.warn( exceptionMessage );
+		}
 	}
 
 	protected static void onSpoolProcessed( ScheduledTask task, Optional<?> outcome ) {
@@ -190,11 +425,77 @@ public class SpoolScheduler extends BaseScheduler {
 		logger.debug( "Spool Task failed: " + exception.getMessage() );
 	}
 
+	/**
+	 * Whether the scheduler is draining for shutdown
+	 *
+	 * @return true if the scheduler is draining
+	 */
+	public static boolean isDraining() {
+		return draining.get();
+	}
+
+	/**
+	 * Stops starting new spool entries and waits, up to the <code>spoolDrainTimeout</code> setting, for the messages which are
+	 * being sent to complete. Completed sends are always removed from the spool before the wait ends, so a redeploy does not
+	 * duplicate a message which was already handed to the mail server. Entries which were not started remain in the durable
+	 * spool and are sent when the scheduler next starts.
+	 *
+	 * @return true if all in-flight sends completed before the deadline
+	 */
+	public static boolean drain() {
+		return drain( drainDeadline() );
+	}
+
+	/**
+	 * Stops starting new spool entries and waits, up to a deadline, for the messages which are being sent to complete
+	 *
+	 * @param deadline the time, in epoch milliseconds, at which to stop waiting
+	 *
+	 * @return true if all in-flight sends completed before the deadline
+	 */
+	static boolean drain( long deadline ) {
+		draining.set( true );
+		while ( !inFlight.isEmpty() && System.currentTimeMillis() < deadline ) {
+			try {
+				Thread.sleep( 50 );
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		int remaining = inFlight.size();
+		if ( remaining > 0 ) {
+			logger.warn( String.format(
+			    "The mail spool drain deadline was reached with [%d] messages still being sent. Their spool entries will be retained",
+			    remaining
+			) );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The time at which a drain starting now should stop waiting, from the <code>spoolDrainTimeout</code> setting
+	 */
+	private static long drainDeadline() {
+		return System.currentTimeMillis() + ( long ) ( DoubleCaster.cast( moduleSettings.getOrDefault( MailKeys.spoolDrainTimeout, 30 ) ) * 1000 );
+	}
+
 	/**
 	 * Called before the scheduler is going to be shutdown
 	 */
 	@Override
 	public void onShutdown() {
+		// messages which are still being signed or encrypted are spooled before the spool drains, and both share the one timeout
+		long deadline = drainDeadline();
+		CryptoExecutor.shutdown( Math.max( deadline - System.currentTimeMillis(), 0L ) );
+		drain( deadline );
+		KeyMaterialRegistry.getInstance().shutdown();
+		SpoolLeaseManager leases = leaseManager;
+		if ( leases != null ) {
+			// the leases of messages which are still being sent are left to expire, so no other node sends them while this one is
+			leases.releaseAll( inFlight );
+		}
 		logger.debug( "Mail Spool Scheduler has been shutdown." );
 	}
 
@@ -0,0 +1,206 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jakarta.activation.DataHandler;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.internet.PreencodedMimeBodyPart;
+import jakarta.mail.util.ByteArrayDataSource;
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.dynamic.casters.BooleanCaster;
+import ortus.boxlang.runtime.dynamic.casters.LongCaster;
+import ortus.boxlang.runtime.logging.BoxLangLogger;
+import ortus.boxlang.runtime.types.IStruct;
+
+/**
+ * An opt-in, memory bounded LRU cache of base64 transfer-encoded attachment bodies.
+ *
+ * Entries are keyed by the absolute file path and are only reused while the file size and modification time are unchanged.
+ * Cached bodies are attached as {@link PreencodedMimeBodyPart}s, so the encoded bytes are written directly to the SMTP stream
+ * without re-reading or re-encoding the file.
+ */
+public final class AttachmentEncodingCache {
+
+	static final long						MEGABYTE		= 1024L * 1024L;
+
+	private static final BoxRuntime			runtime			= BoxRuntime.getInstance();
+
+	private static final BoxLangLogger		logger			= runtime.getLoggingService().getLogger( "Mail" );
+
+	private static final byte[]				LINE_SEPARATOR	= "\r\n".getBytes( StandardCharsets.US_ASCII );
+
+	private static final Map<String, Entry>	entries			= new LinkedHashMap<>( 64, 0.75f, true );
+
+	private static long						totalBytes		= 0;
+
+	/**
+	 * An encoded attachment body and the file identity it was encoded from
+	 */
+	private record Entry( long lastModified, long size, byte[] encoded ) {
+	}
+
+	private AttachmentEncodingCache() {
+	}
+
+	/**
+	 * Whether the cache has been enabled in the module settings
+	 *
+	 * @param moduleSettings the module settings
+	 *
+	 * @return true if the cache is enabled
+	 */
+	public static boolean isEnabled( IStruct moduleSettings ) {
+		return moduleSettings != null && BooleanCaster.cast( moduleSettings.getOrDefault( MailKeys.attachmentCacheEnable, false ) );
+	}
+
+	/**
+	 * Creates a pre-encoded attachment body part for the file, encoding and caching the file if it is not already cached.
+	 *
+	 * @param filePath       the path to the attachment
+	 * @param contentType    the MIME type of the attachment
+	 * @param fileName       the name of the attachment - defaults to the file name
+	 * @param disposition    the disposition of the attachment
+	 * @param description    an optional description of the attachment
+	 * @param moduleSettings the module settings
+	 *
+	 * @return the body part, or null if the file is not eligible for caching
+	 */
+	public static MimeBodyPart getBodyPart(
+	    Path filePath,
+	    String contentType,
+	    String fileName,
+	    String disposition,
+	    String description,
+	    IStruct moduleSettings ) {
+		long	maxBytes		= LongCaster.cast( moduleSettings.getOrDefault( MailKeys.attachmentCacheMaxSize, 64 ) ) * MEGABYTE;
+		long	maxFileBytes	= LongCaster.cast( moduleSettings.getOrDefault( MailKeys.attachmentCacheMaxFile, 5 ) ) * MEGABYTE;
+		Path	absolutePath	= filePath.toAbsolutePath();
+
+		byte[]	encoded;
+		try {
+			BasicFileAttributes fileAttributes = Files.readAttributes( absolutePath, BasicFileAttributes.class );
+			if ( fileAttributes.size() > maxFileBytes ) {
+				return null;
+			}
+			encoded = getEncoded( absolutePath, fileAttributes.lastModifiedTime().toMillis(), fileAttributes.size(), maxBytes );
+		} catch ( IOException e ) {
+			logger.debug( "Unable to cache the encoded attachment " + absolutePath + ": " + e.getMessage() );
+			return null;
+		}
+
+		try {
+			String				name		= fileName != null ? fileName : absolutePath.getFileName().toString();
+			ContentType			type		= new ContentType( contentType != null ? contentType : MimeTypeDetector.DEFAULT_TYPE );
+			String				encodedName	= MimeUtility.encodeText( name );
+			MimeBodyPart		bodyPart	= new PreencodedMimeBodyPart( "base64" );
+			type.setParameter( "name", encodedName );
+			bodyPart.setDataHandler( new DataHandler( new ByteArrayDataSource( encoded, type.toString() ) ) );
+			bodyPart.setHeader( "Content-Type", type.toString() );
+			bodyPart.setDisposition( disposition );
+			bodyPart.setFileName( encodedName );
+			if ( description != null ) {
+				bodyPart.setDescription( description );
+			}
+			return bodyPart;
+		} catch ( MessagingException | UnsupportedEncodingException e ) {
+			logger.debug( "Unable to create a pre-encoded attachment for " + absolutePath + ": " + e.getMessage() );
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the current size, in bytes, of the encoded content held by the cache
+	 *
+	 * @return the number of bytes cached
+	 */
+	public static synchronized long getSize() {
+		return totalBytes;
+	}
+
+	/**
+	 * Clears all cached attachments
+	 */
+	public static synchronized void clear() {
+		entries.clear();
+		totalBytes = 0;
+	}
+
+	/**
+	 * Retrieves the cached encoding of the file or encodes and caches it
+	 */
+	private static byte[] getEncoded( Path absolutePath, long lastModified, long size, long maxBytes ) throws IOException {
+		String cacheKey = absolutePath.toString();
+		synchronized ( AttachmentEncodingCache.class ) {
+			Entry cached = entries.get( cacheKey );
+			if ( cached != null && cached.lastModified() == lastModified && cached.size() == size ) {
+				return cached.encoded();
+			}
+		}
+
+		byte[] encoded = encode( absolutePath, size );
+
+		synchronized ( AttachmentEncodingCache.class ) {
+			Entry previous = entries.put( cacheKey, new Entry( lastModified, size, encoded ) );
+			if ( previous != null ) {
+				totalBytes -= previous.encoded().length;
+			}
+			totalBytes += encoded.length;
+			Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+			while ( totalBytes > maxBytes && iterator.hasNext() ) {
+				Map.Entry<String, Entry> eldest = iterator.next();
+				totalBytes -= eldest.getValue().encoded().length;
+				iterator.remove();
+			}
+		}
+		return encoded;
+	}
+
+	/**
+	 * Streams the file through a MIME base64 encoder into a presized buffer
+	 */
+	private static byte[] encode( Path absolutePath, long size ) throws IOException {
+		// 4 encoded bytes per 3 bytes of input, plus a CRLF for every 76 character line
+		long					encodedLength	= ( ( size + 2 ) / 3 ) * 4;
+		ByteArrayOutputStream	buffer			= new ByteArrayOutputStream( ( int ) ( encodedLength + ( encodedLength / 76 + 1 ) * 2 ) );
+		try (
+		    InputStream in = Files.newInputStream( absolutePath );
+		    OutputStream out = Base64.getMimeEncoder( 76, LINE_SEPARATOR ).wrap( buffer ) ) {
+			in.transferTo( out );
+		}
+		buffer.write( LINE_SEPARATOR );
+		return buffer.toByteArray();
+	}
+
+}
@@ -0,0 +1,72 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.util.ArrayDeque;
+
+/**
+ * A thread-confined pool of body capture buffers for the mail components.
+ *
+ * The runtime captures component body output in to a {@link StringBuffer}, so the buffers themselves cannot be swapped for
+ * unsynchronized builders. Instead each thread keeps a small stack of buffers which are reused across invocations, which
+ * avoids regrowing a fresh buffer for every message in a bulk send. A stack is used, rather than a single buffer, because a
+ * <code>mailpart</code> body is captured while its parent <code>mail</code> buffer is still in use.
+ *
+ * Buffers which have grown beyond {@link #MAX_RETAINED_CAPACITY} are discarded on release so a single large message does not
+ * pin memory to the thread.
+ */
+public final class BodyBufferPool {
+
+	static final int									MAX_RETAINED_CAPACITY	= 256 * 1024;
+
+	static final int									MAX_POOLED_BUFFERS		= 4;
+
+	static final int									INITIAL_CAPACITY		= 4096;
+
+	private static final ThreadLocal<ArrayDeque<StringBuffer>>	pool					= ThreadLocal.withInitial( ArrayDeque::new );
+
+	private BodyBufferPool() {
+	}
+
+	/**
+	 * Acquires an empty buffer for the current thread
+	 *
+	 * @return an empty buffer
+	 */
+	public static StringBuffer acquire() {
+		StringBuffer buffer = pool.get().pollFirst();
+		return buffer != null ? buffer : new StringBuffer( INITIAL_CAPACITY );
+	}
+
+	/**
+	 * Returns a buffer to the current thread's pool. The buffer must not be used after it has been released.
+	 *
+	 * @param buffer the buffer to release
+	 */
+	public static void release( StringBuffer buffer ) {
+		if ( buffer == null || buffer.capacity() > MAX_RETAINED_CAPACITY ) {
+			return;
+		}
+		ArrayDeque<StringBuffer> buffers = pool.get();
+		if ( buffers.size() < MAX_POOLED_BUFFERS ) {
+			buffer.setLength( 0 );
+			buffers.offerFirst( buffer );
+		}
+	}
+
+}
@@ -0,0 +1,387 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ortus.boxlang.modules.mail.exceptions.MailSpoolFullException;
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.cache.providers.ICacheProvider;
+import ortus.boxlang.runtime.dynamic.casters.BooleanCaster;
+import ortus.boxlang.runtime.dynamic.casters.DateTimeCaster;
+import ortus.boxlang.runtime.dynamic.casters.LongCaster;
+import ortus.boxlang.runtime.dynamic.casters.StringCaster;
+import ortus.boxlang.runtime.dynamic.casters.StructCaster;
+import ortus.boxlang.runtime.logging.BoxLangLogger;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.Array;
+import ortus.boxlang.runtime.types.IStruct;
+
+/**
+ * The bounce store, which records messages which could not be delivered in the <code>mailBounced</code> cache and indexes
+ * them by error class, SMTP reply code, mail server, recipient domain and bounce time.
+ *
+ * The index is maintained as messages are bounced and rebuilt from the bounce cache when the spool scheduler starts. It
+ * allows bounces to be selected without reading the bounce cache, and {@link #requeue(IStruct, int)} moves the selected
+ * bounces back in to the spool in batches.
+ *
+ * Bounces are selected with a filter struct, whose keys are all optional and combined with a logical AND:
+ * <ul>
+ * <li><code>errorClass</code> - the simple class name of the root cause of the failure, e.g. <code>SMTPAddressFailedException</code></li>
+ * <li><code>smtpCode</code> - the SMTP reply code, e.g. <code>451</code></li>
+ * <li><code>server</code> - the primary mail server of the message</li>
+ * <li><code>domain</code> - a recipient domain</li>
+ * <li><code>retryable</code> - whether the failure was transient, e.g. a 4xx reply or a network failure</li>
+ * <li><code>since</code> and <code>until</code> - the bounce time range, as dates or epoch milliseconds</li>
+ * </ul>
+ */
+public final class BounceStore {
+
+	/**
+	 * The indexed metadata of a bounced message
+	 *
+	 * @param key        the bounce entry key
+	 * @param errorClass the simple class name of the root cause of the failure
+	 * @param smtpCode   the SMTP reply code, if known
+	 * @param server     the primary mail server of the message
+	 * @param domains    the recipient domains of the message
+	 * @param retryable  whether the failure was transient, so the message may be delivered if it is sent again
+	 * @param bouncedAt  the time, in epoch milliseconds, at which the message was bounced
+	 */
+	public record Record( String key, String errorClass, String smtpCode, String server, Set<String> domains, boolean retryable, long bouncedAt ) {
+	}
+
+	/**
+	 * Matches an SMTP failure reply code in an exception message, e.g. <code>550 5.1.1 User unknown</code>
+	 */
+	static final Pattern					SMTP_CODE		= Pattern.compile( "(?:^|\\s)([45]\\d\\d)[ -]" );
+
+	static final String						UNKNOWN			= "unknown";
+
+	private static final BoxRuntime			runtime			= BoxRuntime.getInstance();
+	private static final BoxLangLogger		logger			= runtime.getLoggingService().getLogger( "MailSpool" );
+
+	private static final BounceStore		instance		= new BounceStore();
+
+	private final Map<String, Record>		records			= new ConcurrentHashMap<>();
+	private final Map<String, Set<String>>	byErrorClass	= new ConcurrentHashMap<>();
+	private final Map<String, Set<String>>	bySmtpCode		= new ConcurrentHashMap<>();
+	private final Map<String, Set<String>>	byServer		= new ConcurrentHashMap<>();
+	private final Map<String, Set<String>>	byDomain		= new ConcurrentHashMap<>();
+
+	BounceStore() {
+	}
+
+	/**
+	 * The bounce store
+	 *
+	 * @return the bounce store
+	 */
+	public static BounceStore getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Records a message which could not be delivered in the bounce cache and the index
+	 *
+	 * @param key       the spool entry key
+	 * @param entryData the spool entry, including the failure details
+	 */
+	public void bounce( String key, IStruct entryData ) {
+		entryData.put( MailKeys.bouncedAt, System.currentTimeMillis() );
+		runtime.getCacheService().getCache( MailKeys.mailBounced ).set( key, entryData );
+		index( key, entryData );
+		MailMetrics.getInstance().recordBounced();
+	}
+
+	/**
+	 * Adds or replaces a bounce in the index
+	 *
+	 * @param key       the bounce entry key
+	 * @param entryData the bounce entry
+	 */
+	public void index( String key, IStruct entryData ) {
+		remove( key );
+		Record record = toRecord( key, entryData );
+		records.put( key, record );
+		addTo( byErrorClass, record.errorClass(), key );
+		addTo( bySmtpCode, record.smtpCode(), key );
+		addTo( byServer, record.server(), key );
+		record.domains().forEach( domain -> addTo( byDomain, domain, key ) );
+	}
+
+	/**
+	 * Removes a bounce from the index
+	 *
+	 * @param key the bounce entry key
+	 */
+	public void remove( String key ) {
+		Record record = records.remove( key );
+		if ( record != null ) {
+			removeFrom( byErrorClass, record.errorClass(), key );
+			removeFrom( bySmtpCode, record.smtpCode(), key );
+			removeFrom( byServer, record.server(), key );
+			record.domains().forEach( domain -> removeFrom( byDomain, domain, key ) );
+		}
+	}
+
+	/**
+	 * Retrieves the indexed metadata of a bounce
+	 *
+	 * @param key the bounce entry key
+	 *
+	 * @return the record, or null if the key is not indexed
+	 */
+	public Record get( String key ) {
+		return records.get( key );
+	}
+
+	/**
+	 * The number of indexed bounces
+	 *
+	 * @return the bounce count
+	 */
+	public int size() {
+		return records.size();
+	}
+
+	/**
+	 * Finds the keys of the bounces which match a filter
+	 *
+	 * @param filter the filter - see the class documentation for the supported keys
+	 *
+	 * @return the matching bounce keys, oldest bounce first
+	 */
+	public List<String> find( IStruct filter ) {
+		Set<String> candidates = null;
+		candidates = intersect( candidates, byErrorClass, filter.get( MailKeys.errorClass ) );
+		candidates = intersect( candidates, bySmtpCode, filter.get( MailKeys.smtpCode ) );
+		candidates = intersect( candidates, byServer, filter.get( Key.server ) );
+		candidates = intersect( candidates, byDomain, filter.get( MailKeys.domain ) );
+
+		long	since		= toEpochMillis( filter.get( MailKeys.since ), Long.MIN_VALUE );
+		long	until		= toEpochMillis( filter.get( MailKeys.until ), Long.MAX_VALUE );
+		Boolean	retryable	= filter.get( MailKeys.retryable ) != null ? BooleanCaster.cast( filter.get( MailKeys.retryable ) ) : null;
+		return ( candidates != null ? candidates : records.keySet() ).stream()
+		    .map( records::get )
+		    .filter( record -> record != null && record.bouncedAt() >= since && record.bouncedAt() <= until )
+		    .filter( record -> retryable == null || record.retryable() == retryable )
+		    .sorted( ( a, b ) -> Long.compare( a.bouncedAt(), b.bouncedAt() ) )
+		    .map( Record::key )
+		    .toList();
+	}
+
+	/**
+	 * Moves the bounces which match a filter back in to the spool, in batches. The failure details are removed from each
+	 * entry, its attempts are reset, and it is given a new spool time so that the time it spent bounced does not count towards
+	 * the age of the spool. The time it was first spooled is kept in <code>firstSpooledAt</code>. Each batch is admitted to the
+	 * spool as a unit, subject to the spool admission marks, so under the <code>block</code> overflow policy the caller waits
+	 * once per batch, and requeueing stops at the first batch which cannot be admitted.
+	 *
+	 * @param filter    the filter - see the class documentation for the supported keys
+	 * @param batchSize the number of bounces to move in each batch
+	 *
+	 * @return the number of bounces requeued
+	 */
+	public int requeue( IStruct filter, int batchSize ) {
+		List<String>	keys		= find( filter );
+		ICacheProvider	bounced		= runtime.getCacheService().getCache( MailKeys.mailBounced );
+		SpoolIndex		spoolIndex	= SpoolIndex.getInstance();
+		int				requeued	= 0;
+		int				size		= Math.max( batchSize, 1 );
+		for ( int start = 0; start < keys.size(); start += size ) {
+			long					now		= System.currentTimeMillis();
+			Map<String, IStruct>	batch	= new LinkedHashMap<>();
+			List<SpoolIndex.Entry>	entries	= new ArrayList<>();
+			for ( String key : keys.subList( start, Math.min( start + size, keys.size() ) ) ) {
+				var attempt = bounced.get( key );
+				if ( !attempt.isPresent() ) {
+					// the bounce has expired from the cache
+					remove( key );
+					continue;
+				}
+				IStruct entryData = StructCaster.cast( attempt.get() );
+				entryData.remove( Key.exception );
+				entryData.remove( MailKeys.errorClass );
+				entryData.remove( MailKeys.failure );
+				entryData.remove( MailKeys.bouncedAt );
+				entryData.remove( MailKeys.nextAttempt );
+				entryData.put( MailKeys.attempts, 0 );
+				if ( entryData.get( MailKeys.firstSpooledAt ) == null && entryData.get( MailKeys.spooledAt ) != null ) {
+					entryData.put( MailKeys.firstSpooledAt, entryData.get( MailKeys.spooledAt ) );
+				}
+				entryData.put( MailKeys.spooledAt, now );
+
+				batch.put( key, entryData );
+				entries.add( SpoolIndex.Entry.of( key, SpoolShards.getCacheNameFor( key ), entryData ) );
+			}
+			try {
+				SpoolAdmission.admit( entries );
+			} catch ( MailSpoolFullException e ) {
+				logger.warn( String.format( "Requeueing bounced messages stopped after [%d] messages: %s", requeued, e.getMessage() ) );
+				return requeued;
+			}
+			for ( SpoolIndex.Entry entry : entries ) {
+				runtime.getCacheService().getCache( entry.cache() ).set( entry.key(), batch.get( entry.key() ) );
+				spoolIndex.put( entry );
+				bounced.clear( entry.key() );
+				remove( entry.key() );
+				requeued++;
+			}
+			logger.info( String.format( "Requeued [%d] of [%d] bounced messages", requeued, keys.size() ) );
+		}
+		return requeued;
+	}
+
+	/**
+	 * Rebuilds the index from the bounce cache
+	 *
+	 * @param cache the bounce cache
+	 *
+	 * @return the number of indexed bounces
+	 */
+	public int sync( ICacheProvider cache ) {
+		clear();
+		cache.getKeysStream().map( String::valueOf ).forEach( key -> {
+			var attempt = cache.get( key );
+			if ( attempt.isPresent() ) {
+				index( key, StructCaster.cast( attempt.get() ) );
+			}
+		} );
+		return records.size();
+	}
+
+	/**
+	 * Removes all bounces from the index
+	 */
+	public void clear() {
+		records.clear();
+		byErrorClass.clear();
+		bySmtpCode.clear();
+		byServer.clear();
+		byDomain.clear();
+	}
+
+	/**
+	 * Extracts the indexed metadata from a bounce entry
+	 *
+	 * @param key       the bounce entry key
+	 * @param entryData the bounce entry
+	 *
+	 * @return the record
+	 */
+	static Record toRecord( String key, IStruct entryData ) {
+		String	errorClass	= entryData.get( MailKeys.errorClass ) != null ? entryData.getAsString( MailKeys.errorClass ) : UNKNOWN;
+		String	smtpCode	= UNKNOWN;
+		String	server		= UNKNOWN;
+		boolean	retryable	= false;
+		IStruct	failure		= entryData.get( MailKeys.failure ) != null ? StructCaster.cast( entryData.get( MailKeys.failure ) ) : null;
+		if ( failure != null ) {
+			// the structured failure captured by the spool
+			if ( failure.get( MailKeys.errorClass ) != null ) {
+				errorClass = failure.getAsString( MailKeys.errorClass );
+			}
+			if ( failure.get( MailKeys.smtpCode ) != null ) {
+				smtpCode = StringCaster.cast( failure.get( MailKeys.smtpCode ) );
+			}
+			if ( failure.get( Key.server ) != null ) {
+				server = failure.getAsString( Key.server ).toLowerCase();
+			}
+			retryable = BooleanCaster.cast( failure.getOrDefault( MailKeys.retryable, false ) );
+		} else if ( entryData.get( Key.exception ) != null ) {
+			// bounces recorded before failures were captured only have the exception message
+			Matcher matcher = SMTP_CODE.matcher( StringCaster.cast( entryData.get( Key.exception ) ) );
+			if ( matcher.find() ) {
+				smtpCode = matcher.group( 1 );
+			}
+		}
+
+		Array mailServers = entryData.getAsArray( MailKeys.mailServers );
+		if ( server.equals( UNKNOWN ) && mailServers != null && !mailServers.isEmpty()
+		    && StructCaster.cast( mailServers.get( 0 ) ).get( Key.server ) != null ) {
+			server = StructCaster.cast( mailServers.get( 0 ) ).getAsString( Key.server ).toLowerCase();
+		}
+
+		Set<String>	domains		= new LinkedHashSet<>();
+		IStruct		message		= entryData.get( Key.message ) != null ? StructCaster.cast( entryData.get( Key.message ) ) : null;
+		if ( message != null ) {
+			for ( Key addressKey : new Key[] { MailKeys.toAddresses, MailKeys.ccAddresses, MailKeys.bccAddresses } ) {
+				Array addresses = message.getAsArray( addressKey );
+				if ( addresses != null ) {
+					addresses.stream()
+					    .map( StructCaster::cast )
+					    .map( address -> address.getAsString( Key.email ) )
+					    .filter( email -> email != null && email.indexOf( '@' ) > 0 )
+					    .forEach( email -> domains.add( email.substring( email.lastIndexOf( '@' ) + 1 ).toLowerCase() ) );
+				}
+			}
+		}
+
+		long bouncedAt = entryData.get( MailKeys.bouncedAt ) != null ? LongCaster.cast( entryData.get( MailKeys.bouncedAt ) ) : System.currentTimeMillis();
+		return new Record( key, errorClass, smtpCode, server, Set.copyOf( domains ), retryable, bouncedAt );
+	}
+
+	/**
+	 * Narrows the candidate keys to those with an indexed value
+	 */
+	private static Set<String> intersect( Set<String> candidates, Map<String, Set<String>> index, Object value ) {
+		if ( value == null ) {
+			return candidates;
+		}
+		Set<String> matches = index.getOrDefault( StringCaster.cast( value ).toLowerCase(), Set.of() );
+		if ( candidates == null ) {
+			return new HashSet<>( matches );
+		}
+		candidates.retainAll( matches );
+		return candidates;
+	}
+
+	/**
+	 * Converts a filter date to epoch milliseconds
+	 */
+	private static long toEpochMillis( Object value, long defaultValue ) {
+		if ( value == null ) {
+			return defaultValue;
+		}
+		if ( value instanceof Number number ) {
+			return number.longValue();
+		}
+		return DateTimeCaster.cast( value ).toEpochMillis();
+	}
+
+	private static void addTo( Map<String, Set<String>> index, String value, String key ) {
+		index.computeIfAbsent( value.toLowerCase(), name -> ConcurrentHashMap.newKeySet() ).add( key );
+	}
+
+	private static void removeFrom( Map<String, Set<String>> index, String value, String key ) {
+		Set<String> keys = index.get( value.toLowerCase() );
+		if ( keys != null ) {
+			keys.remove( key );
+		}
+	}
+
+}
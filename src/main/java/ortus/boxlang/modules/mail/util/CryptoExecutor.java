@@ -0,0 +1,229 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.dynamic.casters.BooleanCaster;
+import ortus.boxlang.runtime.dynamic.casters.IntegerCaster;
+import ortus.boxlang.runtime.logging.BoxLangLogger;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
+
+/**
+ * The executor which signs and encrypts messages.
+ *
+ * Signing and encryption are CPU bound, so they run on a pool of <code>cryptoThreads</code> threads - by default one for each
+ * processor - rather than on the request threads, which are sized for I/O. Its queue holds up to <code>cryptoQueueSize</code>
+ * messages. When the queue is full the message is built on the calling thread, which slows the callers down instead of rejecting
+ * their messages. A task which arrives after the executor has been shut down is also run on the calling thread, so it is never
+ * dropped, and a caller waiting for a task which was still queued when the executor was stopped is failed rather than left waiting.
+ *
+ * The executor is created on first use and shut down with the spool scheduler, so a module reload picks up new settings.
+ */
+public final class CryptoExecutor {
+
+	static final int							DEFAULT_QUEUE_SIZE	= 256;
+
+	private static final BoxRuntime				runtime				= BoxRuntime.getInstance();
+	private static final BoxLangLogger			logger				= runtime.getLoggingService().getLogger( "Mail" );
+	private static final AtomicInteger			threadCount			= new AtomicInteger();
+
+	private static volatile ThreadPoolExecutor	executor;
+
+	/**
+	 * A task and the future of its result, which is failed if the executor is stopped before the task runs
+	 *
+	 * @param <T> the type of the result
+	 */
+	private static final class Task<T> implements Runnable {
+
+		final Supplier<T>			supplier;
+		final CompletableFuture<T>	future	= new CompletableFuture<>();
+
+		Task( Supplier<T> supplier ) {
+			this.supplier = supplier;
+		}
+
+		@Override
+		public void run() {
+			if ( future.isDone() ) {
+				return;
+			}
+			try {
+				future.complete( supplier.get() );
+			} catch ( Throwable e ) {
+				future.completeExceptionally( e );
+			}
+		}
+
+	}
+
+	private CryptoExecutor() {
+	}
+
+	/**
+	 * Whether signing and encryption are offloaded to the executor, which is controlled by the <code>cryptoOffload</code> setting
+	 *
+	 * @return true if the work should be offloaded
+	 */
+	public static boolean isEnabled() {
+		IStruct moduleSettings = runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
+		return moduleSettings == null || BooleanCaster.cast( moduleSettings.getOrDefault( MailKeys.cryptoOffload, true ) );
+	}
+
+	/**
+	 * Runs a task on the executor without waiting for it. Failures are logged, since the caller has moved on
+	 *
+	 * @param task the task
+	 */
+	public static void execute( Runnable task ) {
+		Task<Void> background = new Task<>( () -> {
+			task.run();
+			return null;
+		} );
+		background.future.whenComplete( ( result, e ) -> {
+			if ( e != null ) {
+				logger.error( "An error occurred while processing a mail message in the background: " + e.getMessage(), e );
+			}
+		} );
+		getExecutor().execute( background );
+	}
+
+	/**
+	 * Runs a task on the executor and waits for its result. The calling thread is blocked, but does not compete with the
+	 * executor's threads for the processors
+	 *
+	 * @param task the task
+	 *
+	 * @return the result of the task
+	 */
+	public static <T> T call( Supplier<T> task ) {
+		Task<T> call = new Task<>( task );
+		getExecutor().execute( call );
+		try {
+			return call.future.join();
+		} catch ( CompletionException e ) {
+			if ( e.getCause() instanceof RuntimeException runtimeException ) {
+				throw runtimeException;
+			}
+			if ( e.getCause() instanceof Error error ) {
+				throw error;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops accepting tasks and waits for the queued messages to be built
+	 *
+	 * @param timeoutMillis the maximum time to wait
+	 *
+	 * @return true if all tasks completed before the timeout
+	 */
+	public static synchronized boolean shutdown( long timeoutMillis ) {
+		ThreadPoolExecutor current = executor;
+		if ( current == null ) {
+			return true;
+		}
+		executor = null;
+		current.shutdown();
+		try {
+			if ( current.awaitTermination( timeoutMillis, TimeUnit.MILLISECONDS ) ) {
+				return true;
+			}
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+		List<Runnable> abandoned = current.shutdownNow();
+		logger.error( String.format( "The mail crypto executor was shut down with [%d] messages still queued, which were not sent", abandoned.size() ) );
+		BoxRuntimeException stopped = new BoxRuntimeException( "The mail crypto executor was shut down before the message was built" );
+		abandoned.stream()
+		    .filter( Task.class::isInstance )
+		    .forEach( task -> ( ( Task<?> ) task ).future.completeExceptionally( stopped ) );
+		return false;
+	}
+
+	/**
+	 * Gets the executor, creating it from the module settings on first use
+	 *
+	 * @return the executor
+	 */
+	static ThreadPoolExecutor getExecutor() {
+		ThreadPoolExecutor current = executor;
+		if ( current != null ) {
+			return current;
+		}
+		synchronized ( CryptoExecutor.class ) {
+			if ( executor == null ) {
+				IStruct	moduleSettings	= runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
+				if ( moduleSettings == null ) {
+					moduleSettings = new Struct();
+				}
+				int		threads			= IntegerCaster.cast( moduleSettings.getOrDefault( MailKeys.cryptoThreads, 0 ) );
+				int		queueSize		= IntegerCaster.cast( moduleSettings.getOrDefault( MailKeys.cryptoQueueSize, DEFAULT_QUEUE_SIZE ) );
+				executor = newExecutor( threads, queueSize );
+			}
+			return executor;
+		}
+	}
+
+	/**
+	 * Runs a task on the calling thread when the executor cannot take it, either because its queue is full or because it has been
+	 * shut down. Unlike {@link ThreadPoolExecutor.CallerRunsPolicy}, which discards tasks once the executor is shut down, the task
+	 * always runs, so a caller of {@link #call(Supplier)} which took the executor just before it was stopped is never left waiting
+	 */
+	private static void runOnCaller( Runnable task, ThreadPoolExecutor pool ) {
+		task.run();
+	}
+
+	/**
+	 * Creates an executor
+	 *
+	 * @param threads   the number of threads, or zero for one per processor
+	 * @param queueSize the maximum number of queued tasks
+	 *
+	 * @return the executor
+	 */
+	static ThreadPoolExecutor newExecutor( int threads, int queueSize ) {
+		int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		return new ThreadPoolExecutor(
+		    poolSize,
+		    poolSize,
+		    0L,
+		    TimeUnit.MILLISECONDS,
+		    new ArrayBlockingQueue<>( Math.max( queueSize, 1 ) ),
+		    task -> {
+			    Thread thread = new Thread( task, "bx-mail-crypto-" + threadCount.incrementAndGet() );
+			    thread.setDaemon( true );
+			    return thread;
+		    },
+		    CryptoExecutor::runOnCaller
+		);
+	}
+
+}
@@ -0,0 +1,578 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.EdECKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.openssl.PEMKeyPair;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.dynamic.casters.StringCaster;
+import ortus.boxlang.runtime.dynamic.casters.StructCaster;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
+
+/**
+ * DKIM ( RFC 6376 ) signing of outbound messages.
+ *
+ * Signing is configured per sender domain in the <code>dkim</code> setting, which is a struct keyed by domain:
+ *
+ * <pre>
+ * "dkim" : {
+ *     "example.com" : {
+ *         "selector" : "mail",
+ *         "privateKey" : "/path/to/example.com.pem",
+ *         "algorithm" : "rsa-sha256",
+ *         "headers" : "from:to:subject:date:message-id"
+ *     }
+ * }
+ * </pre>
+ *
+ * The private key is a PEM encoded PKCS#1 or PKCS#8 key, given as a path or inline. It is parsed once and cached until the file
+ * changes. The algorithm, <code>rsa-sha256</code> or <code>ed25519-sha256</code> ( RFC 8463 ), defaults to the one for the type of the
+ * key. Headers and body use relaxed canonicalization. The body hash is computed by streaming the message through the canonicalizer
+ * in to the digest, so the message is not copied. S/MIME content is an exception. It is generated as it is written, and signatures
+ * and key wrapping may be randomized, so S/MIME messages are written to memory once and the same bytes are signed and sent.
+ */
+public final class DkimSigner {
+
+	public static final String					RSA_SHA256		= "rsa-sha256";
+	public static final String					ED25519_SHA256	= "ed25519-sha256";
+	public static final String					HEADER			= "DKIM-Signature";
+
+	/**
+	 * The headers which are signed, when present, if a domain does not configure its own list
+	 */
+	static final String							DEFAULT_HEADERS	= "from:sender:reply-to:subject:date:message-id:to:cc:mime-version:content-type:content-transfer-encoding";
+
+	private static final BoxRuntime				runtime			= BoxRuntime.getInstance();
+
+	/**
+	 * The prefix of the identities of the key files in the key material registry
+	 */
+	private static final String					KEY_FILE		= "dkim|";
+
+	/**
+	 * The parsed inline keys, by domain, selector, key and algorithm. Keys in files are held by the {@link KeyMaterialRegistry}
+	 */
+	private static final Map<String, DkimKey>	KEYS			= new ConcurrentHashMap<>();
+
+	/**
+	 * The signing configuration of a domain
+	 *
+	 * @param domain     the signing domain ( d= )
+	 * @param selector   the selector ( s= )
+	 * @param algorithm  the signing algorithm ( a= )
+	 * @param privateKey the parsed private key
+	 * @param headers    the lower-cased names of the headers to sign
+	 */
+	record DkimKey(
+	    String domain,
+	    String selector,
+	    String algorithm,
+	    PrivateKey privateKey,
+	    List<String> headers ) {
+	}
+
+	/**
+	 * A message after signing
+	 *
+	 * @param message the signed message, which is the message itself unless it was frozen
+	 * @param size    the number of bytes in the message as it is sent, which is counted when the body hash is computed, or -1 if the
+	 *                message was not signed
+	 */
+	public record Signed( MimeMessage message, long size ) {
+	}
+
+	private DkimSigner() {
+	}
+
+	/**
+	 * Signs a message if DKIM is configured for the domain of its sender. The message must have been saved
+	 *
+	 * @param session the mail session
+	 * @param message the message
+	 *
+	 * @return the signed message and its size, or the message unchanged if its domain is not configured
+	 *
+	 * @throws MessagingException if the message cannot be read
+	 */
+	public static Signed sign( Session session, MimeMessage message ) throws MessagingException {
+		IStruct moduleSettings = runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
+		return sign( session, message, moduleSettings.get( MailKeys.dkim ) instanceof IStruct dkim ? dkim : null );
+	}
+
+	/**
+	 * Signs a message if DKIM is configured for the domain of its sender. The message must have been saved
+	 *
+	 * @param session  the mail session
+	 * @param message  the message
+	 * @param settings the dkim settings, keyed by domain
+	 *
+	 * @return the signed message and its size, or the message unchanged if its domain is not configured
+	 *
+	 * @throws MessagingException if the message cannot be read
+	 */
+	static Signed sign( Session session, MimeMessage message, IStruct settings ) throws MessagingException {
+		Signed unsigned = new Signed( message, -1 );
+		if ( settings == null || settings.isEmpty() ) {
+			return unsigned;
+		}
+		Address[] from = message.getFrom();
+		if ( from == null || from.length == 0 || ! ( from[ 0 ] instanceof InternetAddress sender ) || !sender.getAddress().contains( "@" ) ) {
+			return unsigned;
+		}
+		String	domain	= sender.getAddress().substring( sender.getAddress().lastIndexOf( '@' ) + 1 ).toLowerCase();
+		Object	config	= settings.get( Key.of( domain ) );
+		if ( config == null ) {
+			return unsigned;
+		}
+
+		DkimKey					key		= getKey( domain, StructCaster.cast( config ) );
+		MimeMessage				signed	= isGeneratedOnWrite( message ) ? freeze( session, message ) : message;
+		CountingOutputStream	written	= new CountingOutputStream( OutputStream.nullOutputStream() );
+		String					header	= signature( signed, key, System.currentTimeMillis() / 1000, bodyHash( signed, written ) );
+		signed.setHeader( HEADER, header );
+		// the message was written once to hash its body, so its size as it is sent is the bytes written and the new header line
+		return new Signed( signed, written.getCount() + HEADER.length() + 2 + header.length() + 2 );
+	}
+
+	/**
+	 * Clears the parsed keys
+	 */
+	public static void clearKeys() {
+		KEYS.clear();
+		KeyMaterialRegistry.getInstance().clear( KEY_FILE );
+	}
+
+	/**
+	 * Creates the DKIM-Signature header value of a message
+	 *
+	 * @param message   the message
+	 * @param key       the signing key
+	 * @param timestamp the signature timestamp, in epoch seconds
+	 * @param hash      the body hash of the message
+	 *
+	 * @return the header value
+	 */
+	static String signature( MimeMessage message, DkimKey key, long timestamp, byte[] hash ) throws MessagingException {
+		String			bodyHash		= Base64.getEncoder().encodeToString( hash );
+		StringBuilder	data			= new StringBuilder();
+		List<String>	signedHeaders	= new ArrayList<>();
+
+		// a header which is listed more than once signs its instances from the bottom up, as receivers verify them
+		Map<String, Integer> consumed = new HashMap<>();
+		for ( String name : key.headers() ) {
+			String[]	values	= message.getHeader( name );
+			int			index	= values == null ? -1 : values.length - 1 - consumed.getOrDefault( name, 0 );
+			if ( index < 0 ) {
+				continue;
+			}
+			consumed.merge( name, 1, Integer::sum );
+			signedHeaders.add( name );
+			data.append( canonicalizeHeader( name, values[ index ] ) ).append( "\r\n" );
+		}
+
+		String tags = "v=1; a=" + key.algorithm() + "; c=relaxed/relaxed; d=" + key.domain() + "; s=" + key.selector() + "; t=" + timestamp + ";\r\n"
+		    + "\th=" + String.join( ":", signedHeaders ) + ";\r\n"
+		    + "\tbh=" + bodyHash + ";\r\n"
+		    + "\tb=";
+		// the signature covers its own header, with an empty b= tag and without the trailing line break
+		data.append( canonicalizeHeader( HEADER, tags ) );
+
+		try {
+			byte[]		input	= data.toString().getBytes( StandardCharsets.UTF_8 );
+			Signature	signer;
+			if ( ED25519_SHA256.equals( key.algorithm() ) ) {
+				// RFC 8463 signs the SHA-256 hash of the canonicalized headers
+				input	= MessageDigest.getInstance( "SHA-256" ).digest( input );
+				signer	= Signature.getInstance( "Ed25519" );
+			} else {
+				signer = Signature.getInstance( "SHA256withRSA" );
+			}
+			signer.initSign( key.privateKey() );
+			signer.update( input );
+			return tags + Base64.getEncoder().encodeToString( signer.sign() );
+		} catch ( GeneralSecurityException e ) {
+			throw new BoxRuntimeException( "An error occurred while attempting to DKIM sign the message: " + e.getMessage(), e );
+		}
+	}
+
+	/**
+	 * Computes the body hash of a message by streaming it through the relaxed body canonicalizer in to a SHA-256 digest
+	 *
+	 * @param message the message
+	 * @param written a stream which is also passed the whole message as it is written, headers included
+	 *
+	 * @return the body hash
+	 *
+	 * @throws MessagingException if the message cannot be written
+	 */
+	static byte[] bodyHash( MimeMessage message, OutputStream written ) throws MessagingException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance( "SHA-256" );
+		} catch ( NoSuchAlgorithmException e ) {
+			throw new BoxRuntimeException( "SHA-256 is not available", e );
+		}
+		try (
+		    OutputStream body = new BodyOutputStream( new RelaxedBodyOutputStream(
+		        new BufferedOutputStream( new DigestOutputStream( OutputStream.nullOutputStream(), digest ) ) ) );
+		    OutputStream stream = new TeeOutputStream( body, written ) ) {
+			message.writeTo( stream );
+		} catch ( IOException e ) {
+			throw new MessagingException( "The message body could not be written: " + e.getMessage(), e );
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Canonicalizes a header with the relaxed algorithm: the name is lower-cased, the value is unfolded, runs of whitespace are
+	 * reduced to a single space and whitespace around the value is removed
+	 *
+	 * @param name  the header name
+	 * @param value the header value
+	 *
+	 * @return the canonicalized header, without a line break
+	 */
+	static String canonicalizeHeader( String name, String value ) {
+		String unfolded = value.replace( "\r", "" ).replace( "\n", "" ).replaceAll( "[ \t]+", " " ).strip();
+		return name.strip().toLowerCase() + ":" + unfolded;
+	}
+
+	/**
+	 * Gets the parsed key of a domain. Inline keys are parsed once, and key files are reloaded by the {@link KeyMaterialRegistry}
+	 * when they change
+	 *
+	 * @param domain the signing domain
+	 * @param config the domain settings
+	 *
+	 * @return the key
+	 */
+	static DkimKey getKey( String domain, IStruct config ) {
+		String	selector	= config.getAsString( MailKeys.selector );
+		String	source		= config.getAsString( MailKeys.privateKey );
+		String	algorithm	= config.get( MailKeys.algorithm ) != null ? StringCaster.cast( config.get( MailKeys.algorithm ) ).strip().toLowerCase() : null;
+		String	headers		= config.get( MailKeys.headers ) != null ? StringCaster.cast( config.get( MailKeys.headers ) ) : DEFAULT_HEADERS;
+		if ( selector == null || source == null ) {
+			throw new BoxRuntimeException( "The dkim settings of the domain [" + domain + "] require a selector and a privateKey" );
+		}
+
+		String cacheKey = String.join( "|", domain, selector, source, String.valueOf( algorithm ), headers );
+		if ( source.strip().startsWith( "-----BEGIN" ) ) {
+			return KEYS.computeIfAbsent( cacheKey, k -> newKey( domain, selector, algorithm, headers, parsePrivateKey( domain, new StringReader( source ) ) ) );
+		}
+		// key files are reloaded by the registry when they change
+		return KeyMaterialRegistry.getInstance().get( KEY_FILE + cacheKey, Path.of( source ), file -> {
+			try ( Reader reader = Files.newBufferedReader( file ) ) {
+				return newKey( domain, selector, algorithm, headers, parsePrivateKey( domain, reader ) );
+			} catch ( IOException e ) {
+				throw new BoxRuntimeException( "The DKIM private key [" + source + "] of the domain [" + domain + "] could not be read", e );
+			}
+		} );
+	}
+
+	/**
+	 * Creates the signing configuration of a domain
+	 */
+	private static DkimKey newKey( String domain, String selector, String algorithm, String headers, PrivateKey privateKey ) {
+		if ( algorithm == null ) {
+			algorithm = isEd25519( privateKey ) ? ED25519_SHA256 : RSA_SHA256;
+		} else if ( !RSA_SHA256.equals( algorithm ) && !ED25519_SHA256.equals( algorithm ) ) {
+			throw new BoxRuntimeException( "The DKIM algorithm [" + algorithm + "] is not valid. Valid values are rsa-sha256 and ed25519-sha256" );
+		}
+		return new DkimKey(
+		    domain,
+		    selector,
+		    algorithm,
+		    privateKey,
+		    Arrays.stream( headers.split( ":" ) ).map( String::strip ).map( String::toLowerCase ).filter( name -> !name.isEmpty() ).toList()
+		);
+	}
+
+	/**
+	 * Parses a PEM encoded PKCS#1 or PKCS#8 private key
+	 */
+	private static PrivateKey parsePrivateKey( String domain, Reader reader ) {
+		try ( PEMParser parser = new PEMParser( reader ) ) {
+			Object				parsed		= parser.readObject();
+			JcaPEMKeyConverter	converter	= new JcaPEMKeyConverter();
+			if ( parsed instanceof PEMKeyPair keyPair ) {
+				return converter.getPrivateKey( keyPair.getPrivateKeyInfo() );
+			} else if ( parsed instanceof PrivateKeyInfo keyInfo ) {
+				return converter.getPrivateKey( keyInfo );
+			}
+			throw new BoxRuntimeException( "The DKIM private key of the domain [" + domain + "] is not an unencrypted PEM private key" );
+		} catch ( IOException e ) {
+			throw new BoxRuntimeException( "The DKIM private key of the domain [" + domain + "] could not be parsed: " + e.getMessage(), e );
+		}
+	}
+
+	private static boolean isEd25519( PrivateKey privateKey ) {
+		return privateKey instanceof EdECKey edKey
+		    ? "Ed25519".equalsIgnoreCase( edKey.getParams().getName() )
+		    : "Ed25519".equalsIgnoreCase( privateKey.getAlgorithm() );
+	}
+
+	/**
+	 * Whether the content of a message is generated as it is written. S/MIME signed and enveloped content is, and may differ between
+	 * writes, so the body hash would not match the body which is sent. Content which has already been materialized, as the module
+	 * does when it signs or encrypts a message, is written the same way each time, so it is not frozen again
+	 */
+	private static boolean isGeneratedOnWrite( MimeMessage message ) throws MessagingException {
+		try {
+			Object content = message.getContent();
+			if ( MailEncryptionUtil.isMaterialized( content ) ) {
+				return false;
+			}
+			if ( message.isMimeType( "multipart/signed" ) || message.isMimeType( "application/pkcs7-mime" ) ) {
+				return true;
+			}
+			return content instanceof Multipart multipart
+			    && multipart.getCount() == 1
+			    && multipart.getBodyPart( 0 ).isMimeType( "application/pkcs7-mime" );
+		} catch ( IOException e ) {
+			throw new MessagingException( "The message content could not be read: " + e.getMessage(), e );
+		}
+	}
+
+	/**
+	 * Writes a message once and parses it back, so that it is sent exactly as it was signed
+	 */
+	private static MimeMessage freeze( Session session, MimeMessage message ) throws MessagingException {
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream( Math.max( message.getSize(), 8192 ) );
+			message.writeTo( buffer );
+			return new MimeMessage( session, new ByteArrayInputStream( buffer.toByteArray() ) );
+		} catch ( IOException e ) {
+			throw new MessagingException( "The message could not be written: " + e.getMessage(), e );
+		}
+	}
+
+	/**
+	 * Passes only the body of a written message, skipping the headers up to the first empty line
+	 */
+	static final class BodyOutputStream extends FilterOutputStream {
+
+		private int		previous	= -1;
+		private boolean	inBody		= false;
+
+		BodyOutputStream( OutputStream out ) {
+			super( out );
+		}
+
+		@Override
+		public void write( int b ) throws IOException {
+			if ( inBody ) {
+				out.write( b );
+			} else if ( b == '\n' && previous == '\n' ) {
+				inBody = true;
+			} else if ( b != '\r' ) {
+				previous = b;
+			}
+		}
+
+		@Override
+		public void write( byte[] bytes, int offset, int length ) throws IOException {
+			if ( inBody ) {
+				out.write( bytes, offset, length );
+				return;
+			}
+			for ( int i = offset; i < offset + length; i++ ) {
+				write( bytes[ i ] );
+				if ( inBody ) {
+					out.write( bytes, i + 1, offset + length - i - 1 );
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes to two streams
+	 */
+	static final class TeeOutputStream extends FilterOutputStream {
+
+		private final OutputStream branch;
+
+		TeeOutputStream( OutputStream out, OutputStream branch ) {
+			super( out );
+			this.branch = branch;
+		}
+
+		@Override
+		public void write( int b ) throws IOException {
+			out.write( b );
+			branch.write( b );
+		}
+
+		@Override
+		public void write( byte[] bytes, int offset, int length ) throws IOException {
+			out.write( bytes, offset, length );
+			branch.write( bytes, offset, length );
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+			branch.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				branch.close();
+			}
+		}
+	}
+
+	/**
+	 * Counts the bytes written to it
+	 */
+	static final class CountingOutputStream extends FilterOutputStream {
+
+		private long count = 0;
+
+		CountingOutputStream( OutputStream out ) {
+			super( out );
+		}
+
+		@Override
+		public void write( int b ) throws IOException {
+			out.write( b );
+			count++;
+		}
+
+		@Override
+		public void write( byte[] bytes, int offset, int length ) throws IOException {
+			out.write( bytes, offset, length );
+			count += length;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * Canonicalizes a body with the relaxed algorithm as it is written: whitespace at the end of lines is removed, runs of whitespace
+	 * are reduced to a single space and empty lines at the end of the body are removed. Lines may end with CRLF or a bare LF, which the
+	 * transport writes as CRLF
+	 */
+	static final class RelaxedBodyOutputStream extends FilterOutputStream {
+
+		private static final byte[]	CRLF			= new byte[] { '\r', '\n' };
+
+		private int					pendingLines	= 0;
+		private boolean				pendingSpace	= false;
+		private boolean				pendingCR		= false;
+		private boolean				written			= false;
+
+		RelaxedBodyOutputStream( OutputStream out ) {
+			super( out );
+		}
+
+		@Override
+		public void write( int b ) throws IOException {
+			if ( pendingCR ) {
+				pendingCR = false;
+				if ( b != '\n' ) {
+					content( '\r' );
+				}
+			}
+			switch ( b ) {
+				case '\r' -> pendingCR = true;
+				case '\n' -> {
+					pendingSpace = false;
+					pendingLines++;
+				}
+				case ' ', '\t' -> pendingSpace = true;
+				default -> content( b );
+			}
+		}
+
+		@Override
+		public void write( byte[] bytes, int offset, int length ) throws IOException {
+			for ( int i = offset; i < offset + length; i++ ) {
+				write( bytes[ i ] );
+			}
+		}
+
+		private void content( int b ) throws IOException {
+			for ( ; pendingLines > 0; pendingLines-- ) {
+				out.write( CRLF );
+			}
+			if ( pendingSpace ) {
+				out.write( ' ' );
+				pendingSpace = false;
+			}
+			out.write( b );
+			written = true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if ( pendingCR ) {
+				pendingCR = false;
+				content( '\r' );
+			}
+			// a non-empty body ends with exactly one line break, and an empty body is empty
+			if ( written ) {
+				out.write( CRLF );
+			}
+			super.close();
+		}
+	}
+
+}
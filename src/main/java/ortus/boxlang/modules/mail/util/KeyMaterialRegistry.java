@@ -0,0 +1,298 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.dynamic.casters.BooleanCaster;
+import ortus.boxlang.runtime.dynamic.casters.DoubleCaster;
+import ortus.boxlang.runtime.logging.BoxLangLogger;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
+
+/**
+ * A registry of the key material which is loaded from files: signing keystores, recipient certificates and DKIM private keys.
+ *
+ * Material is loaded from disk the first time it is requested and then returned from memory, so the send path does not touch the
+ * file again. The directories of the registered files are watched with a {@link WatchService}, and every
+ * <code>keyReloadInterval</code> seconds the files are also polled, which catches changes the watch service misses, such as those
+ * on network file systems or the symbolic link swaps of mounted secrets. A file whose modification time or size has changed is
+ * reloaded on the watcher thread, and the new material replaces the old in a single write, so senders see either the old or the
+ * new material and never wait for a reload. If a changed file cannot be loaded, for instance because it is only partly written,
+ * the old material is kept and the load is retried on the next change or poll.
+ */
+public final class KeyMaterialRegistry {
+
+	static final double							DEFAULT_RELOAD_INTERVAL	= 60;
+
+	private static final BoxRuntime				runtime					= BoxRuntime.getInstance();
+	private static final BoxLangLogger			logger					= runtime.getLoggingService().getLogger( "Mail" );
+
+	private static final KeyMaterialRegistry	instance				= new KeyMaterialRegistry();
+
+	private final Map<String, Entry<?>>			entries					= new ConcurrentHashMap<>();
+	private final Map<Path, WatchKey>			watchedDirectories		= new ConcurrentHashMap<>();
+	private volatile WatchService				watchService;
+	private volatile Thread						watcher;
+
+	/**
+	 * The material loaded from a file, and the fingerprint of the file it was loaded from
+	 *
+	 * @param <T> the type of the material
+	 */
+	static final class Entry<T> {
+
+		final Path					path;
+		final Function<Path, T>		loader;
+		volatile T					material;
+		volatile long				lastModified;
+		volatile long				size;
+
+		Entry( Path path, Function<Path, T> loader ) {
+			this.path	= path;
+			this.loader	= loader;
+		}
+
+	}
+
+	KeyMaterialRegistry() {
+	}
+
+	/**
+	 * The key material registry
+	 *
+	 * @return the registry
+	 */
+	public static KeyMaterialRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Gets the material of a file, loading it on first use. Later calls return the loaded material until the file changes and the
+	 * watcher reloads it
+	 *
+	 * @param identity the identity of the material, which must include anything other than the file the loader depends on, such
+	 *                 as passwords
+	 * @param path     the file the material is loaded from
+	 * @param loader   loads and validates the material, throwing if the file cannot be used
+	 *
+	 * @return the material
+	 */
+	@SuppressWarnings( "unchecked" )
+	public <T> T get( String identity, Path path, Function<Path, T> loader ) {
+		Entry<T> entry = ( Entry<T> ) entries.get( identity );
+		if ( entry != null ) {
+			return entry.material;
+		}
+		Path		absolutePath	= path.toAbsolutePath().normalize();
+		Entry<T>	created			= new Entry<>( absolutePath, loader );
+		// the first load is on the caller, since there is nothing to return until it completes
+		load( created );
+		entry = ( Entry<T> ) entries.putIfAbsent( identity, created );
+		if ( entry != null ) {
+			return entry.material;
+		}
+		watch( absolutePath.getParent() );
+		return created.material;
+	}
+
+	/**
+	 * Checks every registered file and reloads the material of those which have changed
+	 */
+	public void refresh() {
+		entries.values().forEach( this::reloadIfChanged );
+	}
+
+	/**
+	 * Removes the material whose identity starts with a prefix
+	 *
+	 * @param prefix the prefix of the identities
+	 */
+	public void clear( String prefix ) {
+		entries.keySet().removeIf( identity -> identity.startsWith( prefix ) );
+	}
+
+	/**
+	 * Stops watching the registered files. The loaded material is kept, and the watcher is started again by the next registration
+	 */
+	public synchronized void shutdown() {
+		Thread current = watcher;
+		watcher = null;
+		if ( current != null ) {
+			current.interrupt();
+		}
+		closeWatchService();
+	}
+
+	/**
+	 * Loads the material of an entry and records the fingerprint of its file
+	 */
+	private static <T> void load( Entry<T> entry ) {
+		long	lastModified;
+		long	size;
+		try {
+			lastModified	= Files.getLastModifiedTime( entry.path ).toMillis();
+			size			= Files.size( entry.path );
+		} catch ( IOException e ) {
+			throw new BoxRuntimeException( "The key material [" + entry.path + "] could not be read: " + e.getMessage(), e );
+		}
+		T material = entry.loader.apply( entry.path );
+		// the material is written last, so a reader which sees it also sees the fingerprint it was loaded with
+		entry.lastModified	= lastModified;
+		entry.size			= size;
+		entry.material		= material;
+	}
+
+	/**
+	 * Reloads the material of an entry if its file has changed, keeping the current material if the file cannot be loaded
+	 */
+	private void reloadIfChanged( Entry<?> entry ) {
+		try {
+			if ( Files.getLastModifiedTime( entry.path ).toMillis() == entry.lastModified && Files.size( entry.path ) == entry.size ) {
+				return;
+			}
+			load( entry );
+			logger.info( "The key material [" + entry.path + "] was reloaded" );
+		} catch ( Exception e ) {
+			logger.warn( "The key material [" + entry.path + "] changed but could not be reloaded, so the loaded material is kept: " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Watches a directory, starting the watcher if it is not running
+	 */
+	private synchronized void watch( Path directory ) {
+		if ( watcher == null ) {
+			IStruct moduleSettings = runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
+			if ( moduleSettings == null ) {
+				moduleSettings = new Struct();
+			}
+			long	intervalMillis	= ( long ) ( DoubleCaster.cast( moduleSettings.getOrDefault( MailKeys.keyReloadInterval, DEFAULT_RELOAD_INTERVAL ) )
+			    * 1000 );
+			boolean	watchEnable		= BooleanCaster.cast( moduleSettings.getOrDefault( MailKeys.keyWatchEnable, true ) );
+			watchedDirectories.clear();
+			if ( watchEnable ) {
+				try {
+					watchService = FileSystems.getDefault().newWatchService();
+				} catch ( IOException | UnsupportedOperationException e ) {
+					logger.debug( "Key material changes cannot be watched, so the files are polled: " + e.getMessage() );
+				}
+			}
+			watcher = Thread.ofPlatform()
+			    .name( "bx-mail-key-watcher" )
+			    .daemon( true )
+			    .start( () -> run( intervalMillis ) );
+			// the files registered before a shutdown are watched again
+			entries.values().forEach( entry -> register( entry.path.getParent() ) );
+		}
+		register( directory );
+	}
+
+	/**
+	 * Registers a directory with the watch service
+	 */
+	private void register( Path directory ) {
+		WatchService service = watchService;
+		if ( service == null || directory == null || watchedDirectories.containsKey( directory ) ) {
+			return;
+		}
+		try {
+			watchedDirectories.put(
+			    directory,
+			    directory.register(
+			        service,
+			        StandardWatchEventKinds.ENTRY_CREATE,
+			        StandardWatchEventKinds.ENTRY_MODIFY,
+			        StandardWatchEventKinds.ENTRY_DELETE
+			    )
+			);
+		} catch ( IOException | UnsupportedOperationException e ) {
+			// the files of this directory are still polled
+			logger.debug( "The key material directory [" + directory + "] cannot be watched: " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * The watcher loop: reloads the files of a directory when the watch service reports a change in it, and polls every file at the
+	 * reload interval
+	 */
+	private void run( long intervalMillis ) {
+		// without a reload interval the files are only reloaded when the watch service reports a change
+		long nextPoll = intervalMillis > 0 ? System.currentTimeMillis() + intervalMillis : Long.MAX_VALUE;
+		while ( watcher == Thread.currentThread() ) {
+			try {
+				long			wait		= Math.max( nextPoll - System.currentTimeMillis(), 1 );
+				WatchService	service		= watchService;
+				Set<Path>		changed		= new HashSet<>();
+				if ( service == null ) {
+					Thread.sleep( wait );
+				} else {
+					WatchKey key = service.poll( wait, TimeUnit.MILLISECONDS );
+					while ( key != null ) {
+						// the events are not inspected, since a mounted secret changes by replacing a link rather than the file
+						key.pollEvents();
+						changed.add( ( Path ) key.watchable() );
+						key.reset();
+						key = service.poll();
+					}
+				}
+				if ( System.currentTimeMillis() >= nextPoll ) {
+					refresh();
+					nextPoll = System.currentTimeMillis() + intervalMillis;
+				} else if ( !changed.isEmpty() ) {
+					entries.values().stream()
+					    .filter( entry -> changed.contains( entry.path.getParent() ) )
+					    .forEach( this::reloadIfChanged );
+				}
+			} catch ( InterruptedException | ClosedWatchServiceException e ) {
+				break;
+			} catch ( Exception e ) {
+				logger.warn( "An error occurred while watching the key material for changes: " + e.getMessage() );
+			}
+		}
+	}
+
+	private void closeWatchService() {
+		WatchService service = watchService;
+		watchService = null;
+		watchedDirectories.clear();
+		if ( service != null ) {
+			try {
+				service.close();
+			} catch ( IOException e ) {
+				logger.debug( "The key material watch service could not be closed: " + e.getMessage() );
+			}
+		}
+	}
+
+}
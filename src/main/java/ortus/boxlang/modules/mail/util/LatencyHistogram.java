@@ -0,0 +1,164 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+
+/**
+ * A lock-free latency histogram with log-linear buckets, in the style of an HDR histogram.
+ *
+ * Each power of two range of nanoseconds is divided in to {@value #SUB_BUCKETS} linear buckets, so recorded values keep a
+ * relative precision of about 6% across the range from one nanosecond to {@value #MAX_EXPONENT} bits ( about 18 minutes ),
+ * and larger values are recorded in the last bucket. Recording a value is a bucket index calculation and two atomic
+ * increments, with no locks or allocation.
+ */
+public final class LatencyHistogram {
+
+	static final int				SUB_BUCKET_BITS	= 4;
+	static final int				SUB_BUCKETS		= 1 << SUB_BUCKET_BITS;
+	static final int				MAX_EXPONENT	= 40;
+	static final int				BUCKET_COUNT	= SUB_BUCKETS + ( MAX_EXPONENT - SUB_BUCKET_BITS ) * SUB_BUCKETS;
+
+	private static final double		NANOS_PER_MILLI	= 1_000_000d;
+
+	private final AtomicLongArray	buckets			= new AtomicLongArray( BUCKET_COUNT );
+	private final LongAdder			count			= new LongAdder();
+	private final LongAdder			total			= new LongAdder();
+	private final LongAccumulator	max				= new LongAccumulator( Math::max, 0L );
+
+	/**
+	 * Records a latency
+	 *
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void record( long nanos ) {
+		long value = Math.max( nanos, 0L );
+		buckets.incrementAndGet( bucketFor( value ) );
+		count.increment();
+		total.add( value );
+		max.accumulate( value );
+	}
+
+	/**
+	 * The number of recorded values
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * The value at a percentile. The result is the upper bound of the bucket containing the percentile, so it is accurate to the
+	 * precision of the buckets.
+	 *
+	 * @param percentile the percentile, from 0 to 100
+	 *
+	 * @return the value in nanoseconds, or 0 if no values have been recorded
+	 */
+	public long getValueAtPercentile( double percentile ) {
+		long[]	counts		= new long[ BUCKET_COUNT ];
+		long	recorded	= 0;
+		for ( int i = 0; i < BUCKET_COUNT; i++ ) {
+			counts[ i ]	= buckets.get( i );
+			recorded	+= counts[ i ];
+		}
+		if ( recorded == 0 ) {
+			return 0L;
+		}
+		long	target	= Math.max( 1L, ( long ) Math.ceil( recorded * Math.min( Math.max( percentile, 0d ), 100d ) / 100d ) );
+		long	seen	= 0;
+		for ( int i = 0; i < BUCKET_COUNT; i++ ) {
+			seen += counts[ i ];
+			if ( seen >= target ) {
+				return Math.min( upperBound( i ), max.get() );
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * A summary of the histogram, in milliseconds
+	 *
+	 * @return a struct with the count, mean, p50, p90, p99 and max
+	 */
+	public IStruct snapshot() {
+		long recorded = count.sum();
+		return Struct.of(
+		    MailKeys.count, recorded,
+		    MailKeys.mean, recorded == 0 ? 0d : total.sum() / NANOS_PER_MILLI / recorded,
+		    MailKeys.p50, getValueAtPercentile( 50 ) / NANOS_PER_MILLI,
+		    MailKeys.p90, getValueAtPercentile( 90 ) / NANOS_PER_MILLI,
+		    MailKeys.p99, getValueAtPercentile( 99 ) / NANOS_PER_MILLI,
+		    MailKeys.max, max.get() / NANOS_PER_MILLI
+		);
+	}
+
+	/**
+	 * Clears the recorded values
+	 */
+	public void reset() {
+		for ( int i = 0; i < BUCKET_COUNT; i++ ) {
+			buckets.set( i, 0L );
+		}
+		count.reset();
+		total.reset();
+		max.reset();
+	}
+
+	/**
+	 * The bucket index of a value
+	 *
+	 * @param value the value, which is not negative
+	 *
+	 * @return the bucket index
+	 */
+	static int bucketFor( long value ) {
+		if ( value < SUB_BUCKETS ) {
+			return ( int ) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros( value );
+		if ( exponent >= MAX_EXPONENT ) {
+			return BUCKET_COUNT - 1;
+		}
+		int shift = exponent - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + ( int ) ( ( value >>> shift ) & ( SUB_BUCKETS - 1 ) );
+	}
+
+	/**
+	 * The largest value in a bucket
+	 *
+	 * @param bucket the bucket index
+	 *
+	 * @return the upper bound of the bucket
+	 */
+	static long upperBound( int bucket ) {
+		if ( bucket < SUB_BUCKETS ) {
+			return bucket;
+		}
+		int	shift	= ( bucket - SUB_BUCKETS ) / SUB_BUCKETS;
+		int	sub		= ( bucket - SUB_BUCKETS ) % SUB_BUCKETS;
+		return ( ( long ) ( SUB_BUCKETS + sub + 1 ) << shift ) - 1;
+	}
+
+}
@@ -17,13 +17,18 @@
  */
 package ortus.boxlang.modules.mail.util;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
@@ -32,38 +37,70 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.security.interfaces.EdECKey;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.bouncycastle.asn1.ASN1EncodableVector;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.cms.AttributeTable;
 import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
 import org.bouncycastle.asn1.smime.SMIMECapabilitiesAttribute;
 import org.bouncycastle.asn1.smime.SMIMECapability;
 import org.bouncycastle.asn1.smime.SMIMECapabilityVector;
 import org.bouncycastle.asn1.smime.SMIMEEncryptionKeyPreferenceAttribute;
 import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
 import org.bouncycastle.cms.CMSAlgorithm;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.DefaultSignedAttributeTableGenerator;
 import org.bouncycastle.cms.RecipientId;
-import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.cms.RecipientInfoGenerator;
+import org.bouncycastle.cms.RecipientInformation;
+import org.bouncycastle.cms.SignerInfoGeneratorBuilder;
 import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
 import org.bouncycastle.cms.jcajce.JceKeyTransEnvelopedRecipient;
 import org.bouncycastle.cms.jcajce.JceKeyTransRecipientId;
 import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
 import org.bouncycastle.jcajce.provider.asymmetric.x509.CertificateFactory;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.mail.smime.SMIMEAuthEnveloped;
+import org.bouncycastle.mail.smime.SMIMEAuthEnvelopedGenerator;
 import org.bouncycastle.mail.smime.SMIMEEnvelopedGenerator;
 import org.bouncycastle.mail.smime.SMIMESignedGenerator;
 import org.bouncycastle.mail.smime.SMIMEToolkit;
+import org.bouncycastle.mail.smime.SMIMEUtil;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DigestCalculatorProvider;
 import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.OutputAEADEncryptor;
+import org.bouncycastle.operator.OutputEncryptor;
 import org.bouncycastle.operator.bc.BcDigestCalculatorProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 
+import jakarta.activation.DataSource;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.util.SharedFileInputStream;
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.dynamic.casters.StringCaster;
+import ortus.boxlang.runtime.logging.BoxLangLogger;
 import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.Array;
 import ortus.boxlang.runtime.types.IStruct;
 import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
 
@@ -91,6 +128,7 @@ public final class MailEncryptionUtil {
 			put( Key.of( "CAMELLIA256_CBC" ), CMSAlgorithm.CAMELLIA256_CBC );
 			put( Key.of( "CAMELLIA256_WRAP" ), CMSAlgorithm.CAMELLIA256_WRAP );
 			put( Key.of( "CAST5_CBC" ), CMSAlgorithm.CAST5_CBC );
+			put( Key.of( "CHACHA20_POLY1305" ), PKCSObjectIdentifiers.id_alg_AEADChaCha20Poly1305 );
 			put( Key.of( "DES_CBC" ), CMSAlgorithm.DES_CBC );
 			put( Key.of( "DES_EDE3_CBC" ), CMSAlgorithm.DES_EDE3_CBC );
 			put( Key.of( "DES_EDE3_WRAP" ), CMSAlgorithm.DES_EDE3_WRAP );
@@ -126,68 +164,458 @@ public final class MailEncryptionUtil {
 		}
 	};
 
+	/**
+	 * The authenticated ( AEAD ) content encryption algorithms, which are enveloped as AuthEnvelopedData ( RFC 5083 ) so that the
+	 * content does not need a separate integrity check
+	 */
+	static final Set<Key>										AUTHENTICATED_ALGORITHMS	= Set.of(
+	    Key.of( "AES128_CCM" ),
+	    Key.of( "AES128_GCM" ),
+	    Key.of( "AES192_CCM" ),
+	    Key.of( "AES192_GCM" ),
+	    Key.of( "AES256_CCM" ),
+	    Key.of( "AES256_GCM" ),
+	    Key.of( "CHACHA20_POLY1305" )
+	);
+
+	/**
+	 * The supported signature algorithms. Lookups are case-insensitive
+	 */
+	static final HashMap<Key, String> SIGNATURE_ALGORITHMS = new HashMap<Key, String>() {
+
+		{
+			put( Key.of( "Ed25519" ), "Ed25519" );
+			put( Key.of( "Ed448" ), "Ed448" );
+			put( Key.of( "MD5withRSA" ), "MD5withRSA" );
+			put( Key.of( "SHA1withDSA" ), "SHA1withDSA" );
+			put( Key.of( "SHA1withRSA" ), "SHA1withRSA" );
+			put( Key.of( "SHA256withDSA" ), "SHA256withDSA" );
+			put( Key.of( "SHA256withECDSA" ), "SHA256withECDSA" );
+			put( Key.of( "SHA256withRSA" ), "SHA256withRSA" );
+			put( Key.of( "SHA256withRSAandMGF1" ), "SHA256withRSAandMGF1" );
+			put( Key.of( "SHA384withECDSA" ), "SHA384withECDSA" );
+			put( Key.of( "SHA384withRSA" ), "SHA384withRSA" );
+			put( Key.of( "SHA384withRSAandMGF1" ), "SHA384withRSAandMGF1" );
+			put( Key.of( "SHA512withECDSA" ), "SHA512withECDSA" );
+			put( Key.of( "SHA512withRSA" ), "SHA512withRSA" );
+			put( Key.of( "SHA512withRSAandMGF1" ), "SHA512withRSAandMGF1" );
+		}
+	};
+
+	/**
+	 * The extensions of the certificates in a recipient certificate directory
+	 */
+	static final List<String>									CERTIFICATE_EXTENSIONS		= List.of( ".pem", ".crt", ".cer", ".der" );
+
+	private static final BoxRuntime								runtime						= BoxRuntime.getInstance();
+
+	private static final BoxLangLogger							logger						= runtime.getLoggingService().getLogger( "Mail" );
+
+	/**
+	 * Deletes the files which materialized content is read from once the content is no longer reachable
+	 */
+	private static final Cleaner								CLEANER						= Cleaner.create();
+
+	/**
+	 * The digest calculators shared by all signers. The provider creates a new calculator for each signature, so it is safe to share
+	 */
+	private static final DigestCalculatorProvider				DIGEST_PROVIDER				= new BcDigestCalculatorProvider();
+
+	/**
+	 * The prefixes of the identities of the signing keys and recipient certificates in the key material registry
+	 */
+	private static final String									SIGNING_KEY					= "signing|";
+	private static final String									CERTIFICATE					= "certificate|";
+
+	/**
+	 * The content signer builders, by signature algorithm
+	 */
+	private static final Map<String, JcaContentSignerBuilder>	CONTENT_SIGNERS				= new ConcurrentHashMap<>();
+
+	/**
+	 * The material of a signing key which is reused across messages. The content signer, which holds the signature state, and the
+	 * SMIMESignedGenerator are not thread-safe, so those are created for each message
+	 *
+	 * @param privateKey       the private key
+	 * @param certificate      the signing certificate
+	 * @param signerInfo       the signer info builder, with the signed attributes of the key
+	 * @param certificates     the certificates to include in the signature
+	 * @param defaultAlgorithm the signature algorithm for the type of the key
+	 */
+	record SigningKey(
+	    PrivateKey privateKey,
+	    X509CertificateHolder certificate,
+	    SignerInfoGeneratorBuilder signerInfo,
+	    JcaCertStore certificates,
+	    String defaultAlgorithm ) {
+	}
+
+	static {
+		// the provider and the S/MIME content handlers are registered when signing, encryption or decryption is first used
+		SmimeSupport.initialize();
+	}
+
+	/**
+	 * Checks that a message can be signed and encrypted with its attributes: that the signing key loads and supports the signature
+	 * algorithm, that the encryption algorithm is supported, and that every recipient certificate loads. Messages which are signed
+	 * and encrypted in the background are checked before they are handed off, so configuration errors are thrown to the caller. The
+	 * key material is cached, so it is not loaded again when the message is built
+	 *
+	 * @param attributes the mail attributes
+	 * @param sign       whether the message is signed
+	 * @param encrypt    whether the message is encrypted
+	 */
+	public static void validate( IStruct attributes, boolean sign, boolean encrypt ) {
+		if ( sign ) {
+			newSignatureGenerator( attributes );
+		}
+		if ( encrypt ) {
+			getEncryptionAlgorithm( attributes );
+			getRequiredRecipientCertificates( attributes );
+		}
+	}
+
 	public static MimeMultipart signMessagePart(
 	    IStruct attributes,
 	    MimeBodyPart messagePart ) {
-		String	keystorePath		= attributes.getAsString( MailKeys.keystore );
-		String	keystorePassword	= attributes.getAsString( MailKeys.keystorePassword );
-		String	keyAlias			= attributes.getAsString( MailKeys.keyAlias );
-		String	keyPassword			= attributes.getAsString( MailKeys.keyPassword );
-
-		if ( keystorePath == null ) {
-			throw new BoxRuntimeException( "A keystore argument is required in order to sign the message." );
-		}
+		SMIMESignedGenerator signer = newSignatureGenerator( attributes );
 
 		try {
-			SMIMESignedGenerator signer = newSignatureGenerator(
-			    keystorePath,
-			    keystorePassword,
-			    keyAlias,
-			    keyPassword
-			);
-
 			return signer.generate( messagePart );
-
 		} catch ( Exception e ) {
 			throw new BoxRuntimeException( "An error occcured while attempting to sign the message: " + e.getMessage(), e );
 		}
 
 	}
 
+	/**
+	 * Encrypts a body part for its recipients. The content is encrypted once, with a single content-encryption key, and the key is
+	 * wrapped for each recipient certificate, so every recipient can decrypt the same enveloped part
+	 *
+	 * @param attributes the mail attributes. The certificates are those in <code>recipientCert</code>, which may be a path, a comma
+	 *                   separated list of paths or an array of paths, and those found for the to, cc and bcc addresses in the
+	 *                   <code>recipientCertDirectory</code>
+	 * @param bodyPart   the body part to encrypt
+	 *
+	 * @return the enveloped body part
+	 */
 	public static MimeBodyPart encryptBodyPart(
 	    IStruct attributes,
 	    MimeBodyPart bodyPart ) {
 
-		String	certPath			= attributes.getAsString( MailKeys.recipientCert );
-		Key		encryptionAlgorithm	= Key.of( attributes.getAsString( MailKeys.encryptionAlgorithm ) );
+		Key						encryptionAlgorithm	= getEncryptionAlgorithm( attributes );
+		List<X509Certificate>	recipientCerts		= getRequiredRecipientCertificates( attributes );
+
+		List<RecipientInfoGenerator> recipients = new ArrayList<>();
+		try {
+			for ( X509Certificate recipientCert : recipientCerts ) {
+				recipients.add( new JceKeyTransRecipientInfoGenerator( recipientCert ).setProvider( BouncyCastleProvider.PROVIDER_NAME ) );
+			}
+		} catch ( Exception e ) {
+			throw new BoxRuntimeException( "An error occurred while attempting to load the recipient certificate: " + e.getMessage(), e );
+		}
+
+		try {
+			OutputEncryptor encryptor = newContentEncryptor( encryptionAlgorithm );
+			if ( AUTHENTICATED_ALGORITHMS.contains( encryptionAlgorithm ) ) {
+				SMIMEAuthEnvelopedGenerator generator = new SMIMEAuthEnvelopedGenerator();
+				recipients.forEach( generator::addRecipientInfoGenerator );
+				return generator.generate( bodyPart, ( OutputAEADEncryptor ) encryptor );
+			}
+			SMIMEEnvelopedGenerator generator = new SMIMEEnvelopedGenerator();
+			recipients.forEach( generator::addRecipientInfoGenerator );
+			return generator.generate( bodyPart, encryptor );
+
+		} catch ( Exception e ) {
+			throw new BoxRuntimeException( "An error occurred while attempting to encrypt the message: " + e.getMessage(), e );
+		}
+	}
+
+	/**
+	 * A multipart which has been written to a temporary file and is read back from it. Its parts reference ranges of the file
+	 * rather than holding their content, and the file is deleted once the multipart is no longer reachable
+	 */
+	public static final class MaterializedMultipart extends MimeMultipart {
+
+		private final long length;
+
+		MaterializedMultipart( DataSource source, long length ) throws MessagingException {
+			super( source );
+			this.length = length;
+		}
+
+		/**
+		 * The number of bytes written when the multipart was materialized, which is the size of its content as it is sent
+		 *
+		 * @return the length in bytes
+		 */
+		public long getLength() {
+			return length;
+		}
+
+	}
+
+	/**
+	 * The temporary file of a materialized multipart, which is closed and deleted by the cleaner. It must not reference the
+	 * multipart, or the multipart would never become unreachable
+	 */
+	private record MaterializedFile( Path file, SharedFileInputStream input ) implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				input.close();
+			} catch ( IOException e ) {
+				// the file is deleted regardless
+			}
+			try {
+				Files.deleteIfExists( file );
+			} catch ( IOException e ) {
+				logger.debug( "Unable to delete the materialized message content " + file + ": " + e.getMessage() );
+			}
+		}
+
+	}
 
+	/**
+	 * Writes a multipart to a temporary file and parses it back in to a multipart which is read from the file. The parts produced
+	 * by the S/MIME generators are signed or encrypted each time they are written, so a message is materialized once, on the thread
+	 * which builds it, rather than signed and encrypted again by each thread which writes or sends it. Encryption also picks a new
+	 * content key on each write, so the written bytes are the only stable form of an enveloped message. The bytes are kept on disk,
+	 * so the memory used does not grow with the size of the message
+	 *
+	 * @param multipart the multipart, whose signed and enveloped parts are generated as it is written
+	 *
+	 * @return a multipart with the same content, which is read from the written file
+	 */
+	public static MaterializedMultipart materialize( MimeMultipart multipart ) {
+		Path file = null;
+		try {
+			// the headers of the parts are only set when a message is saved, so they are set before the parts are written
+			MimeMessage holder = new MimeMessage( ( Session ) null );
+			holder.setContent( multipart );
+			holder.saveChanges();
+			file = Files.createTempFile( "bx-mail-", ".mime" );
+			try ( OutputStream output = new BufferedOutputStream( Files.newOutputStream( file ) ) ) {
+				multipart.writeTo( output );
+			}
+			SharedFileInputStream	input			= new SharedFileInputStream( file.toFile() );
+			String					contentType		= multipart.getContentType();
+			MaterializedMultipart	materialized	= new MaterializedMultipart( new DataSource() {
+
+				@Override
+				public InputStream getInputStream() {
+					// each reader gets its own stream over the file, so the parts are never copied in to memory
+					return input.newStream( 0, -1 );
+				}
+
+				@Override
+				public OutputStream getOutputStream() throws IOException {
+					throw new IOException( "Materialized message content is read only" );
+				}
+
+				@Override
+				public String getContentType() {
+					return contentType;
+				}
+
+				@Override
+				public String getName() {
+					return null;
+				}
+			}, Files.size( file ) );
+			CLEANER.register( materialized, new MaterializedFile( file, input ) );
+			return materialized;
+		} catch ( IOException | MessagingException e ) {
+			if ( file != null ) {
+				try {
+					Files.deleteIfExists( file );
+				} catch ( IOException deleteError ) {
+					e.addSuppressed( deleteError );
+				}
+			}
+			throw new BoxRuntimeException( "An error occurred while attempting to sign or encrypt the message content: " + e.getMessage(), e );
+		}
+	}
+
+	/**
+	 * Whether a message part holds materialized content, which is written the same way each time it is written
+	 *
+	 * @param content the content of a message or part
+	 *
+	 * @return true if the content was materialized
+	 */
+	public static boolean isMaterialized( Object content ) {
+		return content instanceof MaterializedMultipart;
+	}
+
+	/**
+	 * Creates the content encryptor of an algorithm. AES is provided by the platform's default JCE provider, whose AES and GCM
+	 * implementations use the AES-NI and carry-less multiply instructions where the CPU has them. Other algorithms are provided by
+	 * BouncyCastle
+	 *
+	 * @param encryptionAlgorithm the encryption algorithm
+	 *
+	 * @return the content encryptor, which is an {@link OutputAEADEncryptor} for authenticated algorithms
+	 *
+	 * @throws CMSException if the encryptor cannot be created
+	 */
+	static OutputEncryptor newContentEncryptor( Key encryptionAlgorithm ) throws CMSException {
+		JceCMSContentEncryptorBuilder builder = new JceCMSContentEncryptorBuilder( ENCRYPT_ALGORITHMS.get( encryptionAlgorithm ) );
+		if ( !encryptionAlgorithm.getName().toUpperCase().startsWith( "AES" ) ) {
+			builder.setProvider( BouncyCastleProvider.PROVIDER_NAME );
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Creates the signature generator of a message from its <code>keystore</code>, <code>keystorePassword</code>,
+	 * <code>keyAlias</code>, <code>keyPassword</code> and <code>signatureAlgorithm</code> attributes
+	 */
+	private static SMIMESignedGenerator newSignatureGenerator( IStruct attributes ) {
+		String keystorePath = attributes.getAsString( MailKeys.keystore );
+		if ( keystorePath == null ) {
+			throw new BoxRuntimeException( "A keystore argument is required in order to sign the message." );
+		}
+		return newSignatureGenerator(
+		    keystorePath,
+		    attributes.getAsString( MailKeys.keystorePassword ),
+		    attributes.getAsString( MailKeys.keyAlias ),
+		    attributes.getAsString( MailKeys.keyPassword ),
+		    attributes.getAsString( MailKeys.signatureAlgorithm )
+		);
+	}
+
+	/**
+	 * The supported encryption algorithm of a message
+	 */
+	private static Key getEncryptionAlgorithm( IStruct attributes ) {
+		Key encryptionAlgorithm = Key.of( attributes.getAsString( MailKeys.encryptionAlgorithm ) );
 		if ( !ENCRYPT_ALGORITHMS.containsKey( encryptionAlgorithm ) ) {
 			throw new BoxRuntimeException( "The encryption algorithm specified [" + encryptionAlgorithm.getName() + "] is not supported." );
 		}
+		return encryptionAlgorithm;
+	}
 
-		if ( certPath == null ) {
+	/**
+	 * Resolves the recipient certificates of a message, which must have at least one
+	 */
+	private static List<X509Certificate> getRequiredRecipientCertificates( IStruct attributes ) {
+		List<X509Certificate> recipientCerts = getRecipientCertificates( attributes );
+		if ( recipientCerts.isEmpty() ) {
 			throw new BoxRuntimeException( "A recipient certificate is required in order to encrypt the message." );
 		}
+		return recipientCerts;
+	}
 
-		SMIMEEnvelopedGenerator generator = new SMIMEEnvelopedGenerator();
+	/**
+	 * Resolves the recipient certificates of a message
+	 *
+	 * @param attributes the mail attributes
+	 *
+	 * @return the distinct recipient certificates
+	 *
+	 * @throws BoxRuntimeException if a certificate cannot be loaded, or a certificate directory is used and an address has no certificate
+	 */
+	static List<X509Certificate> getRecipientCertificates( IStruct attributes ) {
+		Set<X509Certificate>	certificates	= new LinkedHashSet<>();
+		Object					recipientCert	= attributes.get( MailKeys.recipientCert );
+		if ( recipientCert != null ) {
+			List<String> paths = recipientCert instanceof Array array
+			    ? array.stream().map( StringCaster::cast ).toList()
+			    : List.of( StringCaster.cast( recipientCert ).split( "," ) );
+			paths.stream()
+			    .map( String::trim )
+			    .filter( path -> !path.isEmpty() )
+			    .forEach( path -> certificates.add( loadCertificate( Path.of( path ) ) ) );
+		}
 
-		try ( InputStream certificateInputStream = Files.newInputStream( Path.of( certPath ).toAbsolutePath(), StandardOpenOption.READ ) ) {
-			CertificateFactory	certificateFactory	= new CertificateFactory();
-			Certificate			parsedCert			= certificateFactory.engineGenerateCertificate( certificateInputStream );
-			X509Certificate		recipientCert		= ( X509Certificate ) parsedCert;
-			generator
-			    .addRecipientInfoGenerator( new JceKeyTransRecipientInfoGenerator( recipientCert ).setProvider( BouncyCastleProvider.PROVIDER_NAME ) );
-		} catch ( Exception e ) {
-			throw new BoxRuntimeException( "An error occurred while attempting to load the recipient certificate: " + e.getMessage(), e );
+		String directory = attributes.getAsString( MailKeys.recipientCertDirectory );
+		if ( directory == null ) {
+			directory = runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME ).getAsString( MailKeys.recipientCertDirectory );
+		}
+		if ( directory != null && !directory.isBlank() ) {
+			List<String> missing = new ArrayList<>();
+			for ( String address : getRecipientAddresses( attributes ) ) {
+				Path certificate = findCertificate( Path.of( directory ), address );
+				if ( certificate == null ) {
+					missing.add( address );
+				} else {
+					certificates.add( loadCertificate( certificate ) );
+				}
+			}
+			if ( !missing.isEmpty() ) {
+				throw new BoxRuntimeException(
+				    "The message cannot be encrypted because no certificate was found in [" + directory + "] for the recipients: " + String.join( ", ", missing ) );
+			}
 		}
 
-		try {
+		return new ArrayList<>( certificates );
+	}
+
+	/**
+	 * The distinct, lower-cased to, cc and bcc addresses of a message
+	 */
+	private static Set<String> getRecipientAddresses( IStruct attributes ) {
+		Set<String> addresses = new LinkedHashSet<>();
+		for ( Key field : List.of( Key.to, MailKeys.cc, MailKeys.bcc ) ) {
+			String value = attributes.getAsString( field );
+			if ( value == null || value.isBlank() ) {
+				continue;
+			}
+			try {
+				for ( InternetAddress address : InternetAddress.parse( value, false ) ) {
+					addresses.add( address.getAddress().toLowerCase() );
+				}
+			} catch ( AddressException e ) {
+				throw new BoxRuntimeException( "The recipient address [" + value + "] could not be parsed: " + e.getMessage(), e );
+			}
+		}
+		return addresses;
+	}
 
-			return generator.generate( bodyPart,
-			    new JceCMSContentEncryptorBuilder( ENCRYPT_ALGORITHMS.get( encryptionAlgorithm ) ).setProvider( "BC" ).build() );
+	/**
+	 * Finds the certificate file of an address in a certificate directory. Certificates are named after the address, with a
+	 * <code>.pem</code>, <code>.crt</code>, <code>.cer</code> or <code>.der</code> extension
+	 *
+	 * @return the certificate path, or null if the address has no certificate
+	 */
+	private static Path findCertificate( Path directory, String address ) {
+		for ( String extension : CERTIFICATE_EXTENSIONS ) {
+			Path certificate = directory.resolve( address + extension );
+			if ( Files.isRegularFile( certificate ) ) {
+				return certificate;
+			}
+		}
+		return null;
+	}
 
+	/**
+	 * Gets a PEM or DER encoded X.509 certificate, which is loaded once and reloaded by the {@link KeyMaterialRegistry} when the
+	 * file changes
+	 *
+	 * @param certPath the path of the certificate
+	 *
+	 * @return the certificate
+	 */
+	static X509Certificate loadCertificate( Path certPath ) {
+		Path absolutePath = certPath.toAbsolutePath();
+		return KeyMaterialRegistry.getInstance().get( CERTIFICATE + absolutePath, absolutePath, MailEncryptionUtil::readCertificate );
+	}
+
+	/**
+	 * Reads a PEM or DER encoded X.509 certificate
+	 *
+	 * @param certPath the path of the certificate
+	 *
+	 * @return the certificate
+	 */
+	private static X509Certificate readCertificate( Path certPath ) {
+		try ( InputStream certificateInputStream = Files.newInputStream( certPath.toAbsolutePath(), StandardOpenOption.READ ) ) {
+			CertificateFactory certificateFactory = new CertificateFactory();
+			return ( X509Certificate ) certificateFactory.engineGenerateCertificate( certificateInputStream );
 		} catch ( Exception e ) {
-			throw new BoxRuntimeException( "An error occurred while attempting to encrypt the message: " + e.getMessage(), e );
+			throw new BoxRuntimeException( "An error occurred while attempting to load the recipient certificate [" + certPath + "]: " + e.getMessage(), e );
 		}
 	}
 
@@ -196,44 +624,138 @@ public final class MailEncryptionUtil {
 	    String certPath,
 	    PrivateKey privateKey ) {
 
-		try ( InputStream certificateInputStream = Files.newInputStream( Path.of( certPath ).toAbsolutePath(), StandardOpenOption.READ ) ) {
-			CertificateFactory	certificateFactory	= new CertificateFactory();
-			Certificate			parsedCert			= certificateFactory.engineGenerateCertificate( certificateInputStream );
-			X509Certificate		recipientCert		= ( X509Certificate ) parsedCert;
-			RecipientId			recipientId			= new JceKeyTransRecipientId( recipientCert );
-			SMIMEToolkit		toolkit				= new SMIMEToolkit( new BcDigestCalculatorProvider() );
+		X509Certificate recipientCert = loadCertificate( Path.of( certPath ) );
+		try {
+			RecipientId recipientId = new JceKeyTransRecipientId( recipientCert );
+			if ( bodyPart.getContentType().toLowerCase().contains( "authenveloped-data" ) ) {
+				RecipientInformation recipient = new SMIMEAuthEnveloped( bodyPart ).getRecipientInfos().get( recipientId );
+				if ( recipient == null ) {
+					throw new BoxRuntimeException( "The message was not encrypted for the certificate [" + certPath + "]" );
+				}
+				return SMIMEUtil.toMimeBodyPart(
+				    recipient.getContent( new JceKeyTransEnvelopedRecipient( privateKey ).setContentProvider( BouncyCastleProvider.PROVIDER_NAME ) )
+				);
+			}
+			SMIMEToolkit toolkit = new SMIMEToolkit( new BcDigestCalculatorProvider() );
 			return toolkit.decrypt( bodyPart, recipientId, new JceKeyTransEnvelopedRecipient( privateKey ) );
+		} catch ( BoxRuntimeException e ) {
+			throw e;
 		} catch ( Exception e ) {
-			throw new BoxRuntimeException( "An error occurred while attempting to load the recipient certificate: " + e.getMessage(), e );
+			throw new BoxRuntimeException( "An error occurred while attempting to decrypt the message: " + e.getMessage(), e );
 		}
 
 	}
 
 	/**
-	 * Get a SMIMESignedGenerator for signing messages
+	 * Get a SMIMESignedGenerator for signing messages, using the default signature algorithm for the type of the key
+	 *
+	 * @param keystorePath     the absolute path to the keystore file
+	 * @param keystorePassword the password for the keystore
+	 * @param keyAlias         the alias of the key to use for signing
+	 * @param keyPassword      the password for the key
+	 *
+	 * @return
+	 */
+	public static SMIMESignedGenerator newSignatureGenerator(
+	    String keystorePath,
+	    String keystorePassword,
+	    String keyAlias,
+	    String keyPassword ) {
+		return newSignatureGenerator( keystorePath, keystorePassword, keyAlias, keyPassword, null );
+	}
+
+	/**
+	 * Get a SMIMESignedGenerator for signing messages. The keystore is loaded once and its key material reused until the keystore
+	 * file changes
 	 *
 	 * @param keystorePath     the absolute path to the keystore file
 	 * @param keystorePassword the password for the keystore
 	 * @param keyAlias         the alias of the key to use for signing
 	 * @param keyPassword      the password for the key
+	 * @param algorithm        the signature algorithm, e.g. SHA256withRSA, SHA256withRSAandMGF1, SHA256withECDSA or Ed25519. When
+	 *                         null or <code>auto</code> the algorithm is chosen from the type of the key
 	 *
 	 * @return
 	 */
-	@SuppressWarnings( "unused" )
 	public static SMIMESignedGenerator newSignatureGenerator(
+	    String keystorePath,
+	    String keystorePassword,
+	    String keyAlias,
+	    String keyPassword,
+	    String algorithm ) {
+
+		SigningKey	key					= getSigningKey( keystorePath, keystorePassword, keyAlias, keyPassword );
+		String		signatureAlgorithm	= key.defaultAlgorithm();
+		if ( algorithm != null && !algorithm.isBlank() && !"auto".equalsIgnoreCase( algorithm.trim() ) ) {
+			signatureAlgorithm = SIGNATURE_ALGORITHMS.get( Key.of( algorithm.trim() ) );
+			if ( signatureAlgorithm == null ) {
+				throw new BoxRuntimeException( "The signature algorithm specified [" + algorithm + "] is not supported." );
+			}
+		}
+
+		SMIMESignedGenerator signer = new SMIMESignedGenerator();
+
+		try {
+			ContentSigner contentSigner = CONTENT_SIGNERS
+			    .computeIfAbsent( signatureAlgorithm, name -> new JcaContentSignerBuilder( name ).setProvider( BouncyCastleProvider.PROVIDER_NAME ) )
+			    .build( key.privateKey() );
+			signer.addSignerInfoGenerator( key.signerInfo().build( contentSigner, key.certificate() ) );
+			/* Add the list of certs to the generator */
+			signer.addCertificates( key.certificates() );
+
+		} catch ( IllegalArgumentException | OperatorCreationException e ) {
+			throw new BoxRuntimeException( "An error occurred while attempting to add the signature information to the mail part: " + e.getMessage(), e );
+		}
+
+		return signer;
+	}
+
+	/**
+	 * Gets the key material of a signing key. The keystore is loaded once and reloaded by the {@link KeyMaterialRegistry} when the
+	 * file changes
+	 *
+	 * @param keystorePath     the absolute path to the keystore file
+	 * @param keystorePassword the password for the keystore
+	 * @param keyAlias         the alias of the key to use for signing
+	 * @param keyPassword      the password for the key
+	 *
+	 * @return the signing key
+	 */
+	static SigningKey getSigningKey(
 	    String keystorePath,
 	    String keystorePassword,
 	    String keyAlias,
+	    String keyPassword ) {
+		Path	path		= Path.of( keystorePath ).toAbsolutePath();
+		// the passwords are part of the identity, so a loaded key is only returned to callers which could have loaded it
+		String	identity	= SIGNING_KEY + path + "|" + keyAlias + "|" + digest( keystorePassword + "|" + keyPassword );
+		return KeyMaterialRegistry.getInstance().get( identity, path, file -> loadSigningKey( file, keystorePassword, keyAlias, keyPassword ) );
+	}
+
+	/**
+	 * Clears the loaded signing keys
+	 */
+	public static void clearSigningKeys() {
+		KeyMaterialRegistry.getInstance().clear( SIGNING_KEY );
+	}
+
+	/**
+	 * Loads a signing key and the material derived from it
+	 */
+	private static SigningKey loadSigningKey(
+	    Path keystorePath,
+	    String keystorePassword,
+	    String keyAlias,
 	    String keyPassword ) {
 
 		KeyStore	keystore;
 		Certificate	certificate;
 		PrivateKey	privateKey;
-		try {
+		try ( InputStream keystoreStream = Files.newInputStream( keystorePath, StandardOpenOption.READ ) ) {
 			// Even if the keystore format is PKCS12, we still need to load it as PKCS12, which puts it in to compat mode
 			keystore = KeyStore.getInstance( "PKCS12", BouncyCastleProvider.PROVIDER_NAME );
 
-			keystore.load( Files.newInputStream( Path.of( keystorePath ), StandardOpenOption.READ ), keystorePassword.toCharArray() );
+			keystore.load( keystoreStream, keystorePassword.toCharArray() );
 
 			certificate	= keystore.getCertificate( keyAlias );
 
@@ -255,8 +777,12 @@ public final class MailEncryptionUtil {
 			throw new BoxRuntimeException( "Cannot find private key in the certificate for alias: " + keyAlias );
 		}
 
-		/* Create the SMIMESignedGenerator */
-		SMIMECapabilityVector capabilities = new SMIMECapabilityVector();
+		X509Certificate			x509Certificate	= ( X509Certificate ) certificate;
+
+		/* The capabilities advertised to recipients, in order of preference */
+		SMIMECapabilityVector	capabilities	= new SMIMECapabilityVector();
+		capabilities.addCapability( SMIMECapability.aES256_CBC );
+		capabilities.addCapability( SMIMECapability.aES128_CBC );
 		capabilities.addCapability( SMIMECapability.dES_EDE3_CBC );
 		capabilities.addCapability( SMIMECapability.rC2_CBC, 128 );
 		capabilities.addCapability( SMIMECapability.dES_CBC );
@@ -264,28 +790,56 @@ public final class MailEncryptionUtil {
 		ASN1EncodableVector vector = new ASN1EncodableVector();
 		vector.add( new SMIMEEncryptionKeyPreferenceAttribute(
 		    new IssuerAndSerialNumber(
-		        new X500Name( ( ( X509Certificate ) certificate )
-		            .getIssuerX500Principal().getName() ),
-		        ( ( X509Certificate ) certificate ).getSerialNumber() ) ) );
+		        new X500Name( x509Certificate.getIssuerX500Principal().getName() ),
+		        x509Certificate.getSerialNumber() ) ) );
 		vector.add( new SMIMECapabilitiesAttribute( capabilities ) );
 
-		SMIMESignedGenerator signer = new SMIMESignedGenerator();
-
 		try {
-			signer.addSignerInfoGenerator(
-			    new JcaSimpleSignerInfoGeneratorBuilder().setProvider( "BC" ).setSignedAttributeGenerator( new AttributeTable( vector ) )
-			        .build( "DSA".equals( privateKey.getAlgorithm() ) ? "SHA1withDSA" : "MD5withRSA", privateKey, ( X509Certificate ) certificate ) );
-			/* Add the list of certs to the generator */
-			List<Certificate> certList = new ArrayList<Certificate>();
-			certList.add( certificate );
-			JcaCertStore certs = new JcaCertStore( certList );
-			signer.addCertificates( certs );
-
-		} catch ( CertificateEncodingException | OperatorCreationException e ) {
+			return new SigningKey(
+			    privateKey,
+			    new JcaX509CertificateHolder( x509Certificate ),
+			    new SignerInfoGeneratorBuilder( DIGEST_PROVIDER )
+			        .setSignedAttributeGenerator( new DefaultSignedAttributeTableGenerator( new AttributeTable( vector ) ) ),
+			    new JcaCertStore( List.of( certificate ) ),
+			    getDefaultSignatureAlgorithm( privateKey )
+			);
+		} catch ( CertificateEncodingException e ) {
 			throw new BoxRuntimeException( "An error occurred while attempting to add the signature information to the mail part: " + e.getMessage(), e );
 		}
+	}
 
-		return signer;
+	/**
+	 * The default signature algorithm for a private key
+	 *
+	 * @param privateKey the private key
+	 *
+	 * @return SHA256withRSA for RSA keys, SHA256withRSAandMGF1 for RSA-PSS keys, SHA256withECDSA for EC keys, SHA256withDSA for DSA
+	 *         keys, and Ed25519 or Ed448 for EdDSA keys
+	 */
+	static String getDefaultSignatureAlgorithm( PrivateKey privateKey ) {
+		if ( privateKey instanceof EdECKey edKey ) {
+			return edKey.getParams().getName();
+		}
+		return switch ( privateKey.getAlgorithm().toUpperCase() ) {
+			case "RSA" -> "SHA256withRSA";
+			case "RSASSA-PSS" -> "SHA256withRSAandMGF1";
+			case "EC", "ECDSA" -> "SHA256withECDSA";
+			case "DSA" -> "SHA256withDSA";
+			case "ED25519" -> "Ed25519";
+			case "ED448" -> "Ed448";
+			default -> throw new BoxRuntimeException( "Keys of type [" + privateKey.getAlgorithm() + "] are not supported for signing." );
+		};
+	}
+
+	/**
+	 * A hex SHA-256 digest of a value
+	 */
+	private static String digest( String value ) {
+		try {
+			return HexFormat.of().formatHex( MessageDigest.getInstance( "SHA-256" ).digest( value.getBytes( StandardCharsets.UTF_8 ) ) );
+		} catch ( NoSuchAlgorithmException e ) {
+			throw new BoxRuntimeException( "SHA-256 is not available", e );
+		}
 	}
 
 }
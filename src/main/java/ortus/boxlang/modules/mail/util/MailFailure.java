@@ -0,0 +1,209 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ortus.boxlang.runtime.dynamic.casters.StructCaster;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.Array;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+
+/**
+ * Captures the details of a failed delivery attempt as a compact struct, which is stored with the bounced message in the
+ * <code>failure</code> key:
+ * <ul>
+ * <li><code>errorClass</code> - the simple class name of the root cause</li>
+ * <li><code>smtpCode</code> - the SMTP reply code, or null if the failure did not come from an SMTP reply</li>
+ * <li><code>enhancedCode</code> - the RFC 3463 enhanced status code, e.g. <code>5.1.1</code>, if the server sent one</li>
+ * <li><code>command</code> - the SMTP command which failed, e.g. <code>RCPT TO:&lt;jdoe@example.com&gt;</code>, if known</li>
+ * <li><code>server</code> - the mail server which returned the failure</li>
+ * <li><code>attempt</code> - the delivery attempt number</li>
+ * <li><code>duration</code> - the time, in milliseconds, spent on the attempt</li>
+ * <li><code>retryable</code> - whether the failure is transient - a 4xx reply or a network failure - so the message may be
+ * delivered if it is sent again</li>
+ * <li><code>detail</code> - the first line of the root cause message</li>
+ * <li><code>failedAt</code> - the time, in epoch milliseconds, of the failure</li>
+ * </ul>
+ * The reply code and command are read from the SMTP transport exceptions when they are present in the cause chain, and
+ * otherwise parsed from the server reply in the exception messages.
+ */
+public final class MailFailure {
+
+	/**
+	 * Matches an SMTP reply, with an optional enhanced status code, e.g. <code>550 5.1.1 User unknown</code>
+	 */
+	static final Pattern	SMTP_REPLY	= Pattern.compile( "(?:^|\\s)([45]\\d\\d)[ -](?:([245]\\.\\d{1,3}\\.\\d{1,3})\\b)?" );
+
+	/**
+	 * Matches the server named in a commons-email send failure, e.g. <code>Sending the email to the following server failed : smtp.example.com:25</code>
+	 */
+	static final Pattern	SERVER		= Pattern.compile( "server failed\\s*:\\s*([^\\s:]+)" );
+
+	private MailFailure() {
+	}
+
+	/**
+	 * Captures a failed delivery attempt
+	 *
+	 * @param e              the exception thrown by the attempt
+	 * @param mailServers    the mail servers the message was sent to
+	 * @param attempt        the delivery attempt number
+	 * @param durationMillis the time spent on the attempt
+	 *
+	 * @return the failure struct
+	 */
+	public static IStruct capture( Throwable e, Array mailServers, int attempt, long durationMillis ) {
+		Throwable	root			= e;
+		Integer		smtpCode		= null;
+		Integer		replyCode		= null;
+		String		enhancedCode	= null;
+		String		command			= null;
+		String		server			= null;
+		boolean		network			= false;
+
+		for ( Throwable cause = e; cause != null; cause = cause.getCause() == cause ? null : cause.getCause() ) {
+			root = cause;
+			if ( cause instanceof IOException ) {
+				network = true;
+			}
+			if ( smtpCode == null ) {
+				Object returnCode = invoke( cause, "getReturnCode" );
+				if ( returnCode instanceof Integer code && code > 0 ) {
+					smtpCode	= code;
+					command		= invoke( cause, "getCommand" ) instanceof String failedCommand ? failedCommand.trim() : null;
+				}
+			}
+			String message = cause.getMessage();
+			if ( message == null ) {
+				continue;
+			}
+			Matcher reply = SMTP_REPLY.matcher( message );
+			if ( reply.find() ) {
+				if ( replyCode == null ) {
+					replyCode = Integer.valueOf( reply.group( 1 ) );
+				}
+				if ( enhancedCode == null ) {
+					enhancedCode = reply.group( 2 );
+				}
+			}
+			if ( server == null ) {
+				Matcher serverMatcher = SERVER.matcher( message );
+				if ( serverMatcher.find() ) {
+					server = serverMatcher.group( 1 );
+				}
+			}
+		}
+
+		// the transport exceptions are authoritative, as wrapping exceptions may quote other replies
+		if ( smtpCode == null ) {
+			smtpCode = replyCode;
+		}
+		if ( server == null && mailServers != null && !mailServers.isEmpty() ) {
+			server = StructCaster.cast( mailServers.get( 0 ) ).getAsString( Key.server );
+		}
+
+		String detail = root.getMessage();
+		if ( detail != null ) {
+			int lineEnd = detail.indexOf( '\n' );
+			detail = ( lineEnd >= 0 ? detail.substring( 0, lineEnd ) : detail ).trim();
+		}
+
+		return describe(
+		    root.getClass().getSimpleName(),
+		    smtpCode,
+		    enhancedCode,
+		    command,
+		    server,
+		    attempt,
+		    durationMillis,
+		    smtpCode != null ? smtpCode < 500 : network,
+		    detail
+		);
+	}
+
+	/**
+	 * Describes a failure which was not thrown by a delivery attempt, such as a spool lease which expired while its message was
+	 * being sent. The struct has the same keys as a captured failure, without the SMTP reply
+	 *
+	 * @param errorClass  the class of the failure
+	 * @param detail      the failure message
+	 * @param mailServers the mail servers the message was sent to
+	 * @param attempt     the delivery attempt number
+	 * @param retryable   whether the message may be delivered if it is sent again
+	 *
+	 * @return the failure struct
+	 */
+	public static IStruct of( String errorClass, String detail, Array mailServers, int attempt, boolean retryable ) {
+		String server = mailServers != null && !mailServers.isEmpty() ? StructCaster.cast( mailServers.get( 0 ) ).getAsString( Key.server ) : null;
+		return describe( errorClass, null, null, null, server, attempt, 0L, retryable, detail );
+	}
+
+	/**
+	 * Creates a failure struct
+	 */
+	private static IStruct describe(
+	    String errorClass,
+	    Integer smtpCode,
+	    String enhancedCode,
+	    String command,
+	    String server,
+	    int attempt,
+	    long durationMillis,
+	    boolean retryable,
+	    String detail ) {
+		IStruct failure = new Struct();
+		failure.put( MailKeys.errorClass, errorClass );
+		failure.put( MailKeys.smtpCode, smtpCode );
+		failure.put( MailKeys.enhancedCode, enhancedCode );
+		failure.put( MailKeys.command, command );
+		failure.put( Key.server, server );
+		failure.put( MailKeys.attempt, attempt );
+		failure.put( MailKeys.duration, durationMillis );
+		failure.put( MailKeys.retryable, retryable );
+		failure.put( Key.detail, detail );
+		failure.put( MailKeys.failedAt, System.currentTimeMillis() );
+		return failure;
+	}
+
+	/**
+	 * Invokes an accessor of the SMTP transport exceptions, which are provided by either the <code>com.sun.mail</code> or the
+	 * <code>org.eclipse.angus.mail</code> implementation depending on the runtime
+	 *
+	 * @param cause    the exception
+	 * @param accessor the accessor name
+	 *
+	 * @return the accessor value, or null if the exception does not have the accessor
+	 */
+	private static Object invoke( Throwable cause, String accessor ) {
+		if ( !cause.getClass().getName().contains( ".smtp." ) ) {
+			return null;
+		}
+		try {
+			Method method = cause.getClass().getMethod( accessor );
+			return method.invoke( cause );
+		} catch ( ReflectiveOperationException | RuntimeException e ) {
+			return null;
+		}
+	}
+
+}
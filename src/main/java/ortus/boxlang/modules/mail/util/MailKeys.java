@@ -28,27 +28,74 @@ public class MailKeys {
 
 	public static final Key	_MODULE_NAME			= Key.of( "mail" );
 
+	public static final Key	async					= Key.of( "async" );
+	public static final Key	attachmentCacheEnable	= Key.of( "attachmentCacheEnable" );
+	public static final Key	attachmentCacheMaxFile	= Key.of( "attachmentCacheMaxFile" );
+	public static final Key	attachmentCacheMaxSize	= Key.of( "attachmentCacheMaxSize" );
+	public static final Key	algorithm				= Key.of( "algorithm" );
+	public static final Key	attempt					= Key.of( "attempt" );
+	public static final Key	attempts				= Key.of( "attempts" );
+	public static final Key	batchSize				= Key.of( "batchSize" );
 	public static final Key	bcc						= Key.of( "bcc" );
+	public static final Key	bounced					= Key.of( "bounced" );
 	public static final Key	bounceDirectory			= Key.of( "bounceDirectory" );
+	public static final Key	bouncedAt				= Key.of( "bouncedAt" );
+	public static final Key	bounceRate				= Key.of( "bounceRate" );
 	public static final Key	bounceTimeout			= Key.of( "bounceTimeout" );
+	public static final Key	bytesSentEstimate		= Key.of( "bytesSentEstimate" );
 	public static final Key	cc						= Key.of( "cc" );
+	public static final Key	certificate				= Key.of( "certificate" );
+	public static final Key	claimedAt				= Key.of( "claimedAt" );
+	public static final Key	codec					= Key.of( "codec" );
+	public static final Key	command					= Key.of( "command" );
+	public static final Key	connect					= Key.of( "connect" );
+	public static final Key	content					= Key.of( "content" );
 	public static final Key	contentID				= Key.of( "contentID" );
+	public static final Key	cryptoOffload			= Key.of( "cryptoOffload" );
+	public static final Key	cryptoQueueSize			= Key.of( "cryptoQueueSize" );
+	public static final Key	cryptoThreads			= Key.of( "cryptoThreads" );
+	public static final Key	count					= Key.of( "count" );
+	public static final Key	data					= Key.of( "data" );
 	public static final Key	debug					= Key.of( "debug" );
 	public static final Key	defaultEncoding			= Key.of( "defaultEncoding" );
+	public static final Key	depth					= Key.of( "depth" );
+	public static final Key	dequeued				= Key.of( "dequeued" );
+	public static final Key	dequeueRate				= Key.of( "dequeueRate" );
+	public static final Key	destination				= Key.of( "destination" );
 	public static final Key	disposition				= Key.of( "disposition" );
+	public static final Key	dkim					= Key.of( "dkim" );
+	public static final Key	duplicatesSkipped		= Key.of( "duplicatesSkipped" );
+	public static final Key	duration				= Key.of( "duration" );
+	public static final Key	domain					= Key.of( "domain" );
 	public static final Key	encrypt					= Key.of( "encrypt" );
+	public static final Key	enhancedCode			= Key.of( "enhancedCode" );
 	public static final Key	encryptionAlgorithm		= Key.of( "encryptionAlgorithm" );
+	public static final Key	enqueued				= Key.of( "enqueued" );
+	public static final Key	enqueueRate				= Key.of( "enqueueRate" );
+	public static final Key	error					= Key.of( "error" );
+	public static final Key	errorClass				= Key.of( "errorClass" );
+	public static final Key	failed					= Key.of( "failed" );
+	public static final Key	failedAt				= Key.of( "failedAt" );
+	public static final Key	failovers				= Key.of( "failovers" );
 	public static final Key	failures				= Key.of( "failures" );
 	public static final Key	failTo					= Key.of( "failTo" );
+	public static final Key	failure					= Key.of( "failure" );
 	public static final Key	fileName				= Key.of( "fileName" );
 	public static final Key	fileSystemStore			= Key.of( "fileSystemStore" );
+	public static final Key	filter					= Key.of( "filter" );
+	public static final Key	firstSpooledAt			= Key.of( "firstSpooledAt" );
 	public static final Key	groupCaseSensitive		= Key.of( "groupCaseSensitive" );
 	public static final Key	HTML					= Key.of( "HTML" );
+	public static final Key	idempotencyKey			= Key.of( "idempotencyKey" );
 	public static final Key	IDNAVersion				= Key.of( "iDNAVersion" );
+	public static final Key	issuer					= Key.of( "issuer" );
 	public static final Key	keyAlias				= Key.of( "keyAlias" );
 	public static final Key	keyPassword				= Key.of( "keyPassword" );
+	public static final Key	keyReloadInterval		= Key.of( "keyReloadInterval" );
 	public static final Key	keystore				= Key.of( "keystore" );
 	public static final Key	keystorePassword		= Key.of( "keystorePassword" );
+	public static final Key	keyWatchEnable			= Key.of( "keyWatchEnable" );
+	public static final Key	latency					= Key.of( "latency" );
 	public static final Key	lifeTimeout				= Key.of( "lifeTimeout" );
 	public static final Key	logEnabled				= Key.of( "logEnabled" );
 	public static final Key	Mail					= Key.of( "Mail" );
@@ -58,33 +105,91 @@ public class MailKeys {
 	public static final Key	mailServers				= Key.of( "mailServers" );
 	public static final Key	mailUnsent				= Key.of( "mailUnsent" );
 	public static final Key	mailParts				= Key.of( "mailParts" );
+	public static final Key	mailSendLog				= Key.of( "mailSendLog" );
+	public static final Key	max						= Key.of( "max" );
+	public static final Key	mean					= Key.of( "mean" );
 	public static final Key	messages				= Key.of( "messages" );
 	public static final Key	messageVariable			= Key.of( "messageVariable" );
 	public static final Key	messageIdentifier		= Key.of( "messageIdentifier" );
 	public static final Key	mimeAttach				= Key.of( "mimeAttach" );
+	public static final Key	mimeContentSniffing		= Key.of( "mimeContentSniffing" );
+	public static final Key	mimeTypeCacheSize		= Key.of( "mimeTypeCacheSize" );
+	public static final Key	mimeTypes				= Key.of( "mimeTypes" );
+	public static final Key	oldestAge				= Key.of( "oldestAge" );
+	public static final Key	p50						= Key.of( "p50" );
+	public static final Key	p90						= Key.of( "p90" );
+	public static final Key	p99						= Key.of( "p99" );
+	public static final Key	part					= Key.of( "part" );
 	public static final Key	recipientCert			= Key.of( "recipientCert" );
+	public static final Key	recipientCertDirectory	= Key.of( "recipientCertDirectory" );
+	public static final Key	nextAttempt				= Key.of( "nextAttempt" );
+	public static final Key	pendingRemoval			= Key.of( "pendingRemoval" );
 	public static final Key	plain					= Key.of( "plain" );
+	public static final Key	privateKey				= Key.of( "privateKey" );
 	public static final Key	processed				= Key.of( "processed" );
 	public static final Key	remove					= Key.of( "remove" );
+	public static final Key	selector				= Key.of( "selector" );
+	public static final Key	send					= Key.of( "send" );
+	public static final Key	sendLogCapacity			= Key.of( "sendLogCapacity" );
+	public static final Key	sendLogDirectory		= Key.of( "sendLogDirectory" );
+	public static final Key	sendLogTimeout			= Key.of( "sendLogTimeout" );
+	public static final Key	sent					= Key.of( "sent" );
+	public static final Key	sentAt					= Key.of( "sentAt" );
 	public static final Key	replyTo					= Key.of( "replyTo" );
+	public static final Key	reset					= Key.of( "reset" );
+	public static final Key	retryable				= Key.of( "retryable" );
+	public static final Key	serialNumber			= Key.of( "serialNumber" );
+	public static final Key	servers					= Key.of( "servers" );
 	public static final Key	sign					= Key.of( "sign" );
+	public static final Key	signedAt				= Key.of( "signedAt" );
+	public static final Key	signers					= Key.of( "signers" );
 	public static final Key	signMesssage			= Key.of( "signMesssage" );
+	public static final Key	signAlgorithm			= Key.of( "signAlgorithm" );
 	public static final Key	signKeystore			= Key.of( "signKeystore" );
 	public static final Key	signKeystorePassword	= Key.of( "signKeystorePassword" );
 	public static final Key	signKeyAlias			= Key.of( "signKeyAlias" );
 	public static final Key	signKeyPassword			= Key.of( "signKeyPassword" );
+	public static final Key	signatureAlgorithm		= Key.of( "signatureAlgorithm" );
+	public static final Key	signatureValid			= Key.of( "signatureValid" );
+	public static final Key	size					= Key.of( "size" );
 	public static final Key	SMTP					= Key.of( "SMTP" );
+	public static final Key	smtpCode				= Key.of( "smtpCode" );
+	public static final Key	source					= Key.of( "source" );
+	public static final Key	spool					= Key.of( "spool" );
+	public static final Key	spoolBlockTimeout		= Key.of( "spoolBlockTimeout" );
+	public static final Key	spoolCompression		= Key.of( "spoolCompression" );
+	public static final Key	spoolCompressThreshold	= Key.of( "spoolCompressThreshold" );
+	public static final Key	spoolDepth				= Key.of( "spoolDepth" );
+	public static final Key	spoolDrainTimeout		= Key.of( "spoolDrainTimeout" );
 	public static final Key	spoolEnable				= Key.of( "spoolEnable" );
 	public static final Key	spoolInterval			= Key.of( "spoolInterval" );
 	public static final Key	spoolDirectory			= Key.of( "spoolDirectory" );
+	public static final Key	spoolLeaseEnable		= Key.of( "spoolLeaseEnable" );
+	public static final Key	spoolLeaseTimeout		= Key.of( "spoolLeaseTimeout" );
+	public static final Key	spoolMaxAge				= Key.of( "spoolMaxAge" );
+	public static final Key	spoolMaxDepth			= Key.of( "spoolMaxDepth" );
+	public static final Key	spoolMaxSize			= Key.of( "spoolMaxSize" );
+	public static final Key	spoolNodeId				= Key.of( "spoolNodeId" );
+	public static final Key	spooledAt				= Key.of( "spooledAt" );
+	public static final Key	spoolOverflow			= Key.of( "spoolOverflow" );
+	public static final Key	spoolShards				= Key.of( "spoolShards" );
+	public static final Key	spoolSize				= Key.of( "spoolSize" );
 	public static final Key	spoolTimeout			= Key.of( "spoolTimeout" );
+	public static final Key	since					= Key.of( "since" );
 	public static final Key	success					= Key.of( "success" );
 	public static final Key	subject					= Key.of( "subject" );
 	public static final Key	SSL						= Key.of( "SSL" );
 	public static final Key	text					= Key.of( "text" );
+	public static final Key	template				= Key.of( "template" );
+	public static final Key	templateCacheSize		= Key.of( "templateCacheSize" );
+	public static final Key	trusted					= Key.of( "trusted" );
+	public static final Key	trustStore				= Key.of( "trustStore" );
+	public static final Key	trustStorePassword		= Key.of( "trustStorePassword" );
 	public static final Key	TLS						= Key.of( "TLS" );
+	public static final Key	until					= Key.of( "until" );
 	public static final Key	useSSL					= Key.of( "useSSL" );
 	public static final Key	useTLS					= Key.of( "useTLS" );
+	public static final Key	valid					= Key.of( "valid" );
 	public static final Key	wrapText				= Key.of( "wrapText" );
 
 	// Additional keys for email serialization
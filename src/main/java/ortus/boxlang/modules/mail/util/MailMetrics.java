@@ -0,0 +1,458 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jakarta.activation.DataSource;
+import jakarta.activation.FileDataSource;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.MimePart;
+import jakarta.mail.internet.PreencodedMimeBodyPart;
+import jakarta.mail.internet.SharedInputStream;
+import jakarta.mail.util.ByteArrayDataSource;
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.logging.BoxLangLogger;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+
+/**
+ * The delivery metrics of the mail module.
+ *
+ * Counters are {@link LongAdder}s and latencies are recorded in {@link LatencyHistogram}s, so recording a metric on the send
+ * path is lock-free and does not allocate. Send latency is recorded per mail server, split in to the connect phase, which
+ * includes the TLS handshake and authentication, and the data phase, in which the message is transmitted. Spool depth, size
+ * and age are read from the spool index when a snapshot is taken.
+ *
+ * The metrics are available from the <code>getMailMetrics()</code> BIF and over JMX as
+ * <code>ortus.boxlang.modules.mail:type=MailMetrics</code>.
+ */
+public final class MailMetrics implements MailMetricsMBean {
+
+	/**
+	 * The JMX object name of the metrics
+	 */
+	public static final String					OBJECT_NAME		= "ortus.boxlang.modules.mail:type=MailMetrics";
+
+	private static final BoxRuntime				runtime			= BoxRuntime.getInstance();
+	private static final BoxLangLogger			logger			= runtime.getLoggingService().getLogger( "Mail" );
+
+	private static final MailMetrics			instance		= new MailMetrics();
+
+	private final LongAdder						sent			= new LongAdder();
+	private final LongAdder						failed			= new LongAdder();
+	private final LongAdder						failovers		= new LongAdder();
+	private final LongAdder						bounced			= new LongAdder();
+	private final LongAdder						enqueued		= new LongAdder();
+	private final LongAdder						dequeued		= new LongAdder();
+	private final LongAdder						duplicates		= new LongAdder();
+	private final LongAdder						bytesSent		= new LongAdder();
+	private final LatencyHistogram				sendLatency		= new LatencyHistogram();
+	private final LatencyHistogram				signLatency		= new LatencyHistogram();
+	private final LatencyHistogram				encryptLatency	= new LatencyHistogram();
+	private final Map<String, ServerMetrics>	servers			= new ConcurrentHashMap<>();
+	private volatile long						since			= System.currentTimeMillis();
+
+	/**
+	 * The metrics of a single mail server
+	 */
+	static final class ServerMetrics {
+
+		final LongAdder			sent	= new LongAdder();
+		final LongAdder			failed	= new LongAdder();
+		final LatencyHistogram	connect	= new LatencyHistogram();
+		final LatencyHistogram	data	= new LatencyHistogram();
+
+		IStruct snapshot() {
+			return Struct.of(
+			    MailKeys.sent, sent.sum(),
+			    MailKeys.failed, failed.sum(),
+			    MailKeys.connect, connect.snapshot(),
+			    MailKeys.data, data.snapshot()
+			);
+		}
+
+	}
+
+	MailMetrics() {
+	}
+
+	/**
+	 * The mail metrics, which are registered with JMX when the class is loaded
+	 *
+	 * @return the metrics
+	 */
+	public static MailMetrics getInstance() {
+		return instance;
+	}
+
+	static {
+		try {
+			MBeanServer	server	= ManagementFactory.getPlatformMBeanServer();
+			ObjectName	name	= new ObjectName( OBJECT_NAME );
+			// replace the metrics of a previous load of the module
+			if ( server.isRegistered( name ) ) {
+				server.unregisterMBean( name );
+			}
+			server.registerMBean( instance, name );
+		} catch ( JMException | SecurityException e ) {
+			logger.debug( "Unable to register the mail metrics with JMX: " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Records a message delivered to a mail server
+	 *
+	 * @param server       the mail server
+	 * @param connectNanos the time spent connecting and authenticating
+	 * @param dataNanos    the time spent transmitting the message
+	 * @param bytes        the size of the message, which is an estimate unless the message was written before it was sent
+	 */
+	public void recordSent( String server, long connectNanos, long dataNanos, long bytes ) {
+		ServerMetrics metrics = serverMetrics( server );
+		metrics.sent.increment();
+		metrics.connect.record( connectNanos );
+		metrics.data.record( dataNanos );
+		sent.increment();
+		sendLatency.record( connectNanos + dataNanos );
+		bytesSent.add( bytes );
+	}
+
+	/**
+	 * Records a message which a mail server failed to accept
+	 *
+	 * @param server the mail server
+	 */
+	public void recordFailed( String server ) {
+		serverMetrics( server ).failed.increment();
+		failed.increment();
+	}
+
+	/**
+	 * Records a failover to an additional mail server
+	 */
+	public void recordFailover() {
+		failovers.increment();
+	}
+
+	/**
+	 * Records a bounced message
+	 */
+	public void recordBounced() {
+		bounced.increment();
+	}
+
+	/**
+	 * Records a message written to the spool
+	 */
+	public void recordEnqueued() {
+		enqueued.increment();
+	}
+
+	/**
+	 * Records a message taken from the spool to be sent
+	 */
+	public void recordDequeued() {
+		dequeued.increment();
+	}
+
+	/**
+	 * Records a message which was not sent because its idempotency key was already delivered
+	 */
+	public void recordDuplicate() {
+		duplicates.increment();
+	}
+
+	/**
+	 * Records the time spent signing a message which is signed but not encrypted, including writing out the signed content. A
+	 * message which is also encrypted is signed in the same pass as it is encrypted, and is only recorded as an encryption.
+	 *
+	 * @param nanos the signing time
+	 */
+	public void recordSign( long nanos ) {
+		signLatency.record( nanos );
+	}
+
+	/**
+	 * Records the time spent encrypting a message, including writing out the encrypted content. For a message which is also
+	 * signed this includes the signing.
+	 *
+	 * @param nanos the encryption time
+	 */
+	public void recordEncrypt( long nanos ) {
+		encryptLatency.record( nanos );
+	}
+
+	/**
+	 * A snapshot of the metrics. Latencies are in milliseconds and rates are per second since the metrics were last reset.
+	 *
+	 * @return the metrics
+	 */
+	public IStruct snapshot() {
+		IStruct serverSnapshots = new Struct();
+		servers.forEach( ( server, metrics ) -> serverSnapshots.put( Key.of( server ), metrics.snapshot() ) );
+		return Struct.of(
+		    MailKeys.since, since,
+		    MailKeys.sent, getSent(),
+		    MailKeys.failed, getFailed(),
+		    MailKeys.failovers, getFailovers(),
+		    MailKeys.bounced, getBounced(),
+		    MailKeys.bounceRate, getBounceRate(),
+		    MailKeys.duplicatesSkipped, getDuplicatesSkipped(),
+		    MailKeys.bytesSentEstimate, getBytesSentEstimate(),
+		    MailKeys.spool, Struct.of(
+		        MailKeys.depth, getSpoolDepth(),
+		        MailKeys.size, getSpoolSize(),
+		        MailKeys.oldestAge, getSpoolOldestAge(),
+		        MailKeys.enqueued, getEnqueued(),
+		        MailKeys.dequeued, getDequeued(),
+		        MailKeys.enqueueRate, getEnqueueRate(),
+		        MailKeys.dequeueRate, getDequeueRate()
+		    ),
+		    MailKeys.latency, Struct.of(
+		        MailKeys.send, sendLatency.snapshot(),
+		        MailKeys.sign, signLatency.snapshot(),
+		        MailKeys.encrypt, encryptLatency.snapshot()
+		    ),
+		    MailKeys.servers, serverSnapshots
+		);
+	}
+
+	/**
+	 * Resets all counters and histograms
+	 */
+	@Override
+	public void reset() {
+		sent.reset();
+		failed.reset();
+		failovers.reset();
+		bounced.reset();
+		enqueued.reset();
+		dequeued.reset();
+		duplicates.reset();
+		bytesSent.reset();
+		sendLatency.reset();
+		signLatency.reset();
+		encryptLatency.reset();
+		servers.clear();
+		since = System.currentTimeMillis();
+	}
+
+	@Override
+	public long getSent() {
+		return sent.sum();
+	}
+
+	@Override
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	@Override
+	public long getFailovers() {
+		return failovers.sum();
+	}
+
+	@Override
+	public long getBounced() {
+		return bounced.sum();
+	}
+
+	@Override
+	public long getEnqueued() {
+		return enqueued.sum();
+	}
+
+	@Override
+	public long getDequeued() {
+		return dequeued.sum();
+	}
+
+	@Override
+	public long getDuplicatesSkipped() {
+		return duplicates.sum();
+	}
+
+	@Override
+	public long getBytesSentEstimate() {
+		return bytesSent.sum();
+	}
+
+	@Override
+	public double getEnqueueRate() {
+		return perSecond( enqueued.sum() );
+	}
+
+	@Override
+	public double getDequeueRate() {
+		return perSecond( dequeued.sum() );
+	}
+
+	@Override
+	public double getBounceRate() {
+		long	bounces		= bounced.sum();
+		long	outcomes	= bounces + sent.sum();
+		return outcomes == 0 ? 0d : ( double ) bounces / outcomes;
+	}
+
+	@Override
+	public int getSpoolDepth() {
+		return SpoolIndex.getInstance().size();
+	}
+
+	@Override
+	public long getSpoolSize() {
+		return SpoolIndex.getInstance().totalSize();
+	}
+
+	@Override
+	public long getSpoolOldestAge() {
+		long oldest = SpoolIndex.getInstance().oldestSpooledAt();
+		return oldest > 0 ? System.currentTimeMillis() - oldest : 0L;
+	}
+
+	@Override
+	public double getSendLatencyP99() {
+		return sendLatency.getValueAtPercentile( 99 ) / 1_000_000d;
+	}
+
+	@Override
+	public double getSignLatencyP99() {
+		return signLatency.getValueAtPercentile( 99 ) / 1_000_000d;
+	}
+
+	@Override
+	public double getEncryptLatencyP99() {
+		return encryptLatency.getValueAtPercentile( 99 ) / 1_000_000d;
+	}
+
+	/**
+	 * The approximate size of a message or part as it is sent, without writing it. This is used when the message was not
+	 * written before it was sent, and so could not be measured. Headers are counted as they are, parsed and materialized
+	 * content by its encoded length, file and in-memory data sources by their length, and base64 bodies by their encoded length.
+	 *
+	 * @param part the message or part
+	 *
+	 * @return the approximate size in bytes
+	 */
+	public static long estimateSize( Part part ) {
+		try {
+			// the blank line which ends the headers
+			long size = 2;
+			if ( part instanceof MimePart mimePart ) {
+				Enumeration<String> lines = mimePart.getAllHeaderLines();
+				while ( lines.hasMoreElements() ) {
+					size += lines.nextElement().length() + 2;
+				}
+			}
+			return size + estimateContentSize( part );
+		} catch ( MessagingException | IOException | RuntimeException e ) {
+			return 0L;
+		}
+	}
+
+	/**
+	 * The approximate size of the body of a part as it is sent
+	 */
+	private static long estimateContentSize( Part part ) throws MessagingException, IOException {
+		// a parsed part holds its body as it was encoded
+		int size = part.getSize();
+		if ( size > 0 ) {
+			return size;
+		}
+		long		length;
+		DataSource	dataSource	= part.getDataHandler().getDataSource();
+		if ( dataSource instanceof FileDataSource fileDataSource ) {
+			File file = fileDataSource.getFile();
+			length = file != null ? file.length() : 0L;
+		} else if ( dataSource instanceof ByteArrayDataSource ) {
+			length = available( dataSource.getInputStream() );
+		} else {
+			Object content = part.getContent();
+			if ( content instanceof MailEncryptionUtil.MaterializedMultipart materialized ) {
+				return materialized.getLength();
+			} else if ( content instanceof Multipart multipart ) {
+				String	boundary	= new ContentType( multipart.getContentType() ).getParameter( "boundary" );
+				// each part is preceded by a delimiter line, and the last is followed by the closing delimiter
+				long	delimiter	= ( boundary != null ? boundary.length() : 0 ) + 6;
+				long	total		= delimiter + 2;
+				for ( int i = 0; i < multipart.getCount(); i++ ) {
+					total += delimiter + estimateSize( multipart.getBodyPart( i ) );
+				}
+				return total;
+			} else if ( content instanceof Part nested ) {
+				return estimateSize( nested );
+			} else if ( content instanceof CharSequence chars ) {
+				length = chars.length();
+			} else if ( content instanceof byte[] bytes ) {
+				length = bytes.length;
+			} else if ( content instanceof InputStream stream ) {
+				// only a shared stream knows its length without being read
+				length = stream instanceof SharedInputStream ? available( stream ) : 0L;
+				stream.close();
+			} else {
+				return 0L;
+			}
+		}
+		return part instanceof MimePart mimePart && !( part instanceof PreencodedMimeBodyPart ) && "base64".equalsIgnoreCase( mimePart.getEncoding() )
+		    ? base64Length( length )
+		    : length;
+	}
+
+	/**
+	 * The length of content once it is base64 encoded in lines of 76 characters
+	 */
+	static long base64Length( long length ) {
+		long encoded = ( length + 2 ) / 3 * 4;
+		return encoded + ( encoded + 75 ) / 76 * 2;
+	}
+
+	private static long available( InputStream stream ) throws IOException {
+		try ( stream ) {
+			return stream.available();
+		}
+	}
+
+	/**
+	 * The metrics of a mail server, which are created on first use
+	 */
+	private ServerMetrics serverMetrics( String server ) {
+		return servers.computeIfAbsent( server == null ? "unknown" : server.toLowerCase(), name -> new ServerMetrics() );
+	}
+
+	private double perSecond( long total ) {
+		double seconds = Math.max( ( System.currentTimeMillis() - since ) / 1000d, 1d );
+		return total / seconds;
+	}
+
+}
@@ -0,0 +1,62 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+/**
+ * The JMX management interface of the mail delivery metrics, registered as
+ * <code>ortus.boxlang.modules.mail:type=MailMetrics</code>
+ */
+public interface MailMetricsMBean {
+
+	long getSent();
+
+	long getFailed();
+
+	long getFailovers();
+
+	long getBounced();
+
+	long getEnqueued();
+
+	long getDequeued();
+
+	long getDuplicatesSkipped();
+
+	long getBytesSentEstimate();
+
+	double getEnqueueRate();
+
+	double getDequeueRate();
+
+	double getBounceRate();
+
+	int getSpoolDepth();
+
+	long getSpoolSize();
+
+	long getSpoolOldestAge();
+
+	double getSendLatencyP99();
+
+	double getSignLatencyP99();
+
+	double getEncryptLatencyP99();
+
+	void reset();
+
+}
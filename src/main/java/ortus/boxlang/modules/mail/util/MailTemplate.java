@@ -0,0 +1,186 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.context.IBoxContext;
+import ortus.boxlang.runtime.dynamic.ExpressionInterpreter;
+import ortus.boxlang.runtime.dynamic.casters.IntegerCaster;
+import ortus.boxlang.runtime.dynamic.casters.StringCaster;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
+
+/**
+ * A mail body template which is compiled once into static segments and dynamic holes.
+ *
+ * Holes are declared with the <code>${variableName}</code> syntax, where the variable name is any variable path resolvable
+ * from the invoking context ( e.g. <code>${user.firstName}</code> ). Static segments are kept verbatim, so per-send work is
+ * limited to resolving the holes and appending them to a presized buffer.
+ *
+ * Compiled templates are cached by their source, up to the <code>templateCacheSize</code> module setting.
+ */
+public final class MailTemplate {
+
+	static final String									HOLE_OPEN			= "${";
+	static final char									HOLE_CLOSE			= '}';
+	static final int									DEFAULT_CACHE_SIZE	= 100;
+
+	private static final BoxRuntime						runtime				= BoxRuntime.getInstance();
+
+	private static volatile int							maxCacheSize		= DEFAULT_CACHE_SIZE;
+
+	private static final Map<String, MailTemplate>	compiled			= Collections.synchronizedMap( new LinkedHashMap<>( 16, 0.75f, true ) {
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, MailTemplate> eldest ) {
+			return size() > maxCacheSize;
+		}
+	} );
+
+	/**
+	 * The static segments of the template. A hole sits between each pair of segments.
+	 */
+	private final String[]								segments;
+
+	/**
+	 * The variable paths of the holes
+	 */
+	private final String[]								holes;
+
+	/**
+	 * The combined length of all static segments, used to presize render buffers
+	 */
+	private final int									staticLength;
+
+	private MailTemplate( String[] segments, String[] holes ) {
+		this.segments	= segments;
+		this.holes		= holes;
+		int length = 0;
+		for ( String segment : segments ) {
+			length += segment.length();
+		}
+		this.staticLength = length;
+	}
+
+	/**
+	 * Retrieves the compiled template from the cache, compiling it if necessary
+	 *
+	 * @param source the template source
+	 *
+	 * @return the compiled template
+	 */
+	public static MailTemplate of( String source ) {
+		IStruct moduleSettings = runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
+		if ( moduleSettings != null && moduleSettings.get( MailKeys.templateCacheSize ) != null ) {
+			maxCacheSize = IntegerCaster.cast( moduleSettings.get( MailKeys.templateCacheSize ) );
+		}
+		MailTemplate template = compiled.get( source );
+		if ( template == null ) {
+			template = compile( source );
+			compiled.put( source, template );
+		}
+		return template;
+	}
+
+	/**
+	 * Compiles a template source in to its static segments and holes
+	 *
+	 * @param source the template source
+	 *
+	 * @return the compiled template
+	 */
+	public static MailTemplate compile( String source ) {
+		List<String>	segments	= new ArrayList<>();
+		List<String>	holes		= new ArrayList<>();
+		int				position	= 0;
+		int				open;
+		while ( ( open = source.indexOf( HOLE_OPEN, position ) ) >= 0 ) {
+			int close = source.indexOf( HOLE_CLOSE, open + HOLE_OPEN.length() );
+			if ( close < 0 ) {
+				throw new BoxRuntimeException( "The mail template contains an unclosed variable hole at position " + open );
+			}
+			String variable = source.substring( open + HOLE_OPEN.length(), close ).trim();
+			if ( variable.isEmpty() ) {
+				throw new BoxRuntimeException( "The mail template contains an empty variable hole at position " + open );
+			}
+			segments.add( source.substring( position, open ) );
+			holes.add( variable );
+			position = close + 1;
+		}
+		segments.add( source.substring( position ) );
+		return new MailTemplate( segments.toArray( String[]::new ), holes.toArray( String[]::new ) );
+	}
+
+	/**
+	 * Clears the compiled template cache
+	 */
+	public static void clearCache() {
+		compiled.clear();
+	}
+
+	/**
+	 * Renders the template, resolving the holes against the context
+	 *
+	 * @param context the context used to resolve the hole variables
+	 *
+	 * @return the rendered template
+	 */
+	public String render( IBoxContext context ) {
+		StringBuilder buffer = new StringBuilder( staticLength + holes.length * 16 );
+		renderTo( context, buffer );
+		return buffer.toString();
+	}
+
+	/**
+	 * Renders the template in to the provided buffer, resolving the holes against the context
+	 *
+	 * @param context the context used to resolve the hole variables
+	 * @param buffer  the buffer to append to
+	 */
+	public void renderTo( IBoxContext context, Appendable buffer ) {
+		try {
+			for ( int i = 0; i < holes.length; i++ ) {
+				buffer.append( segments[ i ] );
+				Object value = ExpressionInterpreter.getVariable( context, holes[ i ], true );
+				if ( value != null ) {
+					buffer.append( StringCaster.cast( value ) );
+				}
+			}
+			buffer.append( segments[ holes.length ] );
+		} catch ( IOException e ) {
+			throw new BoxRuntimeException( "An error occurred while rendering the mail template: " + e.getMessage(), e );
+		}
+	}
+
+	/**
+	 * The number of dynamic holes in the template
+	 *
+	 * @return the hole count
+	 */
+	public int getHoleCount() {
+		return holes.length;
+	}
+
+}
@@ -17,11 +17,8 @@
  */
 package ortus.boxlang.modules.mail.util;
 
-import java.io.IOException;
 import java.net.IDN;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.Security;
 import java.util.UUID;
 
 import org.apache.commons.mail2.core.EmailException;
@@ -30,15 +27,25 @@ import org.apache.commons.mail2.jakarta.EmailAttachment;
 import org.apache.commons.mail2.jakarta.MultiPartEmail;
 import org.apache.commons.mail2.jakarta.SimpleEmail;
 import org.apache.commons.mail2.jakarta.util.IDNEmailAddressConverter;
-import org.apache.commons.text.WordUtils;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
-import jakarta.activation.CommandMap;
-import jakarta.activation.MailcapCommandMap;
+import jakarta.activation.DataHandler;
+import jakarta.activation.DataSource;
+import jakarta.activation.FileDataSource;
+import jakarta.mail.Address;
 import jakarta.mail.MessagingException;
 import jakarta.mail.Part;
+import jakarta.mail.Transport;
 import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.internet.MimeMultipart;
+import ortus.boxlang.modules.mail.events.FailoverEvent;
+import ortus.boxlang.modules.mail.events.MailBuildEvent;
+import ortus.boxlang.modules.mail.events.MailEncryptEvent;
+import ortus.boxlang.modules.mail.events.MailEvent;
+import ortus.boxlang.modules.mail.events.MailSignEvent;
+import ortus.boxlang.modules.mail.events.SmtpConnectEvent;
+import ortus.boxlang.modules.mail.events.SmtpTransferEvent;
+import ortus.boxlang.modules.mail.events.SpoolEnqueueEvent;
 import ortus.boxlang.runtime.BoxRuntime;
 import ortus.boxlang.runtime.context.IBoxContext;
 import ortus.boxlang.runtime.context.RequestBoxContext;
@@ -52,7 +59,6 @@ import ortus.boxlang.runtime.scopes.Key;
 import ortus.boxlang.runtime.types.Array;
 import ortus.boxlang.runtime.types.IStruct;
 import ortus.boxlang.runtime.types.Struct;
-import ortus.boxlang.runtime.types.exceptions.BoxIOException;
 import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
 import ortus.boxlang.runtime.types.util.BLCollector;
 import ortus.boxlang.runtime.types.util.ListUtil;
@@ -62,8 +68,6 @@ public class MailUtil {
 
 	public static final BoxRuntime			runtime			= BoxRuntime.getInstance();
 
-	static final Key						spoolCache		= MailKeys.mailUnsent;
-
 	static final BoxLangLogger				logger			= runtime.getLoggingService().getLogger( "Mail" );
 
 	static final IStruct					mimeMap			= Struct.of(
@@ -78,53 +82,129 @@ public class MailUtil {
 	static final IDNEmailAddressConverter	IDNConverter	= new IDNEmailAddressConverter();
 
 	/**
-	 * Add our mail cap entries to the default command map
+	 * This private constructor assures that the current class path will be able to find the correct mappings
 	 */
-	static final MailcapCommandMap			mailcap			= ( MailcapCommandMap ) CommandMap.getDefaultCommandMap();
-	static {
-		mailcap
-		    .addMailcap( "application/pkcs7-signature;; x-java-content-handler=org.bouncycastle.mail.smime.handlers.pkcs7_signature" );
-		mailcap
-		    .addMailcap( "application/pkcs7-mime;; x-java-content-handler=org.bouncycastle.mail.smime.handlers.pkcs7_mime" );
-		mailcap
-		    .addMailcap( "application/x-pkcs7-signature;; x-java-content-handler=org.bouncycastle.mail.smime.handlers.x_pkcs7_signature" );
-		mailcap
-		    .addMailcap( "application/x-pkcs7-mime;; x-java-content-handler=org.bouncycastle.mail.smime.handlers.x_pkcs7_mime" );
-		mailcap
-		    .addMailcap( "multipart/signed;; x-java-content-handler=org.bouncycastle.mail.smime.handlers.multipart_signed" );
-		mailcap
-		    .addMailcap( "text/html;; x-java-content-handler=com.sun.mail.handlers.text_html" );
-		mailcap
-		    .addMailcap( "text/xml;; x-java-content-handler=com.sun.mail.handlers.text_xml" );
-		mailcap
-		    .addMailcap( "text/plain;; x-java-content-handler=com.sun.mail.handlers.text_plain" );
-		mailcap
-		    .addMailcap( "multipart/*;; x-java-content-handler=com.sun.mail.handlers.multipart_mixed" );
-		mailcap
-		    .addMailcap( "message/rfc822;; x-java-content- handler=com.sun.mail.handlers.message_rfc822" );
-
-		CommandMap.setDefaultCommandMap( mailcap );
-
-		if ( Security.getProvider( BouncyCastleProvider.PROVIDER_NAME ) == null ) {
-			Security.addProvider( new BouncyCastleProvider() );
+	private MailUtil() {
+	}
+
+	/**
+	 * Processes a mail message from the context and attributes. Messages which are signed or encrypted are built, and their
+	 * content signed and encrypted, on the {@link CryptoExecutor}. A spooled message is admitted to the spool before it is handed
+	 * off, and the caller waits until it has been written to the spool, so a full spool is reported to the caller. When such a
+	 * message is sent asynchronously the caller is released as soon as the work is queued. Its key material and algorithms are
+	 * checked first, so configuration errors are still thrown to the caller, and only errors which occur while the message is built
+	 * or sent are logged
+	 *
+	 * @param buffer         the captured body content, which is materialized once and may be reused by the caller once this method returns
+	 * @param context
+	 * @param attributes
+	 * @param executionState
+	 */
+	public static void processMail( CharSequence buffer, IBoxContext context, IStruct attributes, IStruct executionState ) {
+		// Check for any signature settings in the configuration
+		MailUtil.applySignatureSettings( attributes );
+		boolean	sign	= BooleanCaster.attempt( attributes.get( MailKeys.sign ) ).getOrDefault( false );
+		boolean	encrypt	= BooleanCaster.attempt( attributes.get( MailKeys.encrypt ) ).getOrDefault( false );
+		if ( ! ( sign || encrypt ) || !CryptoExecutor.isEnabled() ) {
+			MailUtil.spoolOrSend( traceBuild( buffer, context, attributes, executionState ), attributes, context );
+			return;
+		}
+
+		String body = buffer.toString();
+		if ( isSpoolEnabled( attributes ) ) {
+			// check the marks with the unsigned body before any crypto work, so a full spool rejects or blocks the caller, not a crypto thread
+			long	now			= System.currentTimeMillis();
+			int		priority	= SpoolIndex.priorityRank( attributes.get( Key.priority ) );
+			SpoolAdmission.admit( new SpoolIndex.Entry( null, null, priority, now, null, body.length(), 0, now ) );
+			// the message is admitted again, with its signed size, and written on the calling thread once it has been built
+			MailUtil.spoolOrSend( CryptoExecutor.call( () -> traceBuild( body, context, attributes, executionState ) ), attributes, context );
+			return;
 		}
+		if ( isReleasable( attributes ) ) {
+			MailEncryptionUtil.validate( attributes, sign, encrypt );
+			// the mail servers are resolved from the request, which may have ended before the message is built
+			Array mailServers = getMailServers( context, attributes );
+			CryptoExecutor.execute( () -> {
+				Email message = traceBuild( body, context, attributes, executionState );
+				// the send is I/O bound, so it leaves the crypto threads free for the next message
+				Thread.ofVirtual().name( "bx-mail-send" ).start( () -> {
+					try {
+						MailUtil.spoolOrSend( message, attributes, context, mailServers );
+					} catch ( Throwable e ) {
+						logger.error( "An error occurred while sending a mail message asynchronously: " + e.getMessage(), e );
+					}
+				} );
+			} );
+			return;
+		}
+
+		MailUtil.spoolOrSend( CryptoExecutor.call( () -> traceBuild( body, context, attributes, executionState ) ), attributes, context );
 	}
 
 	/**
-	 * This private constructor assures that the current class path will be able to find the correct mappings
+	 * Assembles a mail message, recording the build event
+	 *
+	 * @return the message, ready to be spooled or sent
 	 */
-	private MailUtil() {
+	private static Email traceBuild( CharSequence buffer, IBoxContext context, IStruct attributes, IStruct executionState ) {
+		MailBuildEvent	buildEvent	= MailBuildEvent.start();
+		String			outcome		= MailEvent.FAILURE;
+		try {
+			Email message = buildMessage( buffer, context, attributes, executionState );
+			outcome = MailEvent.SUCCESS;
+			return message;
+		} finally {
+			buildEvent.complete( outcome, null, 0, buffer.length() );
+		}
 	}
 
 	/**
-	 * Processes a mail message from the context and attributes
+	 * Whether the caller may be released before a message is sent, which requires the message to be sent asynchronously, and the
+	 * caller not to need the message or its identifier. Spooled messages are never released before they are written to the spool
 	 *
-	 * @param buffer
+	 * @param attributes
+	 *
+	 * @return true if the caller may be released
+	 */
+	private static boolean isReleasable( IStruct attributes ) {
+		if ( attributes.get( MailKeys.messageIdentifier ) != null || attributes.get( MailKeys.messageVariable ) != null ) {
+			return false;
+		}
+		return BooleanCaster.attempt( attributes.get( MailKeys.async ) ).getOrDefault( false );
+	}
+
+	/**
+	 * Whether a message is spooled, by its attributes or the module settings
+	 *
+	 * @param attributes
+	 *
+	 * @return true if the message is spooled
+	 */
+	private static boolean isSpoolEnabled( IStruct attributes ) {
+		if ( attributes.get( MailKeys.messageIdentifier ) != null || attributes.get( MailKeys.messageVariable ) != null ) {
+			// if we are setting a message identifier or variable, disable spooling
+			return false;
+		}
+		Boolean spoolEnable = attributes.getAsBoolean( MailKeys.spoolEnable );
+		if ( spoolEnable == null ) {
+			IStruct moduleSettings = runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
+			spoolEnable = moduleSettings.getAsBoolean( MailKeys.spoolEnable );
+		}
+		return spoolEnable;
+	}
+
+	/**
+	 * Assembles a mail message from the context and attributes
+	 *
+	 * @param buffer         the captured body content
 	 * @param context
 	 * @param attributes
 	 * @param executionState
+	 *
+	 * @return the message, ready to be spooled or sent
 	 */
-	public static void processMail( StringBuffer buffer, IBoxContext context, IStruct attributes, IStruct executionState ) {
+	private static Email buildMessage( CharSequence buffer, IBoxContext context, IStruct attributes, IStruct executionState ) {
+		SmimeSupport.commandMap();
 		IStruct	moduleSettings	= runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
 		String	from			= attributes.getAsString( Key.from );
 		String	charset			= attributes.getAsString( Key.charset );
@@ -134,9 +214,7 @@ public class MailUtil {
 		String	subject			= attributes.getAsString( MailKeys.subject );
 		String	messageType		= attributes.getAsString( Key.type );
 		Integer	wrapText		= attributes.getAsInteger( MailKeys.wrapText );
-		// Encryption attributes
-		// Check for any signature settings in the configuration
-		MailUtil.applySignatureSettings( attributes );
+		// Encryption attributes, which processMail has merged with the signature settings
 		Boolean	sign			= BooleanCaster.attempt( attributes.get( MailKeys.sign ) ).getOrDefault( null );
 		Boolean	encrypt			= BooleanCaster.attempt( attributes.get( MailKeys.encrypt ) ).getOrDefault( null );
 
@@ -170,10 +248,11 @@ public class MailUtil {
 
 		message.setContentType( messageType.toLowerCase() );
 
+		// Materialize the body once - wrapping reads directly from the capture buffer
 		if ( message instanceof SimpleEmail ) {
-			message.setContent( wrapText != null ? WordUtils.wrap( buffer.toString(), wrapText ) : buffer.toString(), messageType );
+			message.setContent( wrapText != null ? TextWrapper.wrap( buffer, wrapText ) : buffer.toString(), messageType );
 		} else {
-			MailUtil.appendMimeContent( ( MultiPartEmail ) message, buffer, attributes, context, mailParams, mailParts );
+			MailUtil.appendMimeContent( ( MultiPartEmail ) message, buffer.toString(), attributes, context, mailParams, mailParts );
 		}
 
 		try {
@@ -188,7 +267,7 @@ public class MailUtil {
 
 		MailUtil.setMessageRecipients( attributes, message );
 
-		MailUtil.spoolOrSend( message, attributes, context );
+		return message;
 	}
 
 	/**
@@ -261,7 +340,7 @@ public class MailUtil {
 	 * Appends mime content parts to the message
 	 *
 	 * @param message
-	 * @param buffer
+	 * @param body
 	 * @param attributes
 	 * @param context
 	 * @param mailParams
@@ -269,7 +348,7 @@ public class MailUtil {
 	 */
 	public static void appendMimeContent(
 	    MultiPartEmail message,
-	    StringBuffer buffer,
+	    String body,
 	    IStruct attributes,
 	    IBoxContext context,
 	    Array mailParams,
@@ -279,18 +358,14 @@ public class MailUtil {
 		Boolean	sign		= attributes.getAsBoolean( MailKeys.sign );
 		if ( mimeAttach != null ) {
 			Path filePath = Path.of( mimeAttach );
-			try {
-				mailParams.add(
-				    Struct.of(
-				        MailKeys.disposition, null,
-				        Key.file, mimeAttach,
-				        MailKeys.fileName, filePath.getFileName().toString(),
-				        Key.type, Files.probeContentType( filePath )
-				    )
-				);
-			} catch ( IOException e ) {
-				throw new BoxIOException( e );
-			}
+			mailParams.add(
+			    Struct.of(
+			        MailKeys.disposition, null,
+			        Key.file, mimeAttach,
+			        MailKeys.fileName, filePath.getFileName().toString(),
+			        Key.type, MimeTypeDetector.detect( filePath )
+			    )
+			);
 		}
 		// Process the content parts ( e.g. text & html )
 		boolean	hasFileParams	= mailParams.stream().map( StructCaster::cast )
@@ -302,11 +377,11 @@ public class MailUtil {
 		            item -> item.getAsString( Key.type ).toLowerCase().contains( "text" ) || item.getAsString( Key.type ).toLowerCase().contains( "html" ) );
 		if ( !hasContentParts ) {
 			if ( !encrypt && !sign && !hasFileParams ) {
-				message.setContent( buffer.toString() );
+				message.setContent( body );
 				message.setContentType( "text/plain" );
 			} else {
 				message.setContentType( "multipart/mixed" );
-				appendMessagePart( message, buffer.toString(), StringCaster.cast( attributes.getOrDefault( Key.type, "text/plain" ) ),
+				appendMessagePart( message, body, StringCaster.cast( attributes.getOrDefault( Key.type, "text/plain" ) ),
 				    attributes.getAsString( Key.charset ), attributes );
 			}
 		} else {
@@ -324,13 +399,30 @@ public class MailUtil {
 		}
 
 		// Process any file attachments
+		IStruct	moduleSettings		= runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
+		boolean	useEncodingCache	= AttachmentEncodingCache.isEnabled( moduleSettings );
 		mailParams.stream().map( StructCaster::cast )
 		    .filter( param -> param.get( Key._NAME ) == null && param.get( Key.file ) != null )
 		    .forEach( param -> {
 			    Path filePath = Path.of( param.getAsString( Key.file ) );
 			    try {
 				    if ( !attributes.getAsBoolean( MailKeys.sign ) && !attributes.getAsBoolean( MailKeys.encrypt ) ) {
-					    // Simple attachment - no encryption or signing
+					    // Simple attachment - no encryption or signing. Use a cached, pre-encoded body when enabled
+					    MimeBodyPart cachedPart = useEncodingCache && message.getEmailBody() != null
+					        ? AttachmentEncodingCache.getBodyPart(
+					            filePath,
+					            param.get( Key.type ) != null ? param.getAsString( Key.type ) : MimeTypeDetector.detect( filePath, moduleSettings ),
+					            param.getAsString( MailKeys.fileName ),
+					            param.get( MailKeys.disposition ) != null ? param.getAsString( MailKeys.disposition ) : Part.ATTACHMENT,
+					            param.getAsString( Key.description ),
+					            moduleSettings
+					        )
+					        : null;
+					    if ( cachedPart != null ) {
+						    message.getEmailBody().addBodyPart( cachedPart );
+						    message.setBoolHasAttachments( true );
+						    return;
+					    }
 					    EmailAttachment attachment = new EmailAttachment();
 					    attachment.setPath( filePath.toAbsolutePath().toString() );
 					    attachment.setDisposition( param.get( MailKeys.disposition ) != null ? param.getAsString( MailKeys.disposition ) : Part.ATTACHMENT );
@@ -342,60 +434,105 @@ public class MailUtil {
 					    }
 					    message.attach( attachment );
 				    } else {
-					    // Mime attachments for signed or encrypted content
+					    // Mime attachments for signed or encrypted content. The file is streamed from disk when the content is signed
+					    // or encrypted, rather than read in to a part first, and any removal is deferred until the message has been sent
 					    attributes.keySet().stream()
 					        .forEach( key -> param.putIfAbsent( key, attributes.get( key ) ) );
+					    String			attachmentType	= param.get( Key.type ) != null ? param.getAsString( Key.type ) : MimeTypeDetector.detect( filePath );
+					    FileDataSource	dataSource		= new FileDataSource( filePath.toFile() ) {
+
+						    @Override
+						    public String getContentType() {
+							    return attachmentType;
+						    }
+					    };
 					    appendMessagePart(
 					        message,
-					        FileSystemUtil.read( param.getAsString( Key.file ) ),
-					        Files.probeContentType( filePath ),
+					        dataSource,
+					        attachmentType,
 					        attributes.getAsString( Key.charset ),
 					        param
 					    );
-					    if ( attributes.getAsBoolean( MailKeys.remove ) ) {
-						    FileSystemUtil.deleteFile( param.getAsString( Key.file ) );
+					    if ( attributes.getAsBoolean( MailKeys.remove ) && !param.getAsString( Key.file ).equals( attributes.getAsString( MailKeys.mimeAttach ) ) ) {
+						    Array pendingRemoval = attributes.getAsArray( MailKeys.pendingRemoval );
+						    if ( pendingRemoval == null ) {
+							    pendingRemoval = new Array();
+							    attributes.put( MailKeys.pendingRemoval, pendingRemoval );
+						    }
+						    pendingRemoval.add( param.getAsString( Key.file ) );
 					    }
 				    }
 
-			    } catch ( EmailException e ) {
+			    } catch ( EmailException | MessagingException e ) {
 				    throw new BoxRuntimeException(
 				        "An exception occured while attempting to attach the file " + filePath.toAbsolutePath().toString() + ". " + e.getMessage(), e );
-			    } catch ( IOException e ) {
-				    throw new BoxIOException( e );
 			    }
 
 		    } );
 
-		// For signing we need to extract the assembled parts and encapsulate them in a signed MultiPart object with the appropriate headers
-		if ( sign ) {
-			MimeMultipart signedMultiPart = new MimeMultipart();
+		// Signing and encryption are applied to the assembled parts in place, in a single pipeline. The signed and enveloped parts are
+		// produced lazily, so when the content is materialized it is streamed through the signer and then the enveloper, without
+		// copying the parts in to intermediate multiparts. It is materialized here, to a temporary file, so the signing and encryption
+		// run on the thread which builds the message, which is the crypto executor when it is enabled, and not again each time the
+		// message is written. The message is then read from the file as it is sent, so its size does not bound the memory it needs
+		if ( sign || encrypt ) {
+			MimeBodyPart content = new MimeBodyPart();
 			try {
-				for ( int i = 0; i < message.getEmailBody().getCount(); i++ ) {
-					signedMultiPart.addBodyPart( message.getEmailBody().getBodyPart( i ) );
-				}
-				MimeBodyPart signedBodyPart = new MimeBodyPart();
-				signedBodyPart.setContent( signedMultiPart );
-				message.setContent( MailEncryptionUtil.signMessagePart( attributes, signedBodyPart ), signedBodyPart.getContentType() );
+				content.setContent( message.getEmailBody() );
 			} catch ( MessagingException e ) {
-				throw new BoxRuntimeException( "An error occurred while attempting to sign the message: " + e.getMessage(), e );
+				throw new BoxRuntimeException( "An error occurred while attempting to assemble the message content: " + e.getMessage(), e );
 			}
-		}
 
-		// For encryption we also have to extract the assembled parts and encapsulate them in a final encrypted MultiPart object with the appropriate headers
-		if ( encrypt ) {
-			MimeMultipart encryptedMultiPart = new MimeMultipart();
-			try {
-				for ( int i = 0; i < message.getEmailBody().getCount(); i++ ) {
-					encryptedMultiPart.addBodyPart( message.getEmailBody().getBodyPart( i ) );
+			if ( sign && encrypt ) {
+				// the signature is computed while the encrypted content is materialized, in the same streaming pass, so it is timed
+				// and reported with the encryption below
+				try {
+					MimeMultipart signedMultiPart = MailEncryptionUtil.signMessagePart( attributes, content );
+					content = new MimeBodyPart();
+					content.setContent( signedMultiPart );
+				} catch ( MessagingException e ) {
+					throw new BoxRuntimeException( "An error occurred while attempting to sign the message: " + e.getMessage(), e );
+				}
+			} else if ( sign ) {
+				MailSignEvent	signEvent	= MailSignEvent.start();
+				long			signStart	= System.nanoTime();
+				String			outcome		= MailEvent.FAILURE;
+				long			size		= 0L;
+				try {
+					MimeMultipart								signedMultiPart	= MailEncryptionUtil.signMessagePart( attributes, content );
+					MailEncryptionUtil.MaterializedMultipart	signedContent	= MailEncryptionUtil.materialize( signedMultiPart );
+					message.setContent( signedContent, signedContent.getContentType() );
+					// the signed content was measured as it was written
+					size	= signedContent.getLength();
+					outcome	= MailEvent.SUCCESS;
+				} catch ( MessagingException e ) {
+					throw new BoxRuntimeException( "An error occurred while attempting to sign the message: " + e.getMessage(), e );
+				} finally {
+					MailMetrics.getInstance().recordSign( System.nanoTime() - signStart );
+					signEvent.complete( outcome, null, 0, size );
+				}
+			}
+
+			if ( encrypt ) {
+				MailEncryptEvent	encryptEvent	= MailEncryptEvent.start();
+				long				encryptStart	= System.nanoTime();
+				long				size			= 0L;
+				String				outcome			= MailEvent.FAILURE;
+				try {
+					MimeBodyPart	encryptedBodyPart	= MailEncryptionUtil.encryptBodyPart( attributes, content );
+					MimeMultipart	finalMultipart		= new MimeMultipart();
+					finalMultipart.addBodyPart( encryptedBodyPart );
+					MailEncryptionUtil.MaterializedMultipart encryptedContent = MailEncryptionUtil.materialize( finalMultipart );
+					message.setContent( encryptedContent, encryptedBodyPart.getContentType() );
+					// the encrypted content was measured as it was written
+					size	= encryptedContent.getLength();
+					outcome	= MailEvent.SUCCESS;
+				} catch ( MessagingException e ) {
+					throw new BoxRuntimeException( "An error occurred while attempting to encrypt the message: " + e.getMessage(), e );
+				} finally {
+					MailMetrics.getInstance().recordEncrypt( System.nanoTime() - encryptStart );
+					encryptEvent.complete( outcome, null, 0, size );
 				}
-				MimeBodyPart encryptedBodyPart = new MimeBodyPart();
-				encryptedBodyPart.setContent( encryptedMultiPart );
-				MimeMultipart finalMultipart = new MimeMultipart();
-				encryptedBodyPart = MailEncryptionUtil.encryptBodyPart( attributes, encryptedBodyPart );
-				finalMultipart.addBodyPart( encryptedBodyPart );
-				message.setContent( finalMultipart, encryptedBodyPart.getContentType() );
-			} catch ( MessagingException e ) {
-				throw new BoxRuntimeException( "An error occurred while attempting to encrypt the message: " + e.getMessage(), e );
 			}
 		}
 
@@ -410,7 +547,6 @@ public class MailUtil {
 	 * @param charset
 	 */
 	public static void appendMessagePart( MultiPartEmail message, Object content, String mimeType, String charset, IStruct attributes ) {
-		Boolean encrypt = attributes.getAsBoolean( MailKeys.encrypt );
 		try {
 			MimeMultipart	mimePart	= new MimeMultipart();
 			MimeBodyPart	bodyPart	= new MimeBodyPart();
@@ -418,16 +554,17 @@ public class MailUtil {
 				bodyPart.setContent( StringCaster.cast( content ), mimeType + ";charset=" + charset );
 			} else {
 				bodyPart.setDisposition( attributes.get( MailKeys.disposition ) == null ? Part.INLINE : attributes.getAsString( MailKeys.disposition ) );
-				if ( attributes.containsKey( MailKeys.fileName ) ) {
+				if ( attributes.get( MailKeys.fileName ) != null ) {
 					bodyPart.setFileName( attributes.getAsString( MailKeys.fileName ) );
 				} else if ( attributes.containsKey( Key.file ) ) {
 					bodyPart.setFileName( Path.of( attributes.getAsString( Key.file ) ).getFileName().toString() );
 				}
-				bodyPart.setContent( content, mimeType );
-			}
-
-			if ( encrypt ) {
-				bodyPart = MailEncryptionUtil.encryptBodyPart( attributes, bodyPart );
+				if ( content instanceof DataSource dataSource ) {
+					// Data sources are read in chunks as the part is written
+					bodyPart.setDataHandler( new DataHandler( dataSource ) );
+				} else {
+					bodyPart.setContent( content, mimeType );
+				}
 			}
 
 			mimePart.addBodyPart( bodyPart );
@@ -593,6 +730,10 @@ public class MailUtil {
 			attributes.put( MailKeys.sign, false );
 		}
 
+		if ( attributes.get( MailKeys.signatureAlgorithm ) == null ) {
+			attributes.put( MailKeys.signatureAlgorithm, moduleSettings.get( MailKeys.signAlgorithm ) );
+		}
+
 	}
 
 	/**
@@ -603,33 +744,79 @@ public class MailUtil {
 	 * @param context
 	 */
 	public static void spoolOrSend( Email message, IStruct attributes, IBoxContext context ) {
+		spoolOrSend( message, attributes, context, null );
+	}
+
+	/**
+	 * Spools or sends an email message
+	 *
+	 * @param message
+	 * @param attributes
+	 * @param context
+	 * @param mailServers the mail servers, or null to resolve them from the context
+	 */
+	public static void spoolOrSend( Email message, IStruct attributes, IBoxContext context, Array mailServers ) {
 		IStruct	moduleSettings	= runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
-		Boolean	spoolEnable		= attributes.getAsBoolean( MailKeys.spoolEnable );
+		boolean	spoolEnable		= isSpoolEnabled( attributes );
 		String	priority		= attributes.getAsString( Key.priority );
 		String	messageId		= null;
-		if ( spoolEnable == null ) {
-			spoolEnable = moduleSettings.getAsBoolean( MailKeys.spoolEnable );
+
+		String idempotencyKey = attributes.getAsString( MailKeys.idempotencyKey );
+		if ( idempotencyKey != null && SendLog.getInstance().isDelivered( idempotencyKey ) ) {
+			MailMetrics.getInstance().recordDuplicate();
+			logger.debug( String.format( "A message with the idempotency key [%s] has already been delivered and will not be sent again", idempotencyKey ) );
+			return;
 		}
 
-		if ( attributes.get( MailKeys.messageIdentifier ) != null || attributes.get( MailKeys.messageVariable ) != null ) {
-			// if we are setting a message identifier or variable, disable spooling
-			spoolEnable = false;
+		if ( mailServers == null ) {
+			mailServers = getMailServers( context, attributes );
 		}
 
 		if ( spoolEnable ) {
 			messageId = UUID.randomUUID().toString();
-			IStruct emailData = Struct.of(
-			    Key.message, emailToSerializableStruct( message, attributes ),
+			IStruct				emailData	= Struct.of(
+			    Key.message, SpoolCodec.encode( emailToSerializableStruct( message, attributes ), moduleSettings ),
 			    Key.priority, priority,
 			    Key.attributes, attributes,
-			    MailKeys.mailServers, getMailServers( context, attributes )
-			);
-			runtime.getCacheService().getCache( spoolCache ).set(
-			    messageId,
-			    emailData
+			    MailKeys.mailServers, mailServers,
+			    MailKeys.spooledAt, System.currentTimeMillis()
 			);
+			Key					shardCache	= SpoolShards.getCacheNameFor( messageId );
+			SpoolIndex.Entry	indexEntry	= SpoolIndex.Entry.of( messageId, shardCache, emailData );
+			SpoolEnqueueEvent	enqueueEvent	= SpoolEnqueueEvent.start();
+			String				outcome			= MailEvent.FAILURE;
+			try {
+				// apply backpressure before the message is written when the spool is above its high-water marks
+				SpoolAdmission.admit( indexEntry );
+				runtime.getCacheService().getCache( shardCache ).set(
+				    messageId,
+				    emailData
+				);
+				SpoolIndex.getInstance().put( indexEntry );
+				MailMetrics.getInstance().recordEnqueued();
+				outcome = MailEvent.SUCCESS;
+			} finally {
+				enqueueEvent.complete( outcome, null, 0, indexEntry.size() );
+			}
 		} else {
-			String messageRef = sendMessage( getMailServers( context, attributes ), attributes, message );
+			if ( idempotencyKey != null && !SendLog.getInstance().claim( idempotencyKey ) ) {
+				// another thread or node started sending a message with the same key since it was checked
+				MailMetrics.getInstance().recordDuplicate();
+				logger.debug( String.format( "A message with the idempotency key [%s] is already being sent and will not be sent again", idempotencyKey ) );
+				return;
+			}
+			String messageRef;
+			try {
+				messageRef = sendMessage( mailServers, attributes, message );
+			} catch ( RuntimeException e ) {
+				if ( idempotencyKey != null ) {
+					SendLog.getInstance().release( idempotencyKey );
+				}
+				throw e;
+			}
+			if ( idempotencyKey != null ) {
+				SendLog.getInstance().record( idempotencyKey, messageRef );
+			}
 
 			if ( attributes.get( MailKeys.messageVariable ) != null ) {
 				ExpressionInterpreter.setVariable(
@@ -938,6 +1125,8 @@ public class MailUtil {
 	}
 
 	public static String sendMessage( Array mailServers, IStruct attributes, Email message ) {
+		// spooled messages may be sent before any message has been built
+		SmimeSupport.commandMap();
 		if ( logger.isTraceEnabled() ) {
 			String sanitizedMailServersString = mailServers.stream()
 			    .map( StructCaster::cast )
@@ -956,7 +1145,7 @@ public class MailUtil {
 			// try with our primary mail server
 			MailUtil.setMessageServer( StructCaster.cast( mailServers.get( 0 ) ), attributes, message );
 			try {
-				messageId = message.send();
+				messageId = transmit( message, 1 );
 			} catch ( EmailException ee ) {
 				// if that fails, try any additional mail servers defined
 				if ( logger.isWarnEnabled() ) {
@@ -972,10 +1161,14 @@ public class MailUtil {
 						// Create a fresh email object for each failover attempt to avoid session initialization conflicts
 						Email	failoverMessage		= cloneEmailMessage( message, attributes );
 						MailUtil.setMessageServer( serverProperties, attributes, failoverMessage );
+						MailMetrics.getInstance().recordFailover();
+						FailoverEvent failoverEvent = FailoverEvent.start();
 						try {
-							messageId = failoverMessage.send();
+							messageId = transmit( failoverMessage, i + 1 );
+							failoverEvent.complete( MailEvent.SUCCESS, serverProperties.getAsString( Key.server ), i + 1, 0L );
 							break;
 						} catch ( EmailException eee ) {
+							failoverEvent.complete( MailEvent.FAILURE, serverProperties.getAsString( Key.server ), i + 1, 0L );
 							logger.warn( "Failover mail server " + serverProperties.getAsString( Key.server )
 							    + " also failed to send the message. Error: " + eee.getMessage(), eee );
 							// continue to next server
@@ -989,9 +1182,66 @@ public class MailUtil {
 			if ( attributes.getAsBoolean( MailKeys.remove ) && attributes.getAsString( MailKeys.mimeAttach ) != null ) {
 				FileSystemUtil.deleteFile( attributes.getAsString( MailKeys.mimeAttach ) );
 			}
+			// Remove any streamed attachments whose deletion was deferred until the message was written
+			Array pendingRemoval = attributes.getAsArray( MailKeys.pendingRemoval );
+			if ( pendingRemoval != null ) {
+				pendingRemoval.stream()
+				    .map( StringCaster::cast )
+				    .filter( FileSystemUtil::exists )
+				    .forEach( FileSystemUtil::deleteFile );
+				attributes.remove( MailKeys.pendingRemoval );
+			}
 			return messageId;
 		} catch ( Exception e ) {
 			throw new BoxRuntimeException( "Message failed to send. " + e.getMessage(), e );
 		}
 	}
+
+	/**
+	 * Sends a message to the mail server it has been configured with, recording the connect and data latencies. This is the
+	 * equivalent of {@link Email#send()}, with the transport phases separated so that they can be measured.
+	 *
+	 * @param message the message
+	 * @param attempt the attempt number, which is 1 for the primary mail server and increases for each failover server
+	 *
+	 * @return the message id
+	 *
+	 * @throws EmailException if the message could not be built or sent
+	 */
+	static String transmit( Email message, int attempt ) throws EmailException {
+		String		server	= message.getHostName();
+		MailMetrics	metrics	= MailMetrics.getInstance();
+		message.buildMimeMessage();
+		MimeMessage	mimeMessage	= message.getMimeMessage();
+		MailEvent	phase		= null;
+		try {
+			mimeMessage.saveChanges();
+			// the envelope is taken before signing, as a frozen message no longer carries its bcc recipients
+			Address[] recipients = mimeMessage.getAllRecipients();
+			DkimSigner.Signed signed = DkimSigner.sign( message.getMailSession(), mimeMessage );
+			mimeMessage = signed.message();
+			// a signed message was written once to hash its body, and so its size is known
+			long size = signed.size() >= 0 ? signed.size() : MailMetrics.estimateSize( mimeMessage );
+			phase = SmtpConnectEvent.start();
+			long connectStart = System.nanoTime();
+			try ( Transport transport = message.getMailSession().getTransport() ) {
+				transport.connect();
+				long dataStart = System.nanoTime();
+				phase.complete( MailEvent.SUCCESS, server, attempt, size );
+				phase = SmtpTransferEvent.start();
+				transport.sendMessage( mimeMessage, recipients );
+				long dataEnd = System.nanoTime();
+				phase.complete( MailEvent.SUCCESS, server, attempt, size );
+				phase = null;
+				metrics.recordSent( server, dataStart - connectStart, dataEnd - dataStart, size );
+			}
+			return mimeMessage.getMessageID();
+		} catch ( MessagingException e ) {
+			if ( phase != null ) {
+				phase.complete( MailEvent.FAILURE, server, attempt, 0L );
+			}
+			metrics.recordFailed( server );
+			throw new EmailException( "Sending the email to the following server failed : " + server + ":" + message.getSmtpPort(), e );
+		}
+	}
 }
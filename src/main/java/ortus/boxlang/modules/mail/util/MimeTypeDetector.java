@@ -0,0 +1,256 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.io.IOException;
+import java.net.FileNameMap;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.dynamic.casters.BooleanCaster;
+import ortus.boxlang.runtime.dynamic.casters.IntegerCaster;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.IStruct;
+
+/**
+ * Detects the MIME type of attachment files.
+ *
+ * Detection is attempted in the following order:
+ * <ol>
+ * <li>The <code>mimeTypes</code> module setting, a struct of file extension to MIME type overrides</li>
+ * <li>The built-in extension map and the JDK file name map - neither of which touch the file system</li>
+ * <li>If <code>mimeContentSniffing</code> is enabled, the registered {@link ContentProbe}, whose result is cached by path and modification time</li>
+ * </ol>
+ *
+ * If no type can be determined, <code>application/octet-stream</code> is returned.
+ */
+public final class MimeTypeDetector {
+
+	/**
+	 * A pluggable content probe used when a type cannot be determined from the file extension
+	 */
+	@FunctionalInterface
+	public interface ContentProbe {
+
+		/**
+		 * Probes the file for its MIME type
+		 *
+		 * @param filePath the path to the file
+		 *
+		 * @return the MIME type or null if it could not be determined
+		 *
+		 * @throws IOException if the file could not be read
+		 */
+		String probe( Path filePath ) throws IOException;
+	}
+
+	public static final String				DEFAULT_TYPE		= "application/octet-stream";
+
+	static final int						DEFAULT_CACHE_SIZE	= 1000;
+
+	/**
+	 * Common attachment types which we resolve without any file system access
+	 */
+	static final Map<String, String>		EXTENSION_TYPES		= Map.ofEntries(
+	    Map.entry( "txt", "text/plain" ),
+	    Map.entry( "csv", "text/csv" ),
+	    Map.entry( "htm", "text/html" ),
+	    Map.entry( "html", "text/html" ),
+	    Map.entry( "ics", "text/calendar" ),
+	    Map.entry( "xml", "application/xml" ),
+	    Map.entry( "json", "application/json" ),
+	    Map.entry( "pdf", "application/pdf" ),
+	    Map.entry( "zip", "application/zip" ),
+	    Map.entry( "gz", "application/gzip" ),
+	    Map.entry( "rtf", "application/rtf" ),
+	    Map.entry( "doc", "application/msword" ),
+	    Map.entry( "docx", "application/vnd.openxmlformats-officedocument.wordprocessingml.document" ),
+	    Map.entry( "xls", "application/vnd.ms-excel" ),
+	    Map.entry( "xlsx", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet" ),
+	    Map.entry( "ppt", "application/vnd.ms-powerpoint" ),
+	    Map.entry( "pptx", "application/vnd.openxmlformats-officedocument.presentationml.presentation" ),
+	    Map.entry( "odt", "application/vnd.oasis.opendocument.text" ),
+	    Map.entry( "ods", "application/vnd.oasis.opendocument.spreadsheet" ),
+	    Map.entry( "eml", "message/rfc822" ),
+	    Map.entry( "jpg", "image/jpeg" ),
+	    Map.entry( "jpeg", "image/jpeg" ),
+	    Map.entry( "png", "image/png" ),
+	    Map.entry( "gif", "image/gif" ),
+	    Map.entry( "bmp", "image/bmp" ),
+	    Map.entry( "webp", "image/webp" ),
+	    Map.entry( "svg", "image/svg+xml" ),
+	    Map.entry( "tif", "image/tiff" ),
+	    Map.entry( "tiff", "image/tiff" ),
+	    Map.entry( "mp3", "audio/mpeg" ),
+	    Map.entry( "wav", "audio/wav" ),
+	    Map.entry( "mp4", "video/mp4" ),
+	    Map.entry( "p7s", "application/pkcs7-signature" ),
+	    Map.entry( "p7m", "application/pkcs7-mime" )
+	);
+
+	private static final BoxRuntime			runtime				= BoxRuntime.getInstance();
+
+	private static final FileNameMap		fileNameMap			= URLConnection.getFileNameMap();
+
+	private static volatile ContentProbe	contentProbe		= Files::probeContentType;
+
+	/**
+	 * Bounded LRU cache of probed types, keyed by absolute path
+	 */
+	private static final Map<String, ProbedType>	probeCache			= Collections.synchronizedMap( new LinkedHashMap<>( 64, 0.75f, true ) {
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, ProbedType> eldest ) {
+			return size() > maxCacheSize;
+		}
+	} );
+
+	private static volatile int				maxCacheSize		= DEFAULT_CACHE_SIZE;
+
+	/**
+	 * A probed type and the modification time of the file it was probed from
+	 */
+	private record ProbedType( long lastModified, String type ) {
+	}
+
+	private MimeTypeDetector() {
+	}
+
+	/**
+	 * Registers a custom content probe which is used when the type cannot be resolved by extension
+	 *
+	 * @param probe the content probe
+	 */
+	public static void setContentProbe( ContentProbe probe ) {
+		contentProbe = probe == null ? Files::probeContentType : probe;
+		probeCache.clear();
+	}
+
+	/**
+	 * Clears the probed type cache
+	 */
+	public static void clearCache() {
+		probeCache.clear();
+	}
+
+	/**
+	 * Detects the MIME type of a file using the module settings
+	 *
+	 * @param filePath the path to the file
+	 *
+	 * @return the detected MIME type
+	 */
+	public static String detect( Path filePath ) {
+		return detect( filePath, runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME ) );
+	}
+
+	/**
+	 * Detects the MIME type of a file
+	 *
+	 * @param filePath       the path to the file
+	 * @param moduleSettings the module settings containing any overrides - may be null
+	 *
+	 * @return the detected MIME type
+	 */
+	public static String detect( Path filePath, IStruct moduleSettings ) {
+		String type = detectByExtension( filePath, moduleSettings );
+		if ( type != null ) {
+			return type;
+		}
+
+		if ( moduleSettings != null && !BooleanCaster.cast( moduleSettings.getOrDefault( MailKeys.mimeContentSniffing, true ) ) ) {
+			return DEFAULT_TYPE;
+		}
+
+		if ( moduleSettings != null && moduleSettings.get( MailKeys.mimeTypeCacheSize ) != null ) {
+			maxCacheSize = IntegerCaster.cast( moduleSettings.get( MailKeys.mimeTypeCacheSize ) );
+		}
+
+		type = probe( filePath );
+		return type != null ? type : DEFAULT_TYPE;
+	}
+
+	/**
+	 * Resolves the MIME type from the file extension alone
+	 *
+	 * @param filePath       the path to the file
+	 * @param moduleSettings the module settings containing any overrides - may be null
+	 *
+	 * @return the MIME type or null if the extension is unknown
+	 */
+	public static String detectByExtension( Path filePath, IStruct moduleSettings ) {
+		Path fileName = filePath.getFileName();
+		if ( fileName == null ) {
+			return null;
+		}
+		String	name		= fileName.toString();
+		int		extIndex	= name.lastIndexOf( '.' );
+		if ( extIndex < 0 || extIndex == name.length() - 1 ) {
+			return null;
+		}
+		String extension = name.substring( extIndex + 1 ).toLowerCase();
+
+		if ( moduleSettings != null && moduleSettings.get( MailKeys.mimeTypes ) instanceof IStruct overrides ) {
+			Object override = overrides.get( Key.of( extension ) );
+			if ( override != null ) {
+				return override.toString();
+			}
+		}
+
+		String type = EXTENSION_TYPES.get( extension );
+		return type != null ? type : fileNameMap.getContentTypeFor( name );
+	}
+
+	/**
+	 * Probes the file contents, using the cached result when the file has not been modified
+	 *
+	 * @param filePath the path to the file
+	 *
+	 * @return the probed MIME type or null
+	 */
+	private static String probe( Path filePath ) {
+		Path	absolutePath	= filePath.toAbsolutePath();
+		String	cacheKey		= absolutePath.toString();
+		long	lastModified;
+		try {
+			lastModified = Files.getLastModifiedTime( absolutePath ).toMillis();
+		} catch ( IOException e ) {
+			return null;
+		}
+
+		ProbedType cached = probeCache.get( cacheKey );
+		if ( cached != null && cached.lastModified() == lastModified ) {
+			return cached.type();
+		}
+
+		String type;
+		try {
+			type = contentProbe.probe( absolutePath );
+		} catch ( IOException e ) {
+			type = null;
+		}
+		probeCache.put( cacheKey, new ProbedType( lastModified, type ) );
+		return type;
+	}
+
+}
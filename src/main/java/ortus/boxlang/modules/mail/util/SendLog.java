@@ -0,0 +1,282 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.cache.providers.ICacheProvider;
+import ortus.boxlang.runtime.dynamic.casters.BooleanCaster;
+import ortus.boxlang.runtime.dynamic.casters.DoubleCaster;
+import ortus.boxlang.runtime.dynamic.casters.IntegerCaster;
+import ortus.boxlang.runtime.dynamic.casters.StructCaster;
+import ortus.boxlang.runtime.logging.BoxLangLogger;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+
+/**
+ * The send log, which records the idempotency keys of delivered messages so that a message sent again with the same
+ * <code>idempotencyKey</code> attribute - by an application retry, or by the spool after a restart - is not delivered twice.
+ *
+ * Delivered keys are stored in the <code>mailSendLog</code> file system cache in the <code>sendLogDirectory</code>, and expire
+ * after <code>sendLogTimeout</code> minutes. A Bloom filter of the logged keys is held in memory, so checking a key which has
+ * not been delivered - the common case - does not touch the disk. The filter is rebuilt from the log when it is first used.
+ *
+ * When spool leases are enabled, several nodes share the send log directory and the filter of one node does not know the keys
+ * logged by the others, so a key which misses the filter is confirmed with the log.
+ *
+ * A key is claimed in the log before its message is sent, and the claim is replaced by the delivery record once the message is
+ * sent, or removed if the send fails. Claims are made atomically within a node. Across nodes a claim is a read and a write of
+ * the shared log, so only nodes which claim the same key at the same moment can both send it. A claim left by a node which
+ * stopped while sending counts as a delivery until it expires, as the message may have been sent.
+ */
+public final class SendLog {
+
+	static final double					FALSE_POSITIVE_RATE	= 0.01;
+
+	private static final BoxRuntime		runtime				= BoxRuntime.getInstance();
+	private static final BoxLangLogger	logger				= runtime.getLoggingService().getLogger( "Mail" );
+
+	private static volatile SendLog		instance;
+
+	private final ICacheProvider		log;
+	private final int					capacity;
+	private final boolean				shared;
+	private volatile BloomFilter		filter;
+
+	/**
+	 * Constructor
+	 *
+	 * @param log      the cache in which delivered keys are stored
+	 * @param capacity the expected number of logged keys, which sizes the Bloom filter
+	 */
+	SendLog( ICacheProvider log, int capacity ) {
+		this( log, capacity, false );
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param log      the cache in which delivered keys are stored
+	 * @param capacity the expected number of logged keys, which sizes the Bloom filter
+	 * @param shared   whether other nodes write to the same log
+	 */
+	SendLog( ICacheProvider log, int capacity, boolean shared ) {
+		this.log		= log;
+		this.capacity	= Math.max( capacity, 1000 );
+		this.shared		= shared;
+		sync();
+	}
+
+	/**
+	 * The send log, which is created on first use
+	 *
+	 * @return the send log
+	 */
+	public static SendLog getInstance() {
+		if ( instance == null ) {
+			synchronized ( SendLog.class ) {
+				if ( instance == null ) {
+					IStruct moduleSettings = runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
+					if ( !runtime.getCacheService().hasCache( MailKeys.mailSendLog ) ) {
+						String directory = moduleSettings.getAsString( MailKeys.sendLogDirectory );
+						runtime.getCacheService().createCache(
+						    MailKeys.mailSendLog,
+						    Key.boxCacheProvider,
+						    Struct.of(
+						        Key.objectStore, MailKeys.fileSystemStore.getName(),
+						        Key.directory, directory != null ? directory : runtime.getRuntimeHome().resolve( "mail/sent" ).toString(),
+						        // the cache timeout is in seconds
+						        Key.defaultTimeout, ( long ) ( DoubleCaster.cast( moduleSettings.getOrDefault( MailKeys.sendLogTimeout, 1440 ) ) * 60 ),
+						        Key.useLastAccessTimeouts, false,
+						        Key.evictCount, 0
+						    )
+						);
+					}
+					instance = new SendLog(
+					    runtime.getCacheService().getCache( MailKeys.mailSendLog ),
+					    IntegerCaster.cast( moduleSettings.getOrDefault( MailKeys.sendLogCapacity, 100000 ) ),
+					    BooleanCaster.cast( moduleSettings.getOrDefault( MailKeys.spoolLeaseEnable, false ) )
+					);
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Whether a message with an idempotency key has already been delivered, or is being sent
+	 *
+	 * @param idempotencyKey the idempotency key
+	 *
+	 * @return true if the key is in the send log
+	 */
+	public boolean isDelivered( String idempotencyKey ) {
+		if ( !shared && !filter.mightContain( idempotencyKey ) ) {
+			return false;
+		}
+		// the filter may return false positives, and logged keys expire, so confirm with the log
+		return log.get( idempotencyKey ).isPresent();
+	}
+
+	/**
+	 * Claims an idempotency key before its message is sent. Only one caller can claim a key which is not in the log.
+	 *
+	 * @param idempotencyKey the idempotency key
+	 *
+	 * @return true if the key was claimed, or false if its message has already been delivered or is being sent
+	 */
+	public synchronized boolean claim( String idempotencyKey ) {
+		if ( isDelivered( idempotencyKey ) ) {
+			return false;
+		}
+		log.set( idempotencyKey, Struct.of( MailKeys.claimedAt, System.currentTimeMillis() ) );
+		filter.put( idempotencyKey );
+		return true;
+	}
+
+	/**
+	 * Removes the claim on an idempotency key whose message could not be sent, so that it may be sent again
+	 *
+	 * @param idempotencyKey the idempotency key
+	 */
+	public synchronized void release( String idempotencyKey ) {
+		var entry = log.get( idempotencyKey );
+		if ( entry.isPresent() && StructCaster.cast( entry.get() ).get( MailKeys.sentAt ) == null ) {
+			log.clear( idempotencyKey );
+		}
+	}
+
+	/**
+	 * Records the delivery of a message with an idempotency key
+	 *
+	 * @param idempotencyKey the idempotency key
+	 * @param messageId      the message id returned by the mail server, if any
+	 */
+	public synchronized void record( String idempotencyKey, String messageId ) {
+		log.set( idempotencyKey, Struct.of( MailKeys.messageIdentifier, messageId, MailKeys.sentAt, System.currentTimeMillis() ) );
+		filter.put( idempotencyKey );
+	}
+
+	/**
+	 * Rebuilds the Bloom filter from the send log
+	 *
+	 * @return the number of logged keys
+	 */
+	public int sync() {
+		BloomFilter		rebuilt	= new BloomFilter( capacity, FALSE_POSITIVE_RATE );
+		List<String>	keys	= log.getKeysStream().map( String::valueOf ).toList();
+		keys.forEach( rebuilt::put );
+		filter = rebuilt;
+		int count = keys.size();
+		if ( count > capacity ) {
+			logger.warn( String.format(
+			    "The mail send log holds [%d] keys, which exceeds the sendLogCapacity of [%d]. Duplicate checks will read the log more often",
+			    count,
+			    capacity
+			) );
+		}
+		return count;
+	}
+
+	/**
+	 * A Bloom filter of strings. The bits are updated atomically, so the filter may be read and updated concurrently.
+	 */
+	static final class BloomFilter {
+
+		private final AtomicLongArray	bits;
+		private final int				bitCount;
+		private final int				hashCount;
+
+		/**
+		 * Constructor
+		 *
+		 * @param capacity          the expected number of entries
+		 * @param falsePositiveRate the desired false positive rate at the expected capacity
+		 */
+		BloomFilter( int capacity, double falsePositiveRate ) {
+			long optimalBits = ( long ) Math.ceil( -capacity * Math.log( falsePositiveRate ) / ( Math.log( 2 ) * Math.log( 2 ) ) );
+			this.bitCount	= ( int ) Math.min( Math.max( optimalBits, 64 ), Integer.MAX_VALUE - 63 );
+			this.hashCount	= Math.max( 1, ( int ) Math.round( ( double ) bitCount / capacity * Math.log( 2 ) ) );
+			this.bits		= new AtomicLongArray( ( bitCount + 63 ) / 64 );
+		}
+
+		/**
+		 * Adds a value to the filter
+		 *
+		 * @param value the value
+		 */
+		void put( String value ) {
+			long hash = hash( value );
+			for ( int i = 0; i < hashCount; i++ ) {
+				int		bit		= index( hash, i );
+				long	mask	= 1L << ( bit & 63 );
+				int		word	= bit >>> 6;
+				long	current;
+				while ( ( ( current = bits.get( word ) ) & mask ) == 0 && !bits.compareAndSet( word, current, current | mask ) ) {
+					// another thread updated the word, so retry
+				}
+			}
+		}
+
+		/**
+		 * Whether the value may have been added to the filter
+		 *
+		 * @param value the value
+		 *
+		 * @return false if the value was definitely not added
+		 */
+		boolean mightContain( String value ) {
+			long hash = hash( value );
+			for ( int i = 0; i < hashCount; i++ ) {
+				int bit = index( hash, i );
+				if ( ( bits.get( bit >>> 6 ) & ( 1L << ( bit & 63 ) ) ) == 0 ) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * The bit for the i-th hash function, using double hashing of the two halves of the 64 bit hash
+		 */
+		private int index( long hash, int i ) {
+			int combined = ( int ) hash + i * ( int ) ( hash >>> 32 );
+			return Math.floorMod( combined, bitCount );
+		}
+
+		/**
+		 * The 64 bit FNV-1a hash of a string, with a final avalanche mix
+		 */
+		private static long hash( String value ) {
+			long hash = 0xcbf29ce484222325L;
+			for ( int i = 0; i < value.length(); i++ ) {
+				hash	^= value.charAt( i );
+				hash	*= 0x100000001b3L;
+			}
+			hash	^= hash >>> 33;
+			hash	*= 0xff51afd7ed558ccdL;
+			hash	^= hash >>> 33;
+			return hash;
+		}
+
+	}
+
+}
@@ -0,0 +1,544 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertStore;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.Time;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.CMSAuthEnvelopedDataParser;
+import org.bouncycastle.cms.CMSEnvelopedDataParser;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSTypedStream;
+import org.bouncycastle.cms.RecipientInformation;
+import org.bouncycastle.cms.RecipientInformationStore;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.cms.jcajce.JceKeyTransEnvelopedRecipient;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipientId;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.mail.smime.SMIMESignedParser;
+import org.bouncycastle.mail.smime.util.FileBackedMimeBodyPart;
+import org.bouncycastle.operator.bc.BcDigestCalculatorProvider;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetHeaders;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.util.SharedFileInputStream;
+import ortus.boxlang.runtime.dynamic.casters.StringCaster;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.Array;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
+
+/**
+ * Decrypts and verifies inbound S/MIME messages.
+ *
+ * Messages are read from a file, or from a stream which is first copied to a temporary file. The file is parsed with a
+ * {@link SharedFileInputStream}, so the parts of the message are read from disk as they are needed rather than held in memory.
+ * Enveloped content is decrypted with the streaming CMS parsers, and signed content is verified with a {@link SMIMESignedParser},
+ * which keeps the signed content in a temporary file. Decrypted and signed content can be written straight to a destination
+ * file, so the size of a message is limited by the disk rather than the heap.
+ *
+ * The encrypted or signed entity need not be the whole message. The MIME tree is searched, depth first, for the first
+ * enveloped or signed entity, so the messages built by this module - whose enveloped part is the single part of an outer
+ * multipart - and signed or encrypted entities nested in other multiparts or attached messages are read too.
+ *
+ * The private key of the recipient is read from a keystore, which is loaded once and held by the {@link KeyMaterialRegistry}.
+ */
+public final class SmimeReader {
+
+	private static final Session SESSION = Session.getInstance( new Properties() );
+
+	static {
+		SmimeSupport.initialize();
+	}
+
+	private SmimeReader() {
+	}
+
+	/**
+	 * A message read from a file, which is deleted on close if it is a copy of a stream
+	 */
+	static final class Source implements AutoCloseable {
+
+		final MimeMessage						message;
+		private final SharedFileInputStream		input;
+		private final Path						temporary;
+
+		Source( Path file, Path temporary ) throws IOException, MessagingException {
+			this.input		= new SharedFileInputStream( file.toFile() );
+			this.temporary	= temporary;
+			this.message	= new MimeMessage( SESSION, input );
+		}
+
+		@Override
+		public void close() throws IOException {
+			input.close();
+			if ( temporary != null ) {
+				Files.deleteIfExists( temporary );
+			}
+		}
+
+	}
+
+	/**
+	 * Opens a message from a file path, a {@link File}, a {@link Path} or an {@link InputStream}. Streams are copied to a temporary
+	 * file and closed
+	 *
+	 * @param source the message source
+	 *
+	 * @return the opened message, which must be closed
+	 */
+	static Source open( Object source ) {
+		try {
+			if ( source instanceof InputStream stream ) {
+				Path temporary = Files.createTempFile( "bx-mail-", ".eml" );
+				try ( stream ) {
+					Files.copy( stream, temporary, StandardCopyOption.REPLACE_EXISTING );
+					return new Source( temporary, temporary );
+				} catch ( IOException | MessagingException | RuntimeException e ) {
+					Files.deleteIfExists( temporary );
+					throw e;
+				}
+			}
+			Path file = source instanceof Path path ? path
+			    : source instanceof File ioFile ? ioFile.toPath()
+			    : Path.of( StringCaster.cast( source ) );
+			if ( !Files.isRegularFile( file ) ) {
+				throw new BoxRuntimeException( "The message file [" + file + "] does not exist" );
+			}
+			return new Source( file, null );
+		} catch ( IOException | MessagingException e ) {
+			throw new BoxRuntimeException( "The message could not be read: " + e.getMessage(), e );
+		}
+	}
+
+	/**
+	 * Decrypts an enveloped ( <code>enveloped-data</code> or <code>authEnveloped-data</code> ) message
+	 *
+	 * @param source           the message: a file path, a {@link File}, a {@link Path} or an {@link InputStream}
+	 * @param keystorePath     the path of the PKCS12 keystore holding the recipient's private key and certificate
+	 * @param keystorePassword the password of the keystore
+	 * @param keyAlias         the alias of the key
+	 * @param keyPassword      the password of the key
+	 * @param destination      the file the decrypted MIME entity is written to, or null to return it in memory
+	 *
+	 * @return a struct with the <code>contentType</code> of the decrypted entity, and either the <code>file</code> it was written to
+	 *         or its <code>content</code> and <code>part</code>
+	 */
+	public static IStruct decrypt(
+	    Object source,
+	    String keystorePath,
+	    String keystorePassword,
+	    String keyAlias,
+	    String keyPassword,
+	    String destination ) {
+		MailEncryptionUtil.SigningKey key = MailEncryptionUtil.getSigningKey( keystorePath, keystorePassword, keyAlias, keyPassword );
+		try ( Source message = open( source ) ) {
+			if ( destination == null ) {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				decrypt( message.message, key, buffer );
+				return describe( new MimeBodyPart( new ByteArrayInputStream( buffer.toByteArray() ) ) );
+			}
+			Path	target		= Path.of( destination ).toAbsolutePath();
+			// the content is only trusted once the whole of it has been decrypted, which checks the tag of authenticated content
+			Path	partial		= target.resolveSibling( target.getFileName() + ".part" );
+			try ( OutputStream output = Files.newOutputStream( partial ) ) {
+				decrypt( message.message, key, output );
+			} catch ( Exception e ) {
+				Files.deleteIfExists( partial );
+				throw e;
+			}
+			Files.move( partial, target, StandardCopyOption.REPLACE_EXISTING );
+			try ( InputStream input = Files.newInputStream( target ) ) {
+				// only the headers of the entity are read
+				String entityType = new InternetHeaders( input ).getHeader( "Content-Type", null );
+				return Struct.of(
+				    MailKeys.contentType, entityType != null ? entityType : "text/plain",
+				    Key.file, target.toString()
+				);
+			}
+		} catch ( BoxRuntimeException e ) {
+			throw e;
+		} catch ( Exception e ) {
+			throw new BoxRuntimeException( "The message could not be decrypted: " + e.getMessage(), e );
+		}
+	}
+
+	/**
+	 * Streams the decrypted content of a message to an output stream
+	 */
+	private static void decrypt( MimeMessage message, MailEncryptionUtil.SigningKey key, OutputStream output ) throws Exception {
+		Part enveloped = findPart( message, SmimeReader::isEnveloped );
+		if ( enveloped == null ) {
+			throw new BoxRuntimeException( "The message is not encrypted. Its content type is [" + message.getContentType() + "]" );
+		}
+		String contentType = enveloped.getContentType().toLowerCase();
+		X509Certificate					certificate	= new JcaX509CertificateConverter().getCertificate( key.certificate() );
+		JceKeyTransRecipientId			recipientId	= new JceKeyTransRecipientId( certificate );
+		JceKeyTransEnvelopedRecipient	recipient	= new JceKeyTransEnvelopedRecipient( key.privateKey() );
+		recipient.setContentProvider( BouncyCastleProvider.PROVIDER_NAME );
+
+		try ( InputStream encrypted = enveloped.getInputStream() ) {
+			RecipientInformationStore recipients = contentType.contains( "authenveloped-data" )
+			    ? new CMSAuthEnvelopedDataParser( encrypted ).getRecipientInfos()
+			    : new CMSEnvelopedDataParser( encrypted ).getRecipientInfos();
+			RecipientInformation information = recipients.get( recipientId );
+			if ( information == null ) {
+				throw new BoxRuntimeException( "The message was not encrypted for the certificate of the key [" + key.certificate().getSubject() + "]" );
+			}
+			CMSTypedStream content = information.getContentStream( recipient );
+			try ( InputStream decrypted = content.getContentStream() ) {
+				decrypted.transferTo( output );
+			}
+		}
+	}
+
+	/**
+	 * Verifies the signatures of a signed message, trusting the certificate authorities of the JVM
+	 *
+	 * @param source      the message: a file path, a {@link File}, a {@link Path} or an {@link InputStream}
+	 * @param destination the file the signed MIME entity is written to, or null to return it in memory
+	 *
+	 * @return the verification result - see {@link #verify(Object, String, String, String)}
+	 */
+	public static IStruct verify( Object source, String destination ) {
+		return verify( source, destination, null, null );
+	}
+
+	/**
+	 * Verifies the signatures of a signed ( <code>multipart/signed</code> or <code>signed-data</code> ) message. Each signature is
+	 * checked against the certificate of its signer carried in the message. The certificate must be valid now, and a PKIX path
+	 * must be built from it, through any intermediate certificates in the message, to a certificate in the trust store. The
+	 * signing time in the message is reported but not relied on, as it is chosen by the signer. Revocation is not checked.
+	 *
+	 * @param source             the message: a file path, a {@link File}, a {@link Path} or an {@link InputStream}
+	 * @param destination        the file the signed MIME entity is written to, or null to return it in memory
+	 * @param trustStore         the path of a keystore whose certificates are trusted, or null to trust the certificate authorities
+	 *                           of the JVM
+	 * @param trustStorePassword the password of the trust store
+	 *
+	 * @return a struct with whether every signature is <code>valid</code> - matching the content and made with a trusted, current
+	 *         certificate - and whether every <code>signatureValid</code>, the <code>signers</code>, the <code>contentType</code>
+	 *         of the signed entity, and either the <code>file</code> it was written to or its <code>content</code> and
+	 *         <code>part</code>
+	 */
+	public static IStruct verify( Object source, String destination, String trustStore, String trustStorePassword ) {
+		Set<TrustAnchor> anchors = getTrustAnchors( trustStore, trustStorePassword );
+		try ( Source message = open( source ) ) {
+			Part signedEntity = findPart( message.message, SmimeReader::isSigned );
+			if ( signedEntity == null ) {
+				throw new BoxRuntimeException( "The message is not signed. Its content type is [" + message.message.getContentType() + "]" );
+			}
+			SMIMESignedParser parser = signedEntity.isMimeType( "multipart/signed" )
+			    ? new SMIMESignedParser( new BcDigestCalculatorProvider(), ( MimeMultipart ) signedEntity.getContent() )
+			    : new SMIMESignedParser( new BcDigestCalculatorProvider(), signedEntity );
+
+			// the parser has copied the signed content to a temporary file, calculating its digests on the way
+			MimeBodyPart signed = parser.getContent();
+			try {
+				List<X509Certificate>	certificates	= getCertificates( parser );
+				Array					signers			= new Array();
+				boolean					valid			= true;
+				boolean					signatureValid	= true;
+				for ( SignerInformation signer : parser.getSignerInfos().getSigners() ) {
+					IStruct signerResult = verifySigner( parser, signer, certificates, anchors );
+					valid			= valid && Boolean.TRUE.equals( signerResult.get( MailKeys.valid ) );
+					signatureValid	= signatureValid && Boolean.TRUE.equals( signerResult.get( MailKeys.signatureValid ) );
+					signers.add( signerResult );
+				}
+				valid			= valid && !signers.isEmpty();
+				signatureValid	= signatureValid && !signers.isEmpty();
+
+				IStruct result;
+				if ( destination == null ) {
+					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+					signed.writeTo( buffer );
+					result = describe( new MimeBodyPart( new ByteArrayInputStream( buffer.toByteArray() ) ) );
+				} else {
+					Path target = Path.of( destination ).toAbsolutePath();
+					try ( OutputStream output = Files.newOutputStream( target ) ) {
+						signed.writeTo( output );
+					}
+					result = Struct.of( MailKeys.contentType, signed.getContentType(), Key.file, target.toString() );
+				}
+				result.put( MailKeys.valid, valid );
+				result.put( MailKeys.signatureValid, signatureValid );
+				result.put( MailKeys.signers, signers );
+				return result;
+			} finally {
+				if ( signed instanceof FileBackedMimeBodyPart fileBacked ) {
+					fileBacked.dispose();
+				}
+			}
+		} catch ( BoxRuntimeException e ) {
+			throw e;
+		} catch ( Exception e ) {
+			throw new BoxRuntimeException( "The message signature could not be verified: " + e.getMessage(), e );
+		}
+	}
+
+	/**
+	 * Verifies the signature of a signer against its certificate in the message, and the certificate against the trust anchors
+	 */
+	@SuppressWarnings( "unchecked" )
+	private static IStruct verifySigner( SMIMESignedParser parser, SignerInformation signer, List<X509Certificate> certificates, Set<TrustAnchor> anchors )
+	    throws Exception {
+		Collection<X509CertificateHolder>	matches		= parser.getCertificates().getMatches( signer.getSID() );
+		Date								signedAt	= getSigningTime( signer );
+		IStruct								result		= Struct.of(
+		    MailKeys.signedAt, signedAt != null ? signedAt.getTime() : null,
+		    MailKeys.valid, false,
+		    MailKeys.signatureValid, false,
+		    MailKeys.trusted, false
+		);
+		if ( matches.isEmpty() ) {
+			result.put( MailKeys.error, "The certificate of the signer is not included in the message" );
+			return result;
+		}
+		X509CertificateHolder	holder		= matches.iterator().next();
+		X509Certificate			certificate	= new JcaX509CertificateConverter().getCertificate( holder );
+		result.put( MailKeys.subject, holder.getSubject().toString() );
+		result.put( MailKeys.issuer, holder.getIssuer().toString() );
+		result.put( MailKeys.serialNumber, holder.getSerialNumber().toString( 16 ) );
+		result.put( MailKeys.certificate, certificate );
+
+		boolean signatureValid;
+		try {
+			signatureValid = signer.verify( new JcaSimpleSignerInfoVerifierBuilder().setProvider( BouncyCastleProvider.PROVIDER_NAME ).build( holder ) );
+		} catch ( CMSException e ) {
+			// a content digest which does not match is reported as an exception rather than an invalid signature
+			signatureValid = false;
+		}
+		// the certificate is checked at the current time, rather than at the signing time the signer claims
+		boolean	certificateValid	= holder.isValidOn( new Date() );
+		String	untrusted			= checkTrust( certificate, certificates, anchors );
+		result.put( MailKeys.signatureValid, signatureValid );
+		result.put( MailKeys.trusted, untrusted == null );
+		result.put( MailKeys.valid, signatureValid && certificateValid && untrusted == null );
+		if ( !signatureValid ) {
+			result.put( MailKeys.error, "The signature does not match the content" );
+		} else if ( !certificateValid ) {
+			result.put( MailKeys.error, "The certificate of the signer is expired or not yet valid" );
+		} else if ( untrusted != null ) {
+			result.put( MailKeys.error, untrusted );
+		}
+		return result;
+	}
+
+	/**
+	 * Builds a PKIX path from a signer certificate to a trust anchor at the current time, using the certificates of the message
+	 * as intermediates
+	 *
+	 * @return null if the certificate is trusted, or the reason it is not
+	 */
+	private static String checkTrust( X509Certificate certificate, List<X509Certificate> certificates, Set<TrustAnchor> anchors ) {
+		if ( anchors.isEmpty() ) {
+			return "The trust store holds no certificates, so the certificate of the signer is not trusted";
+		}
+		for ( TrustAnchor anchor : anchors ) {
+			if ( certificate.equals( anchor.getTrustedCert() ) ) {
+				return null;
+			}
+		}
+		try {
+			X509CertSelector target = new X509CertSelector();
+			target.setCertificate( certificate );
+			PKIXBuilderParameters parameters = new PKIXBuilderParameters( anchors, target );
+			parameters.addCertStore( CertStore.getInstance( "Collection", new CollectionCertStoreParameters( certificates ) ) );
+			parameters.setRevocationEnabled( false );
+			CertPathBuilder.getInstance( "PKIX" ).build( parameters );
+			return null;
+		} catch ( GeneralSecurityException e ) {
+			return "The certificate of the signer is not trusted: " + e.getMessage();
+		}
+	}
+
+	/**
+	 * The certificates carried in a signed message
+	 */
+	@SuppressWarnings( "unchecked" )
+	private static List<X509Certificate> getCertificates( SMIMESignedParser parser ) throws Exception {
+		JcaX509CertificateConverter	converter		= new JcaX509CertificateConverter();
+		List<X509Certificate>		certificates	= new ArrayList<>();
+		for ( X509CertificateHolder holder : ( Collection<X509CertificateHolder> ) parser.getCertificates().getMatches( null ) ) {
+			certificates.add( converter.getCertificate( holder ) );
+		}
+		return certificates;
+	}
+
+	/**
+	 * The trust anchors for signature verification: the certificates in a trust store, or the certificate authorities trusted
+	 * by the JVM
+	 *
+	 * @param trustStore         the path of the trust store, or null to use the JVM trust store
+	 * @param trustStorePassword the password of the trust store
+	 *
+	 * @return the trust anchors
+	 */
+	static Set<TrustAnchor> getTrustAnchors( String trustStore, String trustStorePassword ) {
+		Set<TrustAnchor> anchors = new HashSet<>();
+		try {
+			if ( trustStore == null ) {
+				TrustManagerFactory factory = TrustManagerFactory.getInstance( TrustManagerFactory.getDefaultAlgorithm() );
+				factory.init( ( KeyStore ) null );
+				for ( TrustManager manager : factory.getTrustManagers() ) {
+					if ( manager instanceof X509TrustManager x509Manager ) {
+						for ( X509Certificate issuer : x509Manager.getAcceptedIssuers() ) {
+							anchors.add( new TrustAnchor( issuer, null ) );
+						}
+					}
+				}
+				return anchors;
+			}
+			// the certificates of both trusted certificate and key entries are trusted, so a keystore may be used as its own trust store
+			KeyStore keystore = KeyStore.getInstance( Path.of( trustStore ).toFile(), trustStorePassword != null ? trustStorePassword.toCharArray() : null );
+			for ( String alias : Collections.list( keystore.aliases() ) ) {
+				if ( keystore.getCertificate( alias ) instanceof X509Certificate certificate ) {
+					anchors.add( new TrustAnchor( certificate, null ) );
+				}
+			}
+			return anchors;
+		} catch ( IOException | GeneralSecurityException e ) {
+			throw new BoxRuntimeException( "The trust store [" + ( trustStore != null ? trustStore : "JVM" ) + "] could not be loaded: " + e.getMessage(), e );
+		}
+	}
+
+	/**
+	 * The signing time attribute of a signer
+	 *
+	 * @return the signing time, or null if the signer has no signing time
+	 */
+	private static Date getSigningTime( SignerInformation signer ) {
+		if ( signer.getSignedAttributes() == null ) {
+			return null;
+		}
+		Attribute signingTime = signer.getSignedAttributes().get( CMSAttributes.signingTime );
+		if ( signingTime == null ) {
+			return null;
+		}
+		return Time.getInstance( signingTime.getAttrValues().getObjectAt( 0 ) ).getDate();
+	}
+
+	/**
+	 * Searches a MIME tree, depth first, for the first entity which matches a test. Multiparts and attached messages are
+	 * searched, but the content of a matching entity is not.
+	 *
+	 * @param part the root of the tree
+	 * @param test the test
+	 *
+	 * @return the first matching entity, or null if there is none
+	 */
+	static Part findPart( Part part, Predicate<Part> test ) throws IOException, MessagingException {
+		if ( test.test( part ) ) {
+			return part;
+		}
+		if ( part.isMimeType( "multipart/*" ) ) {
+			Multipart multipart = ( Multipart ) part.getContent();
+			for ( int i = 0; i < multipart.getCount(); i++ ) {
+				Part found = findPart( multipart.getBodyPart( i ), test );
+				if ( found != null ) {
+					return found;
+				}
+			}
+		} else if ( part.isMimeType( "message/rfc822" ) && part.getContent() instanceof Part attached ) {
+			return findPart( attached, test );
+		}
+		return null;
+	}
+
+	/**
+	 * Whether an entity is enveloped ( encrypted ) S/MIME content
+	 */
+	private static boolean isEnveloped( Part part ) {
+		String contentType = contentType( part );
+		return contentType.contains( "pkcs7-mime" ) && !contentType.contains( "signed-data" );
+	}
+
+	/**
+	 * Whether an entity is signed S/MIME content, either <code>multipart/signed</code> or opaque <code>signed-data</code>
+	 */
+	private static boolean isSigned( Part part ) {
+		String contentType = contentType( part );
+		return contentType.startsWith( "multipart/signed" ) || ( contentType.contains( "pkcs7-mime" ) && !contentType.contains( "enveloped-data" ) );
+	}
+
+	/**
+	 * The lower case content type of an entity, or an empty string if it cannot be read
+	 */
+	private static String contentType( Part part ) {
+		try {
+			String contentType = part.getContentType();
+			return contentType != null ? contentType.toLowerCase() : "";
+		} catch ( MessagingException e ) {
+			return "";
+		}
+	}
+
+	/**
+	 * Describes a MIME entity which is returned in memory
+	 */
+	private static IStruct describe( MimeBodyPart part ) throws IOException, MessagingException {
+		return Struct.of(
+		    MailKeys.contentType, part.getContentType(),
+		    MailKeys.content, part.isMimeType( "text/*" ) ? part.getContent().toString() : part.getContent(),
+		    MailKeys.part, part
+		);
+	}
+
+}
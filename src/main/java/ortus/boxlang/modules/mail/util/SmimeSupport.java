@@ -0,0 +1,144 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import jakarta.activation.CommandMap;
+import jakarta.activation.MailcapCommandMap;
+
+/**
+ * The JVM-wide state which S/MIME needs: the BouncyCastle security provider and the mailcap entries of the S/MIME content
+ * handlers.
+ *
+ * Each is registered by a lazily initialized holder rather than when the module loads. The provider is installed on the first
+ * signature, encryption or decryption, so plain messages never touch it. The mailcap entries also supply the text and multipart
+ * handlers, which the default command map of the context class loader may lack, so they are registered when the first message is
+ * built. Registration is idempotent: a provider which is already installed is reused, and only the mailcap entries whose MIME type
+ * has no handler are added, so reloading the module does not stack up providers or replace the handlers of other libraries.
+ */
+public final class SmimeSupport {
+
+	/**
+	 * The mailcap entries of the content handlers which message and S/MIME parts are written and read with
+	 */
+	static final List<String> MAILCAP_ENTRIES = List.of(
+	    "application/pkcs7-signature;; x-java-content-handler=org.bouncycastle.mail.smime.handlers.pkcs7_signature",
+	    "application/pkcs7-mime;; x-java-content-handler=org.bouncycastle.mail.smime.handlers.pkcs7_mime",
+	    "application/x-pkcs7-signature;; x-java-content-handler=org.bouncycastle.mail.smime.handlers.x_pkcs7_signature",
+	    "application/x-pkcs7-mime;; x-java-content-handler=org.bouncycastle.mail.smime.handlers.x_pkcs7_mime",
+	    "multipart/signed;; x-java-content-handler=org.bouncycastle.mail.smime.handlers.multipart_signed",
+	    "text/html;; x-java-content-handler=com.sun.mail.handlers.text_html",
+	    "text/xml;; x-java-content-handler=com.sun.mail.handlers.text_xml",
+	    "text/plain;; x-java-content-handler=com.sun.mail.handlers.text_plain",
+	    "multipart/*;; x-java-content-handler=com.sun.mail.handlers.multipart_mixed",
+	    "message/rfc822;; x-java-content-handler=com.sun.mail.handlers.message_rfc822"
+	);
+
+	private SmimeSupport() {
+	}
+
+	/**
+	 * Registers the BouncyCastle provider and the S/MIME mailcap entries, if they are not already registered
+	 */
+	public static void initialize() {
+		provider();
+		commandMap();
+	}
+
+	/**
+	 * Gets the BouncyCastle provider, installing it on first use
+	 *
+	 * @return the installed provider
+	 */
+	public static Provider provider() {
+		return ProviderHolder.INSTANCE;
+	}
+
+	/**
+	 * Gets the default command map, adding the S/MIME content handlers on first use
+	 *
+	 * @return the command map
+	 */
+	public static CommandMap commandMap() {
+		return MailcapHolder.INSTANCE;
+	}
+
+	/**
+	 * Installs the BouncyCastle provider unless a provider of the same name is already installed
+	 *
+	 * @return the installed provider
+	 */
+	static Provider installProvider() {
+		Provider installed = Security.getProvider( BouncyCastleProvider.PROVIDER_NAME );
+		if ( installed != null ) {
+			return installed;
+		}
+		Provider provider = new BouncyCastleProvider();
+		// another thread or library may install it between the lookup and the add, in which case its provider is kept
+		if ( Security.addProvider( provider ) == -1 ) {
+			return Security.getProvider( BouncyCastleProvider.PROVIDER_NAME );
+		}
+		return provider;
+	}
+
+	/**
+	 * Adds the mailcap entries whose MIME types have no handler to the default command map
+	 *
+	 * @return the default command map
+	 */
+	static CommandMap registerMailcap() {
+		CommandMap commandMap = CommandMap.getDefaultCommandMap();
+		if ( ! ( commandMap instanceof MailcapCommandMap mailcap ) ) {
+			// a custom command map has been installed, and is trusted to handle the S/MIME types
+			return commandMap;
+		}
+		synchronized ( mailcap ) {
+			Set<String> registered = new HashSet<>( Arrays.asList( mailcap.getMimeTypes() ) );
+			for ( String entry : MAILCAP_ENTRIES ) {
+				if ( !registered.contains( entry.substring( 0, entry.indexOf( ';' ) ) ) ) {
+					mailcap.addMailcap( entry );
+				}
+			}
+		}
+		// without a default the map of the context class loader is used, so the map is made the default for every class loader.
+		// When it already is the default this changes nothing
+		CommandMap.setDefaultCommandMap( mailcap );
+		return mailcap;
+	}
+
+	private static final class ProviderHolder {
+
+		static final Provider INSTANCE = installProvider();
+
+	}
+
+	private static final class MailcapHolder {
+
+		static final CommandMap INSTANCE = registerMailcap();
+
+	}
+
+}
@@ -0,0 +1,285 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.util.List;
+
+import ortus.boxlang.modules.mail.exceptions.MailSpoolFullException;
+import ortus.boxlang.modules.mail.schedulers.SpoolScheduler;
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.cache.providers.ICacheProvider;
+import ortus.boxlang.runtime.dynamic.casters.BooleanCaster;
+import ortus.boxlang.runtime.dynamic.casters.DoubleCaster;
+import ortus.boxlang.runtime.dynamic.casters.IntegerCaster;
+import ortus.boxlang.runtime.dynamic.casters.StringCaster;
+import ortus.boxlang.runtime.dynamic.casters.StructCaster;
+import ortus.boxlang.runtime.logging.BoxLangLogger;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
+
+/**
+ * Admission control for the mail spool.
+ *
+ * Before a message is spooled its size and the state of the spool index are compared with the configured high-water marks:
+ * <ul>
+ * <li><code>spoolMaxDepth</code> - the maximum number of spooled messages</li>
+ * <li><code>spoolMaxSize</code> - the maximum approximate size of the spool, in megabytes</li>
+ * <li><code>spoolMaxAge</code> - the maximum age, in minutes, of the oldest spooled message</li>
+ * </ul>
+ * A value of zero disables a mark. When the spool is above a mark the <code>spoolOverflow</code> setting selects the behavior:
+ * <ul>
+ * <li><code>reject</code> - the message is rejected with a {@link MailSpoolFullException}</li>
+ * <li><code>block</code> - the caller waits, up to <code>spoolBlockTimeout</code> seconds, for the spool to drain below the marks
+ * before the message is rejected</li>
+ * <li><code>shed</code> - while the oldest spooled message is older than the age mark, it is bounced whatever its priority, since
+ * it has already waited longer than allowed. Otherwise spooled messages of the same or a lower priority are bounced, lowest
+ * priority first, to make room. The message is rejected if room cannot be made</li>
+ * </ul>
+ * A message is claimed in the spool index before it is shed, so messages which are being sent are never shed, and messages
+ * leased by another node are left to that node.
+ * A batch of messages may be admitted together, in which case the marks are checked for the whole batch at once and the batch
+ * is admitted or rejected as a unit. The checks use the spool index, so admission does not touch the spool store. They are not atomic with the write to the
+ * spool, so concurrent senders may overshoot a mark by a few messages.
+ */
+public final class SpoolAdmission {
+
+	/**
+	 * The overflow policies
+	 */
+	public enum Overflow {
+		BLOCK,
+		REJECT,
+		SHED
+	}
+
+	static final long					BLOCK_POLL_MILLIS	= 100L;
+
+	private static final BoxRuntime		runtime				= BoxRuntime.getInstance();
+	private static final BoxLangLogger	logger				= runtime.getLoggingService().getLogger( "MailSpool" );
+
+	private SpoolAdmission() {
+	}
+
+	/**
+	 * Admits an entry to the spool, applying the configured overflow policy if the spool is above its high-water marks
+	 *
+	 * @param entry the index entry of the message to spool
+	 *
+	 * @throws MailSpoolFullException if the message cannot be admitted
+	 */
+	public static void admit( SpoolIndex.Entry entry ) {
+		admit( List.of( entry ) );
+	}
+
+	/**
+	 * Admits a batch of entries to the spool together, applying the configured overflow policy once for the whole batch
+	 *
+	 * @param entries the index entries of the messages to spool
+	 *
+	 * @throws MailSpoolFullException if the batch cannot be admitted
+	 */
+	public static void admit( List<SpoolIndex.Entry> entries ) {
+		IStruct moduleSettings = runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
+		admit( entries, SpoolIndex.getInstance(), moduleSettings );
+	}
+
+	/**
+	 * Admits an entry to the spool, applying the configured overflow policy if the spool is above its high-water marks
+	 *
+	 * @param entry          the index entry of the message to spool
+	 * @param index          the spool index
+	 * @param moduleSettings the module settings
+	 *
+	 * @throws MailSpoolFullException if the message cannot be admitted
+	 */
+	static void admit( SpoolIndex.Entry entry, SpoolIndex index, IStruct moduleSettings ) {
+		admit( List.of( entry ), index, moduleSettings );
+	}
+
+	/**
+	 * Admits a batch of entries to the spool together, applying the configured overflow policy once for the whole batch
+	 *
+	 * @param entries        the index entries of the messages to spool
+	 * @param index          the spool index
+	 * @param moduleSettings the module settings
+	 *
+	 * @throws MailSpoolFullException if the batch cannot be admitted
+	 */
+	static void admit( List<SpoolIndex.Entry> entries, SpoolIndex index, IStruct moduleSettings ) {
+		if ( entries.isEmpty() ) {
+			return;
+		}
+		int		maxDepth		= IntegerCaster.cast( moduleSettings.getOrDefault( MailKeys.spoolMaxDepth, 0 ) );
+		long	maxBytes		= ( long ) ( DoubleCaster.cast( moduleSettings.getOrDefault( MailKeys.spoolMaxSize, 0 ) ) * 1024 * 1024 );
+		long	maxAgeMillis	= ( long ) ( DoubleCaster.cast( moduleSettings.getOrDefault( MailKeys.spoolMaxAge, 0 ) ) * 60000 );
+		long	batchBytes		= entries.stream().mapToLong( SpoolIndex.Entry::size ).sum();
+		// nothing more important than the least important message of the batch may be shed to admit it
+		int		priority		= entries.stream().mapToInt( SpoolIndex.Entry::priority ).max().getAsInt();
+
+		String	exceeded		= exceededMark( entries.size(), batchBytes, index, maxDepth, maxBytes, maxAgeMillis );
+		if ( exceeded == null ) {
+			return;
+		}
+
+		switch ( getOverflow( moduleSettings ) ) {
+			case BLOCK -> {
+				long deadline = System.currentTimeMillis()
+				    + ( long ) ( DoubleCaster.cast( moduleSettings.getOrDefault( MailKeys.spoolBlockTimeout, 30 ) ) * 1000 );
+				while ( exceeded != null && System.currentTimeMillis() < deadline ) {
+					try {
+						Thread.sleep( Math.min( BLOCK_POLL_MILLIS, Math.max( deadline - System.currentTimeMillis(), 1 ) ) );
+					} catch ( InterruptedException e ) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+					exceeded = exceededMark( entries.size(), batchBytes, index, maxDepth, maxBytes, maxAgeMillis );
+				}
+			}
+			case SHED -> {
+				while ( exceeded != null && shed( priority, index, maxAgeMillis, moduleSettings ) ) {
+					exceeded = exceededMark( entries.size(), batchBytes, index, maxDepth, maxBytes, maxAgeMillis );
+				}
+			}
+			case REJECT -> {
+			}
+		}
+
+		if ( exceeded != null ) {
+			throw new MailSpoolFullException(
+			    "The message could not be spooled because the mail spool is above its " + exceeded + " high-water mark",
+			    Struct.of(
+			        MailKeys.spoolDepth, index.size(),
+			        MailKeys.spoolSize, index.totalSize(),
+			        MailKeys.spooledAt, index.oldestSpooledAt()
+			    )
+			);
+		}
+	}
+
+	/**
+	 * Determines which high-water mark, if any, admitting a batch of entries would exceed
+	 *
+	 * @return the name of the exceeded mark, or null if the batch may be admitted
+	 */
+	private static String exceededMark( int count, long bytes, SpoolIndex index, int maxDepth, long maxBytes, long maxAgeMillis ) {
+		if ( maxDepth > 0 && index.size() + count > maxDepth ) {
+			return "depth";
+		}
+		if ( maxBytes > 0 && index.totalSize() + bytes > maxBytes ) {
+			return "size";
+		}
+		long oldest = index.oldestSpooledAt();
+		if ( maxAgeMillis > 0 && oldest > 0 && System.currentTimeMillis() - oldest > maxAgeMillis ) {
+			return "age";
+		}
+		return null;
+	}
+
+	/**
+	 * Bounces a single spooled message to make room for new messages
+	 *
+	 * @param priority the priority rank of the least important message being admitted
+	 *
+	 * @return true if a message was shed, or another may be tried
+	 */
+	private static boolean shed( int priority, SpoolIndex index, long maxAgeMillis, IStruct moduleSettings ) {
+		SpoolIndex.Entry	victim	= null;
+		long				oldest	= index.oldestSpooledAt();
+		if ( maxAgeMillis > 0 && oldest > 0 && System.currentTimeMillis() - oldest > maxAgeMillis ) {
+			// the oldest message has waited longer than the age mark allows, so it is shed whatever its priority
+			victim = index.oldest();
+		} else {
+			SpoolIndex.Entry lowest = index.lowestPriority();
+			// otherwise the lowest priority message is shed first, but never one which is more important than the message being admitted
+			if ( lowest != null && lowest.priority() >= priority ) {
+				victim = lowest;
+			}
+		}
+		if ( victim == null ) {
+			return false;
+		}
+		if ( !index.claim( victim.key() ) ) {
+			// the spool processor started sending the message, so try the next one
+			return true;
+		}
+		SpoolLeaseManager leases = BooleanCaster.cast( moduleSettings.getOrDefault( MailKeys.spoolLeaseEnable, false ) )
+		    ? SpoolScheduler.getLeaseManager()
+		    : null;
+		if ( leases != null && leases.claim( victim.key() ) == SpoolLeaseManager.Claim.HELD ) {
+			// another node is sending the message, so the spool cannot be made smaller here
+			index.unclaim( victim.key() );
+			return false;
+		}
+		try {
+			bounce( victim, "The message was shed from the mail spool to admit new messages while the spool was above its high-water marks" );
+			index.remove( victim.key() );
+		} finally {
+			if ( leases != null ) {
+				leases.release( victim.key() );
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Moves a spooled message to the bounce cache
+	 *
+	 * @param victim the index entry of the message
+	 * @param reason the reason the message was bounced
+	 */
+	private static void bounce( SpoolIndex.Entry victim, String reason ) {
+		try {
+			if ( !runtime.getCacheService().hasCache( victim.cache() ) ) {
+				return;
+			}
+			ICacheProvider	spool	= runtime.getCacheService().getCache( victim.cache() );
+			var				attempt	= spool.get( victim.key() );
+			if ( attempt.isPresent() ) {
+				IStruct entryData = StructCaster.cast( attempt.get() );
+				entryData.put( Key.exception, reason );
+				entryData.put( MailKeys.errorClass, MailSpoolFullException.class.getSimpleName() );
+				if ( runtime.getCacheService().hasCache( MailKeys.mailBounced ) ) {
+					BounceStore.getInstance().bounce( victim.key(), entryData );
+				}
+				spool.clear( victim.key() );
+			}
+			logger.warn( String.format( "Spooled message [%s] was shed from the mail spool: %s", victim.key(), reason ) );
+		} catch ( BoxRuntimeException e ) {
+			logger.error( String.format( "Unable to shed spooled message [%s]: %s", victim.key(), e.getMessage() ) );
+		}
+	}
+
+	/**
+	 * The configured overflow policy
+	 *
+	 * @param moduleSettings the module settings
+	 *
+	 * @return the overflow policy
+	 */
+	private static Overflow getOverflow( IStruct moduleSettings ) {
+		String policy = StringCaster.cast( moduleSettings.getOrDefault( MailKeys.spoolOverflow, "reject" ) );
+		try {
+			return Overflow.valueOf( policy.trim().toUpperCase() );
+		} catch ( IllegalArgumentException e ) {
+			throw new BoxRuntimeException( "The spoolOverflow setting [" + policy + "] is not valid. Valid values are block, reject and shed" );
+		}
+	}
+
+}
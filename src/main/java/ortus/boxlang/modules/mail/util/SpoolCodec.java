@@ -0,0 +1,167 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import ortus.boxlang.runtime.dynamic.casters.IntegerCaster;
+import ortus.boxlang.runtime.dynamic.casters.StringCaster;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+import ortus.boxlang.runtime.types.exceptions.BoxIOException;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
+
+/**
+ * Transparent compression of spooled message payloads.
+ *
+ * When the <code>spoolCompression</code> setting names a codec, the string values of a serialized message ( e.g. the HTML body )
+ * which are at least <code>spoolCompressThreshold</code> bytes are replaced with their compressed bytes, and the codec is
+ * recorded in the message's <code>codec</code> key. Spool entries are bounced as they were spooled, so the same encoding
+ * applies to the bounce store. Entries are decoded according to their recorded codec, so entries written with compression
+ * disabled, or with a different codec, are always readable.
+ *
+ * The supported codecs are <code>deflate</code>, which favors speed, and <code>gzip</code>.
+ */
+public final class SpoolCodec {
+
+	public static final String	NONE				= "none";
+	public static final String	DEFLATE				= "deflate";
+	public static final String	GZIP				= "gzip";
+
+	static final int			DEFAULT_THRESHOLD	= 16384;
+
+	private SpoolCodec() {
+	}
+
+	/**
+	 * Compresses the large string values of a serialized message, according to the module settings
+	 *
+	 * @param messageData    the serialized message
+	 * @param moduleSettings the module settings
+	 *
+	 * @return the encoded message, which is the original struct if no values were compressed
+	 */
+	public static IStruct encode( IStruct messageData, IStruct moduleSettings ) {
+		String codec = StringCaster.cast( moduleSettings.getOrDefault( MailKeys.spoolCompression, NONE ) ).trim().toLowerCase();
+		if ( NONE.equals( codec ) || codec.isEmpty() ) {
+			return messageData;
+		}
+		if ( !DEFLATE.equals( codec ) && !GZIP.equals( codec ) ) {
+			throw new BoxRuntimeException( "The spoolCompression setting [" + codec + "] is not valid. Valid values are none, deflate and gzip" );
+		}
+		int		threshold	= IntegerCaster.cast( moduleSettings.getOrDefault( MailKeys.spoolCompressThreshold, DEFAULT_THRESHOLD ) );
+		IStruct	encoded		= null;
+		for ( Key key : messageData.keySet() ) {
+			if ( messageData.get( key ) instanceof String value && value.length() >= threshold ) {
+				byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+				if ( bytes.length >= threshold ) {
+					if ( encoded == null ) {
+						encoded = new Struct( messageData );
+					}
+					encoded.put( key, compress( bytes, codec ) );
+				}
+			}
+		}
+		if ( encoded == null ) {
+			return messageData;
+		}
+		encoded.put( MailKeys.codec, codec );
+		return encoded;
+	}
+
+	/**
+	 * Restores the compressed values of a serialized message
+	 *
+	 * @param messageData the serialized message
+	 *
+	 * @return the decoded message. Encoded messages are copied, so the spooled entry is left unchanged
+	 */
+	public static IStruct decode( IStruct messageData ) {
+		String codec = messageData.getAsString( MailKeys.codec );
+		if ( codec == null ) {
+			return messageData;
+		}
+		IStruct decoded = new Struct( messageData );
+		decoded.remove( MailKeys.codec );
+		for ( Key key : messageData.keySet() ) {
+			if ( messageData.get( key ) instanceof byte[] bytes ) {
+				decoded.put( key, new String( decompress( bytes, codec ), StandardCharsets.UTF_8 ) );
+			}
+		}
+		return decoded;
+	}
+
+	/**
+	 * Compresses bytes with a codec
+	 *
+	 * @param bytes the bytes to compress
+	 * @param codec the codec name
+	 *
+	 * @return the compressed bytes
+	 */
+	static byte[] compress( byte[] bytes, String codec ) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream( Math.max( bytes.length / 4, 64 ) );
+		if ( GZIP.equals( codec ) ) {
+			try ( OutputStream stream = new GZIPOutputStream( buffer ) ) {
+				stream.write( bytes );
+			} catch ( IOException e ) {
+				throw new BoxIOException( "Unable to compress the spooled message", e );
+			}
+		} else {
+			Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+			try ( OutputStream stream = new DeflaterOutputStream( buffer, deflater ) ) {
+				stream.write( bytes );
+			} catch ( IOException e ) {
+				throw new BoxIOException( "Unable to compress the spooled message", e );
+			} finally {
+				deflater.end();
+			}
+		}
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Decompresses bytes with a codec
+	 *
+	 * @param bytes the compressed bytes
+	 * @param codec the codec name
+	 *
+	 * @return the decompressed bytes
+	 */
+	static byte[] decompress( byte[] bytes, String codec ) {
+		try ( InputStream stream = GZIP.equals( codec )
+		    ? new GZIPInputStream( new ByteArrayInputStream( bytes ) )
+		    : new InflaterInputStream( new ByteArrayInputStream( bytes ) ) ) {
+			return stream.readAllBytes();
+		} catch ( IOException e ) {
+			throw new BoxIOException( "Unable to decompress the spooled message with the codec [" + codec + "]", e );
+		}
+	}
+
+}
@@ -0,0 +1,471 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import ortus.boxlang.runtime.cache.providers.ICacheProvider;
+import ortus.boxlang.runtime.dynamic.casters.IntegerCaster;
+import ortus.boxlang.runtime.dynamic.casters.LongCaster;
+import ortus.boxlang.runtime.dynamic.casters.StructCaster;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.Array;
+import ortus.boxlang.runtime.types.IStruct;
+
+/**
+ * An in-memory index of the metadata of spooled messages, so the spool can be scheduled and measured without deserializing
+ * the spooled payloads.
+ *
+ * The index is maintained as messages are spooled and acknowledged, and is rebuilt from the spool caches at startup. Each
+ * spool shard keeps its entries in two sorted sets: the entries which are due, ordered by priority, and the entries which are
+ * waiting for a later attempt, ordered by the time of that attempt. Waiting entries move to the due set as their time comes, so
+ * due work is found without scanning the spool. An entry only waits if its spooled data carries a <code>nextAttempt</code> time in
+ * the future, as failed deliveries are bounced rather than retried, so most entries are due as soon as they are spooled.
+ *
+ * Changes to the index are serialized, so the shard sets, the age order and the total size are always updated together. Reads
+ * do not lock, and may see the index between two changes.
+ *
+ * An entry is claimed by the spool processor before it is sent, and by admission control before it is shed, so a message is
+ * never both delivered and bounced. Claimed entries still count towards the depth and size of the spool, but are not returned as
+ * due or offered for shedding.
+ */
+public final class SpoolIndex {
+
+	/**
+	 * The metadata of a spooled message
+	 *
+	 * @param key         the spool entry key
+	 * @param cache       the spool cache in which the entry is stored
+	 * @param priority    the priority rank, from 1 ( highest ) to 5 ( lowest )
+	 * @param nextAttempt the time, in epoch milliseconds, at which the message is next due to be sent
+	 * @param server      the primary mail server for the message
+	 * @param size        the approximate size of the spooled entry, in bytes
+	 * @param attempts    the number of delivery attempts made
+	 * @param spooledAt   the time, in epoch milliseconds, at which the message was spooled
+	 */
+	public record Entry( String key, Key cache, int priority, long nextAttempt, String server, long size, int attempts, long spooledAt ) {
+
+		/**
+		 * Creates the index entry for a spooled message
+		 *
+		 * @param key       the spool entry key
+		 * @param cache     the spool cache in which the entry is stored
+		 * @param entryData the spooled entry
+		 *
+		 * @return the index entry
+		 */
+		public static Entry of( String key, Key cache, IStruct entryData ) {
+			long	now			= System.currentTimeMillis();
+			long	spooledAt	= entryData.get( MailKeys.spooledAt ) != null ? LongCaster.cast( entryData.get( MailKeys.spooledAt ) ) : now;
+			long	nextAttempt	= entryData.get( MailKeys.nextAttempt ) != null ? LongCaster.cast( entryData.get( MailKeys.nextAttempt ) ) : spooledAt;
+			int		attempts	= entryData.get( MailKeys.attempts ) != null ? IntegerCaster.cast( entryData.get( MailKeys.attempts ) ) : 0;
+			String	server		= null;
+			Array	mailServers	= entryData.getAsArray( MailKeys.mailServers );
+			if ( mailServers != null && !mailServers.isEmpty() ) {
+				server = StructCaster.cast( mailServers.get( 0 ) ).getAsString( Key.server );
+			}
+			return new Entry(
+			    key,
+			    cache,
+			    priorityRank( entryData.get( Key.priority ) ),
+			    nextAttempt,
+			    server,
+			    estimateSize( entryData ),
+			    attempts,
+			    spooledAt
+			);
+		}
+	}
+
+	/**
+	 * Orders entries by priority, then by the time of their next attempt, then by the time they were spooled
+	 */
+	static final Comparator<Entry>				ORDER		= Comparator.comparingInt( Entry::priority )
+	    .thenComparingLong( Entry::nextAttempt )
+	    .thenComparingLong( Entry::spooledAt )
+	    .thenComparing( Entry::key );
+
+	/**
+	 * Orders entries by the time of their next attempt
+	 */
+	static final Comparator<Entry>				DUE_ORDER	= Comparator.comparingLong( Entry::nextAttempt )
+	    .thenComparing( Entry::key );
+
+	/**
+	 * Orders entries by the time they were spooled
+	 */
+	static final Comparator<Entry>				AGE_ORDER	= Comparator.comparingLong( Entry::spooledAt )
+	    .thenComparing( Entry::key );
+
+	private static final SpoolIndex				instance	= new SpoolIndex();
+
+	private final Map<String, Entry>			entries		= new ConcurrentHashMap<>();
+	private final Map<Key, Shard>				shards		= new ConcurrentHashMap<>();
+	private final ConcurrentSkipListSet<Entry>	byAge		= new ConcurrentSkipListSet<>( AGE_ORDER );
+	private final AtomicLong					totalSize	= new AtomicLong();
+	private final Set<String>					claimed		= ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The entries of a spool shard
+	 */
+	private static final class Shard {
+
+		final ConcurrentSkipListSet<Entry>	ready	= new ConcurrentSkipListSet<>( ORDER );
+		final ConcurrentSkipListSet<Entry>	waiting	= new ConcurrentSkipListSet<>( DUE_ORDER );
+		final AtomicInteger					size	= new AtomicInteger();
+
+		/**
+		 * Adds an entry to the due or waiting set
+		 *
+		 * @param entry the entry
+		 * @param now   the current time, in epoch milliseconds
+		 */
+		void add( Entry entry, long now ) {
+			( entry.nextAttempt() > now ? waiting : ready ).add( entry );
+			size.incrementAndGet();
+		}
+
+		/**
+		 * Removes an entry from whichever set holds it
+		 *
+		 * @param entry the entry
+		 */
+		void remove( Entry entry ) {
+			if ( ready.remove( entry ) || waiting.remove( entry ) ) {
+				size.decrementAndGet();
+			}
+		}
+	}
+
+	SpoolIndex() {
+	}
+
+	/**
+	 * The index of the spool
+	 *
+	 * @return the spool index
+	 */
+	public static SpoolIndex getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Adds or replaces an entry in the index
+	 *
+	 * @param entry the entry
+	 */
+	public synchronized void put( Entry entry ) {
+		Entry previous = entries.put( entry.key(), entry );
+		if ( previous != null ) {
+			shard( previous.cache() ).remove( previous );
+			byAge.remove( previous );
+			totalSize.addAndGet( -previous.size() );
+		}
+		shard( entry.cache() ).add( entry, System.currentTimeMillis() );
+		byAge.add( entry );
+		totalSize.addAndGet( entry.size() );
+	}
+
+	/**
+	 * Removes an entry from the index
+	 *
+	 * @param key the spool entry key
+	 *
+	 * @return the removed entry, or null if the key was not indexed
+	 */
+	public synchronized Entry remove( String key ) {
+		claimed.remove( key );
+		Entry previous = entries.remove( key );
+		if ( previous != null ) {
+			shard( previous.cache() ).remove( previous );
+			byAge.remove( previous );
+			totalSize.addAndGet( -previous.size() );
+		}
+		return previous;
+	}
+
+	/**
+	 * Claims an entry for sending or shedding. Only one caller can hold the claim, which lasts until the entry is removed or
+	 * unclaimed.
+	 *
+	 * @param key the spool entry key
+	 *
+	 * @return true if the entry is indexed and was claimed by this call
+	 */
+	public synchronized boolean claim( String key ) {
+		return entries.containsKey( key ) && claimed.add( key );
+	}
+
+	/**
+	 * Releases the claim on an entry which is being left in the spool
+	 *
+	 * @param key the spool entry key
+	 */
+	public void unclaim( String key ) {
+		claimed.remove( key );
+	}
+
+	/**
+	 * Retrieves the entry for a key
+	 *
+	 * @param key the spool entry key
+	 *
+	 * @return the entry, or null if the key is not indexed
+	 */
+	public Entry get( String key ) {
+		return entries.get( key );
+	}
+
+	/**
+	 * The unclaimed entries of a spool shard which are due to be sent, in priority order. Waiting entries whose time has come
+	 * are first moved to the due set, each in logarithmic time, so entries which are not yet due are never visited.
+	 *
+	 * @param cache the spool cache
+	 * @param now   the current time, in epoch milliseconds
+	 *
+	 * @return the due entries
+	 */
+	public List<Entry> due( Key cache, long now ) {
+		Shard shard = shard( cache );
+		synchronized ( this ) {
+			Iterator<Entry> waiting = shard.waiting.iterator();
+			while ( waiting.hasNext() ) {
+				Entry next = waiting.next();
+				if ( next.nextAttempt() > now ) {
+					break;
+				}
+				waiting.remove();
+				shard.ready.add( next );
+			}
+		}
+		List<Entry> due = new ArrayList<>();
+		for ( Entry entry : shard.ready ) {
+			if ( entry.nextAttempt() <= now && !claimed.contains( entry.key() ) ) {
+				due.add( entry );
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * The lowest priority unclaimed entry in the spool, which is the first to be shed when the spool is full. The due sets are
+	 * ordered by priority, but the few waiting entries are scanned.
+	 *
+	 * @return the lowest priority entry, or null if the spool has no unclaimed entries
+	 */
+	public Entry lowestPriority() {
+		Entry lowest = null;
+		for ( Shard shard : shards.values() ) {
+			Entry last = firstUnclaimed( shard.ready.descendingIterator() );
+			if ( last != null && ( lowest == null || ORDER.compare( last, lowest ) > 0 ) ) {
+				lowest = last;
+			}
+			for ( Entry waiting : shard.waiting ) {
+				if ( !claimed.contains( waiting.key() ) && ( lowest == null || ORDER.compare( waiting, lowest ) > 0 ) ) {
+					lowest = waiting;
+				}
+			}
+		}
+		return lowest;
+	}
+
+	/**
+	 * The oldest unclaimed entry in the spool. Messages which are being sent do not count towards the age of the spool.
+	 *
+	 * @return the oldest entry, or null if the spool has no unclaimed entries
+	 */
+	public Entry oldest() {
+		// iterators are used, rather than first(), as the set may be emptied concurrently
+		return firstUnclaimed( byAge.iterator() );
+	}
+
+	/**
+	 * The spool time of the oldest entry in the spool
+	 *
+	 * @return the spool time in epoch milliseconds, or 0 if the spool is empty
+	 */
+	public long oldestSpooledAt() {
+		Entry oldest = oldest();
+		return oldest != null ? oldest.spooledAt() : 0L;
+	}
+
+	/**
+	 * The number of entries in the spool
+	 *
+	 * @return the spool depth
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * The number of entries in a spool shard
+	 *
+	 * @param cache the spool cache
+	 *
+	 * @return the shard depth
+	 */
+	public int size( Key cache ) {
+		return shard( cache ).size.get();
+	}
+
+	/**
+	 * The approximate total size of the spooled entries
+	 *
+	 * @return the size in bytes
+	 */
+	public long totalSize() {
+		return totalSize.get();
+	}
+
+	/**
+	 * Rebuilds the index of a spool shard from its cache. Indexed entries which are no longer in the cache are removed and
+	 * entries which are not yet indexed are read and added, so this is also used to pick up entries spooled by other nodes.
+	 *
+	 * @param cacheName the spool cache name
+	 * @param cache     the spool cache
+	 *
+	 * @return the number of entries added to the index
+	 */
+	public int sync( Key cacheName, ICacheProvider cache ) {
+		Set<String> keys = new HashSet<>();
+		cache.getKeysStream().map( String::valueOf ).forEach( keys::add );
+		Shard shard = shard( cacheName );
+		Stream.concat( shard.ready.stream(), shard.waiting.stream() )
+		    .map( Entry::key )
+		    .filter( key -> !keys.contains( key ) )
+		    .toList()
+		    .forEach( this::remove );
+		int added = 0;
+		for ( String key : keys ) {
+			Entry existing = entries.get( key );
+			if ( existing != null && existing.cache().equals( cacheName ) ) {
+				continue;
+			}
+			var attempt = cache.get( key );
+			if ( attempt.isPresent() ) {
+				put( Entry.of( key, cacheName, StructCaster.cast( attempt.get() ) ) );
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Removes all entries from the index
+	 */
+	public synchronized void clear() {
+		claimed.clear();
+		entries.clear();
+		shards.clear();
+		byAge.clear();
+		totalSize.set( 0 );
+	}
+
+	/**
+	 * The first entry of an iteration which is not claimed
+	 *
+	 * @param iterator the entries
+	 *
+	 * @return the entry, or null if every entry is claimed
+	 */
+	private Entry firstUnclaimed( Iterator<Entry> iterator ) {
+		while ( iterator.hasNext() ) {
+			Entry entry = iterator.next();
+			if ( !claimed.contains( entry.key() ) ) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Converts a mail priority to its rank. Both the numeric ( 1 - 5 ) and named ( highest, high, normal, low, lowest )
+	 * priorities are supported.
+	 *
+	 * @param priority the priority attribute
+	 *
+	 * @return the rank, from 1 ( highest ) to 5 ( lowest )
+	 */
+	public static int priorityRank( Object priority ) {
+		if ( priority == null ) {
+			return 3;
+		}
+		String value = priority.toString().trim().toLowerCase();
+		return switch ( value ) {
+			case "highest", "urgent", "1" -> 1;
+			case "high", "2" -> 2;
+			case "low", "4" -> 4;
+			case "lowest", "non-urgent", "5" -> 5;
+			default -> 3;
+		};
+	}
+
+	/**
+	 * Estimates the size of a spooled value from its string and binary content
+	 *
+	 * @param value the value
+	 *
+	 * @return the approximate size in bytes
+	 */
+	public static long estimateSize( Object value ) {
+		if ( value == null ) {
+			return 0;
+		} else if ( value instanceof CharSequence chars ) {
+			return chars.length();
+		} else if ( value instanceof byte[] bytes ) {
+			return bytes.length;
+		} else if ( value instanceof IStruct struct ) {
+			long size = 0;
+			for ( Map.Entry<Key, Object> entry : struct.entrySet() ) {
+				size += entry.getKey().getName().length() + estimateSize( entry.getValue() );
+			}
+			return size;
+		} else if ( value instanceof List<?> list ) {
+			long size = 0;
+			for ( Object item : list ) {
+				size += estimateSize( item );
+			}
+			return size;
+		}
+		return 16;
+	}
+
+	/**
+	 * The entries of a spool shard
+	 *
+	 * @param cache the spool cache
+	 *
+	 * @return the shard
+	 */
+	private Shard shard( Key cache ) {
+		return shards.computeIfAbsent( cache, name -> new Shard() );
+	}
+
+}
@@ -0,0 +1,420 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.logging.BoxLangLogger;
+import ortus.boxlang.runtime.types.exceptions.BoxIOException;
+
+/**
+ * Lease based claiming of spool entries, which allows several nodes to drain a spool directory on a shared volume.
+ *
+ * A lease is a small file in a sibling directory of the spool, named for the spool entry, which records the owning node, the
+ * time the lease expires and whether the message is being sent. Leases are acquired by creating the file exclusively, so only
+ * one node can hold an entry at a time. The owning node renews its leases on a heartbeat while it works. A lease whose holder
+ * has stopped renewing it may be reclaimed once it expires. Reclaiming takes an exclusive reclaim lock file for the entry, and the
+ * expired lease is only replaced if the lease file still holds the contents which were found to be expired, so a fresh lease
+ * written by another node is never displaced.
+ *
+ * Delivery is at-most-once: if a lease expires while its holder was sending the message the outcome of that send is unknown,
+ * so the reclaiming node reports the entry as {@link Claim#ORPHANED} and it is bounced rather than sent a second time.
+ */
+public class SpoolLeaseManager {
+
+	/**
+	 * The suffix of the lease directory, relative to the spool directory
+	 */
+	public static final String				LEASE_DIRECTORY_SUFFIX	= ".leases";
+
+	static final String						STATE_CLAIMED			= "claimed";
+	static final String						STATE_SENDING			= "sending";
+
+	private static final BoxLangLogger		logger					= BoxRuntime.getInstance().getLoggingService().getLogger( "MailSpool" );
+
+	/**
+	 * The outcome of an attempt to claim a spool entry
+	 */
+	public enum Claim {
+		/**
+		 * The lease was acquired and the entry may be processed
+		 */
+		ACQUIRED,
+		/**
+		 * The entry is leased by another node
+		 */
+		HELD,
+		/**
+		 * The lease was acquired, but the previous holder's lease expired while it was sending the message
+		 */
+		ORPHANED
+	}
+
+	/**
+	 * The contents of a lease file
+	 */
+	record Lease( String owner, long expires, String state ) {
+
+		/**
+		 * Parses the contents of a lease file
+		 *
+		 * @param contents the lease file contents
+		 *
+		 * @return the lease, or null if the contents are not a valid lease
+		 */
+		static Lease parse( String contents ) {
+			String[] lines = contents.split( "\n" );
+			if ( lines.length < 3 ) {
+				return null;
+			}
+			try {
+				return new Lease( lines[ 0 ], Long.parseLong( lines[ 1 ].trim() ), lines[ 2 ].trim() );
+			} catch ( NumberFormatException e ) {
+				return null;
+			}
+		}
+
+		/**
+		 * Serializes the lease to the lease file format
+		 *
+		 * @return the lease file contents
+		 */
+		byte[] toBytes() {
+			return ( owner + "\n" + expires + "\n" + state + "\n" ).getBytes( StandardCharsets.UTF_8 );
+		}
+	}
+
+	private final Path					leaseDirectory;
+	private final String				nodeId;
+	private final long					leaseTimeoutMillis;
+
+	/**
+	 * The leases currently held by this node, keyed by entry
+	 */
+	private final Map<String, Lease>	held	= new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param leaseDirectory     the directory in which lease files are written
+	 * @param nodeId             the identifier of this node, or null to generate one
+	 * @param leaseTimeoutMillis the time after which an unrenewed lease may be reclaimed, in milliseconds
+	 */
+	public SpoolLeaseManager( Path leaseDirectory, String nodeId, long leaseTimeoutMillis ) {
+		this.leaseDirectory		= leaseDirectory;
+		this.nodeId				= nodeId != null && !nodeId.isBlank() ? nodeId : defaultNodeId();
+		this.leaseTimeoutMillis	= leaseTimeoutMillis;
+		try {
+			Files.createDirectories( leaseDirectory );
+		} catch ( IOException e ) {
+			throw new BoxIOException( "Unable to create the spool lease directory " + leaseDirectory.toString(), e );
+		}
+	}
+
+	/**
+	 * Returns the lease directory for a spool directory
+	 *
+	 * @param spoolDirectory the spool directory
+	 *
+	 * @return the sibling lease directory
+	 */
+	public static Path leaseDirectoryFor( String spoolDirectory ) {
+		Path spoolPath = Path.of( spoolDirectory ).toAbsolutePath().normalize();
+		return spoolPath.resolveSibling( spoolPath.getFileName().toString() + LEASE_DIRECTORY_SUFFIX );
+	}
+
+	/**
+	 * Attempts to claim a spool entry for this node
+	 *
+	 * @param key the spool entry key
+	 *
+	 * @return the outcome of the claim
+	 */
+	public Claim claim( String key ) {
+		Path	leaseFile	= leaseFile( key );
+		Lease	lease		= new Lease( nodeId, System.currentTimeMillis() + leaseTimeoutMillis, STATE_CLAIMED );
+		try {
+			Files.write( leaseFile, lease.toBytes(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE );
+			held.put( key, lease );
+			return Claim.ACQUIRED;
+		} catch ( FileAlreadyExistsException e ) {
+			return reclaim( key, leaseFile );
+		} catch ( IOException e ) {
+			logger.warn( "Unable to write the spool lease for [" + key + "]: " + e.getMessage() );
+			return Claim.HELD;
+		}
+	}
+
+	/**
+	 * Marks a held lease as sending, so that a node which reclaims it after this node fails does not send the message again
+	 *
+	 * @param key the spool entry key
+	 */
+	public void markSending( String key ) {
+		write( key, new Lease( nodeId, System.currentTimeMillis() + leaseTimeoutMillis, STATE_SENDING ) );
+	}
+
+	/**
+	 * Releases a lease held by this node
+	 *
+	 * @param key the spool entry key
+	 */
+	public void release( String key ) {
+		if ( held.remove( key ) != null ) {
+			Path leaseFile = leaseFile( key );
+			try {
+				Lease current = read( leaseFile );
+				if ( current == null || nodeId.equals( current.owner() ) ) {
+					Files.deleteIfExists( leaseFile );
+				}
+			} catch ( IOException e ) {
+				logger.warn( "Unable to release the spool lease for [" + key + "]: " + e.getMessage() );
+			}
+		}
+	}
+
+	/**
+	 * Releases all leases held by this node
+	 */
+	public void releaseAll() {
+		releaseAll( Set.of() );
+	}
+
+	/**
+	 * Releases the leases held by this node, except those of entries which are still being processed. Their leases are left to
+	 * expire, so that no other node claims an entry while this node may still be sending it
+	 *
+	 * @param retained the keys of the entries whose leases are kept
+	 */
+	public void releaseAll( Set<String> retained ) {
+		held.keySet().stream()
+		    .filter( key -> !retained.contains( key ) )
+		    .forEach( this::release );
+	}
+
+	/**
+	 * Extends the expiry of all leases held by this node. This is called on a heartbeat while the spool is processed.
+	 *
+	 * @return the number of leases renewed
+	 */
+	public int renew() {
+		int renewed = 0;
+		for ( Map.Entry<String, Lease> entry : held.entrySet() ) {
+			Lease current;
+			try {
+				current = read( leaseFile( entry.getKey() ) );
+			} catch ( IOException e ) {
+				current = null;
+			}
+			if ( current == null || !nodeId.equals( current.owner() ) ) {
+				// the lease was lost to another node - stop renewing it
+				logger.warn( "The spool lease for [" + entry.getKey() + "] is no longer held by node [" + nodeId + "]" );
+				held.remove( entry.getKey() );
+				continue;
+			}
+			write( entry.getKey(), new Lease( nodeId, System.currentTimeMillis() + leaseTimeoutMillis, current.state() ) );
+			renewed++;
+		}
+		return renewed;
+	}
+
+	/**
+	 * Whether this node currently holds the lease for an entry
+	 *
+	 * @param key the spool entry key
+	 *
+	 * @return true if the lease is held
+	 */
+	public boolean isHeld( String key ) {
+		return held.containsKey( key );
+	}
+
+	/**
+	 * The identifier of this node
+	 *
+	 * @return the node identifier
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Attempts to reclaim an existing lease which has expired
+	 *
+	 * @param key       the spool entry key
+	 * @param leaseFile the lease file
+	 *
+	 * @return the outcome of the claim
+	 */
+	private Claim reclaim( String key, Path leaseFile ) {
+		try {
+			byte[] staleContents = readBytes( leaseFile );
+			if ( staleContents == null ) {
+				return Claim.HELD;
+			}
+			Lease stale = Lease.parse( new String( staleContents, StandardCharsets.UTF_8 ) );
+			if ( stale != null && stale.expires() > System.currentTimeMillis() ) {
+				return Claim.HELD;
+			}
+			// an unreadable lease may still be being written by its owner, so fall back to the file age
+			if ( stale == null && Files.getLastModifiedTime( leaseFile ).toMillis() + leaseTimeoutMillis > System.currentTimeMillis() ) {
+				return Claim.HELD;
+			}
+			// Only one node may reclaim a lease at a time. The others will find the reclaim lock present
+			Path lockFile = leaseFile.resolveSibling( leaseFile.getFileName().toString() + ".reclaim" );
+			try {
+				Files.write( lockFile, nodeId.getBytes( StandardCharsets.UTF_8 ), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE );
+			} catch ( FileAlreadyExistsException e ) {
+				if ( Files.getLastModifiedTime( lockFile ).toMillis() + leaseTimeoutMillis < System.currentTimeMillis() ) {
+					// the node which was reclaiming the lease stopped before it finished - the lease can be reclaimed on the next attempt
+					Files.deleteIfExists( lockFile );
+				}
+				return Claim.HELD;
+			}
+			Lease lease = new Lease( nodeId, System.currentTimeMillis() + leaseTimeoutMillis, STATE_CLAIMED );
+			try {
+				// the lease was released, or renewed or reclaimed by another node, since it was found to be expired
+				if ( !Arrays.equals( staleContents, readBytes( leaseFile ) ) ) {
+					return Claim.HELD;
+				}
+				replace( leaseFile, lease );
+				held.put( key, lease );
+			} finally {
+				Files.deleteIfExists( lockFile );
+			}
+			logger.info( "Reclaimed the expired spool lease for [" + key + "] from node [" + ( stale != null ? stale.owner() : "unknown" ) + "]" );
+			return stale != null && STATE_SENDING.equals( stale.state() ) ? Claim.ORPHANED : Claim.ACQUIRED;
+		} catch ( NoSuchFileException e ) {
+			return Claim.HELD;
+		} catch ( IOException e ) {
+			logger.warn( "Unable to reclaim the spool lease for [" + key + "]: " + e.getMessage() );
+			return Claim.HELD;
+		}
+	}
+
+	/**
+	 * Replaces the lease file for an entry which is still held by this node. Nothing is written if the lease has been released,
+	 * so a renewal which races a release cannot recreate the lease.
+	 *
+	 * @param key   the spool entry key
+	 * @param lease the new lease
+	 */
+	private void write( String key, Lease lease ) {
+		held.computeIfPresent( key, ( heldKey, current ) -> {
+			try {
+				replace( leaseFile( heldKey ), lease );
+				return lease;
+			} catch ( IOException e ) {
+				logger.warn( "Unable to renew the spool lease for [" + heldKey + "]: " + e.getMessage() );
+				return current;
+			}
+		} );
+	}
+
+	/**
+	 * Atomically replaces a lease file, through a temporary file which is unique to the call
+	 *
+	 * @param leaseFile the lease file
+	 * @param lease     the new lease
+	 *
+	 * @throws IOException if the lease cannot be written
+	 */
+	private void replace( Path leaseFile, Lease lease ) throws IOException {
+		Path temp = Files.createTempFile( leaseDirectory, leaseFile.getFileName().toString() + ".", ".tmp" );
+		try {
+			Files.write( temp, lease.toBytes() );
+			Files.move( temp, leaseFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+		} finally {
+			Files.deleteIfExists( temp );
+		}
+	}
+
+	/**
+	 * Reads a lease file
+	 *
+	 * @param leaseFile the lease file
+	 *
+	 * @return the lease, or null if the file does not exist or is not a valid lease
+	 *
+	 * @throws IOException if the file cannot be read
+	 */
+	private static Lease read( Path leaseFile ) throws IOException {
+		try {
+			return Lease.parse( Files.readString( leaseFile, StandardCharsets.UTF_8 ) );
+		} catch ( NoSuchFileException e ) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the raw contents of a lease file
+	 *
+	 * @param leaseFile the lease file
+	 *
+	 * @return the contents, or null if the file does not exist
+	 *
+	 * @throws IOException if the file cannot be read
+	 */
+	private static byte[] readBytes( Path leaseFile ) throws IOException {
+		try {
+			return Files.readAllBytes( leaseFile );
+		} catch ( NoSuchFileException e ) {
+			return null;
+		}
+	}
+
+	/**
+	 * Resolves the lease file for a spool entry
+	 *
+	 * @param key the spool entry key
+	 *
+	 * @return the lease file path
+	 */
+	private Path leaseFile( String key ) {
+		return leaseDirectory.resolve( key.replaceAll( "[^A-Za-z0-9._-]", "_" ) + ".lease" );
+	}
+
+	/**
+	 * Generates a node identifier from the host name and process id
+	 *
+	 * @return the node identifier
+	 */
+	private static String defaultNodeId() {
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch ( IOException e ) {
+			host = "localhost";
+		}
+		return host + "-" + ProcessHandle.current().pid();
+	}
+
+}
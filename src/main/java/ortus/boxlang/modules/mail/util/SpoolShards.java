@@ -0,0 +1,265 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.cache.providers.ICacheProvider;
+import ortus.boxlang.runtime.dynamic.casters.IntegerCaster;
+import ortus.boxlang.runtime.dynamic.casters.StructCaster;
+import ortus.boxlang.runtime.logging.BoxLangLogger;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+
+/**
+ * Partitions the mail spool in to hash based shards, each of which is a separate file system cache in its own directory.
+ *
+ * With the default of a single shard the spool is the <code>mailUnsent</code> cache in the <code>spoolDirectory</code>, exactly
+ * as it was before sharding was introduced. With more than one shard, entries are distributed by the hash of their key across
+ * the <code>mailUnsent_{n}</code> caches, which are stored in the numbered subdirectories of a sibling
+ * <code>{spoolDirectory}.shards</code> directory. Keeping each shard in its own directory keeps directory listings small and
+ * allows each shard to be drained by its own worker.
+ *
+ * When the shard count changes, {@link #rebalance()} moves any entries which are no longer in the correct shard, including
+ * entries left in the unsharded spool or in shards beyond the current count.
+ */
+public final class SpoolShards {
+
+	/**
+	 * The suffix of the shard directory, relative to the spool directory
+	 */
+	public static final String			SHARD_DIRECTORY_SUFFIX	= ".shards";
+
+	private static final BoxRuntime		runtime					= BoxRuntime.getInstance();
+	private static final BoxLangLogger	logger					= runtime.getLoggingService().getLogger( "MailSpool" );
+
+	private SpoolShards() {
+	}
+
+	/**
+	 * The configured number of spool shards
+	 *
+	 * @return the shard count, which is at least one
+	 */
+	public static int getShardCount() {
+		IStruct moduleSettings = getModuleSettings();
+		return Math.max( IntegerCaster.cast( moduleSettings.getOrDefault( MailKeys.spoolShards, 1 ) ), 1 );
+	}
+
+	/**
+	 * The name of the spool cache for a shard
+	 *
+	 * @param index      the shard index
+	 * @param shardCount the number of shards
+	 *
+	 * @return the cache name
+	 */
+	public static Key getShardCacheName( int index, int shardCount ) {
+		return shardCount <= 1 ? MailKeys.mailUnsent : Key.of( MailKeys.mailUnsent.getName() + "_" + index );
+	}
+
+	/**
+	 * The names of the spool caches for the configured shard count
+	 *
+	 * @return the cache names, in shard order
+	 */
+	public static List<Key> getShardCacheNames() {
+		int			shardCount	= getShardCount();
+		List<Key>	names		= new ArrayList<>( shardCount );
+		for ( int i = 0; i < shardCount; i++ ) {
+			names.add( getShardCacheName( i, shardCount ) );
+		}
+		return names;
+	}
+
+	/**
+	 * The spool cache name in which an entry is stored
+	 *
+	 * @param key the spool entry key
+	 *
+	 * @return the cache name
+	 */
+	public static Key getCacheNameFor( String key ) {
+		int shardCount = getShardCount();
+		return getShardCacheName( shardFor( key, shardCount ), shardCount );
+	}
+
+	/**
+	 * The shard index for an entry
+	 *
+	 * @param key        the spool entry key
+	 * @param shardCount the number of shards
+	 *
+	 * @return the shard index
+	 */
+	public static int shardFor( String key, int shardCount ) {
+		return shardCount <= 1 ? 0 : Math.floorMod( key.hashCode(), shardCount );
+	}
+
+	/**
+	 * Creates the spool caches for the configured shard count, if they do not already exist
+	 *
+	 * @return the cache names, in shard order
+	 */
+	public static List<Key> ensureCaches() {
+		int shardCount = getShardCount();
+		for ( int i = 0; i < shardCount; i++ ) {
+			ensureCache( getShardCacheName( i, shardCount ), shardDirectory( i, shardCount ) );
+		}
+		return getShardCacheNames();
+	}
+
+	/**
+	 * Moves any spool entries which are not stored in the correct shard for the configured shard count. This includes entries
+	 * in the unsharded spool directory, and in shard directories left over from a larger shard count.
+	 *
+	 * @return the number of entries moved
+	 */
+	public static int rebalance() {
+		int			shardCount	= getShardCount();
+		List<Key>	current		= ensureCaches();
+		List<Key>	sources		= new ArrayList<>( current );
+		if ( shardCount > 1 && Files.isDirectory( Path.of( getSpoolDirectory() ) ) ) {
+			ensureCache( MailKeys.mailUnsent, Path.of( getSpoolDirectory() ) );
+			sources.add( MailKeys.mailUnsent );
+		}
+		for ( int index : existingShardIndexes() ) {
+			if ( shardCount <= 1 || index >= shardCount ) {
+				Key name = getShardCacheName( index, Integer.MAX_VALUE );
+				ensureCache( name, shardDirectory( index, Integer.MAX_VALUE ) );
+				sources.add( name );
+			}
+		}
+
+		int moved = 0;
+		for ( Key sourceName : sources ) {
+			ICacheProvider source = runtime.getCacheService().getCache( sourceName );
+			for ( String key : source.getKeysStream().map( String::valueOf ).toList() ) {
+				Key targetName = current.get( shardFor( key, shardCount ) );
+				if ( targetName.equals( sourceName ) ) {
+					continue;
+				}
+				var entry = source.get( key );
+				if ( entry.isPresent() ) {
+					runtime.getCacheService().getCache( targetName ).set( key, entry.get() );
+					source.clear( key );
+					SpoolIndex.getInstance().put( SpoolIndex.Entry.of( key, targetName, StructCaster.cast( entry.get() ) ) );
+					moved++;
+				}
+			}
+		}
+		if ( moved > 0 ) {
+			logger.info( String.format( "Rebalanced [%d] spooled messages across [%d] spool shards", moved, shardCount ) );
+		}
+		return moved;
+	}
+
+	/**
+	 * The directory of a shard
+	 *
+	 * @param index      the shard index
+	 * @param shardCount the number of shards
+	 *
+	 * @return the shard directory
+	 */
+	static Path shardDirectory( int index, int shardCount ) {
+		return shardCount <= 1 ? Path.of( getSpoolDirectory() ) : getShardRoot().resolve( String.valueOf( index ) );
+	}
+
+	/**
+	 * The directory containing the shard directories
+	 *
+	 * @return the shard root directory
+	 */
+	static Path getShardRoot() {
+		Path spoolPath = Path.of( getSpoolDirectory() ).toAbsolutePath().normalize();
+		return spoolPath.resolveSibling( spoolPath.getFileName().toString() + SHARD_DIRECTORY_SUFFIX );
+	}
+
+	/**
+	 * The indexes of the shard directories which exist on disk
+	 *
+	 * @return the shard indexes
+	 */
+	private static List<Integer> existingShardIndexes() {
+		Path shardRoot = getShardRoot();
+		if ( !Files.isDirectory( shardRoot ) ) {
+			return List.of();
+		}
+		try ( Stream<Path> directories = Files.list( shardRoot ) ) {
+			return directories
+			    .filter( Files::isDirectory )
+			    .map( path -> path.getFileName().toString() )
+			    .filter( name -> name.matches( "\\d+" ) )
+			    .map( Integer::valueOf )
+			    .toList();
+		} catch ( IOException e ) {
+			logger.warn( "Unable to list the spool shard directory " + shardRoot.toString() + ": " + e.getMessage() );
+			return List.of();
+		}
+	}
+
+	/**
+	 * Creates a spool cache, if it does not already exist
+	 *
+	 * @param name      the cache name
+	 * @param directory the cache directory
+	 */
+	private static void ensureCache( Key name, Path directory ) {
+		if ( !runtime.getCacheService().hasCache( name ) ) {
+			IStruct moduleSettings = getModuleSettings();
+			runtime.getCacheService().createCache(
+			    name,
+			    Key.boxCacheProvider,
+			    Struct.of(
+			        Key.objectStore, MailKeys.fileSystemStore.getName(),
+			        Key.directory, directory.toString(),
+			        Key.defaultTimeout, IntegerCaster.cast( moduleSettings.get( MailKeys.spoolTimeout ) ),
+			        Key.useLastAccessTimeouts, false,
+			        Key.evictCount, 0
+			    )
+			);
+		}
+	}
+
+	/**
+	 * The configured spool directory
+	 *
+	 * @return the spool directory
+	 */
+	private static String getSpoolDirectory() {
+		return getModuleSettings().getAsString( MailKeys.spoolDirectory );
+	}
+
+	/**
+	 * The module settings
+	 *
+	 * @return the module settings
+	 */
+	private static IStruct getModuleSettings() {
+		return runtime.getModuleService().getModuleSettings( MailKeys._MODULE_NAME );
+	}
+
+}
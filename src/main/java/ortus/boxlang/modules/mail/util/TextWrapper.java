@@ -0,0 +1,108 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+/**
+ * Single pass word wrapping which reads directly from the captured body buffer.
+ *
+ * Lines are broken at the last space within the wrap length and leading spaces are removed from the wrapped continuation
+ * lines. Words longer than the wrap length are not broken and extend to the next space. Existing line breaks in the content
+ * are preserved and reset the line length.
+ */
+public final class TextWrapper {
+
+	static final String NEW_LINE = System.lineSeparator();
+
+	private TextWrapper() {
+	}
+
+	/**
+	 * Wraps the content at the given column
+	 *
+	 * @param content    the content to wrap
+	 * @param wrapLength the column to wrap at
+	 *
+	 * @return the wrapped content
+	 */
+	public static String wrap( CharSequence content, int wrapLength ) {
+		int				length	= content.length();
+		StringBuilder	wrapped	= new StringBuilder( length + ( length / Math.max( wrapLength, 1 ) + 1 ) * NEW_LINE.length() );
+		wrapTo( content, wrapLength, wrapped );
+		return wrapped.toString();
+	}
+
+	/**
+	 * Wraps the content at the given column, appending the result to the target builder
+	 *
+	 * @param content    the content to wrap
+	 * @param wrapLength the column to wrap at
+	 * @param target     the builder to append to
+	 */
+	public static void wrapTo( CharSequence content, int wrapLength, StringBuilder target ) {
+		int	width		= Math.max( wrapLength, 1 );
+		int	length		= content.length();
+		int	lineStart	= 0;
+		while ( lineStart < length ) {
+			int lineEnd = lineStart;
+			while ( lineEnd < length && content.charAt( lineEnd ) != '\n' ) {
+				lineEnd++;
+			}
+			// keep any carriage return with the line terminator
+			int contentEnd = lineEnd > lineStart && content.charAt( lineEnd - 1 ) == '\r' ? lineEnd - 1 : lineEnd;
+			wrapLine( content, lineStart, contentEnd, width, target );
+			int terminatorEnd = Math.min( lineEnd + 1, length );
+			target.append( content, contentEnd, terminatorEnd );
+			lineStart = terminatorEnd;
+		}
+	}
+
+	/**
+	 * Wraps a single line, which contains no line breaks
+	 */
+	private static void wrapLine( CharSequence content, int start, int end, int width, StringBuilder target ) {
+		int offset = start;
+		while ( end - offset > width ) {
+			int breakAt = -1;
+			for ( int i = offset + width; i > offset; i-- ) {
+				if ( content.charAt( i ) == ' ' ) {
+					breakAt = i;
+					break;
+				}
+			}
+			if ( breakAt < 0 ) {
+				// a word longer than the wrap length - extend it to the next space
+				for ( int i = offset + width + 1; i < end; i++ ) {
+					if ( content.charAt( i ) == ' ' ) {
+						breakAt = i;
+						break;
+					}
+				}
+				if ( breakAt < 0 ) {
+					break;
+				}
+			}
+			target.append( content, offset, breakAt ).append( NEW_LINE );
+			offset = breakAt + 1;
+			while ( offset < end && content.charAt( offset ) == ' ' ) {
+				offset++;
+			}
+		}
+		target.append( content, offset, end );
+	}
+
+}
@@ -1,6 +1,8 @@
 package ortus.boxlang.components;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.BufferedInputStream;
@@ -8,9 +10,12 @@ import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyPair;
@@ -50,14 +55,19 @@ import org.junit.jupiter.api.Test;
 import jakarta.mail.MessagingException;
 import jakarta.mail.internet.MimeMultipart;
 import ortus.boxlang.compiler.parser.BoxSourceType;
+import ortus.boxlang.modules.mail.util.MailKeys;
 import ortus.boxlang.runtime.BoxRuntime;
 import ortus.boxlang.runtime.context.IBoxContext;
 import ortus.boxlang.runtime.context.ScriptingRequestBoxContext;
+import ortus.boxlang.runtime.dynamic.casters.BooleanCaster;
 import ortus.boxlang.runtime.dynamic.casters.KeyCaster;
 import ortus.boxlang.runtime.dynamic.casters.StringCaster;
+import ortus.boxlang.runtime.dynamic.casters.StructCaster;
 import ortus.boxlang.runtime.scopes.IScope;
 import ortus.boxlang.runtime.scopes.Key;
 import ortus.boxlang.runtime.scopes.VariablesScope;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
 import ortus.boxlang.runtime.util.FileSystemUtil;
 
 public class MailTest {
@@ -502,7 +512,8 @@ public class MailTest {
 		MimeMultipart	part1	= ( MimeMultipart ) message.getEmailBody().getBodyPart( 0 ).getContent();
 		SMIMEToolkit	toolkit	= new SMIMEToolkit( new BcDigestCalculatorProvider() );
 		assertTrue( toolkit.isEncrypted( ( ( MimeMultipart ) message.getContent() ).getBodyPart( 0 ) ) );
-		assertTrue( toolkit.isEncrypted( part1.getBodyPart( 0 ) ) );
+		// the content is enveloped once, as a whole, rather than part by part
+		assertFalse( toolkit.isEncrypted( part1.getBodyPart( 0 ) ) );
 		assertEquals( "jclausen@ortussolutions.com", message.getToAddresses().get( 0 ).toString() );
 		assertEquals( "jclausen@ortussolutions.com", message.getFromAddress().toString() );
 	}
@@ -544,6 +555,158 @@ public class MailTest {
 		assertEquals( "jclausen@ortussolutions.com", message.getFromAddress().toString() );
 	}
 
+	@DisplayName( "It keeps a signed attachment until the message is sent, deleting it only after a successful send" )
+	@Test
+	public void testMailSignRemove() throws IOException, MessagingException {
+		Path attachment = Path.of( tmpDirectory, "signed-remove.jpg" );
+		Files.copy( Path.of( testBinaryFile ), attachment );
+		variables.put( Key.of( "testFile" ), attachment.toString() );
+		variables.put( Key.of( "testKeystore" ), testKeystore );
+		variables.put( Key.of( "keystorePassword" ), testKeystorePassword );
+		variables.put( Key.of( "keystoreAlias" ), testKeystoreAlias );
+		String source = """
+		                	<bx:mail
+		                		from="jclausen@ortussolutions.com"
+		                		to="jclausen@ortussolutions.com"
+		                		subject="Mail Test"
+		                		server="127.0.0.1"
+		                		port="#port#"
+		                		timeout="5"
+		                		spoolEnable="false"
+		                		debug="true"
+		                		messageIdentifier="messageId"
+		                		messageVariable="messageVar"
+		                		sign="true"
+		                		keystore="#testKeystore#"
+		                		keystorePassword="#keystorePassword#"
+		                		keyAlias="#keystoreAlias#"
+		                		keyPassword="#keystorePassword#"
+		                		remove="true"
+		                	>
+		                	Here's a signed image!
+		                	<bx:mailparam file="#testFile#"/>
+		                	</bx:mail>
+		                """;
+
+		// the signed attachment is streamed from disk as the message is written, so a failed send must leave it in place
+		variables.put( Key.of( "port" ), 1 );
+		assertThrows( BoxRuntimeException.class, () -> instance.executeSource( source, context, BoxSourceType.BOXTEMPLATE ) );
+		assertTrue( Files.exists( attachment ), "The attachment should not be removed when the message was not sent" );
+
+		variables.put( Key.of( "port" ), 25 );
+		instance.executeSource( source, context, BoxSourceType.BOXTEMPLATE );
+		assertTrue( variables.get( messageId ) instanceof String );
+		Email			message	= ( Email ) variables.get( messageVar );
+		SMIMEToolkit	toolkit	= new SMIMEToolkit( new BcDigestCalculatorProvider() );
+		assertTrue( toolkit.isSigned( message.getMimeMessage() ) );
+		assertFalse( Files.exists( attachment ), "The attachment should be removed once the message was sent" );
+	}
+
+	@DisplayName( "It can sign and encrypt mail in a single envelope" )
+	@Test
+	public void testMailSignAndEncrypt() throws IOException, MessagingException {
+		variables.put( Key.of( "testCert" ), testCert );
+		variables.put( Key.of( "testKeystore" ), testKeystore );
+		variables.put( Key.of( "keystorePassword" ), testKeystorePassword );
+		variables.put( Key.of( "keystoreAlias" ), testKeystoreAlias );
+		instance.executeSource(
+		    """
+		    bx:mail
+		    	from="jclausen@ortussolutions.com"
+		    	to="jclausen@ortussolutions.com"
+		    	subject="Mail Test"
+		    	server="127.0.0.1"
+		    	port="25"
+		    	spoolEnable="false"
+		    	messageVariable="messageVar"
+		    	sign=true
+		    	keystore="#testKeystore#"
+		    	keystorePassword="#keystorePassword#"
+		    	keyAlias="#keystoreAlias#"
+		    	keyPassword="#keystorePassword#"
+		    	encrypt=true
+		    	recipientCert="#testCert#"{
+		    		writeOutput( "Hello mail!" );
+		    	}
+		    """,
+		    context, BoxSourceType.BOXSCRIPT );
+		Email			message		= ( Email ) variables.get( messageVar );
+		MimeMultipart	envelope	= ( MimeMultipart ) message.getContent();
+		SMIMEToolkit	toolkit		= new SMIMEToolkit( new BcDigestCalculatorProvider() );
+		assertEquals( 1, envelope.getCount() );
+		assertTrue( toolkit.isEncrypted( envelope.getBodyPart( 0 ) ) );
+		// the assembled parts are neither encrypted nor copied
+		MimeMultipart part1 = ( MimeMultipart ) message.getEmailBody().getBodyPart( 0 ).getContent();
+		assertFalse( toolkit.isEncrypted( part1.getBodyPart( 0 ) ) );
+	}
+
+	@DisplayName( "It decrypts and verifies a message it signed and encrypted" )
+	@Test
+	public void testMailSignAndEncryptRoundTrip() throws Exception {
+		// encrypt to the certificate of the signing key, so the message can be decrypted with the same keystore
+		String		recipientCert	= tmpDirectory + "/roundtrip.cer";
+		String		messageFile		= tmpDirectory + "/roundtrip.eml";
+		KeyStore	keystore		= KeyStore.getInstance( KeyStore.getDefaultType() );
+		try ( InputStream stream = Files.newInputStream( Path.of( testKeystore ) ) ) {
+			keystore.load( stream, testKeystorePassword.toCharArray() );
+		}
+		Files.write( Path.of( recipientCert ), keystore.getCertificate( testKeystoreAlias ).getEncoded() );
+
+		variables.put( Key.of( "testCert" ), recipientCert );
+		variables.put( Key.of( "testKeystore" ), testKeystore );
+		variables.put( Key.of( "keystorePassword" ), testKeystorePassword );
+		variables.put( Key.of( "keystoreAlias" ), testKeystoreAlias );
+		instance.executeSource(
+		    """
+		    bx:mail
+		    	from="jclausen@ortussolutions.com"
+		    	to="jclausen@ortussolutions.com"
+		    	subject="Mail Test"
+		    	server="127.0.0.1"
+		    	port="25"
+		    	spoolEnable="false"
+		    	messageVariable="messageVar"
+		    	sign=true
+		    	keystore="#testKeystore#"
+		    	keystorePassword="#keystorePassword#"
+		    	keyAlias="#keystoreAlias#"
+		    	keyPassword="#keystorePassword#"
+		    	encrypt=true
+		    	recipientCert="#testCert#"{
+		    		writeOutput( "Hello mail!" );
+		    	}
+		    """,
+		    context, BoxSourceType.BOXSCRIPT );
+		Email message = ( Email ) variables.get( messageVar );
+		try ( OutputStream stream = Files.newOutputStream( Path.of( messageFile ) ) ) {
+			message.getMimeMessage().writeTo( stream );
+		}
+
+		variables.put( Key.of( "messageFile" ), messageFile );
+		variables.put( Key.of( "decryptedFile" ), tmpDirectory + "/roundtrip.decrypted.eml" );
+		instance.executeSource(
+		    """
+		    decrypted = mailDecrypt(
+		    	source = messageFile,
+		    	keystore = testKeystore,
+		    	keystorePassword = keystorePassword,
+		    	keyAlias = keystoreAlias,
+		    	keyPassword = keystorePassword,
+		    	destination = decryptedFile
+		    );
+		    result = mailVerify(
+		    	source = decryptedFile,
+		    	trustStore = testKeystore,
+		    	trustStorePassword = keystorePassword
+		    );
+		    """,
+		    context, BoxSourceType.BOXSCRIPT );
+		IStruct verified = StructCaster.cast( variables.get( result ) );
+		assertTrue( StructCaster.cast( variables.get( Key.of( "decrypted" ) ) ).getAsString( MailKeys.contentType ).startsWith( "multipart/signed" ) );
+		assertTrue( BooleanCaster.cast( verified.get( MailKeys.valid ) ) );
+		assertEquals( 1, verified.getAsArray( MailKeys.signers ).size() );
+	}
+
 	private void generateTestCertificate() throws CertificateException, FileNotFoundException, IOException {
 		String					cert		= "-----BEGIN CERTIFICATE-----\n"
 		    + "MIIEQTCCAymgAwIBAgIBATANBgkqhkiG9w0BAQUFADCBkzEaMBgGA1UEAxMRTW9u\n"
@@ -0,0 +1,70 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.events;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Unit tests for the mail flight recorder events
+ */
+public class MailEventTest {
+
+	@DisplayName( "It records the phase details when the event is enabled" )
+	@Test
+	public void testRecordedEvent() throws IOException {
+		Path recordingFile = Files.createTempFile( "mail-events", ".jfr" );
+		try ( Recording recording = new Recording() ) {
+			recording.enable( "ortus.boxlang.mail.SmtpTransfer" ).withoutThreshold();
+			recording.disable( "ortus.boxlang.mail.MailBuild" );
+			recording.start();
+
+			SmtpTransferEvent.start().complete( MailEvent.SUCCESS, "smtp.example.com", 2, 4096L );
+			// the build event is disabled, so it is not recorded
+			MailBuildEvent.start().complete( MailEvent.SUCCESS, null, 0, 100L );
+
+			recording.stop();
+			recording.dump( recordingFile );
+
+			List<RecordedEvent> events = RecordingFile.readAllEvents( recordingFile ).stream()
+			    .filter( event -> event.getEventType().getName().startsWith( "ortus.boxlang.mail." ) )
+			    .toList();
+			assertEquals( 1, events.size() );
+			RecordedEvent event = events.get( 0 );
+			assertEquals( "ortus.boxlang.mail.SmtpTransfer", event.getEventType().getName() );
+			assertEquals( "smtp.example.com", event.getString( "server" ) );
+			assertEquals( 2, event.getInt( "attempt" ) );
+			assertEquals( 4096L, event.getLong( "messageSize" ) );
+			assertEquals( MailEvent.SUCCESS, event.getString( "outcome" ) );
+		} finally {
+			Files.deleteIfExists( recordingFile );
+		}
+	}
+
+}
@@ -1,12 +1,14 @@
 package ortus.boxlang.modules.mail.schedulers;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
 
 import org.apache.commons.mail2.jakarta.MultiPartEmail;
 import org.apache.commons.mail2.jakarta.SimpleEmail;
@@ -17,8 +19,10 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import ortus.boxlang.BaseIntegrationTest;
+import ortus.boxlang.modules.mail.util.CryptoExecutor;
 import ortus.boxlang.modules.mail.util.MailKeys;
 import ortus.boxlang.modules.mail.util.MailUtil;
+import ortus.boxlang.modules.mail.util.SpoolShards;
 import ortus.boxlang.runtime.cache.providers.ICacheProvider;
 import ortus.boxlang.runtime.scopes.Key;
 import ortus.boxlang.runtime.types.Array;
@@ -550,4 +554,81 @@ public class SpoolSchedulerTest extends BaseIntegrationTest {
 		// Cache should be empty after processing (email was sent)
 		assertEquals( initialSize, spoolCache.getSize(), "Cache should be empty after processing high priority email" );
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testSpoolShardRebalancing() {
+		ICacheProvider spoolCache = runtime.getCacheService().getCache( MailKeys.mailUnsent );
+		spoolCache.clearAll();
+		for ( int i = 0; i < 8; i++ ) {
+			spoolCache.set( "shard-test-" + i, Struct.of( Key.priority, "normal" ) );
+		}
+
+		try {
+			// partition the existing spool in to shards
+			moduleSettings.put( MailKeys.spoolShards, 4 );
+			assertEquals( 8, SpoolShards.rebalance(), "All unsharded entries should be moved in to shards" );
+			assertEquals( 0, spoolCache.getSize(), "The unsharded spool should be empty after rebalancing" );
+			for ( int i = 0; i < 8; i++ ) {
+				String key = "shard-test-" + i;
+				assertTrue( runtime.getCacheService().getCache( SpoolShards.getCacheNameFor( key ) ).get( key ).isPresent(),
+				    "Entry " + key + " should be stored in its shard" );
+			}
+		} finally {
+			// collapse the shards back in to the unsharded spool
+			moduleSettings.put( MailKeys.spoolShards, 1 );
+			SpoolShards.rebalance();
+		}
+		assertEquals( 8, spoolCache.getSize(), "All sharded entries should be moved back to the unsharded spool" );
+		spoolCache.clearAll();
+	}
+
+	@Test
+	public void testDrainStopsSpoolProcessing() throws Exception {
+		SimpleEmail email = new SimpleEmail();
+		email.setFrom( "test@example.com" );
+		email.addTo( "recipient@example.com" );
+		email.setSubject( "Test Drain" );
+		email.setMsg( "This message should remain in the spool while draining" );
+
+		ICacheProvider	spoolCache	= runtime.getCacheService().getCache( MailKeys.mailUnsent );
+		int				initialSize	= spoolCache.getSize();
+		MailUtil.spoolOrSend( email, Struct.of( MailKeys.spoolEnable, true ), context );
+
+		// nothing is in flight, so the drain completes immediately
+		assertTrue( SpoolScheduler.drain(), "The drain should complete when no messages are being sent" );
+		assertTrue( SpoolScheduler.isDraining() );
+
+		IStruct result = SpoolScheduler.processSpool();
+		assertEquals( 0, result.getAsInteger( MailKeys.processed ), "No messages should be started while draining" );
+		assertEquals( initialSize + 1, spoolCache.getSize(), "The message should remain in the spool while draining" );
+
+		// a restarted scheduler resumes processing
+		scheduler.configure();
+		assertFalse( SpoolScheduler.isDraining() );
+	}
+
+	@Test
+	public void testShutdownSharesDrainTimeout() throws Exception {
+		moduleSettings.put( MailKeys.spoolDrainTimeout, 1 );
+		// a message which is still being built holds the crypto executor for longer than the timeout
+		CountDownLatch release = new CountDownLatch( 1 );
+		CryptoExecutor.execute( () -> {
+			try {
+				release.await();
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			}
+		} );
+
+		long start = System.currentTimeMillis();
+		try {
+			scheduler.onShutdown();
+		} finally {
+			release.countDown();
+			moduleSettings.put( MailKeys.spoolDrainTimeout, 30 );
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue( elapsed < 1900, "The crypto executor and the spool drain should share the one timeout, but shutdown took " + elapsed + "ms" );
+		assertTrue( SpoolScheduler.isDraining() );
+	}
+}
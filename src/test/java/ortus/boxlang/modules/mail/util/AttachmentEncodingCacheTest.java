@@ -0,0 +1,181 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jakarta.mail.internet.MimeBodyPart;
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+
+/**
+ * Unit tests for the cache of pre-encoded attachment bodies
+ */
+public class AttachmentEncodingCacheTest {
+
+	static final int	KILOBYTE	= 1024;
+
+	@TempDir
+	Path				tempDir;
+
+	@BeforeAll
+	public static void setUp() {
+		BoxRuntime.getInstance( true );
+	}
+
+	@AfterEach
+	public void clearCache() {
+		AttachmentEncodingCache.clear();
+	}
+
+	@DisplayName( "It reuses the cached encoding while the file is unchanged" )
+	@Test
+	public void testCacheHit() throws Exception {
+		Path	file		= writeFile( "invoice.txt", 'a', 10 * KILOBYTE );
+		IStruct	settings	= settings( 64, 5 );
+		assertEquals( "a", decodedFirst( body( file, settings ) ) );
+		long size = AttachmentEncodingCache.getSize();
+		assertTrue( size > 10 * KILOBYTE );
+
+		// the same size and modification time are served from the cache, even though the bytes differ
+		FileTime modified = Files.getLastModifiedTime( file );
+		Files.write( file, filled( 'b', 10 * KILOBYTE ) );
+		Files.setLastModifiedTime( file, modified );
+		assertEquals( "a", decodedFirst( body( file, settings ) ) );
+		assertEquals( size, AttachmentEncodingCache.getSize() );
+	}
+
+	@DisplayName( "It encodes the file again when it changes" )
+	@Test
+	public void testInvalidation() throws Exception {
+		Path	file		= writeFile( "invoice.txt", 'a', 10 * KILOBYTE );
+		IStruct	settings	= settings( 64, 5 );
+		assertEquals( "a", decodedFirst( body( file, settings ) ) );
+		long size = AttachmentEncodingCache.getSize();
+
+		Files.write( file, filled( 'b', 20 * KILOBYTE ) );
+		Files.setLastModifiedTime( file, FileTime.fromMillis( Files.getLastModifiedTime( file ).toMillis() + 2000 ) );
+		assertEquals( "b", decodedFirst( body( file, settings ) ) );
+		// the previous encoding is replaced, not kept alongside the new one
+		assertTrue( AttachmentEncodingCache.getSize() > size );
+		assertTrue( AttachmentEncodingCache.getSize() < 2 * size + 20 * KILOBYTE );
+	}
+
+	@DisplayName( "It does not cache files above attachmentCacheMaxFile" )
+	@Test
+	public void testMaxFile() throws Exception {
+		Path	small		= writeFile( "small.bin", 'a', 512 * KILOBYTE );
+		Path	large		= writeFile( "large.bin", 'a', 1024 * KILOBYTE + 1 );
+		IStruct	settings	= settings( 64, 1 );
+		assertNull( AttachmentEncodingCache.getBodyPart( large, "application/octet-stream", null, "attachment", null, settings ) );
+		assertEquals( 0, AttachmentEncodingCache.getSize() );
+		assertNotNull( body( small, settings ) );
+		assertTrue( AttachmentEncodingCache.getSize() > 512 * KILOBYTE );
+	}
+
+	@DisplayName( "It evicts the least recently used encodings above attachmentCacheMaxSize" )
+	@Test
+	public void testEviction() throws Exception {
+		// each file encodes to a little over 400KB, so only two fit in a megabyte
+		IStruct	settings	= settings( 1, 1 );
+		Path	first		= writeFile( "first.bin", 'a', 300 * KILOBYTE );
+		Path	second		= writeFile( "second.bin", 'b', 310 * KILOBYTE );
+		Path	third		= writeFile( "third.bin", 'c', 290 * KILOBYTE );
+		long	firstSize	= encodedSize( first, settings );
+		long	secondSize	= encodedSize( second, settings );
+		long	thirdSize	= encodedSize( third, settings );
+
+		body( first, settings );
+		body( second, settings );
+		assertEquals( firstSize + secondSize, AttachmentEncodingCache.getSize() );
+
+		// using the first file again leaves the second as the least recently used, so it is evicted for the third
+		body( first, settings );
+		body( third, settings );
+		assertEquals( firstSize + thirdSize, AttachmentEncodingCache.getSize() );
+		assertTrue( AttachmentEncodingCache.getSize() <= AttachmentEncodingCache.MEGABYTE );
+
+		// the second file is encoded again and evicts the third, now the least recently used
+		body( second, settings );
+		assertEquals( firstSize + secondSize, AttachmentEncodingCache.getSize() );
+	}
+
+	/**
+	 * The encoded size of a file cached on its own
+	 */
+	private static long encodedSize( Path file, IStruct settings ) {
+		AttachmentEncodingCache.clear();
+		body( file, settings );
+		long size = AttachmentEncodingCache.getSize();
+		AttachmentEncodingCache.clear();
+		return size;
+	}
+
+	private static IStruct settings( int maxSize, int maxFile ) {
+		return Struct.of(
+		    MailKeys.attachmentCacheEnable, true,
+		    MailKeys.attachmentCacheMaxSize, maxSize,
+		    MailKeys.attachmentCacheMaxFile, maxFile
+		);
+	}
+
+	private static MimeBodyPart body( Path file, IStruct settings ) {
+		MimeBodyPart bodyPart = AttachmentEncodingCache.getBodyPart( file, "application/octet-stream", null, "attachment", null, settings );
+		assertNotNull( bodyPart );
+		return bodyPart;
+	}
+
+	/**
+	 * Decodes the pre-encoded body and returns its first character
+	 */
+	private static String decodedFirst( MimeBodyPart bodyPart ) throws Exception {
+		try ( InputStream encoded = bodyPart.getDataHandler().getDataSource().getInputStream() ) {
+			byte[] decoded = Base64.getMimeDecoder().decode( encoded.readAllBytes() );
+			return new String( decoded, 0, 1, StandardCharsets.US_ASCII );
+		}
+	}
+
+	private Path writeFile( String name, char fill, int size ) throws Exception {
+		return Files.write( tempDir.resolve( name ), filled( fill, size ) );
+	}
+
+	private static byte[] filled( char fill, int size ) {
+		byte[] bytes = new byte[ size ];
+		Arrays.fill( bytes, ( byte ) fill );
+		return bytes;
+	}
+
+}
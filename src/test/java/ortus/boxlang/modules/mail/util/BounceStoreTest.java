@@ -0,0 +1,124 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import ortus.boxlang.modules.mail.util.BounceStore.Record;
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.Array;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+
+/**
+ * Unit tests for the bounce store index
+ */
+public class BounceStoreTest {
+
+	static BoxRuntime	runtime;
+	BounceStore			store;
+
+	@BeforeAll
+	public static void setUp() {
+		runtime = BoxRuntime.getInstance( true );
+	}
+
+	@BeforeEach
+	public void setupEach() {
+		store = new BounceStore();
+		store.index( "first", bounce( "SMTPAddressFailedException", "550 5.1.1 User unknown", "smtp.example.com", "jdoe@Example.com", 100L ) );
+		store.index( "second", bounce( "SMTPSendFailedException", "451 4.3.0 Try again later", "smtp.example.com", "jane@other.org", 200L ) );
+		store.index( "third", bounce( "SocketTimeoutException", "Read timed out", "relay.example.com", "joe@example.com", 300L ) );
+	}
+
+	@DisplayName( "It extracts the bounce metadata from a bounce entry" )
+	@Test
+	public void testRecord() {
+		Record record = store.get( "first" );
+		assertEquals( "SMTPAddressFailedException", record.errorClass() );
+		assertEquals( "550", record.smtpCode() );
+		assertEquals( "smtp.example.com", record.server() );
+		assertEquals( Set.of( "example.com" ), record.domains() );
+		assertEquals( 100L, record.bouncedAt() );
+		assertEquals( BounceStore.UNKNOWN, store.get( "third" ).smtpCode() );
+	}
+
+	@DisplayName( "It finds bounces which match a filter" )
+	@Test
+	public void testFind() {
+		assertEquals( List.of( "first", "second", "third" ), store.find( new Struct() ) );
+		assertEquals( List.of( "first", "third" ), store.find( Struct.of( MailKeys.domain, "EXAMPLE.COM" ) ) );
+		assertEquals( List.of( "second" ), store.find( Struct.of( MailKeys.smtpCode, 451 ) ) );
+		assertEquals( List.of( "first" ), store.find( Struct.of( Key.server, "smtp.example.com", MailKeys.domain, "example.com" ) ) );
+		assertEquals( List.of( "second", "third" ), store.find( Struct.of( MailKeys.since, 150L ) ) );
+		assertEquals( List.of( "first" ), store.find( Struct.of( MailKeys.until, 150L ) ) );
+		assertEquals( List.of(), store.find( Struct.of( MailKeys.errorClass, "MessagingException" ) ) );
+	}
+
+	@DisplayName( "It prefers the structured failure of a bounce entry" )
+	@Test
+	public void testStructuredFailure() {
+		IStruct entryData = bounce( "EmailException", "Message failed to send", "smtp.example.com", "jdoe@example.com", 400L );
+		entryData.put(
+		    MailKeys.failure,
+		    Struct.of(
+		        MailKeys.errorClass, "SMTPAddressFailedException",
+		        MailKeys.smtpCode, 452,
+		        Key.server, "Relay.Example.com",
+		        MailKeys.retryable, true
+		    )
+		);
+		store.index( "fourth", entryData );
+
+		Record record = store.get( "fourth" );
+		assertEquals( "SMTPAddressFailedException", record.errorClass() );
+		assertEquals( "452", record.smtpCode() );
+		assertEquals( "relay.example.com", record.server() );
+		assertEquals( List.of( "fourth" ), store.find( Struct.of( MailKeys.retryable, true ) ) );
+	}
+
+	@DisplayName( "It removes bounces from the index" )
+	@Test
+	public void testRemove() {
+		store.remove( "first" );
+		assertNull( store.get( "first" ) );
+		assertEquals( 2, store.size() );
+		assertEquals( List.of( "third" ), store.find( Struct.of( MailKeys.domain, "example.com" ) ) );
+	}
+
+	private static IStruct bounce( String errorClass, String exception, String server, String to, long bouncedAt ) {
+		return Struct.of(
+		    Key.exception, "Failed to send: " + exception,
+		    MailKeys.errorClass, errorClass,
+		    MailKeys.bouncedAt, bouncedAt,
+		    MailKeys.mailServers, Array.of( Struct.of( Key.server, server ) ),
+		    Key.message, Struct.of( MailKeys.toAddresses, Array.of( Struct.of( Key.email, to ) ) )
+		);
+	}
+
+}
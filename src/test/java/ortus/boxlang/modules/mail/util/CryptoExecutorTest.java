@@ -0,0 +1,154 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
+
+/**
+ * Unit tests for the signing and encryption executor
+ */
+public class CryptoExecutorTest {
+
+	static BoxRuntime runtime;
+
+	@BeforeAll
+	public static void setUp() {
+		runtime = BoxRuntime.getInstance( true );
+	}
+
+	@AfterAll
+	public static void tearDown() {
+		CryptoExecutor.shutdown( 1000 );
+	}
+
+	@DisplayName( "It runs tasks on the crypto threads and returns their results" )
+	@Test
+	public void testCall() {
+		String threadName = CryptoExecutor.call( () -> Thread.currentThread().getName() );
+		assertTrue( threadName.startsWith( "bx-mail-crypto-" ) );
+	}
+
+	@DisplayName( "It rethrows the exceptions of tasks unwrapped" )
+	@Test
+	public void testCallException() {
+		BoxRuntimeException error = new BoxRuntimeException( "Unable to sign the message" );
+		assertSame( error, assertThrows( BoxRuntimeException.class, () -> CryptoExecutor.call( () -> {
+			throw error;
+		} ) ) );
+	}
+
+	@DisplayName( "It runs tasks on the calling thread when the queue is full" )
+	@Test
+	public void testCallerRunsWhenFull() throws Exception {
+		ThreadPoolExecutor	executor	= CryptoExecutor.newExecutor( 1, 1 );
+		CountDownLatch		release		= new CountDownLatch( 1 );
+		try {
+			// one task occupies the thread and another fills the queue
+			executor.execute( () -> {
+				try {
+					release.await();
+				} catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+				}
+			} );
+			executor.execute( () -> {
+			} );
+
+			String[] ranOn = new String[ 1 ];
+			executor.execute( () -> ranOn[ 0 ] = Thread.currentThread().getName() );
+			assertEquals( Thread.currentThread().getName(), ranOn[ 0 ] );
+		} finally {
+			release.countDown();
+			executor.shutdown();
+			assertTrue( executor.awaitTermination( 5, TimeUnit.SECONDS ) );
+		}
+	}
+
+	@DisplayName( "It runs tasks on the calling thread once the executor has been shut down" )
+	@Test
+	public void testCallerRunsAfterShutdown() throws Exception {
+		ThreadPoolExecutor executor = CryptoExecutor.newExecutor( 1, 1 );
+		executor.shutdown();
+		assertTrue( executor.awaitTermination( 5, TimeUnit.SECONDS ) );
+
+		String[] ranOn = new String[ 1 ];
+		executor.execute( () -> ranOn[ 0 ] = Thread.currentThread().getName() );
+		assertEquals( Thread.currentThread().getName(), ranOn[ 0 ] );
+	}
+
+	@DisplayName( "It fails the callers of queued tasks when it is stopped before they run" )
+	@Test
+	public void testShutdownFailsQueuedCalls() throws Exception {
+		// the shared executor is replaced on the next use after a shutdown
+		CryptoExecutor.shutdown( 1000 );
+		int				threads		= CryptoExecutor.getExecutor().getMaximumPoolSize();
+		CountDownLatch	started		= new CountDownLatch( threads );
+		CountDownLatch	release		= new CountDownLatch( 1 );
+		for ( int i = 0; i < threads; i++ ) {
+			CryptoExecutor.execute( () -> {
+				started.countDown();
+				try {
+					release.await();
+				} catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+				}
+			} );
+		}
+		assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+
+		CompletableFuture<String> queued = CompletableFuture.supplyAsync( () -> CryptoExecutor.call( () -> "built" ) );
+		while ( CryptoExecutor.getExecutor().getQueue().isEmpty() ) {
+			Thread.sleep( 10 );
+		}
+		assertFalse( CryptoExecutor.shutdown( 100 ) );
+		release.countDown();
+		ExecutionException e = assertThrows( ExecutionException.class, () -> queued.get( 5, TimeUnit.SECONDS ) );
+		assertTrue( e.getCause() instanceof BoxRuntimeException );
+	}
+
+	@DisplayName( "It sizes the pool to the processors by default" )
+	@Test
+	public void testDefaultPoolSize() {
+		ThreadPoolExecutor executor = CryptoExecutor.newExecutor( 0, 16 );
+		try {
+			assertEquals( Runtime.getRuntime().availableProcessors(), executor.getMaximumPoolSize() );
+			assertEquals( 16, executor.getQueue().remainingCapacity() );
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
+
+/**
+ * Unit tests for the key material registry
+ */
+public class KeyMaterialRegistryTest {
+
+	static BoxRuntime			runtime;
+
+	static KeyMaterialRegistry	registry;
+
+	@TempDir
+	static Path					tempDir;
+
+	@BeforeAll
+	public static void setUp() {
+		runtime		= BoxRuntime.getInstance( true );
+		registry	= new KeyMaterialRegistry();
+	}
+
+	@AfterAll
+	public static void tearDown() {
+		registry.shutdown();
+	}
+
+	@DisplayName( "It loads material once and reloads it when the file changes" )
+	@Test
+	public void testReload() throws Exception {
+		Path			file	= tempDir.resolve( "reload.pem" );
+		AtomicInteger	loads	= new AtomicInteger();
+		Files.writeString( file, "first" );
+
+		assertEquals( "first", registry.get( "reload", file, countingReader( loads ) ) );
+		assertEquals( "first", registry.get( "reload", file, countingReader( loads ) ) );
+		assertEquals( 1, loads.get() );
+
+		Files.writeString( file, "second version" );
+		registry.refresh();
+		assertEquals( "second version", registry.get( "reload", file, countingReader( loads ) ) );
+		assertEquals( 2, loads.get() );
+
+		// an unchanged file is not loaded again
+		registry.refresh();
+		assertEquals( 2, loads.get() );
+	}
+
+	@DisplayName( "It keeps the loaded material when a changed file cannot be loaded" )
+	@Test
+	public void testInvalidReload() throws Exception {
+		Path file = tempDir.resolve( "invalid.pem" );
+		Files.writeString( file, "valid" );
+		Function<Path, String> loader = path -> {
+			String content = read( path );
+			if ( !content.startsWith( "valid" ) ) {
+				throw new BoxRuntimeException( "The material is not valid" );
+			}
+			return content;
+		};
+		assertEquals( "valid", registry.get( "invalid", file, loader ) );
+
+		Files.writeString( file, "partly written" );
+		registry.refresh();
+		assertEquals( "valid", registry.get( "invalid", file, loader ) );
+
+		Files.writeString( file, "valid and rotated" );
+		registry.refresh();
+		assertEquals( "valid and rotated", registry.get( "invalid", file, loader ) );
+	}
+
+	@DisplayName( "It does not register material which cannot be loaded" )
+	@Test
+	public void testMissingFile() {
+		assertThrows( BoxRuntimeException.class, () -> registry.get( "missing", tempDir.resolve( "missing.pem" ), KeyMaterialRegistryTest::read ) );
+	}
+
+	@DisplayName( "It reloads changed files from the watcher thread" )
+	@Test
+	public void testWatcher() throws Exception {
+		Path file = tempDir.resolve( "watched.pem" );
+		Files.writeString( file, "before" );
+		assertEquals( "before", registry.get( "watched", file, KeyMaterialRegistryTest::read ) );
+
+		Files.writeString( file, "after rotation" );
+		long deadline = System.currentTimeMillis() + 10000;
+		while ( !"after rotation".equals( registry.get( "watched", file, KeyMaterialRegistryTest::read ) ) && System.currentTimeMillis() < deadline ) {
+			Thread.sleep( 50 );
+		}
+		assertEquals( "after rotation", registry.get( "watched", file, KeyMaterialRegistryTest::read ) );
+	}
+
+	private static Function<Path, String> countingReader( AtomicInteger loads ) {
+		return path -> {
+			loads.incrementAndGet();
+			return read( path );
+		};
+	}
+
+	private static String read( Path path ) {
+		try {
+			return Files.readString( path );
+		} catch ( IOException e ) {
+			throw new UncheckedIOException( e );
+		}
+	}
+
+}
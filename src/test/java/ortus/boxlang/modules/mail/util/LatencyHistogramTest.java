@@ -0,0 +1,91 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.IStruct;
+
+/**
+ * Unit tests for the latency histogram and the mail metrics
+ */
+public class LatencyHistogramTest {
+
+	static BoxRuntime runtime;
+
+	@BeforeAll
+	public static void setUp() {
+		runtime = BoxRuntime.getInstance( true );
+	}
+
+	@DisplayName( "Every value is within the bounds of its bucket" )
+	@Test
+	public void testBuckets() {
+		for ( long value : new long[] { 0, 1, 15, 16, 17, 31, 32, 1000, 123_456_789L, 1L << 39 } ) {
+			int bucket = LatencyHistogram.bucketFor( value );
+			assertTrue( value <= LatencyHistogram.upperBound( bucket ), "Value " + value + " is above its bucket" );
+			assertTrue( bucket == 0 || value > LatencyHistogram.upperBound( bucket - 1 ), "Value " + value + " is below its bucket" );
+		}
+		assertEquals( LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketFor( Long.MAX_VALUE ) );
+	}
+
+	@DisplayName( "It reports percentiles within the bucket precision" )
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for ( long millis = 1; millis <= 100; millis++ ) {
+			histogram.record( millis * 1_000_000L );
+		}
+		assertEquals( 100, histogram.getCount() );
+		assertEquals( 50_000_000d, histogram.getValueAtPercentile( 50 ), 50_000_000d * 0.07 );
+		assertEquals( 99_000_000d, histogram.getValueAtPercentile( 99 ), 99_000_000d * 0.07 );
+		assertEquals( 100_000_000L, histogram.getValueAtPercentile( 100 ) );
+
+		histogram.reset();
+		assertEquals( 0, histogram.getCount() );
+		assertEquals( 0, histogram.getValueAtPercentile( 99 ) );
+	}
+
+	@DisplayName( "The mail metrics summarize sends per server" )
+	@Test
+	public void testMailMetrics() {
+		MailMetrics metrics = new MailMetrics();
+		metrics.recordSent( "SMTP.example.com", 2_000_000L, 8_000_000L, 2048 );
+		metrics.recordSent( "smtp.example.com", 2_000_000L, 8_000_000L, 1024 );
+		metrics.recordFailed( "relay.example.com" );
+		metrics.recordBounced();
+
+		IStruct snapshot = metrics.snapshot();
+		assertEquals( 2L, snapshot.get( MailKeys.sent ) );
+		assertEquals( 1L, snapshot.get( MailKeys.failed ) );
+		assertEquals( 3072L, snapshot.get( MailKeys.bytesSentEstimate ) );
+		assertEquals( 1d / 3d, metrics.getBounceRate(), 0.0001 );
+
+		IStruct servers = snapshot.getAsStruct( MailKeys.servers );
+		assertEquals( 2, servers.size() );
+		assertEquals( 2L, servers.getAsStruct( Key.of( "smtp.example.com" ) ).get( MailKeys.sent ) );
+	}
+
+}
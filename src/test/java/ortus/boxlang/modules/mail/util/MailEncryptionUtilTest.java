@@ -0,0 +1,484 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.mail.smime.SMIMEEnveloped;
+import org.bouncycastle.mail.smime.SMIMESigned;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import jakarta.activation.DataHandler;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.util.ByteArrayDataSource;
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
+
+/**
+ * Unit tests for S/MIME signing and encryption
+ */
+public class MailEncryptionUtilTest {
+
+	static final String					PASSWORD	= "signingpass";
+
+	static final Map<String, KeyPair>	keyPairs	= new HashMap<>();
+
+	static BoxRuntime					runtime;
+
+	@TempDir
+	static Path							tempDir;
+
+	@BeforeAll
+	public static void setUp() throws Exception {
+		runtime = BoxRuntime.getInstance( true );
+		if ( Security.getProvider( BouncyCastleProvider.PROVIDER_NAME ) == null ) {
+			Security.addProvider( new BouncyCastleProvider() );
+		}
+		createKeystore( "rsa", "RSA", 2048, "SHA256withRSA" );
+		createKeystore( "rsa2", "RSA", 2048, "SHA256withRSA" );
+		createKeystore( "ec", "EC", 256, "SHA256withECDSA" );
+		createKeystore( "ed25519", "Ed25519", 0, "Ed25519" );
+	}
+
+	@DisplayName( "It chooses the default signature algorithm from the type of the key" )
+	@ParameterizedTest
+	@CsvSource( {
+	    "rsa, SHA256withRSA",
+	    "ec, SHA256withECDSA",
+	    "ed25519, Ed25519"
+	} )
+	public void testDefaultAlgorithm( String keyType, String algorithm ) {
+		assertEquals( algorithm, MailEncryptionUtil.getSigningKey( keystore( keyType ), PASSWORD, keyType, PASSWORD ).defaultAlgorithm() );
+	}
+
+	@DisplayName( "It signs messages which verify with each supported algorithm" )
+	@ParameterizedTest
+	@CsvSource( {
+	    "rsa, auto",
+	    "rsa, SHA256withRSA",
+	    "rsa, sha512withrsa",
+	    "rsa, SHA256withRSAandMGF1",
+	    "ec, SHA256withECDSA",
+	    "ec, SHA384withECDSA",
+	    "ed25519, Ed25519"
+	} )
+	public void testSignAndVerify( String keyType, String algorithm ) throws Exception {
+		MimeMultipart			signed		= MailEncryptionUtil.signMessagePart( signingAttributes( keyType, algorithm ), newBodyPart() );
+		SMIMESigned				smime		= new SMIMESigned( signed );
+		SignerInformation		signer		= smime.getSignerInfos().getSigners().iterator().next();
+		X509CertificateHolder	certificate	= ( X509CertificateHolder ) smime.getCertificates().getMatches( signer.getSID() ).iterator().next();
+		assertTrue( signer.verify( new JcaSimpleSignerInfoVerifierBuilder().setProvider( BouncyCastleProvider.PROVIDER_NAME ).build( certificate ) ) );
+	}
+
+	@DisplayName( "It materializes signed content to a file which is written the same way each time" )
+	@Test
+	public void testMaterialize() throws Exception {
+		MimeMultipart								signed			= MailEncryptionUtil.signMessagePart( signingAttributes( "rsa", "SHA256withRSA" ), newBodyPart() );
+		MailEncryptionUtil.MaterializedMultipart	materialized	= MailEncryptionUtil.materialize( signed );
+		assertTrue( MailEncryptionUtil.isMaterialized( materialized ) );
+		assertFalse( MailEncryptionUtil.isMaterialized( signed ) );
+		assertTrue( materialized.getLength() > 0 );
+
+		ByteArrayOutputStream	first	= new ByteArrayOutputStream();
+		ByteArrayOutputStream	second	= new ByteArrayOutputStream();
+		materialized.writeTo( first );
+		materialized.writeTo( second );
+		assertArrayEquals( first.toByteArray(), second.toByteArray() );
+
+		SMIMESigned				smime		= new SMIMESigned( materialized );
+		SignerInformation		signer		= smime.getSignerInfos().getSigners().iterator().next();
+		X509CertificateHolder	certificate	= ( X509CertificateHolder ) smime.getCertificates().getMatches( signer.getSID() ).iterator().next();
+		assertTrue( signer.verify( new JcaSimpleSignerInfoVerifierBuilder().setProvider( BouncyCastleProvider.PROVIDER_NAME ).build( certificate ) ) );
+	}
+
+	@DisplayName( "It reuses a loaded key until the keystore changes" )
+	@Test
+	public void testKeyCache() throws Exception {
+		String							path	= keystore( "rsa" );
+		MailEncryptionUtil.SigningKey	first	= MailEncryptionUtil.getSigningKey( path, PASSWORD, "rsa", PASSWORD );
+		assertSame( first, MailEncryptionUtil.getSigningKey( path, PASSWORD, "rsa", PASSWORD ) );
+
+		Files.setLastModifiedTime( Path.of( path ), FileTime.fromMillis( Files.getLastModifiedTime( Path.of( path ) ).toMillis() + 2000 ) );
+		KeyMaterialRegistry.getInstance().refresh();
+		assertNotSame( first, MailEncryptionUtil.getSigningKey( path, PASSWORD, "rsa", PASSWORD ) );
+
+		// a wrong password never returns the cached key
+		assertThrows( BoxRuntimeException.class, () -> MailEncryptionUtil.getSigningKey( path, "wrong", "rsa", "wrong" ) );
+	}
+
+	@DisplayName( "It rejects unsupported signature algorithms" )
+	@Test
+	public void testUnsupportedAlgorithm() {
+		assertThrows( BoxRuntimeException.class,
+		    () -> MailEncryptionUtil.signMessagePart( signingAttributes( "rsa", "SHA256withFoo" ), newBodyPart() ) );
+	}
+
+	@DisplayName( "It validates key material before a message is built" )
+	@Test
+	public void testValidate() {
+		MailEncryptionUtil.validate( signingAttributes( "rsa", "auto" ), true, false );
+		MailEncryptionUtil.validate( encryptionAttributes( "AES256_GCM" ), false, true );
+
+		IStruct badAlias = signingAttributes( "rsa", "auto" );
+		badAlias.put( MailKeys.keyAlias, "missing" );
+		assertThrows( BoxRuntimeException.class, () -> MailEncryptionUtil.validate( badAlias, true, false ) );
+
+		IStruct missingCertificate = encryptionAttributes( "AES256_GCM" );
+		missingCertificate.put( MailKeys.recipientCert, tempDir.resolve( "missing.cer" ).toString() );
+		assertThrows( BoxRuntimeException.class, () -> MailEncryptionUtil.validate( missingCertificate, false, true ) );
+	}
+
+	@DisplayName( "It encrypts the content once for several recipient certificates" )
+	@Test
+	public void testMultipleRecipients() throws Exception {
+		IStruct attributes = Struct.of(
+		    MailKeys.encryptionAlgorithm, "AES256_CBC",
+		    MailKeys.recipientCert, certificate( "rsa" ) + ", " + certificate( "rsa2" ),
+		    MailKeys.recipientCertDirectory, ""
+		);
+		MimeBodyPart	encrypted	= reparse( MailEncryptionUtil.encryptBodyPart( attributes, newBodyPart() ) );
+		SMIMEEnveloped	enveloped	= new SMIMEEnveloped( encrypted );
+		assertEquals( 2, enveloped.getRecipientInfos().size() );
+
+		for ( String keyType : List.of( "rsa", "rsa2" ) ) {
+			MimeBodyPart decrypted = MailEncryptionUtil.decryptBodyPart( encrypted, certificate( keyType ), keyPairs.get( keyType ).getPrivate() );
+			assertTrue( decrypted.getContent().toString().startsWith( "Your order has shipped" ) );
+		}
+	}
+
+	@DisplayName( "It encrypts and decrypts with each content encryption algorithm" )
+	@ParameterizedTest
+	@ValueSource( strings = { "AES128_GCM", "AES256_GCM", "CHACHA20_POLY1305", "AES256_CBC", "DES_EDE3_CBC" } )
+	public void testEncryptionAlgorithms( String algorithm ) throws Exception {
+		MimeBodyPart encrypted = reparse( MailEncryptionUtil.encryptBodyPart( encryptionAttributes( algorithm ), newBodyPart() ) );
+		// the authenticated algorithms are enveloped as AuthEnvelopedData
+		assertEquals(
+		    MailEncryptionUtil.AUTHENTICATED_ALGORITHMS.contains( Key.of( algorithm ) ),
+		    encrypted.getContentType().toLowerCase().contains( "authenveloped-data" )
+		);
+		MimeBodyPart decrypted = MailEncryptionUtil.decryptBodyPart( encrypted, certificate( "rsa" ), keyPairs.get( "rsa" ).getPrivate() );
+		assertTrue( decrypted.getContent().toString().startsWith( "Your order has shipped" ) );
+	}
+
+	@DisplayName( "It looks up recipient certificates by address in a certificate directory" )
+	@Test
+	public void testCertificateDirectory() throws Exception {
+		Path directory = Files.createDirectories( tempDir.resolve( "certificates" ) );
+		Files.copy( Path.of( certificate( "rsa" ) ), directory.resolve( "jane@example.com.cer" ) );
+		Files.writeString(
+		    directory.resolve( "joe@example.com.pem" ),
+		    "-----BEGIN CERTIFICATE-----\n"
+		        + Base64.getMimeEncoder( 64, "\n".getBytes() ).encodeToString( Files.readAllBytes( Path.of( certificate( "rsa2" ) ) ) )
+		        + "\n-----END CERTIFICATE-----\n"
+		);
+
+		IStruct attributes = Struct.of(
+		    Key.to, "Jane <JANE@example.com>",
+		    MailKeys.cc, "joe@example.com",
+		    MailKeys.recipientCertDirectory, directory.toString()
+		);
+		assertEquals( 2, MailEncryptionUtil.getRecipientCertificates( attributes ).size() );
+
+		// an address without a certificate would be unable to decrypt the message
+		attributes.put( MailKeys.bcc, "jim@example.com" );
+		BoxRuntimeException e = assertThrows( BoxRuntimeException.class, () -> MailEncryptionUtil.getRecipientCertificates( attributes ) );
+		assertTrue( e.getMessage().contains( "jim@example.com" ) );
+	}
+
+	@DisplayName( "It decrypts messages from a stream to a file" )
+	@ParameterizedTest
+	@ValueSource( strings = { "AES256_GCM", "AES256_CBC" } )
+	public void testDecryptMessage( String algorithm ) throws Exception {
+		byte[]	message		= messageBytes( MailEncryptionUtil.encryptBodyPart( encryptionAttributes( algorithm ), newBodyPart() ) );
+		Path	destination	= tempDir.resolve( "decrypted-" + algorithm + ".eml" );
+
+		IStruct result = SmimeReader.decrypt( new ByteArrayInputStream( message ), keystore( "rsa" ), PASSWORD, "rsa", PASSWORD, destination.toString() );
+		assertTrue( result.getAsString( MailKeys.contentType ).startsWith( "text/plain" ) );
+		assertEquals( destination.toString(), result.getAsString( Key.file ) );
+		assertTrue( Files.readString( destination ).contains( "Your order has shipped" ) );
+		assertFalse( Files.exists( tempDir.resolve( "decrypted-" + algorithm + ".eml.part" ) ) );
+
+		// without a destination the decrypted entity is returned
+		result = SmimeReader.decrypt( new ByteArrayInputStream( message ), keystore( "rsa" ), PASSWORD, "rsa", PASSWORD, null );
+		assertTrue( result.getAsString( MailKeys.content ).startsWith( "Your order has shipped" ) );
+	}
+
+	@DisplayName( "It rejects a key the message was not encrypted for" )
+	@Test
+	public void testDecryptWrongKey() throws Exception {
+		byte[] message = messageBytes( MailEncryptionUtil.encryptBodyPart( encryptionAttributes( "AES256_GCM" ), newBodyPart() ) );
+		assertThrows(
+		    BoxRuntimeException.class,
+		    () -> SmimeReader.decrypt( new ByteArrayInputStream( message ), keystore( "rsa2" ), PASSWORD, "rsa2", PASSWORD, null )
+		);
+	}
+
+	@DisplayName( "It verifies signed messages from a file against a trust store and detects tampering" )
+	@Test
+	public void testVerifyMessage() throws Exception {
+		MimeMessage message = new MimeMessage( Session.getInstance( new Properties() ) );
+		message.setContent( MailEncryptionUtil.signMessagePart( signingAttributes( "rsa", "SHA256withRSA" ), newBodyPart() ) );
+		message.saveChanges();
+		Path file = tempDir.resolve( "signed.eml" );
+		try ( OutputStream output = Files.newOutputStream( file ) ) {
+			message.writeTo( output );
+		}
+
+		IStruct result = SmimeReader.verify( file.toString(), null, keystore( "rsa" ), PASSWORD );
+		assertTrue( result.getAsBoolean( MailKeys.valid ) );
+		assertEquals( 1, result.getAsArray( MailKeys.signers ).size() );
+		assertTrue( result.getAsString( MailKeys.content ).startsWith( "Your order has shipped" ) );
+
+		// a self-signed certificate is not trusted by the JVM, nor by a trust store holding another certificate
+		result = SmimeReader.verify( file.toString(), null );
+		assertTrue( result.getAsBoolean( MailKeys.signatureValid ) );
+		assertFalse( result.getAsBoolean( MailKeys.valid ) );
+		result = SmimeReader.verify( file.toString(), null, keystore( "rsa2" ), PASSWORD );
+		IStruct signer = ( IStruct ) result.getAsArray( MailKeys.signers ).get( 0 );
+		assertTrue( signer.getAsBoolean( MailKeys.signatureValid ) );
+		assertFalse( signer.getAsBoolean( MailKeys.trusted ) );
+		assertFalse( result.getAsBoolean( MailKeys.valid ) );
+
+		Path tampered = tempDir.resolve( "tampered.eml" );
+		Files.writeString( tampered, Files.readString( file ).replaceFirst( "three business days", "seven business days" ) );
+		result = SmimeReader.verify( tampered, null, keystore( "rsa" ), PASSWORD );
+		assertFalse( result.getAsBoolean( MailKeys.signatureValid ) );
+		assertFalse( result.getAsBoolean( MailKeys.valid ) );
+	}
+
+	@DisplayName( "It finds signed and encrypted entities nested in the message" )
+	@Test
+	public void testNestedEntities() throws Exception {
+		// a signed entity, enveloped, inside a one part multipart, as the module builds signed and encrypted messages
+		MimeBodyPart signed = new MimeBodyPart();
+		signed.setContent( MailEncryptionUtil.signMessagePart( signingAttributes( "rsa", "SHA256withRSA" ), newBodyPart() ) );
+		MimeMultipart envelope = new MimeMultipart();
+		envelope.addBodyPart( MailEncryptionUtil.encryptBodyPart( encryptionAttributes( "AES256_GCM" ), signed ) );
+		MimeMessage message = new MimeMessage( Session.getInstance( new Properties() ) );
+		message.setContent( MailEncryptionUtil.materialize( envelope ) );
+		message.saveChanges();
+		Path file = tempDir.resolve( "nested.eml" );
+		try ( OutputStream output = Files.newOutputStream( file ) ) {
+			message.writeTo( output );
+		}
+
+		Path	decrypted	= tempDir.resolve( "nested-decrypted.eml" );
+		IStruct	result		= SmimeReader.decrypt( file.toString(), keystore( "rsa" ), PASSWORD, "rsa", PASSWORD, decrypted.toString() );
+		assertTrue( result.getAsString( MailKeys.contentType ).startsWith( "multipart/signed" ) );
+
+		result = SmimeReader.verify( decrypted, null, keystore( "rsa" ), PASSWORD );
+		assertTrue( result.getAsBoolean( MailKeys.valid ) );
+		assertTrue( result.getAsString( MailKeys.content ).startsWith( "Your order has shipped" ) );
+
+		// an unsigned, unencrypted message is still rejected
+		MimeMessage plain = new MimeMessage( Session.getInstance( new Properties() ) );
+		plain.setContent( new MimeMultipart( newBodyPart() ) );
+		plain.saveChanges();
+		Path plainFile = tempDir.resolve( "plain.eml" );
+		try ( OutputStream output = Files.newOutputStream( plainFile ) ) {
+			plain.writeTo( output );
+		}
+		assertThrows( BoxRuntimeException.class, () -> SmimeReader.verify( plainFile, null ) );
+	}
+
+	@DisplayName( "Benchmark the per message signing cost of each algorithm" )
+	@Tag( "benchmark" )
+	@Test
+	public void benchmarkSigning() throws Exception {
+		int			warmup		= 200;
+		int			iterations	= 2000;
+		String[][]	cases		= new String[][] {
+		    { "rsa", "SHA256withRSA" },
+		    { "rsa", "SHA512withRSA" },
+		    { "rsa", "SHA256withRSAandMGF1" },
+		    { "ec", "SHA256withECDSA" },
+		    { "ed25519", "Ed25519" },
+		    { "rsa", "MD5withRSA" }
+		};
+		for ( String[] benchmark : cases ) {
+			IStruct			attributes	= signingAttributes( benchmark[ 0 ], benchmark[ 1 ] );
+			MimeBodyPart	bodyPart	= newBodyPart();
+			for ( int i = 0; i < warmup; i++ ) {
+				MailEncryptionUtil.signMessagePart( attributes, bodyPart );
+			}
+			long start = System.nanoTime();
+			for ( int i = 0; i < iterations; i++ ) {
+				MailEncryptionUtil.signMessagePart( attributes, bodyPart );
+			}
+			long cached = ( System.nanoTime() - start ) / iterations;
+
+			// the cost when the keystore is loaded for every message, as it was before keys were cached
+			start = System.nanoTime();
+			for ( int i = 0; i < warmup; i++ ) {
+				MailEncryptionUtil.clearSigningKeys();
+				MailEncryptionUtil.signMessagePart( attributes, bodyPart );
+			}
+			long uncached = ( System.nanoTime() - start ) / warmup;
+
+			System.out.println( String.format( "%-8s %-22s %8d us/message cached %8d us/message uncached", benchmark[ 0 ], benchmark[ 1 ],
+			    cached / 1000, uncached / 1000 ) );
+		}
+	}
+
+	@DisplayName( "Benchmark the per megabyte encryption cost of each algorithm" )
+	@Tag( "benchmark" )
+	@Test
+	public void benchmarkEncryption() throws Exception {
+		byte[] megabyte = new byte[ 1024 * 1024 ];
+		new Random( 42 ).nextBytes( megabyte );
+		MimeBodyPart bodyPart = new MimeBodyPart();
+		bodyPart.setDataHandler( new DataHandler( new ByteArrayDataSource( megabyte, "application/octet-stream" ) ) );
+
+		int	warmup		= 5;
+		int	iterations	= 20;
+		for ( String algorithm : List.of( "AES128_GCM", "AES256_GCM", "CHACHA20_POLY1305", "AES128_CBC", "AES256_CBC", "DES_EDE3_CBC", "RC2_CBC" ) ) {
+			IStruct attributes = encryptionAttributes( algorithm );
+			for ( int i = 0; i < warmup; i++ ) {
+				MailEncryptionUtil.encryptBodyPart( attributes, bodyPart ).writeTo( OutputStream.nullOutputStream() );
+			}
+			long start = System.nanoTime();
+			for ( int i = 0; i < iterations; i++ ) {
+				// the enveloped part is encrypted as it is written
+				MailEncryptionUtil.encryptBodyPart( attributes, bodyPart ).writeTo( OutputStream.nullOutputStream() );
+			}
+			System.out.println( String.format( "%-18s %8.2f ms/MB", algorithm, ( System.nanoTime() - start ) / 1_000_000.0 / iterations ) );
+		}
+	}
+
+	private static IStruct encryptionAttributes( String algorithm ) {
+		return Struct.of(
+		    MailKeys.encryptionAlgorithm, algorithm,
+		    MailKeys.recipientCert, certificate( "rsa" ),
+		    MailKeys.recipientCertDirectory, ""
+		);
+	}
+
+	private static IStruct signingAttributes( String keyType, String algorithm ) {
+		return Struct.of(
+		    MailKeys.keystore, keystore( keyType ),
+		    MailKeys.keystorePassword, PASSWORD,
+		    MailKeys.keyAlias, keyType,
+		    MailKeys.keyPassword, PASSWORD,
+		    MailKeys.signatureAlgorithm, algorithm
+		);
+	}
+
+	private static MimeBodyPart newBodyPart() throws Exception {
+		MimeBodyPart bodyPart = new MimeBodyPart();
+		bodyPart.setText( "Your order has shipped and will arrive within three business days.\r\n".repeat( 40 ) );
+		return bodyPart;
+	}
+
+	private static byte[] messageBytes( MimeBodyPart bodyPart ) throws Exception {
+		// the headers of a body part are a valid message header
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		buffer.write( "Subject: Your order\r\n".getBytes() );
+		bodyPart.writeTo( buffer );
+		return buffer.toByteArray();
+	}
+
+	private static String keystore( String keyType ) {
+		return tempDir.resolve( keyType + ".p12" ).toString();
+	}
+
+	private static String certificate( String keyType ) {
+		return tempDir.resolve( keyType + ".cer" ).toString();
+	}
+
+	private static MimeBodyPart reparse( MimeBodyPart bodyPart ) throws Exception {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		bodyPart.writeTo( buffer );
+		return new MimeBodyPart( new ByteArrayInputStream( buffer.toByteArray() ) );
+	}
+
+	private static void createKeystore( String alias, String keyAlgorithm, int keySize, String certificateAlgorithm ) throws Exception {
+		KeyPairGenerator pairGenerator = KeyPairGenerator.getInstance( keyAlgorithm );
+		if ( keySize > 0 ) {
+			pairGenerator.initialize( keySize );
+		}
+		KeyPair			keyPair		= pairGenerator.generateKeyPair();
+		keyPairs.put( alias, keyPair );
+		X500Name		subject		= new X500Name( "CN=" + alias + ",O=Ortus Solutions,C=US" );
+		Instant			now			= Instant.now();
+		X509Certificate	certificate	= new JcaX509CertificateConverter()
+		    .setProvider( BouncyCastleProvider.PROVIDER_NAME )
+		    .getCertificate(
+		        new JcaX509v3CertificateBuilder( subject, BigInteger.ONE, Date.from( now ), Date.from( now.plusSeconds( 86400 ) ), subject,
+		            keyPair.getPublic() )
+		            .build( new JcaContentSignerBuilder( certificateAlgorithm ).setProvider( BouncyCastleProvider.PROVIDER_NAME )
+		                .build( keyPair.getPrivate() ) )
+		    );
+
+		KeyStore keystore = KeyStore.getInstance( "PKCS12" );
+		keystore.load( null, PASSWORD.toCharArray() );
+		keystore.setKeyEntry( alias, keyPair.getPrivate(), PASSWORD.toCharArray(), new X509Certificate[] { certificate } );
+		try ( OutputStream stream = Files.newOutputStream( Path.of( keystore( alias ) ) ) ) {
+			keystore.store( stream, PASSWORD.toCharArray() );
+		}
+		Files.write( Path.of( certificate( alias ) ), certificate.getEncoded() );
+	}
+
+}
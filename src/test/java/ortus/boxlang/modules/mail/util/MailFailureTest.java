@@ -0,0 +1,105 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.SocketTimeoutException;
+
+import org.apache.commons.mail2.core.EmailException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import jakarta.mail.MessagingException;
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.Array;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
+
+/**
+ * Unit tests for structured failure capture
+ */
+public class MailFailureTest {
+
+	static BoxRuntime	runtime;
+	static final Array	mailServers	= Array.of( Struct.of( Key.server, "smtp.example.com" ) );
+
+	@BeforeAll
+	public static void setUp() {
+		runtime = BoxRuntime.getInstance( true );
+	}
+
+	@DisplayName( "It captures the reply codes of a rejected message" )
+	@Test
+	public void testPermanentFailure() {
+		Exception	e		= new BoxRuntimeException(
+		    "Message failed to send. Sending the email to the following server failed : relay.example.com:25",
+		    new EmailException( "Sending the email to the following server failed : relay.example.com:25",
+		        new MessagingException( "550 5.1.1 <jdoe@example.com>: Recipient address rejected: User unknown\n" ) )
+		);
+		IStruct		failure	= MailFailure.capture( e, mailServers, 2, 150L );
+
+		assertEquals( "MessagingException", failure.get( MailKeys.errorClass ) );
+		assertEquals( 550, failure.get( MailKeys.smtpCode ) );
+		assertEquals( "5.1.1", failure.get( MailKeys.enhancedCode ) );
+		assertEquals( "relay.example.com", failure.get( Key.server ) );
+		assertEquals( 2, failure.get( MailKeys.attempt ) );
+		assertEquals( 150L, failure.get( MailKeys.duration ) );
+		assertEquals( "550 5.1.1 <jdoe@example.com>: Recipient address rejected: User unknown", failure.get( Key.detail ) );
+		assertFalse( ( Boolean ) failure.get( MailKeys.retryable ) );
+	}
+
+	@DisplayName( "It classifies deferrals and network failures as retryable" )
+	@Test
+	public void testTransientFailure() {
+		IStruct deferred = MailFailure.capture( new MessagingException( "451 4.7.1 Greylisted, try again later" ), mailServers, 1, 0L );
+		assertEquals( 451, deferred.get( MailKeys.smtpCode ) );
+		assertTrue( ( Boolean ) deferred.get( MailKeys.retryable ) );
+
+		IStruct timeout = MailFailure.capture(
+		    new BoxRuntimeException( "Message failed to send. Read timed out", new SocketTimeoutException( "Read timed out" ) ),
+		    mailServers,
+		    1,
+		    0L
+		);
+		assertEquals( "SocketTimeoutException", timeout.get( MailKeys.errorClass ) );
+		assertNull( timeout.get( MailKeys.smtpCode ) );
+		assertEquals( "smtp.example.com", timeout.get( Key.server ) );
+		assertTrue( ( Boolean ) timeout.get( MailKeys.retryable ) );
+	}
+
+	@DisplayName( "It describes failures which were not thrown by a delivery attempt with the same keys" )
+	@Test
+	public void testDescribedFailure() {
+		IStruct	captured	= MailFailure.capture( new MessagingException( "451 4.7.1 Greylisted, try again later" ), mailServers, 1, 0L );
+		IStruct	described	= MailFailure.of( "SpoolLeaseExpired", "The spool lease expired", mailServers, 3, false );
+		assertEquals( captured.keySet(), described.keySet() );
+		assertEquals( "SpoolLeaseExpired", described.get( MailKeys.errorClass ) );
+		assertEquals( "smtp.example.com", described.get( Key.server ) );
+		assertEquals( 3, described.get( MailKeys.attempt ) );
+		assertNull( described.get( MailKeys.smtpCode ) );
+		assertFalse( ( Boolean ) described.get( MailKeys.retryable ) );
+	}
+
+}
@@ -0,0 +1,82 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.context.IBoxContext;
+import ortus.boxlang.runtime.context.ScriptingRequestBoxContext;
+import ortus.boxlang.runtime.scopes.IScope;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.scopes.VariablesScope;
+import ortus.boxlang.runtime.types.Struct;
+import ortus.boxlang.runtime.types.exceptions.BoxRuntimeException;
+
+/**
+ * Unit tests for compiled mail body templates
+ */
+public class MailTemplateTest {
+
+	static BoxRuntime	runtime;
+	IBoxContext			context;
+	IScope				variables;
+
+	@BeforeAll
+	public static void setUp() {
+		runtime = BoxRuntime.getInstance( true );
+	}
+
+	@BeforeEach
+	public void setupEach() {
+		context		= new ScriptingRequestBoxContext( runtime.getRuntimeContext() );
+		variables	= context.getScopeNearby( VariablesScope.name );
+	}
+
+	@DisplayName( "It compiles a template in to static segments and holes" )
+	@Test
+	public void testCompile() {
+		MailTemplate template = MailTemplate.compile( "Dear ${ user.firstName }, your order ${orderId} has shipped." );
+		assertEquals( 2, template.getHoleCount() );
+		assertEquals( 0, MailTemplate.compile( "No holes here" ).getHoleCount() );
+	}
+
+	@DisplayName( "It renders the holes from the context" )
+	@Test
+	public void testRender() {
+		variables.put( Key.of( "user" ), Struct.of( "firstName", "Jane" ) );
+		variables.put( Key.of( "orderId" ), 1234 );
+		MailTemplate template = MailTemplate.compile( "Dear ${user.firstName}, your order ${orderId} has shipped.${missing}" );
+		assertEquals( "Dear Jane, your order 1234 has shipped.", template.render( context ) );
+		variables.put( Key.of( "orderId" ), 5678 );
+		assertEquals( "Dear Jane, your order 5678 has shipped.", template.render( context ) );
+	}
+
+	@DisplayName( "It rejects unclosed holes" )
+	@Test
+	public void testUnclosedHole() {
+		assertThrows( BoxRuntimeException.class, () -> MailTemplate.compile( "Hello ${name" ) );
+	}
+
+}
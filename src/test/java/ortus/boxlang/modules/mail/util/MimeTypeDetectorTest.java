@@ -0,0 +1,105 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+
+/**
+ * Unit tests for attachment MIME type detection
+ */
+public class MimeTypeDetectorTest {
+
+	@BeforeAll
+	public static void setUp() {
+		BoxRuntime.getInstance( true );
+	}
+
+	@AfterEach
+	public void resetProbe() {
+		MimeTypeDetector.setContentProbe( null );
+	}
+
+	@DisplayName( "It resolves known extensions without probing the file" )
+	@Test
+	public void testExtensionDetection() {
+		AtomicInteger probes = new AtomicInteger();
+		MimeTypeDetector.setContentProbe( path -> {
+			probes.incrementAndGet();
+			return "application/x-probed";
+		} );
+
+		IStruct settings = new Struct();
+		assertEquals( "application/pdf", MimeTypeDetector.detect( Path.of( "/does/not/exist/brochure.PDF" ), settings ) );
+		assertEquals( "image/jpeg", MimeTypeDetector.detect( Path.of( "/does/not/exist/photo.jpg" ), settings ) );
+		assertEquals( 0, probes.get() );
+	}
+
+	@DisplayName( "It applies extension overrides from the module settings" )
+	@Test
+	public void testExtensionOverrides() {
+		IStruct settings = Struct.of( MailKeys.mimeTypes, Struct.of( "pdf", "application/x-pdf" ) );
+		assertEquals( "application/x-pdf", MimeTypeDetector.detect( Path.of( "terms.pdf" ), settings ) );
+	}
+
+	@DisplayName( "It caches probed types until the file is modified" )
+	@Test
+	public void testProbeCache() throws IOException {
+		Path			file	= Files.createTempFile( "mime-detector", ".unknownext" );
+		AtomicInteger	probes	= new AtomicInteger();
+		MimeTypeDetector.setContentProbe( path -> {
+			probes.incrementAndGet();
+			return "application/x-probed";
+		} );
+
+		try {
+			IStruct settings = new Struct();
+			assertEquals( "application/x-probed", MimeTypeDetector.detect( file, settings ) );
+			assertEquals( "application/x-probed", MimeTypeDetector.detect( file, settings ) );
+			assertEquals( 1, probes.get() );
+
+			Files.setLastModifiedTime( file, FileTime.fromMillis( System.currentTimeMillis() + 5000 ) );
+			MimeTypeDetector.detect( file, settings );
+			assertEquals( 2, probes.get() );
+		} finally {
+			Files.deleteIfExists( file );
+		}
+	}
+
+	@DisplayName( "It falls back to the default type when sniffing is disabled" )
+	@Test
+	public void testSniffingDisabled() {
+		IStruct settings = Struct.of( MailKeys.mimeContentSniffing, false );
+		assertEquals( MimeTypeDetector.DEFAULT_TYPE, MimeTypeDetector.detect( Path.of( "archive.unknownext" ), settings ) );
+	}
+
+}
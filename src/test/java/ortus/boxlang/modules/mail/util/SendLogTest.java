@@ -0,0 +1,112 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import ortus.boxlang.modules.mail.util.SendLog.BloomFilter;
+import ortus.boxlang.runtime.BoxRuntime;
+
+/**
+ * Unit tests for the idempotency send log
+ */
+public class SendLogTest {
+
+	static BoxRuntime runtime;
+
+	@BeforeAll
+	public static void setUp() {
+		runtime = BoxRuntime.getInstance( true );
+	}
+
+	@DisplayName( "The Bloom filter has no false negatives and few false positives" )
+	@Test
+	public void testBloomFilter() {
+		BloomFilter filter = new BloomFilter( 10000, SendLog.FALSE_POSITIVE_RATE );
+		for ( int i = 0; i < 10000; i++ ) {
+			filter.put( "message-" + i );
+		}
+		for ( int i = 0; i < 10000; i++ ) {
+			assertTrue( filter.mightContain( "message-" + i ) );
+		}
+		int falsePositives = 0;
+		for ( int i = 0; i < 10000; i++ ) {
+			if ( filter.mightContain( "other-" + i ) ) {
+				falsePositives++;
+			}
+		}
+		assertTrue( falsePositives < 300, "Expected a false positive rate near 1% but found " + falsePositives + " in 10000" );
+	}
+
+	@DisplayName( "It records delivered keys and rebuilds its filter from the log" )
+	@Test
+	public void testRecordAndSync() {
+		SendLog	log		= new SendLog( runtime.getCacheService().getDefaultCache(), 1000 );
+		String	key		= "order-" + UUID.randomUUID().toString();
+		String	other	= "order-" + UUID.randomUUID().toString();
+
+		assertFalse( log.isDelivered( key ) );
+		log.record( key, "<message@example.com>" );
+		assertTrue( log.isDelivered( key ) );
+		assertFalse( log.isDelivered( other ) );
+
+		SendLog restarted = new SendLog( runtime.getCacheService().getDefaultCache(), 1000 );
+		assertTrue( restarted.isDelivered( key ) );
+	}
+
+	@DisplayName( "It lets only one sender claim a key" )
+	@Test
+	public void testClaim() {
+		SendLog	log	= new SendLog( runtime.getCacheService().getDefaultCache(), 1000 );
+		String	key	= "order-" + UUID.randomUUID().toString();
+
+		assertTrue( log.claim( key ) );
+		assertFalse( log.claim( key ) );
+		assertTrue( log.isDelivered( key ) );
+
+		// a failed send gives the key up
+		log.release( key );
+		assertFalse( log.isDelivered( key ) );
+		assertTrue( log.claim( key ) );
+
+		// a delivered key is kept
+		log.record( key, "<message@example.com>" );
+		log.release( key );
+		assertTrue( log.isDelivered( key ) );
+	}
+
+	@DisplayName( "It sees keys logged by other nodes when the log is shared" )
+	@Test
+	public void testSharedLog() {
+		SendLog	nodeA	= new SendLog( runtime.getCacheService().getDefaultCache(), 1000, true );
+		SendLog	nodeB	= new SendLog( runtime.getCacheService().getDefaultCache(), 1000, true );
+		String	key		= "order-" + UUID.randomUUID().toString();
+
+		nodeA.record( key, "<message@example.com>" );
+		assertTrue( nodeB.isDelivered( key ) );
+		assertFalse( nodeB.claim( key ) );
+	}
+
+}
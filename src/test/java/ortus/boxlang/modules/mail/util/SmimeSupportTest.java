@@ -0,0 +1,73 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.security.Security;
+import java.util.Arrays;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import jakarta.activation.CommandMap;
+import jakarta.activation.MailcapCommandMap;
+import ortus.boxlang.runtime.BoxRuntime;
+
+/**
+ * Unit tests for the registration of the S/MIME provider and content handlers
+ */
+public class SmimeSupportTest {
+
+	static BoxRuntime runtime;
+
+	@BeforeAll
+	public static void setUp() {
+		runtime = BoxRuntime.getInstance( true );
+	}
+
+	@DisplayName( "It installs the BouncyCastle provider once" )
+	@Test
+	public void testProvider() {
+		SmimeSupport.initialize();
+		assertSame( Security.getProvider( BouncyCastleProvider.PROVIDER_NAME ), SmimeSupport.provider() );
+		assertSame( SmimeSupport.provider(), SmimeSupport.installProvider() );
+		assertEquals( 1, Arrays.stream( Security.getProviders() ).filter( p -> p.getName().equals( BouncyCastleProvider.PROVIDER_NAME ) ).count() );
+	}
+
+	@DisplayName( "It registers the S/MIME content handlers with the default command map once" )
+	@Test
+	public void testMailcap() {
+		SmimeSupport.initialize();
+		assertSame( CommandMap.getDefaultCommandMap(), SmimeSupport.commandMap() );
+		MailcapCommandMap	mailcap		= ( MailcapCommandMap ) SmimeSupport.commandMap();
+		int					mimeTypes	= mailcap.getMimeTypes().length;
+		int					commands	= mailcap.getAllCommands( "multipart/signed" ).length;
+		assertNotNull( mailcap.createDataContentHandler( "multipart/signed" ) );
+		assertNotNull( mailcap.createDataContentHandler( "application/pkcs7-mime" ) );
+
+		SmimeSupport.registerMailcap();
+		assertEquals( mimeTypes, mailcap.getMimeTypes().length );
+		assertEquals( commands, mailcap.getAllCommands( "multipart/signed" ).length );
+	}
+
+}
@@ -0,0 +1,125 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import ortus.boxlang.modules.mail.exceptions.MailSpoolFullException;
+import ortus.boxlang.modules.mail.util.SpoolIndex.Entry;
+import ortus.boxlang.runtime.BoxRuntime;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+
+/**
+ * Unit tests for spool admission control
+ */
+public class SpoolAdmissionTest {
+
+	static BoxRuntime	runtime;
+	static final Key	testCache	= Key.of( "admissionTestSpool" );
+	SpoolIndex			index;
+
+	@BeforeAll
+	public static void setUp() {
+		runtime = BoxRuntime.getInstance( true );
+	}
+
+	@BeforeEach
+	public void setupEach() {
+		index = new SpoolIndex();
+		index.put( new Entry( "low", testCache, 4, 0L, null, 100, 0, System.currentTimeMillis() ) );
+		index.put( new Entry( "normal", testCache, 3, 0L, null, 100, 0, System.currentTimeMillis() ) );
+	}
+
+	@DisplayName( "It admits messages below the high-water marks" )
+	@Test
+	public void testAdmit() {
+		IStruct settings = Struct.of( MailKeys.spoolMaxDepth, 10, MailKeys.spoolOverflow, "reject" );
+		assertDoesNotThrow( () -> SpoolAdmission.admit( entry( "new", 3 ), index, settings ) );
+		assertDoesNotThrow( () -> SpoolAdmission.admit( entry( "new", 3 ), index, Struct.of() ) );
+	}
+
+	@DisplayName( "It rejects messages above the depth mark" )
+	@Test
+	public void testReject() {
+		IStruct settings = Struct.of( MailKeys.spoolMaxDepth, 2, MailKeys.spoolOverflow, "reject" );
+		assertThrows( MailSpoolFullException.class, () -> SpoolAdmission.admit( entry( "new", 3 ), index, settings ) );
+	}
+
+	@DisplayName( "It rejects blocked messages when the spool does not drain before the timeout" )
+	@Test
+	public void testBlockTimeout() {
+		IStruct	settings	= Struct.of( MailKeys.spoolMaxDepth, 2, MailKeys.spoolOverflow, "block", MailKeys.spoolBlockTimeout, 0.2 );
+		long	start		= System.currentTimeMillis();
+		assertThrows( MailSpoolFullException.class, () -> SpoolAdmission.admit( entry( "new", 3 ), index, settings ) );
+		assertTrue( System.currentTimeMillis() - start >= 200 );
+	}
+
+	@DisplayName( "It sheds the lowest priority messages to make room" )
+	@Test
+	public void testShed() {
+		IStruct settings = Struct.of( MailKeys.spoolMaxDepth, 2, MailKeys.spoolOverflow, "shed" );
+		SpoolAdmission.admit( entry( "new", 3 ), index, settings );
+		assertEquals( 1, index.size() );
+		assertNull( index.get( "low" ) );
+
+		// a lower priority message cannot displace a more important one
+		index.put( entry( "other", 3 ) );
+		assertThrows( MailSpoolFullException.class, () -> SpoolAdmission.admit( entry( "new", 5 ), index, settings ) );
+		assertEquals( 2, index.size() );
+	}
+
+	@DisplayName( "It does not shed messages which are being sent" )
+	@Test
+	public void testShedSkipsClaimed() {
+		IStruct settings = Struct.of( MailKeys.spoolMaxDepth, 2, MailKeys.spoolOverflow, "shed" );
+		index.claim( "low" );
+		SpoolAdmission.admit( entry( "new", 3 ), index, settings );
+		assertNotNull( index.get( "low" ) );
+		assertEquals( 1, index.size() );
+	}
+
+	@DisplayName( "It admits or rejects a batch of messages as a unit" )
+	@Test
+	public void testAdmitBatch() {
+		IStruct settings = Struct.of( MailKeys.spoolMaxDepth, 4, MailKeys.spoolOverflow, "reject" );
+		assertDoesNotThrow( () -> SpoolAdmission.admit( List.of( entry( "one", 3 ), entry( "two", 3 ) ), index, settings ) );
+		assertThrows(
+		    MailSpoolFullException.class,
+		    () -> SpoolAdmission.admit( List.of( entry( "one", 3 ), entry( "two", 3 ), entry( "three", 3 ) ), index, settings )
+		);
+	}
+
+	private static Entry entry( String key, int priority ) {
+		return new Entry( key, testCache, priority, 0L, null, 100, 0, System.currentTimeMillis() );
+	}
+
+}
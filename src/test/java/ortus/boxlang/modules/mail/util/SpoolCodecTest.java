@@ -0,0 +1,68 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.IStruct;
+import ortus.boxlang.runtime.types.Struct;
+
+/**
+ * Unit tests for spooled message compression
+ */
+public class SpoolCodecTest {
+
+	static final String html = "<html><body>" + "<p>Our monthly newsletter has arrived!</p>".repeat( 1000 ) + "</body></html>";
+
+	@DisplayName( "It compresses and restores large values with each codec" )
+	@Test
+	public void testRoundTrip() {
+		for ( String codec : new String[] { SpoolCodec.DEFLATE, SpoolCodec.GZIP } ) {
+			IStruct	message	= Struct.of( Key.content, html, MailKeys.subject, "Newsletter" );
+			IStruct	encoded	= SpoolCodec.encode( message, Struct.of( MailKeys.spoolCompression, codec ) );
+			assertEquals( codec, encoded.getAsString( MailKeys.codec ) );
+			assertTrue( encoded.get( Key.content ) instanceof byte[] bytes && bytes.length < html.length() / 5 );
+			assertEquals( "Newsletter", encoded.getAsString( MailKeys.subject ) );
+			// the original message is left unchanged
+			assertEquals( html, message.getAsString( Key.content ) );
+
+			IStruct decoded = SpoolCodec.decode( encoded );
+			assertEquals( html, decoded.getAsString( Key.content ) );
+			assertNull( decoded.get( MailKeys.codec ) );
+		}
+	}
+
+	@DisplayName( "It leaves small and unencoded messages untouched" )
+	@Test
+	public void testBelowThreshold() {
+		IStruct message = Struct.of( Key.content, "Hello mail!" );
+		assertSame( message, SpoolCodec.encode( message, Struct.of( MailKeys.spoolCompression, SpoolCodec.DEFLATE ) ) );
+		// compression is disabled by default
+		IStruct large = Struct.of( Key.content, html );
+		assertSame( large, SpoolCodec.encode( large, Struct.of() ) );
+		assertSame( message, SpoolCodec.decode( message ) );
+	}
+
+}
@@ -0,0 +1,141 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import ortus.boxlang.modules.mail.util.SpoolIndex.Entry;
+import ortus.boxlang.runtime.scopes.Key;
+import ortus.boxlang.runtime.types.Array;
+import ortus.boxlang.runtime.types.Struct;
+
+/**
+ * Unit tests for the in-memory spool index
+ */
+public class SpoolIndexTest {
+
+	SpoolIndex index;
+
+	@BeforeEach
+	public void setupEach() {
+		index = new SpoolIndex();
+	}
+
+	@DisplayName( "It returns due entries in priority order" )
+	@Test
+	public void testDueOrder() {
+		index.put( new Entry( "normal", MailKeys.mailUnsent, 3, 100L, null, 10, 0, 100L ) );
+		index.put( new Entry( "urgent", MailKeys.mailUnsent, 1, 200L, null, 10, 0, 200L ) );
+		index.put( new Entry( "later", MailKeys.mailUnsent, 1, 5000L, null, 10, 0, 300L ) );
+		index.put( new Entry( "lowest", MailKeys.mailUnsent, 5, 50L, null, 10, 0, 50L ) );
+
+		List<String> due = index.due( MailKeys.mailUnsent, 1000L ).stream().map( Entry::key ).toList();
+		assertEquals( List.of( "urgent", "normal", "lowest" ), due );
+		assertEquals( "lowest", index.lowestPriority().key() );
+		assertEquals( 50L, index.oldestSpooledAt() );
+	}
+
+	@DisplayName( "It moves waiting entries to the due set when their time comes" )
+	@Test
+	public void testWaiting() {
+		long now = System.currentTimeMillis();
+		index.put( new Entry( "now", MailKeys.mailUnsent, 3, now, null, 10, 0, now ) );
+		index.put( new Entry( "soon", MailKeys.mailUnsent, 1, now + 1000L, null, 10, 0, now ) );
+		index.put( new Entry( "later", MailKeys.mailUnsent, 1, now + 5000L, null, 10, 0, now ) );
+		assertEquals( 3, index.size( MailKeys.mailUnsent ) );
+
+		assertEquals( List.of( "now" ), index.due( MailKeys.mailUnsent, now ).stream().map( Entry::key ).toList() );
+		assertEquals( List.of( "soon", "now" ), index.due( MailKeys.mailUnsent, now + 2000L ).stream().map( Entry::key ).toList() );
+
+		index.remove( "later" );
+		index.remove( "soon" );
+		assertEquals( 1, index.size( MailKeys.mailUnsent ) );
+		assertEquals( List.of( "now" ), index.due( MailKeys.mailUnsent, now + 10000L ).stream().map( Entry::key ).toList() );
+	}
+
+	@DisplayName( "It tracks the depth and size of the spool" )
+	@Test
+	public void testDepthAndSize() {
+		index.put( new Entry( "one", MailKeys.mailUnsent, 3, 0L, null, 100, 0, 0L ) );
+		index.put( new Entry( "two", Key.of( "mailUnsent_1" ), 3, 0L, null, 250, 0, 0L ) );
+		assertEquals( 2, index.size() );
+		assertEquals( 1, index.size( MailKeys.mailUnsent ) );
+		assertEquals( 350, index.totalSize() );
+
+		// replacing an entry does not double count it
+		index.put( new Entry( "one", MailKeys.mailUnsent, 3, 0L, null, 50, 1, 0L ) );
+		assertEquals( 300, index.totalSize() );
+
+		index.remove( "one" );
+		index.remove( "two" );
+		assertEquals( 0, index.size() );
+		assertEquals( 0, index.totalSize() );
+		assertNull( index.lowestPriority() );
+	}
+
+	@DisplayName( "It hides claimed entries from scheduling and shedding" )
+	@Test
+	public void testClaim() {
+		index.put( new Entry( "sending", MailKeys.mailUnsent, 5, 0L, null, 10, 0, 50L ) );
+		index.put( new Entry( "waiting", MailKeys.mailUnsent, 3, 0L, null, 10, 0, 100L ) );
+
+		assertTrue( index.claim( "sending" ) );
+		assertFalse( index.claim( "sending" ) );
+		assertFalse( index.claim( "missing" ) );
+		assertEquals( List.of( "waiting" ), index.due( MailKeys.mailUnsent, 1000L ).stream().map( Entry::key ).toList() );
+		assertEquals( "waiting", index.lowestPriority().key() );
+		assertEquals( "waiting", index.oldest().key() );
+		// a claimed entry still counts towards the depth of the spool
+		assertEquals( 2, index.size() );
+
+		index.unclaim( "sending" );
+		assertEquals( "sending", index.lowestPriority().key() );
+		assertTrue( index.claim( "sending" ) );
+		index.remove( "sending" );
+		assertFalse( index.claim( "sending" ) );
+	}
+
+	@DisplayName( "It creates entries from spooled message data" )
+	@Test
+	public void testEntryFromSpoolData() {
+		Entry entry = Entry.of(
+		    "message",
+		    MailKeys.mailUnsent,
+		    Struct.of(
+		        Key.priority, "high",
+		        MailKeys.spooledAt, 1234L,
+		        MailKeys.mailServers, Array.of( Struct.of( Key.server, "smtp.example.com" ) )
+		    )
+		);
+		assertEquals( 2, entry.priority() );
+		assertEquals( 1234L, entry.spooledAt() );
+		assertEquals( 1234L, entry.nextAttempt() );
+		assertEquals( "smtp.example.com", entry.server() );
+		assertEquals( 0, entry.attempts() );
+	}
+
+}
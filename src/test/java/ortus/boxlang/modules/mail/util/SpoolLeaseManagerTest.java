@@ -0,0 +1,137 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import ortus.boxlang.modules.mail.util.SpoolLeaseManager.Claim;
+import ortus.boxlang.runtime.BoxRuntime;
+
+/**
+ * Unit tests for lease based spool claiming
+ */
+public class SpoolLeaseManagerTest {
+
+	static BoxRuntime	runtime;
+	Path				leaseDirectory;
+
+	@BeforeAll
+	public static void setUp() {
+		runtime = BoxRuntime.getInstance( true );
+	}
+
+	@BeforeEach
+	public void setupEach() throws IOException {
+		leaseDirectory = SpoolLeaseManager.leaseDirectoryFor( Files.createTempDirectory( "mail-lease-test" ).resolve( "unsent" ).toString() );
+	}
+
+	@DisplayName( "It allows only one node to hold a lease" )
+	@Test
+	public void testExclusiveClaim() {
+		SpoolLeaseManager	nodeA	= new SpoolLeaseManager( leaseDirectory, "nodeA", 60000 );
+		SpoolLeaseManager	nodeB	= new SpoolLeaseManager( leaseDirectory, "nodeB", 60000 );
+		assertEquals( Claim.ACQUIRED, nodeA.claim( "message-1" ) );
+		assertEquals( Claim.HELD, nodeB.claim( "message-1" ) );
+		assertEquals( 1, nodeA.renew() );
+		nodeA.release( "message-1" );
+		assertFalse( nodeA.isHeld( "message-1" ) );
+		assertEquals( Claim.ACQUIRED, nodeB.claim( "message-1" ) );
+	}
+
+	@DisplayName( "It reclaims expired leases" )
+	@Test
+	public void testReclaimExpired() throws InterruptedException {
+		SpoolLeaseManager	nodeA	= new SpoolLeaseManager( leaseDirectory, "nodeA", 1 );
+		SpoolLeaseManager	nodeB	= new SpoolLeaseManager( leaseDirectory, "nodeB", 60000 );
+		assertEquals( Claim.ACQUIRED, nodeA.claim( "message-2" ) );
+		Thread.sleep( 20 );
+		assertEquals( Claim.ACQUIRED, nodeB.claim( "message-2" ) );
+		assertTrue( nodeB.isHeld( "message-2" ) );
+		// the original holder notices the lost lease on its next heartbeat
+		assertEquals( 0, nodeA.renew() );
+		assertFalse( nodeA.isHeld( "message-2" ) );
+	}
+
+	@DisplayName( "It reports leases which expired while sending as orphaned" )
+	@Test
+	public void testReclaimOrphaned() throws InterruptedException {
+		SpoolLeaseManager	nodeA	= new SpoolLeaseManager( leaseDirectory, "nodeA", 1 );
+		SpoolLeaseManager	nodeB	= new SpoolLeaseManager( leaseDirectory, "nodeB", 60000 );
+		assertEquals( Claim.ACQUIRED, nodeA.claim( "message-3" ) );
+		nodeA.markSending( "message-3" );
+		Thread.sleep( 20 );
+		assertEquals( Claim.ORPHANED, nodeB.claim( "message-3" ) );
+	}
+
+	@DisplayName( "It keeps the leases of entries which are still being sent when it releases its leases" )
+	@Test
+	public void testReleaseAllRetained() {
+		SpoolLeaseManager	nodeA	= new SpoolLeaseManager( leaseDirectory, "nodeA", 60000 );
+		SpoolLeaseManager	nodeB	= new SpoolLeaseManager( leaseDirectory, "nodeB", 60000 );
+		assertEquals( Claim.ACQUIRED, nodeA.claim( "message-4" ) );
+		assertEquals( Claim.ACQUIRED, nodeA.claim( "message-5" ) );
+		nodeA.markSending( "message-5" );
+		nodeA.releaseAll( Set.of( "message-5" ) );
+		assertEquals( Claim.ACQUIRED, nodeB.claim( "message-4" ) );
+		assertEquals( Claim.HELD, nodeB.claim( "message-5" ) );
+	}
+
+	@DisplayName( "It does not recreate a released lease when it renews" )
+	@Test
+	public void testRenewAfterRelease() throws IOException {
+		SpoolLeaseManager nodeA = new SpoolLeaseManager( leaseDirectory, "nodeA", 60000 );
+		assertEquals( Claim.ACQUIRED, nodeA.claim( "message-6" ) );
+		nodeA.release( "message-6" );
+		nodeA.markSending( "message-6" );
+		assertEquals( 0, nodeA.renew() );
+		assertFalse( nodeA.isHeld( "message-6" ) );
+		try ( var files = Files.list( leaseDirectory ) ) {
+			assertEquals( 0, files.count() );
+		}
+	}
+
+	@DisplayName( "It does not take over a lease which was renewed after it expired" )
+	@Test
+	public void testReclaimRenewed() throws InterruptedException, IOException {
+		SpoolLeaseManager	nodeA	= new SpoolLeaseManager( leaseDirectory, "nodeA", 1 );
+		SpoolLeaseManager	nodeB	= new SpoolLeaseManager( leaseDirectory, "nodeB", 60000 );
+		SpoolLeaseManager	nodeC	= new SpoolLeaseManager( leaseDirectory, "nodeC", 60000 );
+		assertEquals( Claim.ACQUIRED, nodeA.claim( "message-7" ) );
+		Thread.sleep( 20 );
+		assertEquals( Claim.ACQUIRED, nodeB.claim( "message-7" ) );
+		assertEquals( Claim.HELD, nodeC.claim( "message-7" ) );
+		assertEquals( 1, nodeB.renew() );
+		// only the lease itself is left behind
+		try ( var files = Files.list( leaseDirectory ) ) {
+			assertEquals( 1, files.count() );
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+/**
+ * [BoxLang]
+ *
+ * Copyright [2023] [Ortus Solutions, Corp]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ortus.boxlang.modules.mail.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for body text wrapping
+ */
+public class TextWrapperTest {
+
+	static final String NL = System.lineSeparator();
+
+	@DisplayName( "It wraps at the last space within the wrap length" )
+	@Test
+	public void testWrap() {
+		assertEquals( "The quick" + NL + "brown fox" + NL + "jumps", TextWrapper.wrap( new StringBuffer( "The quick brown fox jumps" ), 10 ) );
+	}
+
+	@DisplayName( "It leaves short content untouched" )
+	@Test
+	public void testShortContent() {
+		assertEquals( "Hello mail!", TextWrapper.wrap( "Hello mail!", 72 ) );
+	}
+
+	@DisplayName( "It does not break words longer than the wrap length" )
+	@Test
+	public void testLongWords() {
+		assertEquals( "https://www.ortussolutions.com/long/url" + NL + "is here",
+		    TextWrapper.wrap( "https://www.ortussolutions.com/long/url is here", 10 ) );
+	}
+
+	@DisplayName( "It preserves existing line breaks" )
+	@Test
+	public void testExistingLineBreaks() {
+		assertEquals( "one two\r\nthree" + NL + "four\nfive", TextWrapper.wrap( "one two\r\nthree four\nfive", 8 ) );
+	}
+
+}